@@ -0,0 +1,72 @@
+package netgame.common;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This package private class creates the threads that Hub and Client use
+ * for network communication.  A thread can be either an ordinary "platform"
+ * thread or a "virtual" thread.  Virtual threads are managed by the Java
+ * runtime rather than by the operating system, and they are so cheap that
+ * a program can have hundreds of thousands of them.  They were added to
+ * Java in version 21.  Since this package is meant to work with Java 17,
+ * virtual threads are created using reflection when they are available.
+ * When they are not available, a platform thread is created instead.
+ */
+final class ConnectionThreads {
+
+	/**
+	 * A factory that creates virtual threads, or null if virtual threads are
+	 * not supported by the Java runtime.
+	 */
+	private static final ThreadFactory virtualThreadFactory = findVirtualThreadFactory();
+
+	private static volatile boolean warned;  // Set after the "not available" message has been printed.
+
+	private ConnectionThreads() { // Only static methods in this class.
+	}
+
+	/**
+	 * Tells whether virtual threads can be used in this Java runtime.
+	 */
+	static boolean virtualThreadsAvailable() {
+		return virtualThreadFactory != null;
+	}
+
+	/**
+	 * Creates a thread, but does not start it.
+	 * @param name the name for the thread.
+	 * @param task the code that the thread will run.
+	 * @param virtual if true, a virtual thread is created, if possible.  If virtual
+	 *    threads are not available, a message is printed (the first time only)
+	 *    and a platform thread is created instead.
+	 */
+	static Thread newThread(String name, Runnable task, boolean virtual) {
+		if (virtual) {
+			if (virtualThreadFactory != null) {
+				Thread t = virtualThreadFactory.newThread(task);
+				t.setName(name);
+				return t;
+			}
+			if (!warned) {
+				warned = true;
+				System.out.println("Virtual threads require Java 21; using platform threads instead.");
+			}
+		}
+		return new Thread(task, name);
+	}
+
+	/**
+	 * Uses reflection to evaluate Thread.ofVirtual().factory().
+	 */
+	private static ThreadFactory findVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderInterface = Class.forName("java.lang.Thread$Builder");
+			return (ThreadFactory)builderInterface.getMethod("factory").invoke(builder);
+		}
+		catch (Exception | LinkageError e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,512 @@
+package netgame.common;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A GameJournal saves the state of a game in files on the server, so that a hub
+ * that is restarted -- after a crash, or after the server computer is rebooted --
+ * can pick up the game where it left off.  The state must be a SyncedState, the
+ * same kind of object that the hub sends to its clients with sendState() or
+ * sendStateToAll().  Each time the hub accepts a change to the state, it calls
+ * record(state).  The fields of the state that have changed since the previous
+ * call are appended to a "journal" file.  Every so often (by default, after
+ * every 1000 changes), the complete state is written to a "snapshot" file
+ * instead, and a new journal is started, so that the saved information never
+ * gets very large.  When the hub starts, it calls recover(), which reads the
+ * snapshot and applies the changes from the journal to rebuild the most recent
+ * state that was saved.
+ * <p>Files are written by a separate thread that belongs to the journal, so
+ * record() does not wait for the disk.  It only works out which fields have
+ * changed and encodes them, in the compact form that is used for network messages
+ * (see MessageCodecs), and puts the result in a queue.  The writing thread
+ * takes all the entries that are waiting in the queue, writes them with a single
+ * write operation, and then forces them out to the disk before it goes back to
+ * the queue.  When changes come quickly, many of them are saved by one write.
+ * This means that the most recent changes can be lost if the server crashes,
+ * but the saved state is always a state that actually occurred.  An entry that
+ * was only partly written when the server crashed is ignored by recover().
+ * <p>The files for a journal named "poker" are named poker.snapshot and, for
+ * example, poker.7.journal, where 7 is the "generation" of the snapshot that
+ * the journal belongs to.  A new snapshot is written to a temporary file which
+ * is then renamed, so that there is always a complete snapshot on disk.
+ * <p>Note that what is saved is the state <i>after</i> each change, not the
+ * messages that caused the change.  Replaying messages would not work for
+ * games, like the ones in this package, that use random numbers to shuffle
+ * cards or to choose who plays first.
+ */
+public class GameJournal {
+
+	/**
+	 * An entry in the queue of work for the writing thread.  A snapshot
+	 * entry has a generation greater than zero; a journal entry has
+	 * generation zero.  An entry with data == null is a request to
+	 * delete the files (if generation is 0) or to stop (if it is -1).
+	 */
+	private static class Job {
+		final int generation;
+		final byte[] data;
+		Job(int generation, byte[] data) {
+			this.generation = generation;
+			this.data = data;
+		}
+	}
+
+	private final static Job DISCARD = new Job(0,null);
+	private final static Job CLOSE = new Job(-1,null);
+
+	private final File directory;  // The directory that contains the files.
+	private final String name;     // The name of the journal, used as the start of each file name.
+	private final LinkedBlockingQueue<Job> jobs = new LinkedBlockingQueue<Job>();
+	private final Thread writer;
+
+	private int generation;        // The generation of the most recent snapshot.
+	private Object[] savedFields;  // The most recently recorded fields, or null if the next
+	                               //     call to record() must write a snapshot.
+	private int version;           // The number of entries in the current journal.
+	private int snapshotInterval = 1000;
+	private volatile boolean closed;
+
+	private volatile long entryCount;  // Statistics about the work of the writing thread.
+	private volatile long batchCount;
+
+	/**
+	 * Creates a journal that keeps its files in a specified directory.  The
+	 * directory is created if it does not exist.  No files are read or written
+	 * until recover() or record() is called.
+	 * @param directory the directory where the journal's files are stored.
+	 * @param name the name of the journal, which is used to name the files.  Each
+	 *     hub that runs on a server should use a different name.
+	 * @throws IOException if the directory does not exist and can't be created.
+	 */
+	public GameJournal(File directory, String name) throws IOException {
+		if (name == null || name.length() == 0)
+			throw new IllegalArgumentException("A journal must have a name.");
+		if ( ! directory.isDirectory() && ! directory.mkdirs() )
+			throw new IOException("Can't create the journal directory " + directory);
+		this.directory = directory;
+		this.name = name;
+		generation = latestGeneration();
+		writer = new Thread(this::writeLoop, "Game journal " + name);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Creates a journal in the directory that is given by the system property
+	 * netgame.journalDir.  (For example, the hub program could be run with the
+	 * command-line option -Dnetgame.journalDir=/var/games.)  If that property is
+	 * not set, the return value is null, and no state will be saved.  If the
+	 * journal can't be created, an error message is printed, and the return
+	 * value is also null.
+	 * @param name the name of the journal, which is used to name the files.
+	 */
+	public static GameJournal open(String name) {
+		String dir = System.getProperty("netgame.journalDir");
+		if (dir == null)
+			return null;
+		try {
+			return new GameJournal(new File(dir), name);
+		}
+		catch (IOException e) {
+			System.out.println("Can't open game journal " + name + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Sets the number of changes that are written to the journal between
+	 * snapshots.  A smaller number means less to read when the state is
+	 * recovered, but more to write while the game is played.  The default is 1000.
+	 */
+	public synchronized void setSnapshotInterval(int changes) {
+		if (changes < 1)
+			throw new IllegalArgumentException("The snapshot interval must be positive.");
+		snapshotInterval = changes;
+	}
+
+	/**
+	 * Returns the number of changes that are written to the journal between snapshots.
+	 */
+	public synchronized int getSnapshotInterval() {
+		return snapshotInterval;
+	}
+
+	/**
+	 * Reads the saved state, if there is one.  This should be called once, before
+	 * the first call to record().  The recovered state is immediately written as a
+	 * new snapshot, so that later changes are saved in a fresh journal.
+	 * @param prototype an object of the same class as the saved state.  The
+	 *     recovered state is made by calling prototype.withFields().
+	 * @return the recovered state, or null if nothing was saved.
+	 * @throws IOException if the snapshot can't be read or does not hold a state
+	 *     of the right type.  (Problems in the journal only cause the rest of
+	 *     the journal to be ignored.)
+	 */
+	public synchronized SyncedState recover(SyncedState prototype) throws IOException {
+		File snapshot = snapshotFile();
+		if ( ! snapshot.exists() )
+			return null;
+		Object[] fields;
+		int snapshotGeneration;
+		try (DataInputStream in = open(snapshot)) {
+			snapshotGeneration = (Integer)read(in);
+			fields = ((StateDelta)read(in)).values;
+		}
+		catch (EOFException | ClassCastException e) {
+			throw new IOException("The game snapshot " + snapshot + " is damaged.");
+		}
+		if (fields.length != prototype.getFields().length)
+			throw new IOException("The game snapshot " + snapshot + " is not for this kind of game.");
+		File journal = journalFile(snapshotGeneration);
+		if (journal.exists()) {
+			int replayed = 0;
+			try (DataInputStream in = open(journal)) {
+				while (true) {
+					StateDelta delta = (StateDelta)read(in);
+					if (delta.baseVersion != replayed)
+						throw new IOException("Journal entries are out of order.");
+					for (int i = 0; i < delta.changedFields.length; i++)
+						fields[delta.changedFields[i]] = delta.values[i];
+					replayed = delta.version;
+				}
+			}
+			catch (EOFException e) {
+				   // This is the normal end of the journal, or an entry that was
+				   // not completely written.  Everything before it is good.
+			}
+			catch (IOException | ClassCastException | IndexOutOfBoundsException e) {
+				System.out.println("Ignoring the rest of game journal " + journal + ": " + e);
+			}
+		}
+		SyncedState state = prototype.withFields(fields);
+		generation = Math.max(generation, snapshotGeneration);
+		writeSnapshot(state.getFields());
+		return state;
+	}
+
+	/**
+	 * Saves a new version of the state.  Only the fields that have changed since
+	 * the previous call are saved (and nothing is saved if no field has changed),
+	 * unless it is time to write a complete snapshot.  This method does not
+	 * wait for the data to be written.  It should be called after each change
+	 * to the state, typically at the end of the hub's messageReceived() method.
+	 * As for sendState(), the field values must be messages that can be sent,
+	 * and they must not be modified after they have been returned by
+	 * state.getFields().  If the state can't be encoded, an error message is
+	 * printed, and the state is not saved.
+	 */
+	public synchronized void record(SyncedState state) {
+		if (closed)
+			return;
+		Object[] fields = state.getFields();
+		if (savedFields == null || version >= snapshotInterval) {
+			writeSnapshot(fields);
+			return;
+		}
+		int changeCount = 0;
+		int[] changed = new int[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			if ( ! Objects.deepEquals(savedFields[i], fields[i]) )
+				changed[changeCount++] = i;
+		}
+		if (changeCount == 0)
+			return;
+		int[] changedFields = new int[changeCount];
+		Object[] values = new Object[changeCount];
+		for (int i = 0; i < changeCount; i++) {
+			changedFields[i] = changed[i];
+			values[i] = fields[changed[i]];
+		}
+		try {
+			jobs.add(new Job(0, MessageFrames.encode(new StateDelta(version+1, version, changedFields, values))));
+		}
+		catch (IOException e) {
+			System.out.println("Error while saving game state in journal " + name + ": " + e);
+			return;
+		}
+		version++;
+		savedFields = fields;
+	}
+
+	/**
+	 * Deletes all of the saved information.  This is meant to be called when a
+	 * game ends normally, so that the game is not restored the next time the hub
+	 * starts.  If record() is called after this, a new snapshot is started.
+	 */
+	public synchronized void discard() {
+		if (closed)
+			return;
+		savedFields = null;
+		jobs.add(DISCARD);
+	}
+
+	/**
+	 * Writes any changes that are still waiting to be written, and stops the
+	 * writing thread.  This method waits for the thread to finish.  After it
+	 * has been called, record() and discard() do nothing.
+	 */
+	public void close() {
+		synchronized(this) {
+			if (closed)
+				return;
+			closed = true;
+			jobs.add(CLOSE);
+		}
+		try {
+			writer.join();
+		}
+		catch (InterruptedException e) {
+		}
+	}
+
+	/**
+	 * Closes the journal, as in close(), but without waiting for the writing
+	 * thread to finish.  Writing the last changes and forcing them to the disk
+	 * can take a while, so this should be used instead of close() by a thread
+	 * that holds a lock that other threads need, such as a hub's
+	 * playerDisconnected() method, which is called while synchronized on the hub.
+	 * (The waiting is done by a new thread, which is not a daemon thread, so the
+	 * program does not end before the data has been written.)
+	 */
+	public void closeLater() {
+		synchronized(this) {
+			if (closed)
+				return;
+		}
+		new Thread(this::close, "Closing game journal " + name).start();
+	}
+
+	/**
+	 * Returns the number of journal entries and snapshots that have been written.
+	 */
+	public long getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * Returns the number of batches in which the entries have been written.  Each
+	 * batch is one write operation followed by a call to force the data to disk.
+	 */
+	public long getBatchCount() {
+		return batchCount;
+	}
+
+
+	//------------------------- private implementation part ---------------------------------------
+
+	/**
+	 * Adds a complete snapshot to the queue and starts a new generation.  Called
+	 * only from synchronized methods.
+	 */
+	private void writeSnapshot(Object[] fields) {
+		int[] allFields = new int[fields.length];
+		for (int i = 0; i < fields.length; i++)
+			allFields[i] = i;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			bytes.write(MessageFrames.encode(generation + 1));
+			bytes.write(MessageFrames.encode(new StateDelta(0, 0, allFields, fields)));
+		}
+		catch (IOException e) {
+			System.out.println("Error while saving game state in journal " + name + ": " + e);
+			return;
+		}
+		generation++;
+		jobs.add(new Job(generation, bytes.toByteArray()));
+		version = 0;
+		savedFields = fields;
+	}
+
+	/**
+	 * Runs in the writing thread.  Takes jobs from the queue, in batches,
+	 * and writes them.  Journal entries are collected in a buffer, which is
+	 * written when the batch is done, or before a snapshot is written.
+	 */
+	private void writeLoop() {
+		FileChannel journal = null;
+		ByteArrayOutputStream pending = new ByteArrayOutputStream();
+		ArrayList<Job> batch = new ArrayList<Job>();
+		boolean failed = false;
+		while (true) {
+			try {
+				batch.add(jobs.take());
+			}
+			catch (InterruptedException e) {
+				continue;
+			}
+			jobs.drainTo(batch);
+			for (Job job : batch) {
+				if (job == CLOSE) {
+					try {
+						if ( ! failed )
+							flush(journal, pending);
+						if (journal != null)
+							journal.close();
+					}
+					catch (IOException e) {
+						System.out.println("Error while closing game journal " + name + ": " + e);
+					}
+					return;
+				}
+				if (failed)
+					continue;
+				try {
+					if (job == DISCARD) {
+						pending.reset();
+						if (journal != null)
+							journal.close();
+						journal = null;
+						deleteFiles(Integer.MAX_VALUE);
+					}
+					else if (job.generation == 0) {
+						if (journal != null)  // (No journal if a snapshot could not be written.)
+							pending.write(job.data);
+					}
+					else {
+						flush(journal, pending);
+						FileChannel newJournal = FileChannel.open(journalFile(job.generation).toPath(),
+								StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+								StandardOpenOption.TRUNCATE_EXISTING);
+						File temp = new File(directory, name + ".snapshot.tmp");
+						try (FileChannel out = FileChannel.open(temp.toPath(),
+								StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+								StandardOpenOption.TRUNCATE_EXISTING)) {
+							writeFully(out, job.data);
+							out.force(true);
+						}
+						Files.move(temp.toPath(), snapshotFile().toPath(),
+								StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+						if (journal != null)
+							journal.close();
+						journal = newJournal;
+						entryCount++;
+						batchCount++;
+						deleteFiles(job.generation);
+					}
+				}
+				catch (IOException e) {
+					System.out.println("Error while writing game journal " + name + ": " + e);
+					System.out.println("No more changes will be saved.");
+					failed = true;
+				}
+			}
+			batch.clear();
+			if ( ! failed ) {
+				try {
+					flush(journal, pending);
+				}
+				catch (IOException e) {
+					System.out.println("Error while writing game journal " + name + ": " + e);
+					System.out.println("No more changes will be saved.");
+					failed = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the buffered journal entries, if any, and forces them to disk.
+	 */
+	private void flush(FileChannel journal, ByteArrayOutputStream pending) throws IOException {
+		if (pending.size() == 0 || journal == null)
+			return;
+		byte[] data = pending.toByteArray();
+		pending.reset();
+		writeFully(journal, data);
+		journal.force(false);
+		batchCount++;
+		int entries = 0;
+		for (int pos = 0; pos < data.length; entries++)  // Count the frames in the batch.
+			pos += 4 + ByteBuffer.wrap(data, pos, 4).getInt();
+		entryCount += entries;
+	}
+
+	private static void writeFully(FileChannel channel, byte[] data) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/**
+	 * Deletes journal files from generations before a given generation.  If
+	 * the generation is Integer.MAX_VALUE, the snapshot is also deleted.
+	 */
+	private void deleteFiles(int beforeGeneration) throws IOException {
+		for (File file : journalFiles()) {
+			if (generationOf(file) < beforeGeneration)
+				Files.deleteIfExists(file.toPath());
+		}
+		if (beforeGeneration == Integer.MAX_VALUE)
+			Files.deleteIfExists(snapshotFile().toPath());
+	}
+
+	/**
+	 * Returns the largest generation number among the existing journal files,
+	 * so that new files will not be confused with old ones.  (A journal file
+	 * is always created before the snapshot of the same generation.)
+	 */
+	private int latestGeneration() {
+		int latest = 0;
+		for (File file : journalFiles())
+			latest = Math.max(latest, generationOf(file));
+		return latest;
+	}
+
+	private File[] journalFiles() {
+		File[] files = directory.listFiles( (dir,fileName) -> generationOf(fileName) >= 0 );
+		return files == null ? new File[0] : files;
+	}
+
+	private int generationOf(File file) {
+		return generationOf(file.getName());
+	}
+
+	/**
+	 * If fileName has the form name.N.journal, returns N; otherwise, returns -1.
+	 */
+	private int generationOf(String fileName) {
+		if ( ! fileName.startsWith(name + ".") || ! fileName.endsWith(".journal") )
+			return -1;
+		String number = fileName.substring(name.length() + 1, fileName.length() - 8);
+		try {
+			return Integer.parseInt(number);
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private File snapshotFile() {
+		return new File(directory, name + ".snapshot");
+	}
+
+	private File journalFile(int generation) {
+		return new File(directory, name + "." + generation + ".journal");
+	}
+
+	private static DataInputStream open(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		return new DataInputStream(in);
+	}
+
+	private static Object read(DataInputStream in) throws IOException {
+		byte[] body = MessageFrames.readBody(in);
+		return MessageFrames.decode(body, 0, body.length);
+	}
+
+}
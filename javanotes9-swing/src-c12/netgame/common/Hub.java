@@ -1,11 +1,31 @@
 package netgame.common;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.TreeMap;
-import java.util.concurrent.BlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -15,9 +35,12 @@ import java.util.concurrent.LinkedBlockingQueue;
  * by an ID number that is assigned by the hub when the client connects.
  * Clients are defined by subclasses of the class netgame.commen.Client.
  * <p>A Hub is a "message center" that can send and receive messages.
- * A message can be any non-null object that implements the Serializable interface.
+ * A message can be any non-null object that implements the Serializable interface
+ * or that has a MessageCodec registered with the MessageCodecs class.
  * Many standard classes, including String, do this.  (So, a message might
- * simply be a string.)  When a message  is received, the protected method
+ * simply be a string.)  Messages that have a codec are sent in a compact
+ * binary form; other messages are sent using Java serialization.  When a
+ * message is received, the protected method
  * messageReceived(sender,message) is called.  In this class, this method
  * simply wraps the message in a ForwardedMessage, which it then
  * sends to all connected clients.  That is, the Hub acts as a passive
@@ -25,9 +48,46 @@ import java.util.concurrent.LinkedBlockingQueue;
  * and will generally add other functionality to the Hub as well.
  * <p>The sendToAll(msg) method sends a message to all connected clients.
  * The sendToOne(playerID,msg) method will send the message to just the
- * client with the specified ID number.  If the same object is transmitted
- * more than once, it might be necessary to use the resetOutput() or
- * setAutoReset(true) methods.  See those methods for details.
+ * client with the specified ID number.  A message is serialized when
+ * one of these methods is called, not when it is actually transmitted, so
+ * changes that are made to a message object after it has been sent do not
+ * affect what the clients receive.  The message is serialized only once,
+ * even when it is sent to many clients.
+ * <p>A game hub usually sends the state of the game to the players every
+ * time the state changes.  If the state is represented by an object that
+ * implements the SyncedState interface, it can be sent with sendState()
+ * or sendStateToAll() instead.  Then, only the parts of the state that
+ * have changed are actually transmitted, but the client still receives 
+ * a complete state object.  (The hub keeps track of the last state that
+ * each client has acknowledged receiving, and it sends the differences 
+ * between that state and the new state.  A complete state is sent the first
+ * time a state is sent to a client, and when a client falls too far behind.)
+ * <p>Each client has a queue of messages that are waiting to be sent to it.  By 
+ * default, the size of the queue is not limited, so a client that stops reading
+ * messages will make the hub's memory usage grow without limit.  The 
+ * setOutgoingQueueLimit() method can be used to set a limit, along with a 
+ * policy for what to do when a client's queue is full (see OverflowPolicy).
+ * The methods getOutgoingQueueDepth() and getDroppedMessageCount() can be used
+ * to check how well each client is keeping up.
+ * <p>When several messages are waiting to be sent to a client, they are all
+ * written to the network together, so that a burst of small messages does not
+ * take one system call and one network packet per message.  A hub can also
+ * be told to wait for a short time for more messages before sending anything;
+ * see setWriteLinger().  Since the hub does this batching itself, TCP's own
+ * batching (Nagle's algorithm) is turned off for every connection, so that
+ * small messages are not held back waiting for an acknowledgement.
+ * <p>A hub keeps statistics about its network traffic, such as the number of
+ * messages sent and received per second, which can be obtained by calling
+ * getMetrics().  They can also be viewed with a JMX console such as jconsole,
+ * or printed at regular intervals; see the NetworkMetrics class.
+ * <p>Normally, a player is removed from the game as soon as its connection is
+ * lost.  When the connection fails because of a network error, that can be
+ * annoying for a player who has only lost their network for a few seconds.  A
+ * hub can instead be told to keep the player's place for a "grace period", so
+ * that the client can reconnect and resume its session, without ever being
+ * removed from the game; see setResumableSessions().  Messages that are sent
+ * to a player while the player is away are kept, and they are delivered when
+ * the client reconnects.
  * <p>(Certain messages that are defined by package private classes in
  * the package netgame.common, are for internal use only.  These messages
  * do not result in a call to messageReceived, and they are not seen
@@ -45,12 +105,20 @@ import java.util.concurrent.LinkedBlockingQueue;
  *  or checking before the connection is considered to be created.
  *  Note that if extraHandshake() throws an error, then the client is
  *  never considered connected, but that client's ID will not be reused.</li>
+ *  <li>The server sends a session token, which is a String, or null if the
+ *  hub does not allow sessions to be resumed.  If the token is not null, it
+ *  is followed by two Integers, giving the grace period for resuming a session
+ *  and the number of sent messages that are kept for retransmission.  (The
+ *  token is sent after extraHandshake(), so that a client that is refused by
+ *  extraHandshake() never gets a session that it would try to resume.)</li>
  *  <li>All connected clients, including the one that has just connected,
  *  are notified of the new client.  (The playerConnected() method in
  *  the client will be called.)</li>
  *  <li>Once a client has successfully connected, the client can send messages to
  *  the server.  Messages received from a client are passed to the
- *  messageReceived() method.</li>
+ *  messageReceived() method.  From this point on, messages in both directions
+ *  are transmitted as length-prefixed "frames", where each frame contains one
+ *  complete serialized object.  (See the package private class MessageFrames.)</li>
  *  <li>If the client's disconnect() method is called, the hub is notified,
  *  and it in turn notifies all connected clients, not including the one
  *  that just disconnected.  (The clients' playerDisconnected() method
@@ -58,14 +126,90 @@ import java.util.concurrent.LinkedBlockingQueue;
  *  <li>If the hub's shutDownHub() method is called, all the clients
  *  will be notified, and the ServerSocket, if any still exists, is closed down.  
  *  One second later, any connection that has not closed normally is closed.
+ *  <li>To resume a session, a client sends the string "Resume Hub" instead of
+ *  "Hello Hub", followed by its session token and a Long giving the number of
+ *  message frames that it has received from the hub.  If the session can be
+ *  resumed, the hub responds with the player's ID number, followed by a Long
+ *  giving the number of frames that it has received from the client; otherwise,
+ *  it sends a String that explains the problem, and closes the connection.
+ *  Each side then retransmits the frames that the other side missed, and the
+ *  connection continues as before.  The extraHandshake() method is not called,
+ *  and the other clients are not notified.</li>
  *  </ul>
+ *  
+ * <p>A Hub can use one of three "transports" for communicating with its clients.
+ * With the default transport, Transport.THREADS, each connected client has two
+ * threads, one for sending and one for receiving messages.  That is simple, but
+ * a hub with thousands of players would need thousands of threads.  
+ * Transport.VIRTUAL_THREADS works the same way, except that it uses virtual 
+ * threads, which are much cheaper than ordinary threads.  (Virtual threads
+ * require Java 21; with older versions of Java, ordinary threads are used.)  With
+ * Transport.SELECTOR, all connections are handled by a small, fixed set of
+ * "event loop" threads that use a java.nio Selector to find out which
+ * connections are ready for reading or writing.  (An event loop never waits
+ * for the hub's lock:  When a connection closes, the player is removed, and
+ * playerDisconnected() is called, by a separate thread.)  The transport is selected
+ * by a constructor parameter.  Subclasses that use the one-parameter
+ * constructor get the transport specified by the system property
+ * netgame.transport, which can be "threads", "virtual_threads", or "selector".  For example,
+ * the chat room server could be run with the command
+ * <pre>java -Dnetgame.transport=selector netgame.chat.ChatRoomServer</pre>
+ * The choice of transport makes no difference to subclasses or to clients.
  */
 public class Hub {
 	
 	/**
-	 *  A map that associates player names with the connections to each player.
+	 * The possible ways for a Hub to manage its connections to clients.
+	 * THREADS uses a pair of threads for each client.  VIRTUAL_THREADS also
+	 * uses a pair of threads for each client, but they are virtual threads.
+	 * SELECTOR uses a small number of threads that each manage many 
+	 * connections using non-blocking I/O.
 	 */
-	private TreeMap<Integer, ConnectionToClient> playerConnections;
+	public enum Transport { THREADS, VIRTUAL_THREADS, SELECTOR }
+	
+	/**
+	 * The possible ways of dealing with a client that can't keep up with the
+	 * messages that are being sent to it, so that its queue of outgoing messages
+	 * reaches the limit set by setOutgoingQueueLimit().  DROP_OLDEST discards
+	 * the oldest message in the queue.  COALESCE_LATEST discards queued states
+	 * that have been replaced by newer states (see sendState()), so that only the
+	 * latest state is kept; if that is not enough, the oldest other message is
+	 * discarded.  DISCONNECT closes the connection to the client, as if an error
+	 * had occurred.  In all cases, messages that are used internally by the Hub,
+	 * such as the notifications that players have connected or disconnected,
+	 * are never discarded.
+	 */
+	public enum OverflowPolicy { DROP_OLDEST, COALESCE_LATEST, DISCONNECT }
+	
+	/**
+	 *  A map that associates player ID numbers with the connections to each player.
+	 */
+	private final ConcurrentHashMap<Integer, ConnectionToClient> playerConnections;
+	
+	/**
+	 * The current list of connected players, used for broadcasting messages and by
+	 * getPlayerList().  The arrays in a PlayerList are never modified.  When a player
+	 * connects or disconnects, a new PlayerList is made (while synchronized on
+	 * registryLock), so that the list can be used without any synchronization.
+	 */
+	private volatile PlayerList players = new PlayerList(new int[0], new ConnectionToClient[0]);
+	
+	/**
+	 * Lock for adding and removing players.  This is held while the status messages
+	 * that announce the change are queued, so that every client sees the changes in 
+	 * the same order.  When a player connects or disconnects, this lock is taken
+	 * while synchronized on the Hub, so that playerConnected() and playerDisconnected()
+	 * see the list of players as it was just after that change.  (The Hub must never
+	 * be locked by a thread that holds this lock.)
+	 */
+	private final Object registryLock = new Object();
+	
+	/**
+	 * Lock for sending states with sendState() and sendStateToAll().  Holding this lock
+	 * ensures that states are sent to each client in order of their version numbers.
+	 * It also protects the StateTracker for each connection.
+	 */
+	private final Object stateLock = new Object();
 	
 	/**
 	 * A queue of messages received from clients.  When a method is received,
@@ -74,38 +218,153 @@ public class Hub {
 	 */
 	private LinkedBlockingQueue<Message> incomingMessages;
 	
-	/**
-	 * If the autoreset property is set to true, then the ObjectOutputStreams that are
-	 * used for transmitting messages to clients is reset before each object is sent.
-	 */
-	private volatile boolean autoreset;
+	private final Transport transport;  // The transport that is used for client connections.
+	
+	private EventLoop[] eventLoops;     // For the SELECTOR transport, the threads that do network I/O.
+	private final AtomicInteger nextEventLoop = new AtomicInteger();  // Counts SELECTOR connections, to choose an event loop.
+	private ExecutorService handshakeExecutor;  // For the SELECTOR transport, runs connection setup.
+	private ExecutorService removalExecutor;    // For the SELECTOR transport, removes players who have left.
 	
 	private ServerSocket serverSocket;  // Listens for connections.
 	private Thread serverThread;        // Accepts connections on serverSocket
 	volatile private boolean shutdown;  // Set to true when the Hub is not listening.
 	
-	private int nextClientID = 1;  // The id number that will be assigned to
-	                               // the next client that connects.
+	private final AtomicInteger nextClientID = new AtomicInteger(1);  // The id number that will be assigned to
+	                                                                 // the next client that connects.
+	
+	private int nextStateVersion = 1;  // The version number for the next state sent by sendState() or sendStateToAll().
+	                                   //   (Used only while synchronized on stateLock.)
+	
+	/**
+	 * The maximum number of states that can be sent to a client without being
+	 * acknowledged.  When this number is reached, the next state is sent as a
+	 * complete snapshot instead of as changes to the last acknowledged state.
+	 */
+	private final static int MAX_UNACKED_STATES = 32;
+	
+	private volatile int outgoingQueueLimit;  // Maximum number of messages in a client's queue; 0 for no limit.
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+	private final AtomicLong droppedMessages = new AtomicLong();   // Total messages discarded by all connections.
+	private final AtomicLong slowClientDisconnects = new AtomicLong();  // Connections closed by OverflowPolicy.DISCONNECT.
+	
+	private volatile int writeLinger;  // Milliseconds to wait for more messages before writing; 0 for no waiting.
+	
+	private volatile int resumeGracePeriod;  // Seconds to keep the session of a lost connection; 0 if sessions can't be resumed.
+	private volatile int replayLimit;        // Number of sent frames that are kept for each resumable session.
+	private volatile ScheduledExecutorService sessionTimer;  // Ends sessions that are not resumed; created when needed.
+	
+	/**
+	 * Maps session tokens to the connections that own them, for all players that
+	 * have a resumable session, including players whose connections have been lost
+	 * but who are still in their grace period.
+	 */
+	private final ConcurrentHashMap<String, ConnectionToClient> sessions = new ConcurrentHashMap<>();
+	
+	private final NetworkMetrics metrics;  // Statistics about network traffic and message handling.
+	
+	/**
+	 * The maximum number of bytes that are collected from a client's queue to be
+	 * written to the network at one time.  (A single message can be larger.)
+	 */
+	private final static int MAX_BATCH_BYTES = 64*1024;
+	
+	/**
+	 * The maximum number of messages that are written to a SocketChannel in one
+	 * call to its write() method, for the SELECTOR transport.
+	 */
+	private final static int MAX_BATCH_MESSAGES = 256;
+	
+	/**
+	 * The amount of time, in milliseconds, that a SELECTOR transport will wait for
+	 * data from a client during the handshake that sets up the connection.
+	 */
+	private final static int HANDSHAKE_TIMEOUT = 30000;
 	
 	/**
 	 * Creates a Hub listening on a specified port, and starts a thread for
-	 * processing messages that are received from clients.
+	 * processing messages that are received from clients.  The transport that
+	 * is used for client connections is given by the system property
+	 * netgame.transport, which can be "threads", "virtual_threads", or "selector".  
+	 * If the property is not set, Transport.THREADS is used.
 	 * @param port  the port on which the server will listen.
 	 * @throws IOException if it is not possible to create a listening socket on the specified port.
 	 */
 	public Hub(int port) throws IOException {
-		playerConnections = new TreeMap<Integer, ConnectionToClient>();
+		this(port, defaultTransport());
+	}
+	
+	/**
+	 * Creates a Hub that uses a specified transport, listening on a specified port, 
+	 * and starts a thread for processing messages that are received from clients.
+	 * For the SELECTOR transport, the number of event loop threads is given by
+	 * the system property netgame.selectorThreads; if that property is not set,
+	 * the number is the number of available processors, but not more than 4.
+	 * @param port  the port on which the server will listen.
+	 * @param transport  the transport that is used for connections to clients.
+	 *    If the value is null, Transport.THREADS is used.
+	 * @throws IOException if it is not possible to create a listening socket on the specified port.
+	 */
+	public Hub(int port, Transport transport) throws IOException {
+		this(port, transport, true);
+	}
+	
+	/**
+	 * Creates a Hub as in the two-parameter constructor, except that, if startListening
+	 * is false, the hub does not accept connections from clients until startListening()
+	 * is called.  (The listening socket is created, so clients that try to connect will
+	 * wait.)  This is meant for subclasses that need to set up their own data before
+	 * any client can connect:  A connection thread can call methods such as
+	 * messageReceived() as soon as a client connects, and in a subclass, that can
+	 * happen before the subclass's constructor has finished.  Such a subclass should
+	 * pass false to this constructor and call startListening() at the end of its
+	 * own constructor.
+	 * @param port  the port on which the server will listen.
+	 * @param transport  the transport that is used for connections to clients.
+	 *    If the value is null, Transport.THREADS is used.
+	 * @param startListening  if true, connections are accepted right away.
+	 * @throws IOException if it is not possible to create a listening socket on the specified port.
+	 */
+	protected Hub(int port, Transport transport, boolean startListening) throws IOException {
+		this.transport = (transport == null)? Transport.THREADS : transport;
+		metrics = new NetworkMetrics("Hub on port " + port, () -> players.ids.length, 
+				() -> players.ids, this::getOutgoingQueueDepth);
+		playerConnections = new ConcurrentHashMap<Integer, ConnectionToClient>();
 		incomingMessages = new LinkedBlockingQueue<Message>();
-		serverSocket = new ServerSocket(port);
+		if (this.transport == Transport.SELECTOR) {
+			int loopCount = Integer.getInteger("netgame.selectorThreads",
+					Math.min(4, Runtime.getRuntime().availableProcessors()));
+			eventLoops = new EventLoop[Math.max(1,loopCount)];
+			for (int i = 0; i < eventLoops.length; i++) {
+				eventLoops[i] = new EventLoop(i+1);
+				eventLoops[i].start();
+			}
+			handshakeExecutor = Executors.newFixedThreadPool(eventLoops.length, runnable -> {
+				Thread t = new Thread(runnable, "Hub handshake");
+				t.setDaemon(true);
+				return t;
+			});
+			removalExecutor = Executors.newSingleThreadExecutor(runnable -> {
+				Thread t = new Thread(runnable, "Hub player removal");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		serverSocket = openServerSocket(port);
 		System.out.println("Listening for client connections on port " + port);
-		serverThread = new ServerThread();
-		serverThread.start();
+		metrics.register("netgame:type=Hub,port=" + port);
+		metrics.setLogInterval(Integer.getInteger("netgame.metricsInterval", 0));
+		if (startListening)
+			startListening();
 		Thread readerThread = new Thread(){
 			public void run() {
 			   while (true) {
 				   try {
 					   Message msg = incomingMessages.take();
-					   messageReceived(msg.playerConnection, msg.message);
+					   synchronized(Hub.this) {
+						   long start = System.nanoTime();
+						   messageReceived(msg.playerID, msg.message);
+						   metrics.handled(System.nanoTime() - start);
+					   }
 				   }
 				   catch (Exception e) {
 					   System.out.println("Exception while handling received message:");
@@ -175,16 +434,23 @@ public class Hub {
 	
 	
 	/**
-	 * Gets a list of ID numbers of currently connected clients.
-	 * @return an array containing the ID numbers of all the connected clients.
-	 * The array is newly created each time this method is called.
+	 * Returns the transport that this Hub uses for its connections to clients.
+	 */
+	public Transport getTransport() {
+		return transport;
+	}
+	
+	
+	/**
+	 * Gets a list of ID numbers of currently connected clients.  For efficiency,
+	 * the same array is returned until a player connects or disconnects, so the
+	 * array must not be modified.  (This method can be called from any thread,
+	 * and it does not wait for any lock.)
+	 * @return an array containing the ID numbers of all the connected clients,
+	 * in increasing order.  The array must not be modified.
 	 */
-	synchronized public int[] getPlayerList() {
-		int[] players = new int[playerConnections.size()];
-		int i = 0;
-		for (int p : playerConnections.keySet())
-			players[i++] = p;
-		return players;
+	public int[] getPlayerList() {
+		return players.ids;
 	}
 	
 
@@ -194,7 +460,7 @@ public class Hub {
 	 * been reached, as when a game only allows two players.
 	 */
 	public void shutdownServerSocket() {
-		if (serverThread == null)
+		if (serverSocket == null)
 			return;
 		incomingMessages.clear();
 		shutdown = true;
@@ -218,8 +484,21 @@ public class Hub {
 		if (serverThread != null && serverThread.isAlive())
 			throw new IllegalStateException("Server is already listening for connections.");
 		shutdown = false;
-		serverSocket = new ServerSocket(port);
-		serverThread = new ServerThread();
+		serverSocket = openServerSocket(port);
+		startListening();
+	}
+	
+	/**
+	 * Starts accepting connections from clients, for a hub that was created
+	 * with startListening set to false.  This should be called at the end of the
+	 * constructor of a subclass that uses that constructor.
+	 * @throws IllegalStateException if the hub is already accepting connections,
+	 *    or if shutDownHub() has been called.
+	 */
+	protected void startListening() {
+		if (serverSocket == null || (serverThread != null && serverThread.isAlive()))
+			throw new IllegalStateException("The hub is already listening, or has been shut down.");
+		serverThread = newConnectionThread("Hub server", new ServerLoop());
 		serverThread.start();
 	}
 
@@ -237,23 +516,24 @@ public class Hub {
 		}
 		catch (InterruptedException e) {
 		}
-		for (ConnectionToClient pc : playerConnections.values())
+		for (ConnectionToClient pc : players.connections)
 			pc.close();
 	}
 	
 	
 	/**
-	 * Sends a specified non-null Object as a message to all connected client.
+	 * Sends a specified non-null Object as a message to all connected clients.
+	 * The message is serialized just once, into a byte array that is shared
+	 * by all of the connections.  This method does not synchronize on the Hub,
+	 * so it can be called from any thread without waiting for messageReceived().
 	 * @param message the message to be sent to all connected clients.  This object must
-	 * implement the Serializable interface.  Messages must not be null.
+	 * implement the Serializable interface or have a registered MessageCodec.  Messages must not be null.
+	 * @throws IllegalArgumentException if the message is null or cannot be serialized.
 	 */
-	synchronized public void sendToAll(Object message) {
-		if (message == null)
-			throw new IllegalArgumentException("Null cannot be sent as a message.");
-		if ( ! (message instanceof Serializable) )
-			throw new IllegalArgumentException("Messages must implement the Serializable interface.");
-		for (ConnectionToClient pc : playerConnections.values())
-			pc.send(message);
+	public void sendToAll(Object message) {
+		EncodedMessage encoded = encode(message);
+		for (ConnectionToClient pc : players.connections)
+			pc.send(encoded);
 	}
 	
 	
@@ -263,170 +543,1244 @@ public class Hub {
 	 * to be sent.  If there is no such player, then the method returns the 
 	 * value false.
 	 * @param message the message to be sent to all connected clients.  This object must
-	 * implement the Serializable interface.  Messages must not be null.
+	 * implement the Serializable interface or have a registered MessageCodec.  Messages must not be null.
 	 * @return true if the specified recipient exists, false if not.
+	 * @throws IllegalArgumentException if the message is null or cannot be serialized.
 	 */
-	synchronized public boolean sendToOne(int recipientID, Object message) {
-		if (message == null)
-			throw new IllegalArgumentException("Null cannot be sent as a message.");
-		if ( ! (message instanceof Serializable) )
-			throw new IllegalArgumentException("Messages must implement the Serializable interface.");
+	public boolean sendToOne(int recipientID, Object message) {
+		EncodedMessage encoded = encode(message);
 		ConnectionToClient pc = playerConnections.get(recipientID);
 		if (pc == null)
 			return false;
 		else {
-			pc.send(message);
+			pc.send(encoded);
 			return true;
 		}
 	}
 	
 	
 	/**
-	 * Resets all output streams, after any messages currently in the output queue
-	 * have been sent.  The stream only needs to be reset in one case:  If the same
-	 * object is transmitted more than once, and changes have been made to it
-	 * between transmissions.  The reason for this is that ObjectOutputStreams are
-	 * optimized for sending objects that don't change -- if the same object is sent
-	 * twice it will not actually be transmitted the second time, unless the stream
-	 * has been reset in the meantime.
+	 * Sends a state to one connected client.  The first time that this is done, the
+	 * entire state object is sent.  After that, usually only the fields of the state
+	 * that have changed since the last state that the client acknowledged are sent.
+	 * In any case, the client's messageReceived() method receives a complete state object.
+	 * States sent to the same client should all belong to the same class.
+	 * @param recipientID the ID number of the player to whom the state is to be sent.
+	 * If there is no such player, then the method returns the value false.
+	 * @param state the non-null state to be sent.  The state object, and the values
+	 * returned by its getFields() method, must be messages that can be sent.
+	 * @return true if the specified recipient exists, false if not.
+	 * @throws IllegalArgumentException if the state is null or cannot be serialized.
+	 */
+	public boolean sendState(int recipientID, SyncedState state) {
+		if (state == null)
+			throw new IllegalArgumentException("Null cannot be sent as a state.");
+		ConnectionToClient pc = playerConnections.get(recipientID);
+		if (pc == null)
+			return false;
+		Object[] fields = state.getFields();
+		synchronized(stateLock) {
+			pc.send(pc.stateTracker.prepare(nextStateVersion++, state, fields, null));
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * Sends a state to all connected clients.  This is like calling sendState() for
+	 * each connected client, but the state is encoded just once for each group of
+	 * clients that have acknowledged the same previous state (which is usually all of them).
+	 * @param state the non-null state to be sent.  The state object, and the values
+	 * returned by its getFields() method, must be messages that can be sent.
+	 * @throws IllegalArgumentException if the state is null or cannot be serialized.
+	 */
+	public void sendStateToAll(SyncedState state) {
+		if (state == null)
+			throw new IllegalArgumentException("Null cannot be sent as a state.");
+		Object[] fields = state.getFields();
+		HashMap<Integer,EncodedMessage> encodedByBase = new HashMap<>();
+		synchronized(stateLock) {
+			int version = nextStateVersion++;
+			for (ConnectionToClient pc : players.connections)
+				pc.send(pc.stateTracker.prepare(version, state, fields, encodedByBase));
+		}
+	}
+	
+	
+	/**
+	 * Sets a limit on the number of messages that can be waiting to be sent to
+	 * a client, and says what to do when a message is sent to a client whose queue
+	 * is full.  By default, there is no limit, so one client that stops reading
+	 * data can make the hub use an unlimited amount of memory.  The limit applies
+	 * separately to each connection.  It can be changed at any time.
+	 * @param limit the maximum number of messages in a connection's queue.  A value
+	 *    of zero (or less) means that there is no limit.
+	 * @param policy what to do when the limit is reached.  If null, DROP_OLDEST is used.
+	 */
+	public void setOutgoingQueueLimit(int limit, OverflowPolicy policy) {
+		overflowPolicy = (policy == null)? OverflowPolicy.DROP_OLDEST : policy;
+		outgoingQueueLimit = Math.max(0, limit);
+	}
+	
+	/**
+	 * Returns the limit on the number of messages waiting to be sent to a client,
+	 * or zero if there is no limit.
+	 */
+	public int getOutgoingQueueLimit() {
+		return outgoingQueueLimit;
+	}
+	
+	/**
+	 * Returns the policy that is used when a client's outgoing message queue is full.
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+	
+	/**
+	 * Returns the number of messages that are waiting to be sent to a given player,
+	 * or -1 if there is no such player.
+	 */
+	public int getOutgoingQueueDepth(int playerID) {
+		ConnectionToClient pc = playerConnections.get(playerID);
+		return (pc == null)? -1 : pc.outgoing.size();
+	}
+	
+	/**
+	 * Returns the number of messages for a given player that have been discarded
+	 * because the player's outgoing queue was full, or -1 if there is no such player.
+	 */
+	public long getDroppedMessageCount(int playerID) {
+		ConnectionToClient pc = playerConnections.get(playerID);
+		return (pc == null)? -1 : pc.outgoing.droppedCount();
+	}
+	
+	/**
+	 * Returns the total number of messages that have been discarded by all connections,
+	 * including connections that have since been closed.
+	 */
+	public long getDroppedMessageCount() {
+		return droppedMessages.get();
+	}
+	
+	/**
+	 * Returns the number of connections that have been closed because their
+	 * outgoing queue was full and the policy was OverflowPolicy.DISCONNECT.
+	 */
+	public long getSlowClientDisconnectCount() {
+		return slowClientDisconnects.get();
+	}
+	
+	/**
+	 * Sets the "linger time" for outgoing messages.  Messages for a client are always
+	 * written to the network in batches:  all of the messages that are waiting to be
+	 * sent to the client are written together.  If the linger time is greater than
+	 * zero, then after the first message of a batch is ready to send, the hub waits 
+	 * for up to that many milliseconds for more messages to be added to the batch.
+	 * (This is similar to Nagle's algorithm, which is done by TCP for data that is
+	 * written in small pieces, but the hub knows where the messages begin and end.
+	 * Batching and lingering replace Nagle's algorithm, which is turned off for all
+	 * of the hub's connections by setting the TCP_NODELAY option on their sockets.)
+	 * Lingering means fewer, larger writes when messages arrive in rapid succession,
+	 * such as in a busy chat room, at the cost of delaying each message by as much as
+	 * the linger time.  The default is zero, which means that messages are sent as 
+	 * soon as possible.  The linger time can be changed at any time.
+	 * @param milliseconds the linger time.  A value of zero (or less) means no lingering.
+	 */
+	public void setWriteLinger(int milliseconds) {
+		writeLinger = Math.max(0, milliseconds);
+	}
+	
+	/**
+	 * Returns the linger time for outgoing messages, in milliseconds.
+	 * @see #setWriteLinger(int)
+	 */
+	public int getWriteLinger() {
+		return writeLinger;
+	}
+	
+	/**
+	 * Allows clients to resume their sessions after a connection is lost because of
+	 * a network error.  When this is enabled, a player whose connection fails is not
+	 * removed from the game right away.  The player's ID number stays in the list of
+	 * players, and messages that are sent to the player are kept in its outgoing queue
+	 * (which is still subject to the limit set by setOutgoingQueueLimit()).  If the
+	 * client reconnects within the grace period, it gets the same ID number, and it
+	 * receives every message that it missed, in order, including any that were lost
+	 * in transit when the connection failed.  Messages that the client sent but that
+	 * the hub did not receive are retransmitted in the same way.  Neither the hub nor
+	 * the other players are notified, and the client does not need a new copy of the
+	 * game state.  If the grace period ends first, the player is removed, just as if
+	 * resuming were not enabled.  The Client class reconnects automatically.
+	 * <p>To make retransmission possible, each side keeps copies of the messages
+	 * that it has sent most recently, up to a limit.  If more than that number of
+	 * messages were lost, the session cannot be resumed.  (Messages that were still
+	 * in the network buffers of either computer when the connection failed are lost,
+	 * so the limit should allow for a burst of messages.)  Note that only clients
+	 * that connect after this method is called can resume their sessions.  (A client
+	 * that reconnects must also find the hub still listening for connections, so a
+	 * hub that uses this feature should not call shutdownServerSocket().)
+	 * @param gracePeriod the number of seconds that a player's place is kept after
+	 *    its connection is lost.  A value of zero (or less) means that sessions can't
+	 *    be resumed, which is the default.
+	 * @param replayLimit the maximum number of sent messages that are kept for
+	 *    retransmission, for each connection.
+	 */
+	public void setResumableSessions(int gracePeriod, int replayLimit) {
+		if (gracePeriod > 0 && sessionTimer == null) {
+			synchronized(sessions) {
+				if (sessionTimer == null) {
+					sessionTimer = Executors.newSingleThreadScheduledExecutor( runnable -> {
+						Thread t = new Thread(runnable, "Hub session timer");
+						t.setDaemon(true);
+						return t;
+					});
+				}
+			}
+		}
+		this.replayLimit = Math.max(0, replayLimit);
+		resumeGracePeriod = Math.max(0, gracePeriod);
+	}
+	
+	/**
+	 * Returns the number of seconds that the session of a player whose connection
+	 * has been lost is kept, or zero if sessions can't be resumed.
+	 * @see #setResumableSessions(int, int)
+	 */
+	public int getResumeGracePeriod() {
+		return resumeGracePeriod;
+	}
+	
+	/**
+	 * Returns the number of sent messages that are kept for each connection, for
+	 * retransmission when a session is resumed.
+	 * @see #setResumableSessions(int, int)
+	 */
+	public int getReplayLimit() {
+		return replayLimit;
+	}
+	
+	/**
+	 * Tests whether a player's connection has been lost, but the player's session
+	 * is being kept so that the client can reconnect.  Returns false if there is no
+	 * such player.
+	 * @see #setResumableSessions(int, int)
+	 */
+	public boolean isPlayerSuspended(int playerID) {
+		ConnectionToClient pc = playerConnections.get(playerID);
+		return pc != null && pc.suspended;
+	}
+	
+	/**
+	 * Returns the object that collects statistics about this hub's network traffic,
+	 * such as the number of messages sent and received per second and the time
+	 * spent in messageReceived().  The same object is returned every time.
+	 */
+	public NetworkMetrics getMetrics() {
+		return metrics;
+	}
+	
+	
+	/**
+	 * This method does nothing.  When messages were written to a single ObjectOutputStream,
+	 * the stream needed to be reset if the same object was transmitted more than once, 
+	 * with changes made to it between transmissions.  Now that every message is
+	 * encoded separately, when it is sent, that is never necessary.
+	 * @deprecated Output streams no longer need to be reset.
 	 */
+	@Deprecated
 	public void resetOutput() {
-		ResetSignal rs = new ResetSignal();
-		for (ConnectionToClient pc : playerConnections.values())
-			pc.send(rs); // A ResetSignal in the output stream is seen as a signal to reset
 	}
 	
 	
 	/**
-	 * If the autoreset property is set to true, then all output streams will be reset
-	 * before every object transmission.  Use this if the same object is going to be
-	 * continually changed and retransmitted.  See the resetOutput() method for more
-	 * information on resetting the output stream.  The default value is false.
+	 * This method does nothing.  The autoreset property once caused all output
+	 * streams to be reset before every object transmission.  See resetOutput().
+	 * @deprecated Output streams no longer need to be reset.
 	 */
+	@Deprecated
 	public void setAutoreset(boolean auto) {
-		autoreset = auto;
 	}
 	
 	/**
-	 * Returns the value of the autoreset property.
+	 * Returns false, since output streams are never reset.  See resetOutput().
+	 * @deprecated Output streams no longer need to be reset.
 	 */
+	@Deprecated
 	public boolean getAutoreset() {
-		return autoreset;
+		return false;
 	}
 	
 
 	//------------------------- private implementation part ---------------------------------------
 	
 	
-	synchronized private void messageReceived(ConnectionToClient fromConnection, Object message) {
-	          // Note: DisconnectMessage is handled in the ConnectionToClient class.
-		int sender = fromConnection.getPlayer();
-		messageReceived(sender,message);
+	/**
+	 * Returns the transport named by the system property netgame.transport, 
+	 * or Transport.THREADS if that property is not set.
+	 */
+	static Transport defaultTransport() {
+		String name = System.getProperty("netgame.transport");
+		if (name == null || name.trim().length() == 0)
+			return Transport.THREADS;
+		try {
+			return Transport.valueOf(name.trim().toUpperCase());
+		}
+		catch (IllegalArgumentException e) {
+			System.out.println("Unknown netgame.transport \"" + name + "\"; using THREADS.");
+			return Transport.THREADS;
+		}
+	}
+	
+	/**
+	 * Creates the listening socket.  For the SELECTOR transport, the ServerSocket
+	 * belongs to a ServerSocketChannel, so that each accepted Socket has an
+	 * associated SocketChannel that can be used for non-blocking I/O.
+	 */
+	private ServerSocket openServerSocket(int port) throws IOException {
+		if (transport == Transport.SELECTOR) {
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port));
+			return serverChannel.socket();
+		}
+		else
+			return new ServerSocket(port);
+	}
+	
+	/**
+	 * Creates (but does not start) a thread for one of the connection loops.  For
+	 * the VIRTUAL_THREADS transport, this is a virtual thread if possible.
+	 */
+	private Thread newConnectionThread(String name, Runnable loop) {
+		return ConnectionThreads.newThread(name, loop, transport == Transport.VIRTUAL_THREADS);
+	}
+	
+	/**
+	 * Chooses an event loop for a new SELECTOR connection.  Connections
+	 * are assigned to the event loops in rotation.
+	 */
+	private EventLoop nextEventLoop() {
+		int n = nextEventLoop.getAndIncrement() & Integer.MAX_VALUE;
+		return eventLoops[n % eventLoops.length];
+	}
+	
+	
+	/**
+	 * This method is called, in a thread that reads messages from the network, when
+	 * an ordinary message arrives from a client.  (DisconnectMessages and StateAcks are
+	 * handled in the ConnectionToClient class.)  It adds the message to the queue of
+	 * messages that will be passed to messageReceived(), one at a time, by the Hub's
+	 * message processing thread.  RoomHub overrides this method to send the message to
+	 * the player's room instead.
+	 */
+	void messageArrived(int playerID, Object message) {
+		Message msg = new Message();
+		msg.playerID = playerID;
+		msg.message = message;
+		incomingMessages.add(msg);
+	}
+	
+	/**
+	 * This method is called when a player has been removed from the list of
+	 * connected players, whether the client disconnected normally or the
+	 * connection was closed by an error.  It is called while synchronized on 
+	 * the Hub, just before playerDisconnected() (if that is called).  It does
+	 * nothing in this class.  RoomHub overrides it to remove the player from
+	 * its room.
+	 */
+	void playerRemoved(int playerID) {
+	}
+	
+	/**
+	 * Returns true if the player is in the list of connected players.  (When a
+	 * player is removed from the list, playerRemoved() is called afterwards.)
+	 */
+	boolean isPlayerConnected(int playerID) {
+		return playerConnections.containsKey(playerID);
+	}
+	
+	/**
+	 * Sends a message to each player in a list.  The message is encoded just once.
+	 * IDs that do not belong to connected players are ignored.
+	 */
+	void sendToPlayers(int[] playerIDs, Object message) {
+		EncodedMessage encoded = encode(message);
+		for (int id : playerIDs) {
+			ConnectionToClient pc = playerConnections.get(id);
+			if (pc != null)
+				pc.send(encoded);
+		}
+	}
+	
+	/**
+	 * Sends a state to each player in a list, as in sendStateToAll().  IDs that do
+	 * not belong to connected players are ignored.
+	 */
+	void sendStateToPlayers(int[] playerIDs, SyncedState state) {
+		if (state == null)
+			throw new IllegalArgumentException("Null cannot be sent as a state.");
+		Object[] fields = state.getFields();
+		HashMap<Integer,EncodedMessage> encodedByBase = new HashMap<>();
+		synchronized(stateLock) {
+			int version = nextStateVersion++;
+			for (int id : playerIDs) {
+				ConnectionToClient pc = playerConnections.get(id);
+				if (pc != null)
+					pc.send(pc.stateTracker.prepare(version, state, fields, encodedByBase));
+			}
+		}
 	}
 	
 	
-	synchronized private void acceptConnection(ConnectionToClient newConnection) {
+	/**
+	 * Adds a new connection to the list of players, and notifies all the clients.  The
+	 * new client's status message, with the full list of players, is queued before the 
+	 * connection is added to the list, so it will be the first message that the client 
+	 * receives.  This is done while synchronized on the Hub, together with the call
+	 * to playerConnected(), so that when two clients connect at the same time, each
+	 * call to playerConnected() sees the list of players just after its own client
+	 * was added.
+	 */
+	private synchronized void acceptConnection(ConnectionToClient newConnection) {
 		int ID = newConnection.getPlayer();
-		playerConnections.put(ID,newConnection);
-		StatusMessage sm = new StatusMessage(ID,true,getPlayerList());
-		sendToAll(sm);
+		synchronized(registryLock) {
+			PlayerList oldList = players;
+			PlayerList newList = oldList.plus(newConnection);
+			newConnection.send(encode(new StatusMessage(ID,true,newList.ids)));  // New client gets the full list.
+			playerConnections.put(ID,newConnection);
+			if (newConnection.session != null)
+				sessions.put(newConnection.session.token, newConnection);
+			players = newList;
+			EncodedMessage sm = encode(new StatusMessage(ID,true,null));  // Other clients update their own lists.
+			for (ConnectionToClient pc : oldList.connections)
+				pc.send(sm);
+		}
 		playerConnected(ID);
 		System.out.println("Connection accepted from client number " + ID);
 	}
 	
-	synchronized private void clientDisconnected(int playerID) {
-		if (playerConnections.containsKey(playerID)) {
-			playerConnections.remove(playerID);
-			StatusMessage sm = new StatusMessage(playerID,false,getPlayerList());
-			sendToAll(sm);
-			playerDisconnected(playerID);
-			System.out.println("Connection with client number " + playerID + " closed by DisconnectMessage from client.");
+	/**
+	 * Removes a player from the list of players and notifies the remaining clients.
+	 * @return false if the player was not in the list.
+	 */
+	private boolean removePlayer(int playerID) {
+		synchronized(registryLock) {
+			ConnectionToClient pc = playerConnections.remove(playerID);
+			if (pc == null)
+				return false;
+			if (pc.session != null)
+				sessions.remove(pc.session.token, pc);
+			players = players.minus(playerID);
+			sendToAll(new StatusMessage(playerID,false,null));
+			return true;
 		}
 	}
 	
-	synchronized private void connectionToClientClosedWithError( ConnectionToClient playerConnection, String message ) {
-		int ID = playerConnection.getPlayer();
-		if (playerConnections.remove(ID) != null) {
-			StatusMessage sm = new StatusMessage(ID,false,getPlayerList());
-			sendToAll(sm);
+	/**
+	 * Puts a connection that has resumed a session in place of the connection that
+	 * was lost.  Messages that are sent to the lost connection after this is done
+	 * are passed on to the new one.  (The two connections share the same outgoing
+	 * queue, so messages that were queued while the player was away are sent on
+	 * the new connection.)  The other clients are not notified.
+	 */
+	private void resumeConnection(ConnectionToClient lostConnection, ConnectionToClient newConnection) {
+		int ID = newConnection.getPlayer();
+		synchronized(registryLock) {
+			playerConnections.put(ID,newConnection);
+			players = players.minus(ID).plus(newConnection);
+			sessions.put(newConnection.session.token, newConnection);
+			synchronized(lostConnection.sessionLock) {
+				lostConnection.resumedBy = newConnection;
+			}
 		}
+		System.out.println("Connection with client number " + ID + " resumed.");
 	}
 	
-	private class Message {
-		ConnectionToClient playerConnection;
-		Object message;
+	/**
+	 * Removes a player whose session was not resumed within the grace period, or
+	 * that could not be resumed.  This does nothing if the session has already
+	 * been resumed or ended.
+	 */
+	private void sessionEnded(ConnectionToClient lostConnection, String message) {
+		if ( lostConnection.claimSession() ) {
+			connectionToClientClosedWithError(lostConnection, message);
+			System.out.println("Session of client number " + lostConnection.getPlayer() + " ended: " + message);
+		}
 	}
 	
-	private class ServerThread extends Thread {  // Listens for connection requests from clients.
-		public void run() {
-			try {
-				while ( ! shutdown ) {
-					Socket connection = serverSocket.accept();
-					if (shutdown) {
-						System.out.println("Listener socket has shut down.");
-						break;
-					}
-					new ConnectionToClient(incomingMessages,connection);
-				}
-			}
-			catch (Exception e) {
-				if (shutdown)
-					System.out.println("Listener socket has shut down.");
-				else
-					System.out.println("Listener socket has been shut down by error: " + e);
+	private void clientDisconnected(int playerID) {
+		boolean removed;
+		synchronized(this) {
+			removed = removePlayer(playerID);
+			if (removed) {
+				playerRemoved(playerID);
+				playerDisconnected(playerID);
 			}
 		}
+		if (removed)
+			System.out.println("Connection with client number " + playerID + " closed by DisconnectMessage from client.");
 	}
 	
-	
-	private class ConnectionToClient { // Handles communication with one client.
-
-		private int playerID;  // The ID number for this player.
-		private BlockingQueue<Message> incomingMessages;
-		private LinkedBlockingQueue<Object> outgoingMessages;
-		private Socket connection;
-		private ObjectInputStream in;
-		private ObjectOutputStream out;
-		private volatile boolean closed;  // Set to true when connection is closing normally.
-		private Thread sendThread; // Handles setup, then handles outgoing messages.
-		private volatile Thread receiveThread; // Created only after connection is open.
-		
-		ConnectionToClient(BlockingQueue<Message> receivedMessageQueue, Socket connection)  {
-			this.connection = connection;
-			incomingMessages = receivedMessageQueue;
-			outgoingMessages = new LinkedBlockingQueue<Object>();
-			sendThread =  new SendThread();
-			sendThread.start();
+	private void connectionToClientClosedWithError( ConnectionToClient playerConnection, String message ) {
+		int ID = playerConnection.getPlayer();
+		synchronized(this) {
+			if (removePlayer(ID))
+				playerRemoved(ID);
 		}
-		
-		int getPlayer() {
-			return playerID;
+	}
+	
+	/**
+	 * Serializes a message into a frame that can be sent to any number of clients.
+	 * The time that this takes is recorded in the metrics.
+	 * @throws IllegalArgumentException if the message is null or can't be serialized.
+	 */
+	private EncodedMessage encode(Object message) {
+		if (message == null)
+			throw new IllegalArgumentException("Null cannot be sent as a message.");
+		if ( ! MessageCodecs.canEncode(message) )
+			throw new IllegalArgumentException("Messages must have a codec or implement the Serializable interface.");
+		try {
+			long start = System.nanoTime();
+			byte[] frame = MessageFrames.encode(message);
+			metrics.serialized(System.nanoTime() - start);
+			return new EncodedMessage(message, frame);
 		}
-		
-		void close() {
-			closed = true;
-			sendThread.interrupt();
-			if (receiveThread != null)
-				receiveThread.interrupt();
-			try {
-				connection.close();
-			}
-			catch (IOException e) {
-			}
+		catch (IOException e) {
+			throw new IllegalArgumentException("Message could not be serialized: " + e);
 		}
-		
-		void send(Object obj) { // Just drop message into message output queue.
-			if (obj instanceof DisconnectMessage) {
-				// A signal to close the connection;
-				// discard other waiting messages, if any.
-				outgoingMessages.clear();
-			}
-			outgoingMessages.add(obj);
+	}
+	
+	/**
+	 * A message that has already been serialized.  This is what is placed in
+	 * the outgoing message queues of the connections.  The same EncodedMessage 
+	 * is shared by all the connections that it is sent to, so its frame must
+	 * never be modified.  The original message object is kept only so its
+	 * type can be checked.
+	 */
+	private static final class EncodedMessage {
+		final Object message;  // The message that was encoded.
+		final byte[] frame;    // The complete frame, including the length prefix.
+		EncodedMessage(Object message, byte[] frame) {
+			this.message = message;
+			this.frame = frame;
 		}
-		
-		private void closedWithError(String message) {
-			connectionToClientClosedWithError(this, message);
-			close();
+		boolean isDisconnect() {
+			return message instanceof DisconnectMessage;
+		}
+		/**
+		 * Tests whether the message can be discarded when a queue is full.  Messages
+		 * that the Hub and Client need for their own bookkeeping can't be.  (A StateDelta
+		 * can be discarded, since the next state is always based on a state that the 
+		 * client has acknowledged or on a snapshot.  A StateSnapshot can only be discarded
+		 * when a newer snapshot is in the queue; see OutgoingQueue.removeOldStates().)
+		 */
+		boolean isDroppable() {
+			return ! (message instanceof StatusMessage || message instanceof DisconnectMessage
+					     || message instanceof StateSnapshot);
+		}
+		boolean isState() {
+			return message instanceof StateDelta || message instanceof StateSnapshot;
+		}
+		boolean isSnapshot() {
+			return message instanceof StateSnapshot;
+		}
+	}
+	
+	/**
+	 * The queue of messages waiting to be sent to one client.  The size of the queue
+	 * is limited by outgoingQueueLimit.  When a message is added to a full queue, the
+	 * overflowPolicy is applied.  For the DISCONNECT policy, the queue is cleared and
+	 * marked as "overflowed"; the connection checks for that in the thread that sends
+	 * messages, and closes itself.  (The connection isn't closed in add(), since that
+	 * can be called while the caller holds one of the Hub's locks.)  A ReentrantLock
+	 * is used instead of synchronization, since a virtual thread that waits in
+	 * take() should not tie up a platform thread.
+	 */
+	private class OutgoingQueue {
+		
+		private final ArrayDeque<EncodedMessage> messages = new ArrayDeque<>();
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition notEmpty = lock.newCondition();
+		private boolean overflowed;
+		private volatile long dropped;  // (Modified only while holding lock.)
+		
+		/**
+		 * Adds a message to the queue, applying the overflow policy if the queue is full.
+		 * A DisconnectMessage replaces everything in the queue.
+		 * @return false if the queue has overflowed and the connection should be closed.
+		 */
+		boolean add(EncodedMessage message) {
+			lock.lock();
+			try {
+				if (overflowed)
+					return false;
+				if (message.isDisconnect())
+					messages.clear();  // A signal to close the connection; discard other waiting messages.
+				else {
+					int limit = outgoingQueueLimit;
+					if (limit > 0 && messages.size() >= limit) {
+						OverflowPolicy policy = overflowPolicy;
+						if (policy == OverflowPolicy.DISCONNECT) {
+							drop(messages.size());
+							messages.clear();
+							overflowed = true;
+							slowClientDisconnects.incrementAndGet();
+							notEmpty.signal();
+							return false;
+						}
+						if (policy == OverflowPolicy.COALESCE_LATEST || message.isSnapshot())
+							removeOldStates(message);
+						if (messages.size() >= limit)
+							removeOldest(policy == OverflowPolicy.COALESCE_LATEST);
+					}
+				}
+				messages.add(message);
+				notEmpty.signal();
+				return true;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		
+		/**
+		 * Removes and returns the first message in the queue, waiting if the queue
+		 * is empty.  Returns null if the queue has overflowed.
+		 */
+		EncodedMessage take() throws InterruptedException {
+			lock.lockInterruptibly();
+			try {
+				while (messages.isEmpty() && ! overflowed)
+					notEmpty.await();
+				return messages.poll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		
+		/**
+		 * Removes and returns the first message in the queue, or returns null
+		 * if the queue is empty.
+		 */
+		EncodedMessage poll() {
+			lock.lock();
+			try {
+				return messages.poll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		
+		/**
+		 * Removes and returns the first message in the queue, waiting for up to
+		 * the specified number of nanoseconds if the queue is empty.  Returns null
+		 * if no message arrives in that time, or if the queue has overflowed.
+		 */
+		EncodedMessage poll(long nanos) throws InterruptedException {
+			lock.lockInterruptibly();
+			try {
+				while (messages.isEmpty() && ! overflowed && nanos > 0)
+					nanos = notEmpty.awaitNanos(nanos);
+				return messages.poll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		
+		boolean isEmpty() {
+			return size() == 0;
+		}
+		
+		int size() {
+			lock.lock();
+			try {
+				return messages.size();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		
+		boolean isOverflowed() {
+			lock.lock();
+			try {
+				return overflowed;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		
+		long droppedCount() {
+			return dropped;
+		}
+		
+		void clear() {
+			lock.lock();
+			try {
+				messages.clear();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		
+		/**
+		 * Removes queued states that have been replaced by newer states, when a message
+		 * is about to be added to a full queue.  If the new message is a snapshot, it
+		 * replaces all of the queued states.  Otherwise, the last snapshot in the queue
+		 * must be kept, since later deltas are based on it, but everything before it can
+		 * be removed.  Deltas after the last snapshot are removed if the new message is
+		 * a delta; if not, all but the last one are removed.  (Note that this is also used 
+		 * for the DROP_OLDEST policy when the new message is a snapshot, since otherwise
+		 * snapshots, which are never simply dropped, could pile up in the queue.)
+		 * Called only while holding the lock.
+		 */
+		private void removeOldStates(EncodedMessage newMessage) {
+			EncodedMessage lastSnapshot = null;  // The last snapshot that must be kept, if any.
+			EncodedMessage lastDelta = null;     // The last delta that must be kept, if any.
+			if ( ! newMessage.isSnapshot() ) {
+				Iterator<EncodedMessage> iter = messages.descendingIterator();
+				while (iter.hasNext() && lastSnapshot == null) {
+					EncodedMessage m = iter.next();
+					if (m.isSnapshot())
+						lastSnapshot = m;
+					else if (m.isState() && lastDelta == null && ! newMessage.isState())
+						lastDelta = m;
+				}
+			}
+			Iterator<EncodedMessage> iter = messages.iterator();
+			while (iter.hasNext()) {
+				EncodedMessage m = iter.next();
+				if (m.isState() && m != lastSnapshot && m != lastDelta) {
+					iter.remove();
+					drop(1);
+				}
+			}
+		}
+		
+		/**
+		 * Removes the oldest message that can be discarded, if any.  If keepStates
+		 * is true, states are not removed.  Called only while holding the lock.
+		 */
+		private void removeOldest(boolean keepStates) {
+			Iterator<EncodedMessage> iter = messages.iterator();
+			while (iter.hasNext()) {
+				EncodedMessage m = iter.next();
+				if (m.isDroppable() && ! (keepStates && m.isState())) {
+					iter.remove();
+					drop(1);
+					return;
+				}
+			}
+		}
+		
+		private void drop(int count) {
+			dropped += count;
+			droppedMessages.addAndGet(count);
+		}
+		
+	}
+	
+	private class Message {
+		int playerID;
+		Object message;
+	}
+	
+	/**
+	 * An immutable list of the connected players, containing their ID numbers,
+	 * in increasing order, and the corresponding connections.
+	 */
+	private static final class PlayerList {
+		final int[] ids;
+		final ConnectionToClient[] connections;
+		PlayerList(int[] ids, ConnectionToClient[] connections) {
+			this.ids = ids;
+			this.connections = connections;
+		}
+		/**
+		 * Returns a new list containing the players in this list plus one more.
+		 */
+		PlayerList plus(ConnectionToClient connection) {
+			int id = connection.getPlayer();
+			int pos = ids.length;
+			while (pos > 0 && ids[pos-1] > id)  // (New IDs are almost always the largest.)
+				pos--;
+			int[] newIDs = new int[ids.length + 1];
+			ConnectionToClient[] newConnections = new ConnectionToClient[ids.length + 1];
+			System.arraycopy(ids, 0, newIDs, 0, pos);
+			System.arraycopy(connections, 0, newConnections, 0, pos);
+			newIDs[pos] = id;
+			newConnections[pos] = connection;
+			System.arraycopy(ids, pos, newIDs, pos+1, ids.length - pos);
+			System.arraycopy(connections, pos, newConnections, pos+1, ids.length - pos);
+			return new PlayerList(newIDs, newConnections);
+		}
+		/**
+		 * Returns a new list containing the players in this list, except for the one
+		 * with the specified ID.
+		 */
+		PlayerList minus(int id) {
+			int pos = Arrays.binarySearch(ids, id);
+			if (pos < 0)
+				return this;
+			int[] newIDs = new int[ids.length - 1];
+			ConnectionToClient[] newConnections = new ConnectionToClient[ids.length - 1];
+			System.arraycopy(ids, 0, newIDs, 0, pos);
+			System.arraycopy(connections, 0, newConnections, 0, pos);
+			System.arraycopy(ids, pos+1, newIDs, pos, ids.length - pos - 1);
+			System.arraycopy(connections, pos+1, newConnections, pos, ids.length - pos - 1);
+			return new PlayerList(newIDs, newConnections);
+		}
+	}
+	
+	/**
+	 * Keeps track of the states that have been sent to one client by sendState()
+	 * and sendStateToAll().  The "base" is the most recent state that the client has
+	 * acknowledged, or the last snapshot that was sent to the client if that is more
+	 * recent.  (Since messages arrive in order, the client is sure to have the snapshot
+	 * before it receives any later state.)  New states are sent as StateDeltas relative
+	 * to the base.  The states that have been sent since the base are kept in a
+	 * queue, so that the base can be updated when the client acknowledges one of them.
+	 * A StateTracker is only used while synchronized on the Hub's stateLock.
+	 */
+	private class StateTracker {
+		
+		private int baseVersion;      // Version number of the base state.
+		private Object[] baseFields;  // Field values of the base state; null if no state has been sent.
+		private final ArrayDeque<SentState> unacknowledged = new ArrayDeque<>();
+		
+		private static class SentState {
+			final int version;
+			final Object[] fields;
+			SentState(int version, Object[] fields) {
+				this.version = version;
+				this.fields = fields;
+			}
+		}
+		
+		/**
+		 * Returns the message that will transmit a new state to the client, and records
+		 * that the state has been sent.  If encodedByBase is non-null, it maps base version
+		 * numbers to messages that have already been encoded for the same state, for other
+		 * clients; a message for a delta from the same base can be reused.  (A snapshot is
+		 * stored with key -1.)
+		 */
+		EncodedMessage prepare(int version, SyncedState state, Object[] fields, 
+		                                   HashMap<Integer,EncodedMessage> encodedByBase) {
+			boolean snapshot = baseFields == null || baseFields.length != fields.length
+			                       || unacknowledged.size() >= MAX_UNACKED_STATES;
+			int key = snapshot ? -1 : baseVersion;
+			EncodedMessage encoded = encodedByBase == null ? null : encodedByBase.get(key);
+			if (encoded == null) {
+				if (snapshot)
+					encoded = encode(new StateSnapshot(version, state));
+				else
+					encoded = encode(delta(version, fields));
+				if (encodedByBase != null)
+					encodedByBase.put(key, encoded);
+			}
+			if (snapshot) {
+				unacknowledged.clear();
+				baseVersion = version;
+				baseFields = fields;
+			}
+			else
+				unacknowledged.add(new SentState(version, fields));
+			return encoded;
+		}
+		
+		/**
+		 * Called when the client acknowledges the state with a given version number.
+		 * That state becomes the new base, and older states are forgotten.
+		 */
+		void acknowledged(int version) {
+			while ( ! unacknowledged.isEmpty() && unacknowledged.peek().version <= version ) {
+				SentState sent = unacknowledged.remove();
+				if (sent.version == version) {
+					baseVersion = version;
+					baseFields = sent.fields;
+				}
+			}
+		}
+		
+		/**
+		 * Makes a StateDelta containing the fields that differ from the base state.
+		 */
+		private StateDelta delta(int version, Object[] fields) {
+			int changeCount = 0;
+			int[] changed = new int[fields.length];
+			for (int i = 0; i < fields.length; i++) {
+				if ( ! Objects.deepEquals(baseFields[i], fields[i]) )
+					changed[changeCount++] = i;
+			}
+			int[] changedFields = new int[changeCount];
+			Object[] values = new Object[changeCount];
+			for (int i = 0; i < changeCount; i++) {
+				changedFields[i] = changed[i];
+				values[i] = fields[changed[i]];
+			}
+			return new StateDelta(version, baseVersion, changedFields, values);
+		}
+		
+	}
+	
+	private class ServerLoop implements Runnable {  // Listens for connection requests from clients.
+		public void run() {
+			try {
+				while ( ! shutdown ) {
+					Socket connection = serverSocket.accept();
+					if (shutdown) {
+						System.out.println("Listener socket has shut down.");
+						break;
+					}
+					connection.setTcpNoDelay(true);  // The hub does its own batching; see setWriteLinger().
+					if (transport == Transport.SELECTOR)
+						new ChannelConnection(connection.getChannel());
+					else
+						new ThreadConnection(connection);
+				}
+			}
+			catch (Exception e) {
+				if (shutdown)
+					System.out.println("Listener socket has shut down.");
+				else
+					System.out.println("Listener socket has been shut down by error: " + e);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Handles communication with one client.  This abstract class contains the
+	 * parts that are the same for both transports:  the handshake that sets up
+	 * the connection and the processing of messages that are received from the
+	 * client.  The subclasses ThreadConnection and ChannelConnection do the
+	 * actual network I/O.
+	 */
+	private abstract class ConnectionToClient {
+
+		protected int playerID;  // The ID number for this player.
+		protected volatile boolean closed;  // Set to true when connection is closing normally.
+		StateTracker stateTracker = new StateTracker();  // Used only while synchronized on stateLock.
+		OutgoingQueue outgoing = new OutgoingQueue();    // Messages waiting to be sent to the client.
+		                                                 //   (When a session is resumed, the new connection
+		                                                 //   takes over the lost connection's tracker and queue.)
+		SessionLog session;  // For a resumable session, the token and the record of frames; otherwise null.
+		volatile boolean suspended;    // Set when the connection has been lost, but its session is being kept.
+		private boolean claimed;       // Set when a suspended session is resumed or ended.
+		ConnectionToClient resumedBy;  // The connection that has resumed this connection's session, if any.
+		final Object sessionLock = new Object();  // Lock for suspended, claimed, and resumedBy.  (This is not
+		                                          //   the connection itself, which ChannelConnection uses.)
+		
+		int getPlayer() {
+			return playerID;
+		}
+		
+		/**
+		 * Drops a message into the queue of messages waiting to be sent to
+		 * the client.  This method does not block.  (If the queue is full, a
+		 * message might be discarded; see OverflowPolicy.)  If the connection
+		 * has been lost but its session is being kept, the message just stays
+		 * in the queue; if the session has been resumed, the message is passed
+		 * on to the new connection.
+		 */
+		void send(EncodedMessage message) {
+			if (suspended) {
+				ConnectionToClient next;
+				synchronized(sessionLock) {
+					next = resumedBy;
+					if (next == null) {
+						outgoing.add(message);
+						return;
+					}
+				}
+				next.send(message);
+			}
+			else
+				transmit(message);
+		}
+		
+		/**
+		 * Adds a message to the outgoing queue and makes sure that it will be sent.
+		 */
+		abstract void transmit(EncodedMessage message);
+		
+		/**
+		 * Closes the connection.  This can be called from any thread.
+		 */
+		abstract void close();
+		
+		/**
+		 * Waits until the connection's threads have stopped using the connection, so
+		 * that they will not send or receive any more frames.  This is called when the
+		 * connection's session is being resumed, after the connection has been closed.
+		 */
+		abstract void awaitStopped() throws InterruptedException;
+		
+		/**
+		 * Sends the string "*goodbye*" to the client in response to a 
+		 * DisconnectMessage from the client.  This is done on a "best effort"
+		 * basis, since the client has probably already closed its end.
+		 */
+		abstract void sendGoodbye();
+		
+		/**
+		 * Runs a task that removes a player from the hub.  Such a task takes the
+		 * hub's lock and calls methods that are defined by subclasses of Hub, such as
+		 * playerDisconnected().  In this class, the task is run in the calling thread.
+		 * ChannelConnection overrides this, since an event loop must not wait for the
+		 * hub's lock, or for user code, while other connections are waiting for it.
+		 */
+		void removePlayerLater(Runnable task) {
+			task.run();
+		}
+		
+		void closedWithError(String message) {
+			if ( ! suspend() )
+				removePlayerLater( () -> connectionToClientClosedWithError(this, message) );
+			close();
+		}
+		
+		/**
+		 * Called when the connection has failed, to keep the player's session if it
+		 * can be resumed.  That requires the session to be resumable, the hub to be
+		 * listening for connections, and the outgoing queue not to have overflowed.
+		 * The session will be ended when the grace period is over, unless it has 
+		 * been resumed by then.
+		 * @return true if the session is being kept, false if the player should
+		 *    be removed.
+		 */
+		private boolean suspend() {
+			int gracePeriod = resumeGracePeriod;
+			if (session == null || gracePeriod <= 0 || shutdown || outgoing.isOverflowed())
+				return false;
+			synchronized(sessionLock) {
+				if (suspended)
+					return true;
+				suspended = true;
+			}
+			sessionTimer.schedule( () -> sessionEnded(this, "The client did not reconnect in time."),
+					gracePeriod, TimeUnit.SECONDS );
+			System.out.println("Connection with client number " + playerID 
+					+ " lost; its session will be kept for " + gracePeriod + " seconds.");
+			return true;
+		}
+		
+		/**
+		 * Claims a suspended session, either to resume it or to end it.
+		 * @return false if the session was already resumed or ended.
+		 */
+		boolean claimSession() {
+			synchronized(sessionLock) {
+				if (claimed)
+					return false;
+				claimed = true;
+				return true;
+			}
+		}
+		
+		/**
+		 * Closes the connection because its outgoing queue overflowed, when the
+		 * overflow policy is DISCONNECT.  Called in the thread that sends messages.
+		 */
+		void closedAsTooSlow() {
+			if ( ! closed ) {
+				closedWithError("Client was too slow to receive messages.");
+				System.out.println("Connection with client number " + playerID 
+						+ " closed because its outgoing message queue was full.");
+			}
+		}
+		
+		/**
+		 * Carries out the "handshake" that occurs before the connection is opened,
+		 * including the call to extraHandshake().  The ObjectStreams that are
+		 * created here are used only for the handshake.  They are flushed at the
+		 * end, so that all further data can be transmitted as message frames.
+		 * (The output is buffered so that the stream header and the player ID are
+		 * sent together.  Sending them separately can cause a long delay, because 
+		 * of the way TCP handles small packets.)
+		 * @return null for a new player, or the lost connection whose session is
+		 *    being resumed, if the client is resuming a session.
+		 */
+		ConnectionToClient doHandshake(InputStream socketIn, OutputStream socketOut) throws Exception {
+			ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(socketOut));
+			ObjectInputStream in = new ObjectInputStream(socketIn);
+			Object handle = in.readObject(); // first input must be "Hello Hub" (or "Resume Hub")
+			if ( "Resume Hub".equals(handle) )
+				return resumeSession(in, out, socketOut);
+			if ( ! "Hello Hub".equals(handle) )
+				throw new Exception("Incorrect hello string received from client.");
+			playerID = nextClientID.getAndIncrement(); // Get a player ID for this player.
+			out.writeObject(playerID);  // Send playerID to the client.
+			out.flush();
+			extraHandshake(playerID,in,out);  // Does any extra stuff before connection is fully established.
+			int gracePeriod = resumeGracePeriod;
+			if (gracePeriod > 0) {
+				session = new SessionLog(replayLimit);
+				out.writeObject(session.token);
+				out.writeObject(gracePeriod);
+				out.writeObject(replayLimit);
+			}
+			else
+				out.writeObject(null);  // No session token.
+			out.flush();
+			return null;
+		}
+		
+		/**
+		 * Finishes the handshake for a client that is resuming a session.  If the
+		 * hub has not yet noticed that the old connection is broken, it is closed
+		 * now.  This connection takes over the player ID, session, state tracker, 
+		 * and outgoing queue of the lost connection.  The frames that the client 
+		 * missed are written before this method returns, so they will be received
+		 * before any other messages.  If something goes wrong after the session
+		 * has been claimed, the session is ended.
+		 * @return the lost connection.
+		 * @throws Exception if the session can't be resumed.
+		 */
+		private ConnectionToClient resumeSession(ObjectInputStream in, ObjectOutputStream out, 
+		                                                  OutputStream socketOut) throws Exception {
+			String token = (String)in.readObject();
+			long receivedByClient = (Long)in.readObject();
+			ConnectionToClient lost = (token == null)? null : sessions.get(token);
+			if (lost != null && ! lost.suspended)
+				lost.closedWithError("Client reconnected.");  // Keeps the session, if possible.
+			if (lost == null || ! lost.suspended || ! lost.claimSession()) {
+				out.writeObject("The session has ended.");
+				out.flush();
+				throw new Exception("Client tried to resume a session that has ended.");
+			}
+			try {
+				lost.awaitStopped();
+				byte[][] missed = lost.session.sentAfter(receivedByClient);
+				if (missed == null || lost.outgoing.isOverflowed()) {
+					out.writeObject("Too many messages were lost to resume the session.");
+					out.flush();
+					throw new Exception("Too many messages were lost to resume the session.");
+				}
+				playerID = lost.playerID;
+				session = lost.session;
+				stateTracker = lost.stateTracker;
+				outgoing = lost.outgoing;
+				out.writeObject(playerID);
+				out.writeObject(session.getReceivedCount());
+				out.flush();
+				for (byte[] frame : missed) {
+					socketOut.write(frame);
+					metrics.messageOut(frame.length);
+				}
+				socketOut.flush();
+				return lost;
+			}
+			catch (Exception e) {
+				connectionToClientClosedWithError(lost, e.toString());
+				System.out.println("Session of client number " + lost.getPlayer() + " ended: " + e);
+				throw e;
+			}
+		}
+		
+		/**
+		 * Processes a message that has been received from the client.  Ordinary
+		 * messages are passed to messageArrived(), which normally drops them into the
+		 * incomingMessages queue that is shared by all clients.  A StateAck is handled
+		 * immediately, by the StateTracker.  A DisconnectMessage is a signal from the
+		 * client that the client is disconnecting.
+		 * @return false if the message was a DisconnectMessage and the connection
+		 *    has been closed; true otherwise.
+		 */
+		boolean received(Object message) {
+			if (session != null)
+				session.received();
+			if (message instanceof StateAck) {
+				synchronized(stateLock) {
+					stateTracker.acknowledged(((StateAck)message).version);
+				}
+				return true;
+			}
+			else if ( ! (message instanceof DisconnectMessage) ) {
+				messageArrived(playerID, message);
+				return true;
+			}
+			else {
+				closed = true;
+				sendGoodbye();
+				removePlayerLater( () -> clientDisconnected(playerID) );
+				close();
+				return false;
+			}
+		}
+		
+	}  // end nested class ConnectionToClient
+	
+	
+	/**
+	 * A connection for the THREADS and VIRTUAL_THREADS transports.  A thread running
+	 * a SendLoop does the handshake, then handles outgoing messages.  After the 
+	 * handshake, a thread running a ReceiveLoop is created to read messages from 
+	 * the client.
+	 */
+	private class ThreadConnection extends ConnectionToClient {
+
+		private Socket connection;
+		private DataInputStream in;
+		private DataOutputStream out;
+		private final ReentrantLock writeLock = new ReentrantLock(); // Held while writing to out.
+		private Thread sendThread; // Handles setup, then handles outgoing messages.
+		private volatile Thread receiveThread; // Created only after connection is open.
+		
+		ThreadConnection(Socket connection)  {
+			this.connection = connection;
+			sendThread = newConnectionThread("Hub send", new SendLoop());
+			sendThread.start();
+		}
+		
+		void close() {
+			closed = true;
+			sendThread.interrupt();
+			if (receiveThread != null)
+				receiveThread.interrupt();
+			try {
+				connection.close();
+			}
+			catch (IOException e) {
+			}
+		}
+		
+		void transmit(EncodedMessage message) { // Just drop message into message output queue.
+			if ( ! outgoing.add(message) ) {
+				// The queue has overflowed.  The send thread might be blocked while writing
+				// to a client that has stopped reading, so the socket is closed to wake it up.
+				// (The closed flag is not set, so the send thread will report the error.)
+				try {
+					connection.close();
+				}
+				catch (IOException e) {
+				}
+			}
+		}
+		
+		void awaitStopped() throws InterruptedException {
+			sendThread.join();
+			if (receiveThread != null)
+				receiveThread.join();
+		}
+		
+		void sendGoodbye() {
+			outgoing.clear();
+			writeLock.lock();
+			try {
+				MessageFrames.write(out,"*goodbye*");
+				out.flush();
+			}
+			catch (IOException e) {
+			}
+			finally {
+				writeLock.unlock();
+			}
 		}
 		
 		/**
@@ -434,22 +1788,17 @@ public class Hub {
 		 * Once that's done, it creates a thread for receiving incoming messages,
 		 * and goes into an infinite loop in which it transmits outgoing messages.
 		 */
-		private class SendThread extends Thread {
+		private class SendLoop implements Runnable {
 			public void run() {
 				try {
-					out = new ObjectOutputStream(connection.getOutputStream());
-					in = new ObjectInputStream(connection.getInputStream());
-					String handle = (String)in.readObject(); // first input must be "Hello Hub"
-					if ( ! "Hello Hub".equals(handle) )
-						throw new Exception("Incorrect hello string received from client.");
-					synchronized(Hub.this) {
-						playerID = nextClientID++; // Get a player ID for this player.
-					}
-					out.writeObject(playerID);  // send playerID to the client.
-					out.flush();
-					extraHandshake(playerID,in,out);  // Does any extra stuff before connection is fully established.
-					acceptConnection(ConnectionToClient.this);
-					receiveThread = new ReceiveThread();
+					ConnectionToClient lost = doHandshake(connection.getInputStream(), connection.getOutputStream());
+					in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+					out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+					if (lost == null)
+						acceptConnection(ThreadConnection.this);
+					else
+						resumeConnection(lost, ThreadConnection.this);
+					receiveThread = newConnectionThread("Hub receive " + playerID, new ReceiveLoop());
 					receiveThread.start();
 				}
 				catch (Exception e) {
@@ -466,17 +1815,13 @@ public class Hub {
 				try {
 					while ( ! closed ) {  // Get messages from outgoingMessages queue and send them.
 						try {
-							Object message = outgoingMessages.take();
-							if (message instanceof ResetSignal)
-								out.reset();
-							else {
-								if (autoreset)
-									out.reset();
-								out.writeObject(message);
-								out.flush();
-								if (message instanceof DisconnectMessage) // A signal to close the connection.
-									close();
+							EncodedMessage message = outgoing.take();
+							if (message == null) {  // The queue has overflowed.
+								closedAsTooSlow();
+								break;
 							}
+							if (writeBatch(message)) // A DisconnectMessage, which is a signal to close the connection.
+								close();
 						}
 						catch (InterruptedException e) {
 							// should mean that connection is closing
@@ -484,7 +1829,9 @@ public class Hub {
 					}	
 				}
 				catch (IOException e) {
-					if (! closed) {
+					if (outgoing.isOverflowed())
+						closedAsTooSlow();
+					else if (! closed) {
 						closedWithError("Error while sending data to client.");
 						System.out.println("Hub send thread terminated by IOException: " + e);
 					}
@@ -500,34 +1847,61 @@ public class Hub {
 		}
 		
 		/**
-		 * The ReceiveThread reads messages transmitted from the client.  Messages
-		 * are dropped into an incomingMessages queue, which is shared by all clients.
-		 * If a DisconnectMessage is received, however, it is a signal from the
-		 * client that the client is disconnecting.
+		 * Writes a message, followed by any other messages that are waiting in the
+		 * outgoing queue, and then flushes the output stream just once.  The stream
+		 * is buffered, so a burst of small messages goes to the socket in one write.
+		 * If writeLinger is positive, this method will wait up to that long for more
+		 * messages when the queue is empty.  A batch ends early when MAX_BATCH_BYTES
+		 * have been written, or after a DisconnectMessage.  (The stream is guarded by
+		 * a ReentrantLock rather than by synchronizing on it, since a thread that blocks
+		 * while synchronized would pin a virtual thread to its carrier thread.)
+		 * @return true if the batch ended with a DisconnectMessage.
+		 */
+		private boolean writeBatch(EncodedMessage message) throws IOException, InterruptedException {
+			int linger = writeLinger;
+			long lingerUntil = System.nanoTime() + linger*1000000L;
+			int bytes = 0;
+			writeLock.lock();
+			try {
+				while (true) {
+					if (session != null)
+						session.sending(message.frame);
+					out.write(message.frame);
+					bytes += message.frame.length;
+					metrics.messageOut(message.frame.length);
+					if (message.isDisconnect()) {
+						out.flush();
+						return true;
+					}
+					if (bytes >= MAX_BATCH_BYTES)
+						break;
+					message = outgoing.poll();
+					if (message == null && linger > 0)
+						message = outgoing.poll(lingerUntil - System.nanoTime());
+					if (message == null)
+						break;
+				}
+				out.flush();
+			}
+			finally {
+				writeLock.unlock();
+			}
+			return false;
+		}
+		
+		/**
+		 * The ReceiveLoop reads messages transmitted from the client and
+		 * passes them to the received() method.
 		 */
-		private class ReceiveThread extends Thread {
+		private class ReceiveLoop implements Runnable {
 			public void run() {
 				try {
 					while ( ! closed ) {
-						try {
-							Object message = in.readObject();
-							Message msg = new Message();
-							msg.playerConnection = ConnectionToClient.this;
-							msg.message = message;
-							if ( ! (message instanceof DisconnectMessage) )
-								incomingMessages.put(msg);
-							else {
-								closed = true;
-								outgoingMessages.clear();
-								out.writeObject("*goodbye*");
-								out.flush();
-								clientDisconnected(playerID);
-								close();
-							}
-						}
-						catch (InterruptedException e) {
-							// should mean that connection is closing
-						}
+						byte[] body = MessageFrames.readBody(in);
+						metrics.messageIn(4 + body.length);
+						Object message = MessageFrames.decode(body, 0, body.length);
+						if ( ! received(message) )
+							break;
 					}
 				}
 				catch (IOException e) {
@@ -546,7 +1920,357 @@ public class Hub {
 			}
 		}
 		
-	}  // end nested class ConnectionToClient
+	}  // end nested class ThreadConnection
+	
+	
+	/**
+	 * A connection for the SELECTOR transport.  The handshake is done by a thread
+	 * from handshakeExecutor, using the channel in blocking mode.  After that, the
+	 * channel is put into non-blocking mode and is handled by one of the hub's
+	 * event loops.  All reading and writing is done in the event loop thread.
+	 * Outgoing messages are placed in a queue by send(), which then asks the
+	 * event loop to write them; the flushScheduled flag makes sure that the
+	 * event loop is not asked more than once.  The event loop takes all the
+	 * messages that are waiting (up to a limit) and writes them with a single
+	 * "gathering" write.  If the hub's writeLinger is positive, the event loop
+	 * first waits for the linger time, so that more messages can be collected.
+	 */
+	private class ChannelConnection extends ConnectionToClient {
+		
+		private final SocketChannel channel;
+		private final AtomicBoolean flushScheduled; // True while the event loop has work to do for this connection.
+		private EventLoop loop;      // The event loop that handles this connection.
+		private SelectionKey key;    // Registration of the channel with the loop's selector.
+		private ByteBuffer readBuffer;   // Holds data that has been read but not yet processed.
+		private ByteBuffer[] writeBuffers; // Frames that are being written.
+		private int firstBuffer;           // Index of the first frame in writeBuffers that is not completely written.
+		private int bufferCount;           // Number of frames in writeBuffers; 0 when there is nothing to write.
+		private boolean closeWhenSent;     // Set when the last frame in writeBuffers is a DisconnectMessage.
+		private boolean lingering;         // True while this connection waits for its linger time to end.
+		private long flushTime;            // When lingering, the value of System.nanoTime() when the wait ends.
+		
+		ChannelConnection(SocketChannel channel) {
+			this.channel = channel;
+			flushScheduled = new AtomicBoolean();
+			readBuffer = ByteBuffer.allocate(2048);
+			writeBuffers = new ByteBuffer[MAX_BATCH_MESSAGES];
+			handshakeExecutor.execute( () -> setUp() );
+		}
+		
+		/**
+		 * Does the handshake, then hands the connection to an event loop.
+		 * Note that acceptConnection() will send a StatusMessage to this
+		 * client, which causes the event loop to register the channel.
+		 */
+		private void setUp() {
+			try {
+				Socket socket = channel.socket();
+				socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+				ConnectionToClient lost = doHandshake(socket.getInputStream(), socket.getOutputStream());
+				socket.setSoTimeout(0);
+				channel.configureBlocking(false);
+				loop = nextEventLoop();
+				if (lost == null)
+					acceptConnection(this);
+				else
+					resumeConnection(lost, this);
+				loop.schedule(this);
+			}
+			catch (Exception e) {
+				closed = true;
+				try {
+					channel.close();
+				}
+				catch (Exception e1) {
+				}
+				System.out.println("\nError while setting up connection: " + e);
+				e.printStackTrace();
+			}
+		}
+		
+		/**
+		 * Removing a player is done by the hub's removalExecutor, not by the event
+		 * loop.  (For example, playerDisconnected() might call shutDownHub(), which
+		 * waits for a second so that the event loops can send a last message to
+		 * each client.)  The executor has just one thread, so players are removed
+		 * in the order in which their connections closed.
+		 */
+		void removePlayerLater(Runnable task) {
+			removalExecutor.execute(task);
+		}
+		
+		void close() {
+			closed = true;
+			try {
+				channel.close();  // This also cancels the channel's SelectionKey.
+			}
+			catch (IOException e) {
+			}
+		}
+		
+		void transmit(EncodedMessage message) {
+			if ( ! outgoing.add(message) ) {  // (Even after the connection is closed, the message is
+				if ( ! closed )               //     queued, in case the connection's session is resumed.)
+					loop.schedule(this);  // The queue has overflowed; flush() will close the connection.
+			}
+			else if ( ! closed && flushScheduled.compareAndSet(false,true) )
+				loop.schedule(this);
+		}
+		
+		/**
+		 * Since flush() and readable() are synchronized, and they do nothing once
+		 * the connection is closed, getting the lock is enough to know that the
+		 * event loop is finished with this connection.
+		 */
+		synchronized void awaitStopped() {
+		}
+		
+		void sendGoodbye() { // Called only in the event loop thread.
+			outgoing.clear();
+			if (bufferCount == 0) {  // Don't interrupt a partly-written frame.
+				try {
+					channel.write(ByteBuffer.wrap(MessageFrames.encode("*goodbye*")));
+				}
+				catch (IOException e) {
+				}
+			}
+		}
+		
+		/**
+		 * Called by the event loop when send() has asked it to do some work
+		 * for this connection.  The first time, the channel is registered
+		 * with the loop's selector.  If the hub has a linger time, the event
+		 * loop is asked to call flush() when that time is up; otherwise,
+		 * flush() is called immediately.
+		 */
+		void scheduled() {
+			if (key == null) {
+				if (closed)
+					return;
+				try {
+					key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+				}
+				catch (IOException e) {
+					if (!closed)
+						closedWithError("Error while registering channel with selector.");
+					return;
+				}
+			}
+			int linger = writeLinger;
+			if (linger > 0 && bufferCount == 0 && ! outgoing.isOverflowed()) {
+				if ( ! lingering ) {
+					lingering = true;
+					flushTime = System.nanoTime() + linger*1000000L;
+					loop.flushLater(this);
+				}
+				return;
+			}
+			flush();
+		}
+		
+		/**
+		 * Writes as many queued messages as possible without blocking.  Messages are
+		 * taken from the queue in batches, and each batch is written with one call to 
+		 * channel.write().  If the channel can't accept all the data, the connection 
+		 * is registered for OP_WRITE, and this method will be called again when the
+		 * channel is ready for more data.  Called only in the event loop thread.
+		 */
+		synchronized void flush() {
+			if (closed || key == null || !key.isValid())
+				return;
+			if (outgoing.isOverflowed()) {
+				closedAsTooSlow();
+				return;
+			}
+			try {
+				while (true) {
+					if (bufferCount == 0) {
+						fillWriteBuffers();
+						if (bufferCount == 0) {
+							key.interestOps(SelectionKey.OP_READ);
+							flushScheduled.set(false);
+							if (outgoing.isEmpty() || !flushScheduled.compareAndSet(false,true))
+								return;  // (Otherwise, a message arrived while flushScheduled was true.)
+							continue;
+						}
+					}
+					channel.write(writeBuffers, firstBuffer, bufferCount - firstBuffer);
+					while (firstBuffer < bufferCount && ! writeBuffers[firstBuffer].hasRemaining())
+						firstBuffer++;
+					if (firstBuffer < bufferCount) {
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+					Arrays.fill(writeBuffers, 0, bufferCount, null);
+					firstBuffer = bufferCount = 0;
+					if (closeWhenSent) {
+						close();
+						return;
+					}
+				}
+			}
+			catch (IOException e) {
+				if (! closed) {
+					closedWithError("Error while sending data to client.");
+					System.out.println("Hub send terminated by IOException: " + e);
+				}
+			}
+		}
+		
+		/**
+		 * Takes messages from the outgoing queue and puts their frames into writeBuffers,
+		 * until the queue is empty or the batch is full.  A DisconnectMessage ends the batch.
+		 * Called only when writeBuffers is empty.
+		 */
+		private void fillWriteBuffers() {
+			int bytes = 0;
+			while (bufferCount < writeBuffers.length && bytes < MAX_BATCH_BYTES) {
+				EncodedMessage message = outgoing.poll();
+				if (message == null)
+					break;
+				if (session != null)
+					session.sending(message.frame);
+				writeBuffers[bufferCount++] = ByteBuffer.wrap(message.frame);  // (The frame itself is never modified.)
+				bytes += message.frame.length;
+				metrics.messageOut(message.frame.length);
+				if (message.isDisconnect()) {
+					closeWhenSent = true;
+					break;
+				}
+			}
+		}
+		
+		/**
+		 * Called by the event loop when data is available to be read.  Every complete
+		 * frame in the read buffer is decoded and passed to received().  Any remaining
+		 * partial frame is kept for later; if necessary, the buffer is enlarged so
+		 * that it will be able to hold the entire frame.
+		 */
+		synchronized void readable() {
+			if (closed)
+				return;
+			try {
+				if (channel.read(readBuffer) < 0)
+					throw new EOFException("Connection closed by client.");
+				readBuffer.flip();
+				while (readBuffer.remaining() >= 4) {
+					int start = readBuffer.position();
+					int length = readBuffer.getInt(start);
+					MessageFrames.checkLength(length);
+					if (readBuffer.remaining() < 4 + length)
+						break;
+					Object message = MessageFrames.decode(readBuffer.array(), start + 4, length);
+					readBuffer.position(start + 4 + length);
+					metrics.messageIn(4 + length);
+					if ( ! received(message) )
+						return;
+				}
+				readBuffer.compact();
+				if (readBuffer.position() >= 4) {
+					int needed = 4 + readBuffer.getInt(0);
+					if (needed > readBuffer.capacity()) {
+						ByteBuffer bigger = ByteBuffer.allocate(needed);
+						readBuffer.flip();
+						bigger.put(readBuffer);
+						readBuffer = bigger;
+					}
+				}
+			}
+			catch (IOException e) {
+				if (! closed) {
+					closedWithError("Error while reading data from client.");
+					System.out.println("Hub receive terminated by IOException: " + e);
+				}
+			}
+		}
+		
+	}  // end nested class ChannelConnection
+	
+	
+	/**
+	 * An event loop thread for the SELECTOR transport.  It waits for any of
+	 * its connections to become ready for reading or writing, and it also
+	 * handles connections that have been passed to its schedule() method
+	 * because they have messages to send.  Connections that are waiting for
+	 * the hub's linger time to end are kept in a list, and the loop wakes up
+	 * in time to flush them.
+	 */
+	private class EventLoop extends Thread {
+		
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<ChannelConnection> scheduled;
+		private final ArrayDeque<ChannelConnection> lingering;  // Connections waiting to be flushed, in order
+		                                                        //   of flushTime.  (Used only in this thread.)
+		
+		EventLoop(int number) throws IOException {
+			super("Hub event loop " + number);
+			selector = Selector.open();
+			scheduled = new ConcurrentLinkedQueue<ChannelConnection>();
+			lingering = new ArrayDeque<ChannelConnection>();
+			setDaemon(true);
+		}
+		
+		/**
+		 * Asks this event loop to call the connection's scheduled() method.
+		 * Can be called from any thread.
+		 */
+		void schedule(ChannelConnection connection) {
+			scheduled.add(connection);
+			selector.wakeup();
+		}
+		
+		/**
+		 * Asks this event loop to call the connection's flush() method when the
+		 * connection's flushTime arrives.  Called only in this thread.  (Since the
+		 * linger time is usually the same for every connection, adding the connection
+		 * at the end of the list keeps the list in order.  If the linger time has just
+		 * been decreased, some connections might be flushed a little late.)
+		 */
+		void flushLater(ChannelConnection connection) {
+			lingering.add(connection);
+		}
+		
+		public void run() {
+			while (true) {
+				try {
+					ChannelConnection next = lingering.peek();
+					if (next == null)
+						selector.select();
+					else {
+						long wait = (next.flushTime - System.nanoTime() + 999999) / 1000000;  // Round up to milliseconds.
+						if (wait > 0)
+							selector.select(wait);
+						else
+							selector.selectNow();
+					}
+					ChannelConnection connection;
+					while ( (connection = scheduled.poll()) != null )
+						connection.scheduled();
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						connection = (ChannelConnection)key.attachment();
+						if (key.isValid() && key.isReadable())
+							connection.readable();
+						if (key.isValid() && key.isWritable())
+							connection.flush();
+					}
+					long now = System.nanoTime();
+					while ( (next = lingering.peek()) != null && next.flushTime - now <= 0 ) {
+						lingering.poll();
+						next.lingering = false;
+						next.flush();
+					}
+				}
+				catch (Exception e) {
+					System.out.println("\nUnexpected error in hub event loop:");
+					e.printStackTrace();
+				}
+			}
+		}
+		
+	}  // end nested class EventLoop
 
 	
 }
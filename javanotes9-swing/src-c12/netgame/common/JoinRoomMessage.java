@@ -0,0 +1,24 @@
+package netgame.common;
+
+import java.io.Serializable;
+
+/**
+ * A client that is connected to a RoomHub sends a JoinRoomMessage to
+ * move into one of the hub's rooms.  The player leaves the room that
+ * it was in before, if any.  If the name of the room is null, the
+ * player just leaves its current room.  This message is handled by the
+ * RoomHub itself.  It is not passed to any messageReceived() method.
+ */
+public final class JoinRoomMessage implements Serializable {
+	
+	public final String roomName;  // The name of the room that the player wants to join.
+
+	/**
+	 * Create a JoinRoomMessage for joining a specified room.
+	 * @param roomName  the name of the room, or null to leave the current room.
+	 */
+	public JoinRoomMessage(String roomName) {
+		this.roomName = roomName;
+	}
+
+}
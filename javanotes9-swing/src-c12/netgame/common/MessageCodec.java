@@ -0,0 +1,42 @@
+package netgame.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A MessageCodec writes and reads messages of one particular type in a
+ * compact binary form.  Messages that are sent between a Hub and its clients
+ * are encoded by the class MessageCodecs, which has built-in codecs for common
+ * types such as String, Integer, and int[], as well as for the messages that
+ * are used internally by the netgame framework.  An application can register
+ * a codec for each of its own message types by calling MessageCodecs.register().
+ * A message of a type that has no codec is sent using ordinary Java serialization,
+ * which works for any Serializable object but produces much larger messages and
+ * relies on reflection.
+ * <p>A codec must read exactly the data that it writes.  A codec for a type
+ * that contains other messages, of arbitrary types, can use the static methods
+ * MessageCodecs.writeMessage() and MessageCodecs.readMessage() to encode them.
+ * MessageCodecs also has methods for writing and reading ints and strings in
+ * compact form.
+ * @param <T> the type of message that is handled by this codec.
+ */
+public interface MessageCodec<T> {
+
+	/**
+	 * Writes a message to a stream.
+	 * @param message the non-null message to be encoded.
+	 * @param out the stream to which the message should be written.
+	 * @throws IOException if an error occurs while writing the data.
+	 */
+	void write(T message, DataOutput out) throws IOException;
+
+	/**
+	 * Reads a message that was written by the write() method, and returns a
+	 * new object that is equivalent to the message that was written.
+	 * @param in the stream from which the message is to be read.
+	 * @throws IOException if an error occurs while reading, or if the data is not legal.
+	 */
+	T read(DataInput in) throws IOException;
+
+}
@@ -1,9 +0,0 @@
-package netgame.common;
-
-/**
- * This package private class is used internally in Hub and Client
- * to send a signal to the message output thread that the output
- * stream should be reset.  A ResetSignal has no data.
- */
-class ResetSignal {
-}
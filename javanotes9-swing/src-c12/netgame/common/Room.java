@@ -0,0 +1,261 @@
+package netgame.common;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A Room is one of the independent games or chat rooms that are hosted by
+ * a RoomHub.  Each player who is connected to the hub can be in at most one
+ * room at a time.  When a player in the room sends a message, the room's 
+ * messageReceived() method is called; it is not passed to the hub.  The
+ * playerJoined() and playerLeft() methods are called when a player enters
+ * or leaves the room.  A subclass of Room can override these methods to
+ * implement a game.  The methods in this class make the room act like a
+ * basic Hub:  A message from a player is wrapped in a ForwardedMessage and
+ * sent to every player in the room.
+ * <p>Each room has its own queue of tasks, including calls to messageReceived(),
+ * playerJoined(), and playerLeft().  The tasks for one room are performed one
+ * at a time, in order, as if the room had its own thread, so the methods of a
+ * Room never need to be synchronized.  However, the tasks for different rooms
+ * are performed in parallel by a pool of threads that belongs to the RoomHub,
+ * so a busy room does not hold up the other rooms.  Note that a Room should
+ * not call methods of the RoomHub that are synchronized on the hub, except
+ * for sending messages.
+ */
+public class Room {
+	
+	/**
+	 * The maximum number of tasks that are performed before the room gives
+	 * other rooms a chance to use the thread.
+	 */
+	private final static int BATCH_SIZE = 64;
+	
+	private final String name;   // The name of this room, which is used in JoinRoomMessages.
+	
+	RoomHub hub;         // The hub that hosts this room; set when the room is added to a hub.
+	boolean permanent;   // If true, the room is not removed from the hub when it becomes empty.
+	
+	/**
+	 * The players who are in this room.  The array is never modified; when a player
+	 * joins or leaves, a new array is created.  This is only done by RoomHub, while
+	 * synchronized on its room lock.
+	 */
+	private volatile int[] players = new int[0];
+	
+	private final ConcurrentLinkedQueue<Runnable> tasks;  // The room's queue of tasks.
+	private final AtomicBoolean scheduled;  // True if a thread is running tasks, or is about to.
+
+	/**
+	 * Creates a room with a given name.  A room is usually created by the createRoom()
+	 * method of a RoomHub, when a player asks to join a room that does not yet exist.
+	 * A room can also be added to a RoomHub by calling its addRoom() method.
+	 * @param name the name of the room.  This cannot be null.
+	 */
+	public Room(String name) {
+		if (name == null)
+			throw new IllegalArgumentException("The name of a room can't be null.");
+		this.name = name;
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+		scheduled = new AtomicBoolean();
+	}
+	
+	
+	// ---------------- Methods that subclasses can override --------------------------
+	
+	/**
+	 * This method is called when a message is received from one of the players in
+	 * this room.  The method in this class wraps the message in a ForwardedMessage,
+	 * along with the ID of the sender, and sends it to all players in the room.
+	 * @param playerID  The ID number of the player who sent the message.
+	 * @param message The message that was received from the player.
+	 */
+	protected void messageReceived(int playerID, Object message) {
+		sendToAll(new ForwardedMessage(playerID,message));
+	}
+	
+	/**
+	 * This method is called when a player enters this room.  The new player
+	 * is already included in getPlayerList().  The method in this class does nothing.
+	 * @param playerID the ID number of the player who has joined.
+	 */
+	protected void playerJoined(int playerID) {
+	}
+	
+	/**
+	 * This method is called when a player leaves this room, either by joining
+	 * another room or by disconnecting from the hub.  The player has already been
+	 * removed from getPlayerList().  The method in this class does nothing.
+	 * @param playerID the ID number of the player who has left.
+	 */
+	protected void playerLeft(int playerID) {
+	}
+	
+	
+	// ----------------------- Methods meant to be called by users of this class -----------
+	
+	/**
+	 * Returns the name of this room.
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Returns the RoomHub that hosts this room, or null if the room has not yet
+	 * been added to a hub.
+	 */
+	public RoomHub getHub() {
+		return hub;
+	}
+	
+	/**
+	 * Gets a list of ID numbers of the players who are in this room.
+	 * @return a newly created array containing the ID numbers.
+	 */
+	public int[] getPlayerList() {
+		return players.clone();
+	}
+	
+	/**
+	 * Sends a message to all of the players in this room.  The message is
+	 * encoded just once.
+	 * @throws IllegalArgumentException if the message is null or cannot be serialized.
+	 */
+	public void sendToAll(Object message) {
+		hub.sendToPlayers(players, message);
+	}
+	
+	/**
+	 * Sends a message to one player.  (This can actually be any player who is
+	 * connected to the hub.)
+	 * @return true if the specified recipient exists, false if not.
+	 * @throws IllegalArgumentException if the message is null or cannot be serialized.
+	 */
+	public boolean sendToOne(int recipientID, Object message) {
+		return hub.sendToOne(recipientID, message);
+	}
+	
+	/**
+	 * Sends a state to all of the players in this room.  See Hub.sendStateToAll().
+	 * @throws IllegalArgumentException if the state is null or cannot be serialized.
+	 */
+	public void sendStateToAll(SyncedState state) {
+		hub.sendStateToPlayers(players, state);
+	}
+	
+	/**
+	 * Sends a state to one player.  See Hub.sendState().
+	 * @return true if the specified recipient exists, false if not.
+	 * @throws IllegalArgumentException if the state is null or cannot be serialized.
+	 */
+	public boolean sendState(int recipientID, SyncedState state) {
+		return hub.sendState(recipientID, state);
+	}
+	
+	/**
+	 * Adds a task to this room's queue.  The task will be performed after the
+	 * tasks that are already in the queue, and not at the same time as any other
+	 * task for this room.  This can be used, for example, by a timer that needs
+	 * to change the state of a game.  This method can be called from any thread.
+	 * After the hub has been shut down, the task is discarded.
+	 * @throws IllegalStateException if the room has not been added to a hub.
+	 */
+	public void execute(Runnable task) {
+		if (hub == null)
+			throw new IllegalStateException("A room can't run tasks until it has been added to a RoomHub.");
+		tasks.add(task);
+		if (scheduled.compareAndSet(false,true))
+			startTasks();
+	}
+	
+	
+	//------------------------- private implementation part ---------------------------------------
+	
+	/**
+	 * Called by RoomHub, while synchronized on its room lock, when this room
+	 * has been added to the hub.  Does nothing in this class.  (TickingRoom
+	 * overrides it to start receiving ticks.)
+	 */
+	void addedToHub() {
+	}
+	
+	/**
+	 * Called by RoomHub, while synchronized on its room lock, when this room
+	 * has been discarded because it is empty.  Does nothing in this class.
+	 */
+	void removedFromHub() {
+	}
+	
+	/**
+	 * Adds a player to the list of players.  Called by RoomHub while synchronized
+	 * on its room lock.
+	 */
+	void addPlayer(int playerID) {
+		int[] oldList = players;
+		int[] newList = new int[oldList.length + 1];
+		System.arraycopy(oldList, 0, newList, 0, oldList.length);
+		newList[oldList.length] = playerID;
+		players = newList;
+	}
+	
+	/**
+	 * Removes a player from the list of players.  Called by RoomHub while synchronized
+	 * on its room lock.
+	 */
+	void removePlayer(int playerID) {
+		int[] oldList = players;
+		for (int i = 0; i < oldList.length; i++) {
+			if (oldList[i] == playerID) {
+				int[] newList = new int[oldList.length - 1];
+				System.arraycopy(oldList, 0, newList, 0, i);
+				System.arraycopy(oldList, i+1, newList, i, oldList.length - i - 1);
+				players = newList;
+				return;
+			}
+		}
+	}
+	
+	boolean isEmpty() {
+		return players.length == 0;
+	}
+	
+	/**
+	 * Performs tasks from the queue, in one of the RoomHub's threads.  At most
+	 * BATCH_SIZE tasks are done; if more tasks remain, this method is scheduled
+	 * again, behind the other rooms that are waiting for a thread.
+	 */
+	private void runTasks() {
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			Runnable task = tasks.poll();
+			if (task == null)
+				break;
+			try {
+				task.run();
+			}
+			catch (Exception e) {
+				System.out.println("Exception while handling a task for room " + name + ":");
+				e.printStackTrace();
+			}
+		}
+		scheduled.set(false);
+		if ( ! tasks.isEmpty() && scheduled.compareAndSet(false,true) )
+			startTasks();
+	}
+	
+	/**
+	 * Asks the hub's threads to run runTasks().  Must be called only after setting
+	 * scheduled to true.  If the hub has been shut down, the tasks will never be
+	 * run, so they are discarded.
+	 */
+	private void startTasks() {
+		try {
+			hub.roomExecutor.execute(this::runTasks);
+		}
+		catch (RejectedExecutionException e) {
+			tasks.clear();
+			scheduled.set(false);
+		}
+	}
+
+}
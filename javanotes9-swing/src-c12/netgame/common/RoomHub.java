@@ -0,0 +1,265 @@
+package netgame.common;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A RoomHub is a Hub that hosts any number of independent games or chat
+ * rooms, which are represented by objects of type Room.  A client joins a
+ * room by sending a JoinRoomMessage that contains the name of the room.  If
+ * the room does not already exist, the hub's createRoom() method is called
+ * to create it.  Once a player is in a room, all of the messages from that
+ * player go to the room instead of to the hub.  A player leaves a room by
+ * joining another room, by sending a JoinRoomMessage with a null room name,
+ * or by disconnecting.  A room that was created by createRoom() is discarded
+ * when its last player leaves.
+ * <p>In a plain Hub, all messages from all players go into a single queue and
+ * are processed one at a time by a single thread.  In a RoomHub, each room has
+ * its own queue, and the rooms are run in parallel by a pool of threads.  The
+ * number of threads is given by the system property netgame.roomThreads; if
+ * that property is not set, the number is the number of available processors.
+ * Messages for the same room are still processed one at a time, in the order
+ * in which they arrive (see the Room class).
+ * <p>Messages from players who are not in any room are passed to the hub's
+ * messageReceived(playerID,message) method, as usual.  The method in this class
+ * ignores them.  Subclasses can override it, for example, to implement a "lobby"
+ * where players choose a room.  The hub can also put a player into a room by
+ * calling movePlayer().
+ * <p>For real-time games, where the state of a game changes at a steady rate
+ * rather than only in response to messages, see TickingRoom and TickScheduler.
+ * <p>Unlike a plain Hub, a RoomHub cannot be restarted after shutDownHub()
+ * has been called, since that also shuts down the threads that run the rooms.
+ */
+public class RoomHub extends Hub {
+	
+	private final ConcurrentHashMap<String,Room> rooms;         // The rooms, by name.
+	private final ConcurrentHashMap<Integer,Room> roomOfPlayer; // The room that each player is in.
+	private final Object roomLock = new Object();  // Synchronizes changes to the lists of players in rooms.
+	
+	final ExecutorService roomExecutor;  // The threads that run the tasks for the rooms.
+
+	/**
+	 * Creates a RoomHub listening on a specified port.  The transport for connections
+	 * is selected as for Hub's one-parameter constructor.
+	 * @param port  the port on which the server will listen.
+	 * @throws IOException if it is not possible to create a listening socket on the specified port.
+	 */
+	public RoomHub(int port) throws IOException {
+		this(port, defaultTransport());
+	}
+
+	/**
+	 * Creates a RoomHub that uses a specified transport, listening on a specified port.
+	 * @param port  the port on which the server will listen.
+	 * @param transport  the transport that is used for connections to clients.
+	 * @throws IOException if it is not possible to create a listening socket on the specified port.
+	 */
+	public RoomHub(int port, Transport transport) throws IOException {
+		super(port, transport, false);  // Clients can't connect until the rooms are set up.
+		rooms = new ConcurrentHashMap<String,Room>();
+		roomOfPlayer = new ConcurrentHashMap<Integer,Room>();
+		roomExecutor = newRoomExecutor();
+		startListening();
+	}
+	
+	
+	/**
+	 * This method is called when a player asks to join a room that does not
+	 * exist.  It should return a new Room with the specified name, or null if
+	 * the room should not be created.  (In that case, the player is not in any
+	 * room.)  The method in this class returns a basic Room that forwards every
+	 * message to all of the players in the room, making it a chat room.
+	 * Note that this method is called while the hub's room lock is held, so it
+	 * should not take a long time, and it should not call other methods of the hub.
+	 * @param name the name of the room.
+	 */
+	protected Room createRoom(String name) {
+		return new Room(name);
+	}
+	
+	/**
+	 * Called when a player who is not in a room sends a message.
+	 * The method in this class does nothing.
+	 */
+	protected void messageReceived(int playerID, Object message) {
+	}
+	
+	/**
+	 * Adds a room to this hub.  A room that is added in this way is
+	 * permanent; it is not removed when it becomes empty.
+	 * @throws IllegalArgumentException if the hub already has a room with the
+	 *    same name, or if the room belongs to another hub.
+	 */
+	public void addRoom(Room room) {
+		synchronized(roomLock) {
+			if (room.hub != null && room.hub != this)
+				throw new IllegalArgumentException("Room " + room.getName() + " already belongs to another hub.");
+			if (rooms.containsKey(room.getName()))
+				throw new IllegalArgumentException("There is already a room named " + room.getName());
+			room.hub = this;
+			room.permanent = true;
+			rooms.put(room.getName(), room);
+			room.addedToHub();
+		}
+	}
+	
+	/**
+	 * Returns the room with the specified name, or null if there is no such room.
+	 */
+	public Room getRoom(String name) {
+		return rooms.get(name);
+	}
+	
+	/**
+	 * Returns the room that the specified player is in, or null if the player
+	 * is not in a room.
+	 */
+	public Room getRoomOf(int playerID) {
+		return roomOfPlayer.get(playerID);
+	}
+	
+	/**
+	 * Returns the names of all the rooms that currently exist.
+	 */
+	public String[] getRoomNames() {
+		return rooms.keySet().toArray(new String[0]);
+	}
+	
+	/**
+	 * Disconnects all clients, as in Hub.shutDownHub(), and then discards all of
+	 * the rooms and shuts down the threads that run them.  The TickingRooms stop
+	 * receiving ticks, and each TickScheduler that was used by those rooms is
+	 * stopped if no other rooms are using it.  After this method has been called,
+	 * the hub cannot be restarted.
+	 */
+	public void shutDownHub() {
+		super.shutDownHub();
+		HashSet<TickScheduler> schedulers = new HashSet<>();
+		synchronized(roomLock) {
+			for (Room room : rooms.values()) {
+				room.removedFromHub();
+				if (room instanceof TickingRoom)
+					schedulers.add( ((TickingRoom)room).getScheduler() );
+			}
+			rooms.clear();
+			roomOfPlayer.clear();
+		}
+		for (TickScheduler scheduler : schedulers) {
+			if ( ! scheduler.hasRooms() )
+				scheduler.stop();
+		}
+		roomExecutor.shutdown();
+	}
+	
+	/**
+	 * Restarts listening for clients, as in Hub.restartServer().
+	 * @throws IllegalStateException if shutDownHub() has been called.
+	 */
+	public void restartServer(int port) throws IOException {
+		if (roomExecutor.isShutdown())
+			throw new IllegalStateException("A RoomHub can't be restarted after shutDownHub() has been called.");
+		super.restartServer(port);
+	}
+	
+	/**
+	 * Moves a player out of the room that it is in, if any, and into the room
+	 * with a given name.  If no such room exists, createRoom() is called to make it.
+	 * This is what is done when a player sends a JoinRoomMessage.  Nothing is
+	 * done if the player is not connected to the hub.  (The check is made while
+	 * the room lock is held, so a player who is disconnecting at the same time
+	 * is either never added to the room, or is removed from it afterwards.)
+	 * @param playerID  the ID number of the player.
+	 * @param roomName  the name of the room that the player should join.  If this
+	 *    is null, the player just leaves its current room.
+	 * @return true if the player is now in the room, false if createRoom() returned null
+	 *    or the player is not connected (or if roomName is null).
+	 */
+	public boolean movePlayer(int playerID, String roomName) {
+		synchronized(roomLock) {
+			if ( ! isPlayerConnected(playerID) )
+				return false;  // The player has been removed, or is being removed.
+			Room oldRoom = roomOfPlayer.get(playerID);
+			if (oldRoom != null && oldRoom.getName().equals(roomName))
+				return true;  // Player is already in the room.
+			if (oldRoom != null)
+				leaveRoom(playerID, oldRoom);
+			if (roomName == null)
+				return false;
+			Room room = rooms.get(roomName);
+			if (room == null) {
+				room = createRoom(roomName);
+				if (room == null)
+					return false;
+				room.hub = this;
+				rooms.put(roomName, room);
+				room.addedToHub();
+			}
+			room.addPlayer(playerID);
+			roomOfPlayer.put(playerID, room);
+			final Room newRoom = room;
+			newRoom.execute( () -> newRoom.playerJoined(playerID) );
+			return true;
+		}
+	}
+	
+	
+	//------------------------- private implementation part ---------------------------------------
+	
+	/**
+	 * Handles a message from a client.  A JoinRoomMessage is handled right away.
+	 * Other messages are added to the queue of the player's room; if the player
+	 * is not in a room, the message goes to the hub's usual queue.  The time taken
+	 * by the room's messageReceived() method is recorded in the hub's metrics.
+	 */
+	void messageArrived(int playerID, Object message) {
+		if (message instanceof JoinRoomMessage) {
+			movePlayer(playerID, ((JoinRoomMessage)message).roomName);
+			return;
+		}
+		Room room = roomOfPlayer.get(playerID);
+		if (room == null)
+			super.messageArrived(playerID, message);
+		else
+			room.execute( () -> {
+				long start = System.nanoTime();
+				room.messageReceived(playerID, message);
+				getMetrics().handled(System.nanoTime() - start);
+			});
+	}
+	
+	/**
+	 * Removes a player who has disconnected from its room.
+	 */
+	void playerRemoved(int playerID) {
+		synchronized(roomLock) {
+			Room room = roomOfPlayer.get(playerID);
+			if (room != null)
+				leaveRoom(playerID, room);
+		}
+	}
+	
+	/**
+	 * Removes a player from a room, and discards the room if it has become empty
+	 * (unless it is permanent).  Must be called while synchronized on roomLock.
+	 */
+	private void leaveRoom(int playerID, Room room) {
+		roomOfPlayer.remove(playerID);
+		room.removePlayer(playerID);
+		room.execute( () -> room.playerLeft(playerID) );
+		if (room.isEmpty() && ! room.permanent && rooms.remove(room.getName(), room))
+			room.removedFromHub();
+	}
+	
+	private static ExecutorService newRoomExecutor() {
+		int threadCount = Integer.getInteger("netgame.roomThreads", Runtime.getRuntime().availableProcessors());
+		return Executors.newFixedThreadPool(Math.max(1,threadCount), runnable -> {
+			Thread t = new Thread(runnable, "Room worker");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+}
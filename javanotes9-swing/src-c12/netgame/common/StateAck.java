@@ -0,0 +1,23 @@
+package netgame.common;
+
+import java.io.Serializable;
+
+/**
+ * A StateAck is sent automatically from a Client to the Hub when the client
+ * receives a StateSnapshot or StateDelta.  It tells the Hub that the client
+ * has the state with the given version number, so that the Hub can use that
+ * state as the base for the next StateDelta.  This package private class is
+ * only used internally in the netgame.common package.
+ */
+final class StateAck implements Serializable {
+	
+	/**
+	 * The version number of the state that has been received.
+	 */
+	public final int version;
+	
+	public StateAck(int version) {
+		this.version = version;
+	}
+
+}
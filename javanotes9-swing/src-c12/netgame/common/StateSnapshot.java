@@ -0,0 +1,30 @@
+package netgame.common;
+
+import java.io.Serializable;
+
+/**
+ * A StateSnapshot contains a complete SyncedState.  The Hub sends a snapshot
+ * the first time that it sends a state to a client, and also when a client has
+ * fallen so far behind that the Hub no longer wants to remember the states that
+ * the client has not yet acknowledged.  This package private class is only used
+ * internally in the netgame.common package.
+ */
+final class StateSnapshot implements Serializable {
+	
+	/**
+	 * The version number of the state.  The client acknowledges receipt of
+	 * the state by sending a StateAck with this version number.
+	 */
+	public final int version;
+	
+	/**
+	 * The state.
+	 */
+	public final SyncedState state;
+	
+	public StateSnapshot(int version, SyncedState state) {
+		this.version = version;
+		this.state = state;
+	}
+
+}
@@ -29,7 +29,11 @@ final class StatusMessage implements Serializable {
 	public final boolean connecting;
 	
 	/**
-	 * The list of players after the change has been made.
+	 * The list of players after the change has been made.  This is sent only
+	 * to a player who has just connected.  In other status messages, it is
+	 * null, and the client updates its own copy of the list.  (Sending the 
+	 * full list to every client for every change would mean that the amount
+	 * of data sent while N players connect grows like N cubed.)
 	 */
 	public final int[] players;
 	
@@ -0,0 +1,38 @@
+package netgame.common;
+
+/**
+ * A SyncedState represents the state of a game, or some other shared state, that
+ * a Hub sends to its clients over and over as it changes.  Such a state can be
+ * sent with the Hub's sendState() or sendStateToAll() method.  The first time
+ * that a state is sent to a client, the entire state object is sent.  After that,
+ * only the fields that have changed are transmitted.  The client rebuilds the
+ * state and passes a complete state object to its messageReceived() method, just
+ * as if the entire object had been sent.
+ * <p>For this to work, the state is viewed as an array of "fields".  Every state
+ * object of a given class must have the same number of fields, and the field
+ * values must be messages that can be sent (that is, each value must be null,
+ * Serializable, or of a type that has a registered MessageCodec).  A value that
+ * is an array is compared to the previous value by comparing the array elements.
+ * Since old field values are kept for comparison with later states, a field value
+ * must never be modified after getFields() returns it.  If the state contains
+ * an array that will change, getFields() should return a copy of that array.
+ * <p>A SyncedState object is also sent as an ordinary message, so it must be
+ * Serializable or have a registered MessageCodec.
+ */
+public interface SyncedState {
+	
+	/**
+	 * Returns the current values of the fields of this state, in a fixed order.
+	 * The returned array and the values in it must not be modified later.
+	 */
+	Object[] getFields();
+	
+	/**
+	 * Creates a new state object, belonging to the same class as this object,
+	 * with the specified field values.  The array has the same form as an
+	 * array returned by getFields().  The new object should not share any
+	 * mutable values with the array, since the array will be used again.
+	 */
+	SyncedState withFields(Object[] fields);
+
+}
@@ -0,0 +1,120 @@
+package netgame.common;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A TickScheduler is the "game loop" clock for real-time games that are played
+ * in the rooms of a RoomHub.  It produces ticks at a fixed rate, such as 20 ticks
+ * per second, and at each tick it asks every TickingRoom that uses it to run one
+ * step of its simulation.  The step does not run in the scheduler's own thread;
+ * it is added to the room's task queue, so it runs in one of the RoomHub's
+ * threads, and never at the same time as the room's other methods.
+ * <p>Any number of rooms can share one scheduler.  A room is added to the
+ * scheduler when the room is added to a hub, and it is removed when the room
+ * is discarded.  If a room is still busy with one step when the next tick comes,
+ * that tick is skipped for that room, so that a slow room does not build up a
+ * backlog of steps; getSkippedTicks() tells how often that has happened.
+ * <p>The scheduler starts ticking as soon as it is created, and keeps going
+ * until stop() is called.  It uses a single daemon thread.
+ */
+public class TickScheduler {
+
+	private final long tickNanos;  // The time between ticks, in nanoseconds.
+	private final ScheduledExecutorService clock;
+	private final CopyOnWriteArrayList<TickingRoom> rooms;  // The rooms that receive ticks.
+	private final AtomicLong tickCount = new AtomicLong();     // Ticks since the scheduler started.
+	private final AtomicLong skippedTicks = new AtomicLong();  // Ticks not delivered because a room was busy.
+
+	/**
+	 * Creates a scheduler that produces a given number of ticks per second.
+	 * @param ticksPerSecond the tick rate, which must be in the range 1 to 1000.
+	 * @throws IllegalArgumentException if the tick rate is out of range.
+	 */
+	public TickScheduler(int ticksPerSecond) {
+		if (ticksPerSecond < 1 || ticksPerSecond > 1000)
+			throw new IllegalArgumentException("The tick rate must be between 1 and 1000 ticks per second.");
+		tickNanos = 1000000000L / ticksPerSecond;
+		rooms = new CopyOnWriteArrayList<TickingRoom>();
+		clock = Executors.newSingleThreadScheduledExecutor( runnable -> {
+			Thread t = new Thread(runnable, "Tick scheduler");
+			t.setDaemon(true);
+			return t;
+		});
+		clock.scheduleAtFixedRate(this::tick, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Returns the time between ticks, in seconds.  A simulation can use this as the
+	 * amount of game time that passes in one step.
+	 */
+	public double getTickLength() {
+		return tickNanos / 1e9;
+	}
+
+	/**
+	 * Returns the number of ticks that have occurred since this scheduler was created.
+	 */
+	public long getTickCount() {
+		return tickCount.get();
+	}
+
+	/**
+	 * Returns the number of times that a room missed a tick because it was still
+	 * working on its previous step.
+	 */
+	public long getSkippedTicks() {
+		return skippedTicks.get();
+	}
+
+	/**
+	 * Stops producing ticks.  A stopped scheduler cannot be restarted.
+	 */
+	public void stop() {
+		clock.shutdownNow();
+	}
+
+	/**
+	 * Starts sending ticks to a room.  Called when the room is added to a hub.
+	 */
+	void add(TickingRoom room) {
+		rooms.addIfAbsent(room);
+	}
+
+	/**
+	 * Stops sending ticks to a room.  Called when the room is discarded.
+	 */
+	void remove(TickingRoom room) {
+		rooms.remove(room);
+	}
+
+	/**
+	 * Tells whether any rooms are receiving ticks from this scheduler.
+	 */
+	boolean hasRooms() {
+		return ! rooms.isEmpty();
+	}
+
+	/**
+	 * Called by the clock thread for each tick.  (Exceptions are caught here,
+	 * since an exception would stop the ScheduledExecutorService from running
+	 * this method again.)
+	 */
+	private void tick() {
+		long tickNumber = tickCount.incrementAndGet();
+		for (TickingRoom room : rooms) {
+			try {
+				if ( ! room.scheduleStep(tickNumber) )
+					skippedTicks.incrementAndGet();
+			}
+			catch (Exception e) {
+				System.out.println("Exception while scheduling a tick for room " + room.getName() + ":");
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,136 @@
+package netgame.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A TickingRoom is a Room for a real-time game, where the state of the game
+ * changes at a steady rate, not just when a player sends a message.  The room
+ * is driven by a TickScheduler.  Messages from players are not processed as
+ * they arrive.  Instead, they are collected as "inputs", and at each tick of
+ * the scheduler, all of the inputs that have arrived since the previous tick
+ * are passed to the step() method, which updates the game by one step.  The
+ * value returned by step() is then sent to all of the players in the room, so
+ * there is at most one broadcast per tick, no matter how many inputs arrive.
+ * If step() returns a SyncedState, it is sent with sendStateToAll(), so that
+ * usually only the fields that have changed since the previous tick are sent.
+ * <p>A subclass must define step().  Like the other methods of a Room, step()
+ * is called in one of the RoomHub's threads, never at the same time as another
+ * method of the same room, so it does not need to be synchronized.  The
+ * playerJoined() and playerLeft() methods are called as usual, between ticks.
+ * <p>A TickingRoom starts receiving ticks when it is added to a RoomHub (either
+ * by addRoom() or because it was returned by createRoom()), and it stops when
+ * the hub discards it.
+ */
+abstract public class TickingRoom extends Room {
+
+	/**
+	 * A message from a player, as it is passed to the step() method.
+	 */
+	public static final class Input {
+		public final int playerID;    // The ID of the player who sent the message.
+		public final Object message;  // The message.
+		Input(int playerID, Object message) {
+			this.playerID = playerID;
+			this.message = message;
+		}
+	}
+
+	private final TickScheduler scheduler;
+	private ArrayList<Input> inputs = new ArrayList<>();  // Inputs since the last tick; used only by room tasks.
+	private final AtomicBoolean stepPending = new AtomicBoolean();  // True while a step is queued or running.
+
+	/**
+	 * Creates a room that will get its ticks from a given scheduler.
+	 * @param name the name of the room.  This cannot be null.
+	 * @param scheduler the scheduler that determines the tick rate.  Several rooms
+	 *     can use the same scheduler.  This cannot be null.
+	 */
+	public TickingRoom(String name, TickScheduler scheduler) {
+		super(name);
+		if (scheduler == null)
+			throw new IllegalArgumentException("The scheduler for a TickingRoom can't be null.");
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Performs one step of the game.  This is called once for each tick of the
+	 * scheduler (unless the previous step was still running when the tick came).
+	 * @param tickNumber the number of the tick, as counted by the scheduler.  If the
+	 *     room has missed some ticks, this will be more than one greater than the
+	 *     tickNumber of the previous step.
+	 * @param inputs the messages that have been received from players since the
+	 *     previous step, in the order in which they were received.  The list cannot
+	 *     be modified.
+	 * @return the update that is to be sent to all of the players in the room, or
+	 *     null if nothing is to be sent for this tick.  A SyncedState is sent with
+	 *     sendStateToAll(); anything else is sent with sendToAll().
+	 */
+	protected abstract Object step(long tickNumber, List<Input> inputs);
+
+	/**
+	 * Saves a message from a player, to be passed to the next call to step().
+	 * A subclass that overrides this method should call super.messageReceived()
+	 * for messages that are meant for step().
+	 */
+	protected void messageReceived(int playerID, Object message) {
+		inputs.add(new Input(playerID, message));
+	}
+
+	/**
+	 * Returns the scheduler that sends ticks to this room.
+	 */
+	public TickScheduler getScheduler() {
+		return scheduler;
+	}
+
+
+	//------------------------- private implementation part ---------------------------------------
+
+	void addedToHub() {
+		scheduler.add(this);
+	}
+
+	void removedFromHub() {
+		scheduler.remove(this);
+	}
+
+	/**
+	 * Called by the scheduler for each tick.  Adds a step to the room's task queue,
+	 * unless the previous step has not finished.
+	 * @return false if the tick was skipped because a step is still pending.
+	 */
+	boolean scheduleStep(long tickNumber) {
+		if ( ! stepPending.compareAndSet(false,true) )
+			return false;
+		try {
+			execute( () -> runStep(tickNumber) );
+		}
+		catch (RuntimeException e) {
+			stepPending.set(false);  // Otherwise, the room would never get another step.
+			throw e;
+		}
+		return true;
+	}
+
+	/**
+	 * Runs one step as a task of the room, and broadcasts the result.
+	 */
+	private void runStep(long tickNumber) {
+		List<Input> stepInputs = Collections.unmodifiableList(inputs);
+		inputs = new ArrayList<>();
+		try {
+			Object update = step(tickNumber, stepInputs);
+			if (update instanceof SyncedState)
+				sendStateToAll((SyncedState)update);
+			else if (update != null)
+				sendToAll(update);
+		}
+		finally {
+			stepPending.set(false);
+		}
+	}
+
+}
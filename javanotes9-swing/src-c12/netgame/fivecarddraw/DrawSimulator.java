@@ -0,0 +1,264 @@
+package netgame.fivecarddraw;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A DrawSimulator estimates a player's chances in Five Card Draw, by the
+ * "Monte Carlo" method:  It plays out a large number of random deals and
+ * counts how often the player wins.  Given the five cards in the player's
+ * hand and the cards that the player plans to discard, each trial draws
+ * replacements for the discarded cards from the rest of the deck, deals
+ * five cards to each of the opponents from the cards that are left, and
+ * compares the final hands.  (The opponents are "random" opponents, who
+ * simply keep the cards that they are dealt.)  The result tells what
+ * fraction of the trials were won, tied, and lost.
+ * <p>Trials are divided among the threads of a ForkJoinPool.  A simulation
+ * is split in half, and then split again, until the pieces are small
+ * enough to run as single tasks.  Each piece uses its own random number
+ * generator, which it gets by splitting the generator of the task that
+ * created it, so threads never compete for a shared generator.  Within a
+ * task, cards are represented by int card codes (see PokerEvaluator), the
+ * deck is a plain int array, and only as much of the deck is shuffled as is
+ * actually dealt in a trial, so a trial creates no objects at all.
+ * <p>The advise() method uses the simulator to find the discards that give
+ * the best chance of winning, which is something that a PokerWindow could
+ * show to the user while the user is choosing cards to discard.
+ */
+public class DrawSimulator {
+
+	/**
+	 * The number of trials that is run as a single task, without splitting.
+	 */
+	private static final long TASK_SIZE = 20000;
+
+	/**
+	 * Holds the counts of wins, ties, and losses from a simulation.
+	 */
+	public static class Result {
+		public final long wins, ties, losses;
+		Result(long wins, long ties, long losses) {
+			this.wins = wins;
+			this.ties = ties;
+			this.losses = losses;
+		}
+		public long getTrials() {
+			return wins + ties + losses;
+		}
+		public double getWinProbability() {
+			return (double)wins / getTrials();
+		}
+		public double getTieProbability() {
+			return (double)ties / getTrials();
+		}
+		public double getLossProbability() {
+			return (double)losses / getTrials();
+		}
+		/**
+		 * Returns the expected share of the pot:  1 for a win, 1/2 for a tie.
+		 * (With more than one opponent, a tie might be shared more than two
+		 * ways; that is ignored.)  This is used to compare results.
+		 */
+		public double getEquity() {
+			return (wins + 0.5*ties) / getTrials();
+		}
+		public String toString() {
+			return String.format("win %.2f%%, tie %.2f%%, lose %.2f%% (%d trials)",
+					100*getWinProbability(), 100*getTieProbability(), 100*getLossProbability(), getTrials());
+		}
+	}
+
+	private final ForkJoinPool pool;
+	private final SplittableRandom random;  // Split to get the generators for simulations.
+
+	/**
+	 * Creates a simulator that uses the common ForkJoinPool, and so uses all of
+	 * the available processors.
+	 */
+	public DrawSimulator() {
+		this(ForkJoinPool.commonPool(), new SplittableRandom());
+	}
+
+	/**
+	 * Creates a simulator that uses a given pool of threads, and a given random
+	 * number generator.  If the generator is created with a seed, the results
+	 * are repeatable, no matter how many threads are used.
+	 */
+	public DrawSimulator(ForkJoinPool pool, SplittableRandom random) {
+		this.pool = pool;
+		this.random = random;
+	}
+
+	/**
+	 * Estimates the probability of winning, tying, and losing, if the player
+	 * discards the specified cards from the hand and draws replacements.
+	 * @param hand the player's five cards.  They must be regular cards (not jokers),
+	 *     and no card can occur twice.
+	 * @param discards the indices in the hand of the cards to be discarded.  This
+	 *     can be an empty array (or null) if no cards are discarded.
+	 * @param opponents the number of opponents, from 1 to 8.
+	 * @param trials the number of random deals to try.  The accuracy improves with
+	 *     the square root of the number of trials.
+	 * @throws IllegalArgumentException if any of the parameters is not legal.
+	 */
+	public Result simulate(PokerCard[] hand, int[] discards, int opponents, long trials) {
+		if (hand == null || hand.length != 5)
+			throw new IllegalArgumentException("The hand must contain five cards.");
+		if (opponents < 1 || opponents > 8)
+			throw new IllegalArgumentException("The number of opponents must be between 1 and 8.");
+		if (trials < 1)
+			throw new IllegalArgumentException("The number of trials must be positive.");
+		boolean[] discarded = new boolean[5];
+		if (discards != null) {
+			for (int i : discards) {
+				if (i < 0 || i > 4 || discarded[i])
+					throw new IllegalArgumentException("Illegal list of cards to discard.");
+				discarded[i] = true;
+			}
+		}
+		int drawCount = (discards == null) ? 0 : discards.length;
+		int[] kept = new int[5 - drawCount];
+		boolean[] inHand = new boolean[52];
+		int keptCount = 0;
+		for (int i = 0; i < 5; i++) {
+			int code = PokerEvaluator.cardCode(hand[i]);
+			if (inHand[code])
+				throw new IllegalArgumentException("The same card occurs twice in the hand.");
+			inHand[code] = true;
+			if ( ! discarded[i] )
+				kept[keptCount++] = code;
+		}
+		int[] stub = new int[47];  // The cards that are not in the hand.  (Discards are not reused.)
+		int n = 0;
+		for (int code = 0; code < 52; code++) {
+			if ( ! inHand[code] )
+				stub[n++] = code;
+		}
+		SplittableRandom generator;
+		synchronized(this) {
+			generator = random.split();
+		}
+		long[] counts = pool.invoke(new Trials(kept, drawCount, stub, opponents, trials, generator));
+		return new Result(counts[0], counts[1], counts[2]);
+	}
+
+	/**
+	 * Tries all 32 possible sets of discards for a hand, and returns the
+	 * indices of the discards that give the best expected share of the pot
+	 * (as computed by Result.getEquity()).  Discarding nothing is preferred
+	 * to discarding if the difference is too small to matter.
+	 * @param trials the number of trials for each possible set of discards.
+	 */
+	public int[] advise(PokerCard[] hand, int opponents, long trials) {
+		int[] best = new int[0];
+		double bestEquity = simulate(hand, best, opponents, trials).getEquity();
+		for (int mask = 1; mask < 32; mask++) {
+			int[] discards = new int[Integer.bitCount(mask)];
+			int n = 0;
+			for (int i = 0; i < 5; i++)
+				if ( (mask & (1 << i)) != 0 )
+					discards[n++] = i;
+			double equity = simulate(hand, discards, opponents, trials).getEquity();
+			if (equity > bestEquity + 0.001) {
+				best = discards;
+				bestEquity = equity;
+			}
+		}
+		return best;
+	}
+
+
+	// --------------------- the private implementation section -------------------
+
+	/**
+	 * Runs some number of trials, splitting them into two tasks if there are
+	 * too many for one task.  The result is an array containing the number
+	 * of wins, ties, and losses.
+	 */
+	private static class Trials extends RecursiveTask<long[]> {
+		final int[] kept;      // Codes for the cards that the player keeps.
+		final int drawCount;   // The number of cards that the player draws.
+		final int[] stub;      // Codes for the cards that can be dealt; this array is not modified.
+		final int opponents;
+		final long trials;
+		final SplittableRandom random;
+		Trials(int[] kept, int drawCount, int[] stub, int opponents, long trials, SplittableRandom random) {
+			this.kept = kept;
+			this.drawCount = drawCount;
+			this.stub = stub;
+			this.opponents = opponents;
+			this.trials = trials;
+			this.random = random;
+		}
+		protected long[] compute() {
+			if (trials > TASK_SIZE) {
+				long half = trials / 2;
+				Trials first = new Trials(kept, drawCount, stub, opponents, half, random.split());
+				Trials second = new Trials(kept, drawCount, stub, opponents, trials - half, random);
+				first.fork();
+				long[] counts = second.compute();
+				long[] firstCounts = first.join();
+				for (int i = 0; i < 3; i++)
+					counts[i] += firstCounts[i];
+				return counts;
+			}
+			int[] deck = stub.clone();
+			int[] hand = new int[5];
+			System.arraycopy(kept, 0, hand, 0, kept.length);
+			int dealt = drawCount + 5*opponents;  // The number of cards used in each trial.
+			long wins = 0, ties = 0, losses = 0;
+			for (long t = 0; t < trials; t++) {
+				for (int i = 0; i < dealt; i++) {  // Shuffle just the cards that will be dealt.
+					int j = i + random.nextInt(deck.length - i);
+					int temp = deck[i];
+					deck[i] = deck[j];
+					deck[j] = temp;
+				}
+				for (int i = 0; i < drawCount; i++)
+					hand[kept.length + i] = deck[i];
+				int rank = PokerEvaluator.rank5(hand, 0);
+				int best = 0;  // The best rank held by an opponent.
+				for (int k = drawCount; k < dealt; k += 5)
+					best = Math.max(best, PokerEvaluator.rank5(deck, k));
+				if (rank > best)
+					wins++;
+				else if (rank == best)
+					ties++;
+				else
+					losses++;
+			}
+			return new long[] { wins, ties, losses };
+		}
+	}
+
+	/**
+	 * A small demonstration:  Deals a random hand, prints the advice for discarding
+	 * with one opponent, and reports how fast the trials were done.
+	 */
+	public static void main(String[] args) {
+		PokerDeck deck = new PokerDeck();
+		deck.shuffle();
+		PokerCard[] hand = new PokerCard[5];
+		for (int i = 0; i < 5; i++)
+			hand[i] = deck.dealCard();
+		DrawSimulator simulator = new DrawSimulator();
+		System.out.println("Hand: " + Arrays.toString(hand) + "  (" + new PokerRank(hand) + ")");
+		simulator.advise(hand, 1, 100000);  // Warm up.
+		long start = System.nanoTime();
+		int[] discards = simulator.advise(hand, 1, 1000000);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.print("Best discards:");
+		if (discards.length == 0)
+			System.out.print(" none");
+		for (int i : discards)
+			System.out.print(" " + hand[i]);
+		System.out.println();
+		System.out.println("Keep all:         " + simulator.simulate(hand, null, 1, 1000000));
+		System.out.println("Best discards:    " + simulator.simulate(hand, discards, 1, 1000000));
+		System.out.printf("%.1f million deals per second, using %d threads%n",
+				32 / seconds, simulator.pool.getParallelism());
+	}
+
+}
@@ -0,0 +1,119 @@
+package netgame.fivecarddraw;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import netgame.common.MessageCodec;
+import netgame.common.MessageCodecs;
+
+/**
+ * Defines MessageCodecs for the message types that are sent by PokerHub and
+ * PokerWindow:  PokerCard, array-of-PokerCard, and PokerGameState.  With these
+ * codecs, a PokerGameState is sent in about 20 bytes instead of the several hundred
+ * bytes that are needed when it is sent using Java serialization.  The register()
+ * method must be called in both the hub and the client, before any messages are
+ * sent.  (It is called by static initializers in PokerHub and PokerWindow.  Other
+ * programs that talk to a PokerHub, such as the load tests in netgame.loadtest,
+ * must call it themselves.)
+ */
+public class PokerCodecs {
+	
+	private final static int CARD = MessageCodecs.FIRST_APPLICATION_TYPE;  // Type codes for the three types.
+	private final static int CARD_ARRAY = CARD + 1;
+	private final static int GAME_STATE = CARD + 2;
+	
+	private static boolean registered;
+	
+	/**
+	 * Registers the codecs with the MessageCodecs class.  It is harmless to call
+	 * this more than once.
+	 */
+	public static synchronized void register() {
+		if (registered)
+			return;
+		MessageCodecs.register(CARD, PokerCard.class, new MessageCodec<PokerCard>() {
+			public void write(PokerCard card, DataOutput out) throws IOException {
+				writeCard(card,out);
+			}
+			public PokerCard read(DataInput in) throws IOException {
+				return readCard(in);
+			}
+		});
+		MessageCodecs.register(CARD_ARRAY, PokerCard[].class, new MessageCodec<PokerCard[]>() {
+			public void write(PokerCard[] cards, DataOutput out) throws IOException {
+				writeCards(cards,out);
+			}
+			public PokerCard[] read(DataInput in) throws IOException {
+				return readCards(in);
+			}
+		});
+		MessageCodecs.register(GAME_STATE, PokerGameState.class, new MessageCodec<PokerGameState>() {
+			public void write(PokerGameState state, DataOutput out) throws IOException {
+				writeCards(state.hand,out);
+				MessageCodecs.writeVarInt(state.status,out);
+				MessageCodecs.writeSignedVarInt(state.money,out);
+				MessageCodecs.writeSignedVarInt(state.opponentMoney,out);
+				MessageCodecs.writeSignedVarInt(state.pot,out);
+				MessageCodecs.writeSignedVarInt(state.amountToSee,out);
+			}
+			public PokerGameState read(DataInput in) throws IOException {
+				PokerCard[] hand = readCards(in);
+				int status = MessageCodecs.readVarInt(in);
+				int money = MessageCodecs.readSignedVarInt(in);
+				int opponentMoney = MessageCodecs.readSignedVarInt(in);
+				int pot = MessageCodecs.readSignedVarInt(in);
+				int amountToSee = MessageCodecs.readSignedVarInt(in);
+				return new PokerGameState(hand,status,money,opponentMoney,pot,amountToSee);
+			}
+		});
+		registered = true;
+	}
+	
+	/**
+	 * Writes a card as its suit, in one byte, followed by its value.  The value of a
+	 * Joker can be anything, so it is written as a signed int.
+	 */
+	private static void writeCard(PokerCard card, DataOutput out) throws IOException {
+		out.writeByte(card.getSuit());
+		MessageCodecs.writeSignedVarInt(card.getValue(),out);
+	}
+	
+	private static PokerCard readCard(DataInput in) throws IOException {
+		int suit = in.readByte();
+		int value = MessageCodecs.readSignedVarInt(in);
+		try {
+			return new PokerCard(value,suit);
+		}
+		catch (IllegalArgumentException e) {
+			throw new IOException("Illegal card in message: suit " + suit + ", value " + value);
+		}
+	}
+	
+	/**
+	 * Writes an array of cards as its length plus one (or zero for a null
+	 * array), followed by the cards.  The array must not contain nulls.
+	 */
+	private static void writeCards(PokerCard[] cards, DataOutput out) throws IOException {
+		if (cards == null) {
+			MessageCodecs.writeVarInt(0,out);
+			return;
+		}
+		MessageCodecs.writeVarInt(cards.length + 1,out);
+		for (PokerCard card : cards)
+			writeCard(card,out);
+	}
+	
+	private static PokerCard[] readCards(DataInput in) throws IOException {
+		int length = MessageCodecs.readVarInt(in) - 1;
+		if (length < 0)
+			return null;
+		if (length > 52)
+			throw new IOException("Illegal number of cards in message: " + length);
+		PokerCard[] cards = new PokerCard[length];
+		for (int i = 0; i < length; i++)
+			cards[i] = readCard(in);
+		return cards;
+	}
+	
+}
@@ -1,6 +1,8 @@
 package netgame.fivecarddraw;
 
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 /**
@@ -21,6 +23,14 @@ import java.util.ArrayList;
  *  "Pair of Kings"), but that does not include enough information
  *  to fully rank the hand. Call getLongDescription() to get a
  *  verbal description with enough detail to fully rank the hand.
+ *  <p>The rank of a complete five-card hand is looked up in the tables
+ *  of class PokerEvaluator, which is much faster than working it out
+ *  as computeRank() does.  The descriptions, and the ordering of the
+ *  cards returned by getCards(), are computed only when they are
+ *  asked for.
+ *  <p>The static methods rankHands() and rankHandsParallel() can be used
+ *  to rank a large number of hands at once, without creating PokerRank
+ *  objects.
  */
 public class PokerRank {
 
@@ -67,6 +77,12 @@ public class PokerRank {
 	public static final int STRAIGHT_FLUSH =  8;
 	public static final int ROYAL_FLUSH =  9;
 
+	/**
+	 * The largest number of hands that rankHandsParallel() will rank as a
+	 * single task.
+	 */
+	public static final int BATCH_PIECE = 16384;
+
 	private ArrayList<PokerCard> cards = new ArrayList<PokerCard>();  // The cards in this hand.
 	
 
@@ -78,14 +94,15 @@ public class PokerRank {
 	private int rank = -1;
 	
 	/**
-	 * The verbal description of the hand.  Computed at the same 
-	 * time the rank is computed.
+	 * The verbal description of the hand.  Computed, along with
+	 * longDescription, the first time that it is needed.  Null is a
+	 * signal that the descriptions have to be computed.
 	 */
 	private String description;
 	
 	/**
 	 * The full verbal description of the hand.  Computed at the same 
-	 * time the rank is computed.
+	 * time as description.
 	 */
 	private String longDescription;
 
@@ -134,6 +151,7 @@ public class PokerRank {
 			throw new IllegalArgumentException("PokerRank does not support hands with more than five cards.");
 		cards.add(card);
 		rank = -1;
+		description = null;
 	}
 
 
@@ -159,8 +177,22 @@ public class PokerRank {
 	 * hand.)
 	 */
 	public int getRank() {
-		if (rank == -1)
-			computeRank();
+		if (rank == -1) {
+			if (cards.size() == 5) {
+				int c0 = PokerEvaluator.cardCode(cards.get(0));
+				int c1 = PokerEvaluator.cardCode(cards.get(1));
+				int c2 = PokerEvaluator.cardCode(cards.get(2));
+				int c3 = PokerEvaluator.cardCode(cards.get(3));
+				int c4 = PokerEvaluator.cardCode(cards.get(4));
+				long used = (1L << c0) | (1L << c1) | (1L << c2) | (1L << c3) | (1L << c4);
+				if (Long.bitCount(used) == 5)
+					rank = PokerEvaluator.rank5(c0, c1, c2, c3, c4);
+				else
+					computeRank();  // PokerEvaluator can't handle a hand that contains the same card twice.
+			}
+			else
+				computeRank();
+		}
 		return rank;
 	}
 	
@@ -172,7 +204,7 @@ public class PokerRank {
 	 * hand.
 	 */
 	public String getDescription() {
-		if (rank == -1)
+		if (description == null)
 			computeRank();
 		return description;
 	}
@@ -183,7 +215,7 @@ public class PokerRank {
 	 * "Pair of Threes (plus Ace, Ten, Seven)".
 	 */
 	public String getLongDescription() {
-		if (rank == -1)
+		if (description == null)
 			computeRank();
 		return longDescription;
 	}
@@ -196,9 +228,7 @@ public class PokerRank {
 	 * hands of the same type.
 	 */
 	public int getHandType() {
-		if (rank == -1)
-			computeRank();
-		return rank >> 20;
+		return getRank() >> 20;
 	}
 	
 	/**
@@ -242,7 +272,7 @@ public class PokerRank {
 	 * have to be considered when evaluating the hand.
 	 */
 	public ArrayList<PokerCard> getCards() {
-		if ( rank == -1)
+		if (description == null)
 			computeRank();
 		return new ArrayList<PokerCard>(cards);
 	}
@@ -258,9 +288,94 @@ public class PokerRank {
 	public String toString() {
 		return getDescription();
 	}
+	
+	
+	/**
+	 * Ranks a batch of hands that are stored one after the other in an array of
+	 * card codes, as defined in class PokerEvaluator.  For five-card hands, the
+	 * rank of each hand is the same as the value that getRank() would return
+	 * for a PokerRank containing the same cards.  For seven-card hands, it is the
+	 * rank of the best five-card hand that can be made from the seven cards.
+	 * No card can occur twice in the same hand.
+	 * @param hands the card codes of the hands.  Hand number i occupies positions
+	 *    i*handSize through i*handSize + handSize - 1.
+	 * @param handSize the number of cards in each hand, which must be 5 or 7.
+	 * @param ranks the array where the ranks are stored.  The number of hands
+	 *    is ranks.length, and rank number i is the rank of hand number i.
+	 * @throws IllegalArgumentException if handSize is not 5 or 7, or if the hands
+	 *    array is too short to hold ranks.length hands.
+	 */
+	public static void rankHands(int[] hands, int handSize, int[] ranks) {
+		checkBatch(hands, handSize, ranks);
+		rankRange(hands, handSize, ranks, 0, ranks.length);
+	}
+	
+	/**
+	 * Does the same thing as rankHands(), but divides the work among the
+	 * threads of the common ForkJoinPool.  This is only worthwhile for
+	 * large batches, since it takes some time to get the threads started
+	 * on the work; a batch of fewer than BATCH_PIECE hands is simply
+	 * ranked by rankHands().
+	 */
+	public static void rankHandsParallel(int[] hands, int handSize, int[] ranks) {
+		checkBatch(hands, handSize, ranks);
+		if (ranks.length <= BATCH_PIECE)
+			rankRange(hands, handSize, ranks, 0, ranks.length);
+		else
+			ForkJoinPool.commonPool().invoke(new RankTask(hands, handSize, ranks, 0, ranks.length));
+	}
 		
 	// --------------------- the private implementation section -------------------
 	
+	
+	private static void checkBatch(int[] hands, int handSize, int[] ranks) {
+		if (handSize != 5 && handSize != 7)
+			throw new IllegalArgumentException("The hand size must be 5 or 7.");
+		if ((long)ranks.length * handSize > hands.length)
+			throw new IllegalArgumentException("There are not enough cards for " + ranks.length + " hands.");
+	}
+	
+	/**
+	 * Ranks hands number start through end-1.  There is a separate loop for each hand
+	 * size, with nothing in it but the call to PokerEvaluator, so that the compiler
+	 * can inline that call and unroll the loop.
+	 */
+	private static void rankRange(int[] hands, int handSize, int[] ranks, int start, int end) {
+		if (handSize == 5) {
+			for (int i = start; i < end; i++)
+				ranks[i] = PokerEvaluator.rank5(hands, 5*i);
+		}
+		else {
+			for (int i = start; i < end; i++)
+				ranks[i] = PokerEvaluator.rank7(hands, 7*i);
+		}
+	}
+	
+	/**
+	 * Ranks a range of hands for rankHandsParallel(), by splitting the range in
+	 * half until the pieces contain no more than BATCH_PIECE hands.
+	 */
+	private static class RankTask extends RecursiveAction {
+		final int[] hands, ranks;
+		final int handSize, start, end;
+		RankTask(int[] hands, int handSize, int[] ranks, int start, int end) {
+			this.hands = hands;
+			this.handSize = handSize;
+			this.ranks = ranks;
+			this.start = start;
+			this.end = end;
+		}
+		protected void compute() {
+			if (end - start <= BATCH_PIECE)
+				rankRange(hands, handSize, ranks, start, end);
+			else {
+				int middle = (start + end) >>> 1;
+				invokeAll(new RankTask(hands, handSize, ranks, start, middle),
+						new RankTask(hands, handSize, ranks, middle, end));
+			}
+		}
+	}
+	
 
 	private String valueName(PokerCard c) {
 		switch ( c.getValue() ) {
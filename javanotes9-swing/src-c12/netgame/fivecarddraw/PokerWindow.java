@@ -37,6 +37,11 @@ import java.net.URL;
  */
 public class PokerWindow extends JFrame {
 	
+	static {
+		PokerCodecs.register();  // Messages from the hub use the compact encoding defined in PokerCodecs.
+	}
+
+	
 	
 	/**
 	 * The constructor sets up the window and makes it visible on the screen.  
@@ -2,6 +2,8 @@ package netgame.tictactoe;
 
 import java.io.Serializable;
 
+import netgame.common.SyncedState;
+
 
 
 /**
@@ -18,8 +20,11 @@ import java.io.Serializable;
  * simple, each time a game is started, this class decides at random 
  * which of the two players will play 'X' and which will play 'O'.  
  * X always makes the first move.
+ * <p>The hub sends the state with its sendStateToAll() method, so usually only
+ * the changes from the previous state are transmitted.  For that purpose, the
+ * board is represented as a string of nine characters (see getFields()).
  */
-public class TicTacToeGameState implements Serializable {
+public class TicTacToeGameState implements Serializable, SyncedState {
 	
 	//-------------- state variables recording the state of the game -------------------
 	
@@ -152,4 +157,43 @@ public class TicTacToeGameState implements Serializable {
 		return true;
 	}
 	
+	
+	//----------- the methods that are used by the netgame framework to send changes -----------
+	
+	/**
+	 * Returns the fields of this state.  The board is represented as a string
+	 * containing the nine characters on the board, row by row, or as null if
+	 * board is null.  This is a copy, so it doesn't change when the board changes.
+	 */
+	public Object[] getFields() {
+		String boardString = null;
+		if (board != null)
+			boardString = new String(board[0]) + new String(board[1]) + new String(board[2]);
+		return new Object[] { playerDisconnected, boardString, gameInProgress, 
+				playerPlayingX, playerPlayingO, currentPlayer, gameEndedInTie, winner };
+	}
+	
+	/**
+	 * Creates a new state object from field values in the same form as the
+	 * array returned by getFields().
+	 */
+	public SyncedState withFields(Object[] fields) {
+		TicTacToeGameState state = new TicTacToeGameState();
+		state.playerDisconnected = (Boolean)fields[0];
+		String boardString = (String)fields[1];
+		if (boardString != null) {
+			state.board = new char[3][3];
+			for (int row = 0; row < 3; row++)
+				for (int col = 0; col < 3; col++)
+					state.board[row][col] = boardString.charAt(3*row + col);
+		}
+		state.gameInProgress = (Boolean)fields[2];
+		state.playerPlayingX = (Integer)fields[3];
+		state.playerPlayingO = (Integer)fields[4];
+		state.currentPlayer = (Integer)fields[5];
+		state.gameEndedInTie = (Boolean)fields[6];
+		state.winner = (Integer)fields[7];
+		return state;
+	}
+	
 }
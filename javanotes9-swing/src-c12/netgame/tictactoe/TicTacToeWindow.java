@@ -15,6 +15,11 @@ import netgame.common.*;
  */
 public class TicTacToeWindow extends JFrame {
 	
+	static {
+		TicTacToeCodecs.register();  // Messages from the hub use the compact encoding defined in TicTacToeCodecs.
+	}
+
+	
 	/**
 	 * The state of the game.  This state is a copy of the official
 	 * state, which is stored on the server.  When the state changes,
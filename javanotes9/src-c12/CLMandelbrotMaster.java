@@ -1,6 +1,9 @@
 import java.io.*;
 import java.net.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Scanner;
 
 import javax.imageio.ImageIO;
@@ -37,12 +40,16 @@ import java.awt.image.BufferedImage;
  * math.hws.edu:1501 or 127.0.0.1:18881, that is, the computer name or
  * IP, followed by a colon, followed by the port number, with NO SPACES.
  * 
- * When CLMandelbrotMaster runs, it creates a list of tasks (of type
- * CLMandelbrotTask) that have to be performed, and it creates a thread
- * for communicating with each copy of CLMandelbrotWorker.  Each thread
- * sends a sequence of tasks to the connected worker, which does the
+ * When CLMandelbrotMaster runs, it creates a thread for communicating
+ * with each copy of CLMandelbrotWorker.  Each thread sends a sequence of
+ * tasks (of type CLMandelbrotTask) to the connected worker, which does the
  * actual work involved in performing the task and sends back the
- * results.
+ * results.  Each task computes a rectangular tile of the image.  The tasks
+ * are created as they are needed, and the size of each tile depends on how
+ * much of the image remains to be computed and on how fast the worker has
+ * been working (see nextTask()).  Some parts of the image take much more
+ * computation than others, so using smaller tiles near the end keeps all the
+ * workers busy until the job is done.
  * 
  * Although this program is meant as a demonstration of distributed
  * computing, it does compute an interesting picture.  If you want to
@@ -50,8 +57,23 @@ import java.awt.image.BufferedImage;
  * the main() routine.  The program computes the same picture every
  * time it is run.
  * 
- * Note that data sent over the network is encoded as text.  The first
- * word on a line of text identifies the type of data.
+ * Data is normally sent over the network in a compact binary form, which
+ * is defined in CLMandelbrotTask.java.  Workers from before the binary form
+ * was introduced only understand the original text form, where the first
+ * word on a line of text identifies the type of data; when such a worker is
+ * found, the text form is used for that worker.  The text form can be used for
+ * all workers by giving the option -text on the command line.
+ * 
+ * A thread does not wait for the results of one task before sending the
+ * next.  It keeps a "window" of several tasks outstanding at the worker, so
+ * that the worker always has another task to start as soon as it finishes
+ * one, and the time that a message takes to travel over the network is not
+ * wasted.  The results are matched to their tasks by task id.  The size of
+ * the window can be set with the command line option -window, followed by a
+ * space and the number of tasks.  (Options must come before the list of
+ * workers.)  A worker that uses several threads reports the number of threads
+ * when the connection is opened, and its window is made larger by the
+ * number of extra threads, so that all of its threads can be kept busy.
  */
 public class CLMandelbrotMaster {
 
@@ -87,19 +109,71 @@ public class CLMandelbrotMaster {
 	private static final String RESULT_COMMAND = "result";
 
 	/**
-	 * The list of tasks that must be performed to complete the computation.
-	 * This list is created by createJob().  The tasks are sent out to 
-	 * workers to be performed.  Each task represents the computation of
-	 * one row of an image of part of the Mandelbrot set.
+	 * The first word on the line that asks a worker to use the binary
+	 * form of the protocol.  It is followed by the protocol version number.
+	 * (See CLMandelbrotTask.)
+	 */
+	private static final String BINARY_COMMAND = "binary";
+
+	/**
+	 * If this is true, the original text protocol is used for all connections,
+	 * without asking for the binary protocol.  It is set by the command-line
+	 * option -text.
+	 */
+	private static boolean useTextProtocol;
+
+	/**
+	 * The number of tasks that a WorkerConnection sends to its worker before
+	 * it waits for results.  It is set by the command-line option -window.
+	 * A worker that reports that it can compute several tasks at the same
+	 * time gets one more task in flight for each extra thread.
 	 */
-	private static ConcurrentLinkedQueue<CLMandelbrotTask> tasks;
+	private static int taskWindow = 4;
 
 	/**
-	 * The number of tasks that have been completed.  At the end of the
-	 * computation, this should be equal to the number of rows in the
-	 * image that is being computed.
+	 * The smallest tile that is created by nextTask(), measured in pixels,
+	 * except at the end of the image.
 	 */
-	private static int tasksCompleted;
+	private static final int MIN_TILE_SIZE = 256;
+
+	/**
+	 * Tasks that were sent to a worker that failed, and that must be given to
+	 * another worker.  (Accessed only in synchronized methods.)
+	 */
+	private static ArrayDeque<CLMandelbrotTask> reassignedTasks;
+
+	/**
+	 * The part of the image that has not yet been assigned to any task starts
+	 * at row nextRow, column nextColumn, and continues to the end of the image.
+	 * Tiles are taken from this part of the image by nextTask().  (Accessed only
+	 * in synchronized methods.)
+	 */
+	private static int nextRow, nextColumn;
+
+	/**
+	 * The id of the next task that is created by nextTask().
+	 */
+	private static int nextTaskId;
+
+	/**
+	 * The number of pixels whose values have been computed.  At the end of the
+	 * computation, this should be equal to the number of pixels in the image
+	 * that is being computed.
+	 */
+	private static long pixelsCompleted;
+
+	/**
+	 * The WorkerConnections that are currently connected to workers.  Their
+	 * speeds are used by nextTask() to decide how large to make a tile.
+	 * (Accessed only in synchronized methods.)
+	 */
+	private static ArrayList<WorkerConnection> connections = new ArrayList<>();
+
+	/**
+	 * The region of the xy-plane shown in the image, given as the coordinates
+	 * of the top left pixel and the distance between pixels; set by createJob().
+	 */
+	private static double xmin, ymax, dx, dy;
 
 	/**
 	 * Number of rows and columns in the image; set by computeJob().
@@ -136,13 +210,38 @@ public class CLMandelbrotMaster {
 		
 		long startTime = System.currentTimeMillis();
 		
-		createJob();  // Create the list of tasks that need to be computed.
+		createJob();  // Set up the computation that needs to be done.
+		
+		int optionCount = 0;  // Number of command line arguments used for options.
+		while (optionCount < args.length && args[optionCount].startsWith("-")) {
+			String option = args[optionCount];
+			optionCount++;
+			if (option.equalsIgnoreCase("-text"))
+				useTextProtocol = true;
+			else if (option.equalsIgnoreCase("-window") && optionCount < args.length) {
+				try {
+					taskWindow = Integer.parseInt(args[optionCount]);
+					if (taskWindow < 1)
+						throw new NumberFormatException();
+				}
+				catch (NumberFormatException e) {
+					System.out.println("The task window must be a positive integer.");
+					System.exit(1);
+				}
+				optionCount++;
+			}
+			else {
+				System.out.println("Unknown option " + option);
+				System.exit(1);
+			}
+		}
+		args = java.util.Arrays.copyOfRange(args, optionCount, args.length);
 		
 		if (args.length == 0) { // Run non-distributed computation.
 			
 			System.out.println("Running on this computer only...");
 			while (true) {
-				CLMandelbrotTask task = tasks.poll();
+				CLMandelbrotTask task = nextTask(null);
 				if (task == null)
 					break;
 				task.compute();
@@ -186,11 +285,11 @@ public class CLMandelbrotMaster {
 				}
 			}
 	
-			if (tasksCompleted != rows) {
+			if (pixelsCompleted != (long)rows*columns) {
 				   // Not all of the tasks were completed.  (Note: for a more robust
 				   // program, the remaining tasks could be executed here directly.)
-				System.out.println("Something went wrong.  Only " + tasksCompleted);
-				System.out.println("out of " + rows + " tasks were completed.");
+				System.out.println("Something went wrong.  Only " + pixelsCompleted);
+				System.out.println("out of " + ((long)rows*columns) + " pixels were computed.");
 				System.exit(1);
 			}
 			
@@ -206,33 +305,148 @@ public class CLMandelbrotMaster {
 	
 	
 	/**
-	 * Creates the data needed for the computation and the list of tasks that
-	 * will perform parts of the computation.  For the purposes of this
-	 * computation, it is not necessary to understand the computation.
+	 * Creates the data needed for the computation.  The tasks that
+	 * perform parts of the computation are created later, as they are
+	 * needed, by nextTask().  For the purposes of this computation, it
+	 * is not necessary to understand the computation.
 	 */
 	private static void createJob() {
-		double xmin = -0.9548900066789311; // Region of xy-plane shown in the image.
+		xmin = -0.9548900066789311; // Region of xy-plane shown in the image.
 		double xmax = -0.9548895970332226;
 		double ymin = 0.2525416221154478;
-		double ymax = 0.25254192934972913;
+		ymax = 0.25254192934972913;
 		maxIterations = 10000;
 		rows = 768;
 		columns = 1024;
 		mandelbrotData = new int[rows][columns];
-		double dx = (xmax - xmin)/(columns+1);
-		double dy = (ymax - ymin)/(rows+1);
-		tasks = new ConcurrentLinkedQueue<CLMandelbrotTask>();
-		for (int j = 0; j < rows; j++) {  // Add tasks to the task list.
-			CLMandelbrotTask task;
-			task = new CLMandelbrotTask();
-			task.id = j;
-			task.maxIterations = maxIterations;
-			task.y = ymax-j*dy;
-			task.xmin = xmin;
-			task.dx = dx;
-			task.count = columns;
-			tasks.add(task);
+		dx = (xmax - xmin)/(columns+1);
+		dy = (ymax - ymin)/(rows+1);
+		reassignedTasks = new ArrayDeque<CLMandelbrotTask>();
+		nextRow = 0;
+		nextColumn = 0;
+	}
+	
+	
+	/**
+	 * Returns the next task to be sent to a worker, or null if there is no more
+	 * work to be given out.  A task is a rectangular tile, which is taken from
+	 * the start of the part of the image that has not been assigned to any task.
+	 * This is "guided" scheduling:  The size of the tile depends on how much
+	 * of the image is left, so the first tiles are large, which keeps the overhead
+	 * low, and the tiles get smaller as the computation goes on, so that the
+	 * last tiles finish at about the same time on all of the workers, and no
+	 * worker is left with a lot of work at the end.  The tile is also made
+	 * larger for a worker that has been computing pixels faster than the other
+	 * workers (see speedShare()).  Large tiles are made up of
+	 * complete rows; near the end, rows are split into narrower tiles.
+	 * <p>A worker that uses a version of the protocol that can't send tiles
+	 * only gets tasks that consist of one complete row.
+	 * @param worker the connection for the worker that will perform the task, or
+	 *    null if the task will be performed by the master itself.
+	 */
+	synchronized private static CLMandelbrotTask nextTask(WorkerConnection worker) {
+		boolean tiles = (worker == null || worker.version >= 3);
+		for (CLMandelbrotTask task : reassignedTasks) {
+			if (tiles) {
+				reassignedTasks.remove(task);
+				return task;
+			}
+			if (task.column == 0 && task.count == columns) {
+				   // A worker that needs single rows can take the first row of
+				   // a reassigned tile.  Tiles that are not full width are left
+				   // for other workers.
+				if (task.rows == 1) {
+					reassignedTasks.remove(task);
+					return task;
+				}
+				CLMandelbrotTask first = makeTask(task.row, 0, columns, 1);
+				task.row++;
+				task.rows--;
+				return first;
+			}
 		}
+		if (nextRow == rows)
+			return null;  // The entire image has been assigned.
+		if ( ! tiles && nextColumn > 0 ) {
+			   // The rest of the current row can't be sent to this worker as one
+			   // task, so it becomes a separate task for some other worker.
+			reassignedTasks.add(makeTask(nextRow, nextColumn, columns - nextColumn, 1));
+			nextRow++;
+			nextColumn = 0;
+			if (nextRow == rows)
+				return null;
+		}
+		long remaining = (long)(rows - nextRow)*columns - nextColumn;
+		double share = 1;  // This worker's fraction of the total speed.
+		int window = 1;    // The number of tasks that this worker keeps in flight.
+		if (worker != null) {
+			share = speedShare(worker);
+			window = worker.window;
+		}
+		long size = Math.max(MIN_TILE_SIZE, (long)(remaining * share / (2*window)));
+		CLMandelbrotTask task;
+		if (nextColumn > 0 || (size < columns && tiles)) {
+			   // Make a tile that is part of one row.  If what would be left of
+			   // the row is too small to be worth a separate task, take all of it.
+			int count = (int)Math.min(size, columns - nextColumn);
+			if (columns - nextColumn - count < MIN_TILE_SIZE)
+				count = columns - nextColumn;
+			task = makeTask(nextRow, nextColumn, count, 1);
+			nextColumn += count;
+			if (nextColumn == columns) {
+				nextRow++;
+				nextColumn = 0;
+			}
+		}
+		else {
+			   // Make a tile consisting of one or more complete rows.
+			int rowCount = tiles ? (int)Math.min(size/columns, rows - nextRow) : 1;
+			rowCount = Math.max(rowCount, 1);
+			task = makeTask(nextRow, 0, columns, rowCount);
+			nextRow += rowCount;
+		}
+		return task;
+	}
+	
+	
+	/**
+	 * Creates a task with a new task id, for a tile of the image.
+	 */
+	private static CLMandelbrotTask makeTask(int row, int column, int count, int rowCount) {
+		CLMandelbrotTask task = new CLMandelbrotTask();
+		task.id = nextTaskId++;
+		task.maxIterations = maxIterations;
+		task.y = ymax;
+		task.xmin = xmin;
+		task.dx = dx;
+		task.dy = dy;
+		task.row = row;
+		task.column = column;
+		task.count = count;
+		task.rows = rowCount;
+		return task;
+	}
+	
+	
+	/**
+	 * Returns the fraction of the total speed of all the workers that comes from
+	 * one worker.  A worker that has not finished any tasks yet is counted as
+	 * having the average speed of the other workers.
+	 */
+	synchronized private static double speedShare(WorkerConnection worker) {
+		double total = 0;
+		int known = 0;  // The number of workers whose speed is known.
+		for (WorkerConnection connection : connections) {
+			if (connection.pixelsDone > 0) {
+				total += connection.getSpeed();
+				known++;
+			}
+		}
+		if (known == 0 || connections.size() == 0)
+			return 1.0 / Math.max(1, connections.size());
+		double average = total / known;
+		double speed = (worker.pixelsDone > 0) ? worker.getSpeed() : average;
+		return Math.min(1, speed / (average * connections.size()));
 	}
 	
 	
@@ -246,21 +460,22 @@ public class CLMandelbrotMaster {
 	 * other worker threads have already terminated, there won't be
 	 * any threads left to execute the task.)
 	 */
-	private static void reassignTask(CLMandelbrotTask task) {
-		tasks.add(task);
+	synchronized private static void reassignTask(CLMandelbrotTask task) {
+		reassignedTasks.add(task);
 	}
 	
 	
 	/**
 	 * Add the data from a finished task to the array where the complete
-	 * set of data is collected.  Also increments tasksCompleted.  This
+	 * set of data is collected.  Also adds to pixelsCompleted.  This
 	 * method is synchronized because of the race condition involved
-	 * in incrementing tasksCompleted.
+	 * in incrementing pixelsCompleted.
 	 */
 	synchronized private static void finishTask(CLMandelbrotTask task) {
-		int row = task.id;
-		System.arraycopy(task.results,0,mandelbrotData[row],0,columns);
-		tasksCompleted++;
+		for (int r = 0; r < task.rows; r++)
+			System.arraycopy(task.results, r*task.count, mandelbrotData[task.row + r],
+					task.column, task.count);
+		pixelsCompleted += (long)task.count*task.rows;
 	}
 
 
@@ -276,7 +491,7 @@ public class CLMandelbrotMaster {
 		buffer.append(' ');
 		buffer.append(task.maxIterations);
 		buffer.append(' ');
-		buffer.append(task.y);
+		buffer.append(task.getRowY());
 		buffer.append(' ');
 		buffer.append(task.xmin);
 		buffer.append(' ');
@@ -293,16 +508,20 @@ public class CLMandelbrotMaster {
 	 * The message contains the results from a task.
 	 * @param data the message that contains the results.  It is already known
 	 * that the first word of the message is RESULT_COMMAND.
-	 * @param task the task for which results are expected.  The task id in the
-	 * results message must match the id of this task.  The results are stored
-	 * as the value of task.results.
+	 * @param inFlight the tasks that have been sent to the worker and whose
+	 * results have not yet been received, keyed by task id.  The task whose id
+	 * is given in the message is removed from this map, and the results are
+	 * stored as the value of task.results.
+	 * @return the task whose results were received.
 	 * @throws Exception if any error is found in the data.
 	 */
-	private static void readResults(String data, CLMandelbrotTask task) throws Exception {
+	private static CLMandelbrotTask readResults(String data,
+			Map<Integer,CLMandelbrotTask> inFlight) throws Exception {
 		Scanner scanner = new Scanner(data);
 		scanner.next();  // read "results" at beginning of line
 		int id = scanner.nextInt();
-		if (id != task.id)
+		CLMandelbrotTask task = inFlight.remove(id);
+		if (task == null)
 			throw new IOException("Wrong task ID in results returned by worker");
 		int count = scanner.nextInt();
 		if (count != task.count)
@@ -310,6 +529,7 @@ public class CLMandelbrotMaster {
 		task.results = new int[count];
 		for (int i = 0; i < count; i++)
 			task.results[i] = scanner.nextInt();
+		return task;
 	}
 
 	
@@ -324,6 +544,17 @@ public class CLMandelbrotMaster {
 		String host;   // The host to which this thread will connect.
 		int port;      // The port number to which this thread will connect.
 		
+		DataInputStream binaryIn;    // Streams for the binary protocol, or null
+		DataOutputStream binaryOut;  //    if the connection uses the text protocol.
+		BufferedReader textIn;       // Streams for the text protocol, or null
+		PrintWriter textOut;         //    if the connection uses the binary protocol.
+		
+		int window = taskWindow;  // The number of tasks to keep in flight; set by connect().
+		int version;  // The version of the binary protocol, or 0 for text; set by connect().
+		
+		long startTime;  // When the connection was opened, from System.nanoTime().
+		volatile long pixelsDone;  // The number of pixels computed by the worker.
+		
 		/**
 		 * The constructor just sets the values of the instance
 		 * variables id, host, and port and starts the thread.
@@ -349,7 +580,7 @@ public class CLMandelbrotMaster {
 			Socket socket;  // The socket for the connection.
 			
 			try {
-				socket = new Socket(host,port);  // Open the connection.
+				socket = connect();  // Open the connection.
 			}
 			catch (Exception e) {
 				System.out.println("Thread " + id + " could not open connection to " +
@@ -357,56 +588,38 @@ public class CLMandelbrotMaster {
 				System.out.println("   Error: " + e);
 				return;
 			}
+			startTime = System.nanoTime();
+			synchronized(CLMandelbrotMaster.class) {
+				connections.add(this);
+			}
 						
-			CLMandelbrotTask currentTask = null;
-			CLMandelbrotTask nextTask = null;
+			Map<Integer,CLMandelbrotTask> inFlight = new LinkedHashMap<>();
+			   // Tasks that have been sent to the worker, but whose results
+			   // have not yet been received, keyed by task id.
 
 			try {
-				PrintWriter out = new PrintWriter(socket.getOutputStream());
-				BufferedReader in = new BufferedReader(
-						              new InputStreamReader(socket.getInputStream()) );
-				currentTask = tasks.poll();
-				if (currentTask != null) {
-					   // Send first task to the worker program.
-					String taskString = writeTask(currentTask);
-					out.println(taskString);
-					out.flush();
-				}
-				while (currentTask != null) {
-					String resultString = in.readLine(); // Get results for currentTask.
-					if (resultString == null)
-						throw new IOException("Connection closed unexpectedly.");
-					if (! resultString.startsWith(RESULT_COMMAND))
-						throw new IOException("Illegal string received from worker.");
-					nextTask = tasks.poll();  // Get next task and send it to worker.
-					if (nextTask != null) {
-						   // Send nextTask to worker before processing results for 
-						   // currentTask, so that the worker can work on nextTask
-						   // while the currentTask results are processed.
-						String taskString = writeTask(nextTask);
-						out.println(taskString);
-						out.flush();
-					}
-					readResults(resultString, currentTask); 
-					finishTask(currentTask);  // Process results from currentTask.
+				sendTasks(inFlight);  // Fill the window with tasks.
+				while ( ! inFlight.isEmpty() ) {
+					CLMandelbrotTask task = receiveResults(inFlight);
+					finishTask(task);
 					tasksCompleted++;
-					currentTask = nextTask;   // We are finished with old currentTask.
-					nextTask = null;
+					pixelsDone += (long)task.count*task.rows;
+					sendTasks(inFlight);  // Replace the task that was completed.
 				}
-				out.println(CLOSE_CONNECTION_COMMAND);  // Send close command to worker.
-				out.flush();
+				sendClose();  // Send close command to worker.
 			}
 			catch (Exception e) {
 				System.out.println("Thread " + id + " terminated because of an error");
 				System.out.println("   Error: " + e);
 				e.printStackTrace();
 				   // Put uncompleted tasks, if any, back into the task list.
-				if (currentTask != null)
-					reassignTask(currentTask);
-				if (nextTask != null)
-					reassignTask(nextTask);
+				for (CLMandelbrotTask task : inFlight.values())
+					reassignTask(task);
 			}
 			finally {
+				synchronized(CLMandelbrotMaster.class) {
+					connections.remove(this);
+				}
 				System.out.println("Thread " + id + " ending after completing " + 
 						tasksCompleted + " tasks");
 				try {
@@ -418,6 +631,148 @@ public class CLMandelbrotMaster {
 			
 		} //end run()
 		
+		/**
+		 * Opens the connection to the worker and sets up the streams.  Unless
+		 * useTextProtocol is true, the binary protocol is requested.  A worker
+		 * that understands the request answers with a line that gives the
+		 * version that it will use, which can be lower than the version
+		 * that was requested.  An older
+		 * worker, which only knows the text protocol, closes the connection
+		 * instead; in that case, a new connection is opened that uses text.
+		 * (The old worker needs a moment to start listening again, so a few
+		 * attempts are made.)
+		 */
+		Socket connect() throws IOException {
+			Socket socket = new Socket(host,port);
+			if ( ! useTextProtocol ) {
+				InputStream in = new BufferedInputStream(socket.getInputStream());
+				OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+				String request = BINARY_COMMAND + " " + CLMandelbrotTask.PROTOCOL_VERSION;
+				out.write((request + "\n").getBytes("US-ASCII"));
+				out.flush();
+				String reply = CLMandelbrotTask.readLine(in);
+				String[] words = (reply == null) ? new String[0] : reply.trim().split(" +");
+				int workerThreads = 1;  // The number of tasks that the worker can
+				                        //    compute at the same time (version 2 and up).
+				try {
+					if (words.length >= 2 && words[0].equals(BINARY_COMMAND))
+						version = Integer.parseInt(words[1]);
+					if (version >= 2 && words.length >= 3)
+						workerThreads = Math.max(1, Integer.parseInt(words[2]));
+				}
+				catch (NumberFormatException e) {
+				}
+				if (version >= 1 && version <= CLMandelbrotTask.PROTOCOL_VERSION) {
+					window = taskWindow + workerThreads - 1;
+					System.out.println("Thread " + id + ": worker at " + host + ":" + port +
+							" has " + workerThreads + " threads; sending up to " + window + " tasks at a time.");
+					binaryIn = new DataInputStream(in);
+					binaryOut = new DataOutputStream(out);
+					return socket;
+				}
+				socket.close();
+				version = 0;
+				System.out.println("Thread " + id + ": worker at " + host + ":" + port +
+						" does not support the binary protocol; using text.");
+				socket = null;
+				for (int attempt = 1; socket == null; attempt++) {
+					try {
+						Thread.sleep(200);
+						socket = new Socket(host,port);
+					}
+					catch (InterruptedException e) {
+					}
+					catch (IOException e) {
+						if (attempt == 10)
+							throw e;
+					}
+				}
+			}
+			textOut = new PrintWriter(socket.getOutputStream());
+			textIn = new BufferedReader( new InputStreamReader(socket.getInputStream()) );
+			return socket;
+		}
+		
+		/**
+		 * Returns the speed of the worker, in pixels per second, measured
+		 * from the time when the connection was opened.  (This is only
+		 * meaningful after some pixels have been computed.)
+		 */
+		double getSpeed() {
+			return pixelsDone / Math.max(1e-3, (System.nanoTime() - startTime) / 1e9);
+		}
+		
+		/**
+		 * Sends tasks to the worker until the number of tasks in flight is
+		 * equal to window, or until there are no more tasks.  Each task
+		 * that is sent is added to inFlight.  The tasks are sent in whichever
+		 * form the connection uses, and the output is flushed once at the end.
+		 */
+		void sendTasks(Map<Integer,CLMandelbrotTask> inFlight) throws IOException {
+			int sent = 0;
+			while (inFlight.size() < window) {
+				CLMandelbrotTask task = nextTask(this);
+				if (task == null)
+					break;
+				inFlight.put(task.id, task);
+				if (binaryOut != null)
+					task.writeTask(binaryOut, version);
+				else
+					textOut.println(writeTask(task));
+				sent++;
+			}
+			if (sent > 0) {
+				if (binaryOut != null)
+					binaryOut.flush();
+				else
+					textOut.flush();
+			}
+		}
+		
+		/**
+		 * Waits for the results of one of the tasks in inFlight, and stores them
+		 * in the task.  The results do not have to arrive in the order in which
+		 * the tasks were sent.
+		 * @return the task whose results were received, which has been removed
+		 *    from inFlight.
+		 */
+		CLMandelbrotTask receiveResults(Map<Integer,CLMandelbrotTask> inFlight) throws Exception {
+			if (binaryIn != null) {
+				int frameType = binaryIn.read();
+				if (frameType == -1)
+					throw new IOException("Connection closed unexpectedly.");
+				if (frameType != CLMandelbrotTask.RESULT_FRAME)
+					throw new IOException("Illegal data received from worker.");
+				CLMandelbrotTask task = inFlight.remove(binaryIn.readInt());
+				if (task == null)
+					throw new IOException("Wrong task ID in results returned by worker");
+				task.readResults(binaryIn);
+				return task;
+			}
+			else {
+				String resultString = textIn.readLine();
+				if (resultString == null)
+					throw new IOException("Connection closed unexpectedly.");
+				if (! resultString.startsWith(RESULT_COMMAND))
+					throw new IOException("Illegal string received from worker.");
+				return readResults(resultString, inFlight);
+			}
+		}
+		
+		/**
+		 * Tells the worker that there are no more tasks.
+		 */
+		void sendClose() throws IOException {
+			if (binaryOut != null) {
+				binaryOut.writeByte(CLMandelbrotTask.CLOSE_FRAME);
+				binaryOut.flush();
+			}
+			else {
+				textOut.println(CLOSE_CONNECTION_COMMAND);
+				textOut.flush();
+			}
+		}
+		
 	} // end nested class WorkerConnection
 
 	
@@ -1,3 +1,5 @@
+import java.io.*;
+
 
 /**
  * This class is part of a demonstration of distributed computing.
@@ -6,24 +8,64 @@
  * CLMandelbrotMaster) and on the worker computers.
  * 
  * CLMandelbrotTask is a simple container that holds the data for one "task"
- * which consists of computing one row of data for a Mandelbrot image.  It
- * also contains the output of the task, and a method for doing the computation.
- * CLMandelbrotMaster computes the image by creating one CLMandelbrotTask for
- * each row in the image.  The tasks are sent over a network to CLMandelbrotWorkers
- * to be computed, and the results are returned to CLMandelbrotMaster where
- * all the results are combined to produce the entire image.
+ * which consists of computing one rectangular "tile" of data for a Mandelbrot
+ * image.  A tile can be several rows high, and it can be all or part of the
+ * width of the image.  The task also contains the output of the task, and a
+ * method for doing the computation.  CLMandelbrotMaster computes the image by
+ * dividing it into tiles and creating a CLMandelbrotTask for each tile.  The
+ * tasks are sent over a network to CLMandelbrotWorkers to be computed, and
+ * the results are returned to CLMandelbrotMaster where all the results are
+ * combined to produce the entire image.
+ * 
+ * This class also contains the code for sending tasks and results in the
+ * binary form of the protocol, since it is used by both the master and the
+ * worker.  (The original text form of the protocol, where each task and
+ * each result is one line of text, is implemented in CLMandelbrotMaster and
+ * CLMandelbrotWorker.)  In the binary form, each message is a "frame" that
+ * starts with a one-byte frame type.  A task frame is followed by the task
+ * data, written with a DataOutputStream.  A result frame is followed by the
+ * task id and the number of results, and then by the results themselves.
+ * Neighboring pixels usually have similar iteration counts, so each result is
+ * sent as the difference from the previous one, in a variable-length
+ * encoding that uses one byte for small differences.  A row of a thousand
+ * results typically takes one or two kilobytes, instead of about five
+ * kilobytes of text, and it can be decoded without any parsing.
  */
 public class CLMandelbrotTask {
 
+	/**
+	 * The version of the binary protocol that is implemented by this class.
+	 * The master asks for the binary protocol by sending the line "binary"
+	 * followed by the version number, and the worker answers with the same line
+	 * if it agrees.  In version 2, the worker adds the number of tasks that it
+	 * can compute at the same time (normally, its number of processors) to the
+	 * end of its answer, and it can send results in any order.  In version 3,
+	 * a task frame contains the position and size of a tile; in earlier versions,
+	 * a task is always one complete row of the image.  If the worker does not
+	 * know the version that the master asks for, it answers with the highest
+	 * version that it does know.  After the first line, all messages are
+	 * binary frames.
+	 */
+	public static final int PROTOCOL_VERSION = 3;
+
+	public static final int TASK_FRAME = 1;     // Frame types for the binary protocol.
+	public static final int RESULT_FRAME = 2;
+	public static final int CLOSE_FRAME = 3;
+	public static final int SHUT_DOWN_FRAME = 4;
+
 	public int id;              // Identifies this task.  Each task that is 
 								// part of the overall computation has a
 								// different id.
 
 	public int maxIterations;   // Input for the computation.
-	public double y;    
-	public double xmin;
-	public double dx;
-	public int count;
+	public double y;            // The y-coordinate for row 0 of the image.
+	public double xmin;         // The x-coordinate for column 0 of the image.
+	public double dx;           // The distance between columns.
+	public double dy;           // The distance between rows.
+	public int row;             // The first row of the tile, in the image.
+	public int column;          // The first column of the tile, in the image.
+	public int count;           // The number of columns in the tile.
+	public int rows = 1;        // The number of rows in the tile.
 
 	public int[] results;       // Holds the results of the computation after
 								//  compute() has been executed.
@@ -31,15 +73,30 @@ public class CLMandelbrotTask {
 
 	/**
 	 * Performs the task represented by this data.  Uses the values
-	 * of maxIterations, y, xmin, dx, and count.  Creates the result
-	 * array and fills it with computed data.  For the purposes of
-	 * this demonstration, it is not important to understand the
-	 * computation performed by this task.
+	 * of maxIterations, y, xmin, dx, dy, row, column, count, and rows.
+	 * Creates the result array and fills it with computed data, one
+	 * row of the tile after another.  (The coordinates of each pixel
+	 * are computed from its position in the whole image, so the results
+	 * do not depend on how the image is divided into tiles.)  For the
+	 * purposes of this demonstration, it is not important to understand
+	 * the computation performed by this task.
 	 */
 	public void compute() {
-		results = new int[count];
-		for (int i = 0; i < count; i++)
-			results[i] = countIterations(xmin + i*dx,y);
+		results = new int[count*rows];
+		for (int r = 0; r < rows; r++) {
+			double rowY = y - (row + r)*dy;
+			for (int i = 0; i < count; i++)
+				results[r*count + i] = countIterations(xmin + (column + i)*dx, rowY);
+		}
+	}
+
+	/**
+	 * Returns the y-coordinate for the first row of the tile.  The old
+	 * forms of the protocol, which can only send single rows, send
+	 * this value instead of the y-coordinate of row 0.
+	 */
+	public double getRowY() {
+		return y - row*dy;
 	}
 
 
@@ -59,4 +116,142 @@ public class CLMandelbrotTask {
 		return ct;
 	}
 
+
+	/**
+	 * Writes a task frame containing this task's input data.  The data is
+	 * not flushed.
+	 * @param version the protocol version used by the connection.  Before
+	 *    version 3, only tasks consisting of one complete row can be sent.
+	 * @throws IllegalArgumentException if the task can't be sent in the
+	 *    given version of the protocol.
+	 */
+	public void writeTask(DataOutputStream out, int version) throws IOException {
+		if (version < 3 && (rows != 1 || column != 0))
+			throw new IllegalArgumentException("Tiles require protocol version 3.");
+		out.writeByte(TASK_FRAME);
+		out.writeInt(id);
+		out.writeInt(maxIterations);
+		out.writeDouble(version < 3 ? getRowY() : y);
+		out.writeDouble(xmin);
+		out.writeDouble(dx);
+		out.writeInt(count);
+		if (version >= 3) {
+			out.writeDouble(dy);
+			out.writeInt(row);
+			out.writeInt(column);
+			out.writeInt(rows);
+		}
+	}
+
+
+	/**
+	 * Reads the data for a task from a task frame.  The frame type has
+	 * already been read.
+	 * @param version the protocol version used by the connection.
+	 * @throws IOException if an error occurs or if the data is not legal.
+	 */
+	public static CLMandelbrotTask readTask(DataInputStream in, int version) throws IOException {
+		CLMandelbrotTask task = new CLMandelbrotTask();
+		task.id = in.readInt();
+		task.maxIterations = in.readInt();
+		task.y = in.readDouble();
+		task.xmin = in.readDouble();
+		task.dx = in.readDouble();
+		task.count = in.readInt();
+		if (version >= 3) {
+			task.dy = in.readDouble();
+			task.row = in.readInt();
+			task.column = in.readInt();
+			task.rows = in.readInt();
+		}
+		if (task.count < 0 || task.rows < 0 || task.maxIterations < 0
+				|| (long)task.count * task.rows > Integer.MAX_VALUE / 5)
+			throw new IOException("Illegal data found while reading task information.");
+		return task;
+	}
+
+
+	/**
+	 * Writes a result frame containing this task's results, which must
+	 * already have been computed.  The results for all the rows of the
+	 * tile are sent together, one row after another.  The data is not flushed.  Each result
+	 * is written as the difference from the previous result, changed to
+	 * a non-negative number (0, -1, 1, -2, 2, ... become 0, 1, 2, 3, 4, ...),
+	 * and then written seven bits per byte, with the high bit of each
+	 * byte telling whether more bytes follow.
+	 */
+	public void writeResults(DataOutputStream out) throws IOException {
+		byte[] buffer = new byte[5*results.length];  // Enough for the largest possible encoding.
+		int length = 0;
+		int previous = 0;
+		for (int i = 0; i < results.length; i++) {
+			int diff = results[i] - previous;
+			previous = results[i];
+			int code = (diff << 1) ^ (diff >> 31);
+			while ((code & ~0x7F) != 0) {
+				buffer[length++] = (byte)((code & 0x7F) | 0x80);
+				code >>>= 7;
+			}
+			buffer[length++] = (byte)code;
+		}
+		out.writeByte(RESULT_FRAME);
+		out.writeInt(id);
+		out.writeInt(results.length);
+		out.write(buffer, 0, length);
+	}
+
+
+	/**
+	 * Reads the results for this task from a result frame.  The frame
+	 * type and the task id have already been read (and the id has been
+	 * used to find this task).  The results are stored in the results
+	 * array.
+	 * @throws IOException if an error occurs, or if the number of results
+	 *    in the frame does not match this task.
+	 */
+	public void readResults(DataInputStream in) throws IOException {
+		int resultCount = in.readInt();
+		if (resultCount != count*rows)
+			throw new IOException("Wrong data count in results returned by worker");
+		results = new int[resultCount];
+		int previous = 0;
+		for (int i = 0; i < resultCount; i++) {
+			int code = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = in.readUnsignedByte();
+				code |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0 && shift < 35);
+			previous += (code >>> 1) ^ -(code & 1);
+			results[i] = previous;
+		}
+	}
+
+
+	/**
+	 * Reads one line of text from a stream, one byte at a time.  This is used
+	 * for the first line that is sent over a connection, which tells whether
+	 * the connection will use text or binary messages.  Since the stream is
+	 * read one byte at a time, no data after the line is used up, and the
+	 * stream can be used for either kind of message afterwards.  (It should be
+	 * a buffered stream.)  The line must be plain ASCII text.
+	 * @return the line, without the end-of-line, or null if the end of the
+	 *    stream is reached before any characters are read.
+	 */
+	public static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		while (true) {
+			int ch = in.read();
+			if (ch == -1)
+				return line.length() == 0 ? null : line.toString();
+			if (ch == '\n')
+				break;
+			if (ch != '\r')
+				line.append((char)ch);
+		}
+		return line.toString();
+	}
+
 }
@@ -1,6 +1,9 @@
 import java.io.*;
 import java.net.*;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class is part of a demonstration of distributed computing.
@@ -24,8 +27,22 @@ import java.util.Scanner;
  * used.  Since graceful shutdown is not implemented, you can stop the
  * worker program using CONTROL-C.)
  * 
- * Note that data sent over the network is encoded as text.  The first
- * word on a line of text identifies the type of data.
+ * Data can be sent over the network in two forms.  In the original form,
+ * the data is encoded as text, and the first word on a line of text
+ * identifies the type of data.  A newer master program asks for the binary
+ * form, which is much more compact, by sending a line that starts with
+ * "binary"; after that, the data is sent as binary frames, which are
+ * defined in CLMandelbrotTask.java.  This worker can handle either form.
+ * 
+ * When the binary form is used, the worker tells the master how many tasks
+ * it can work on at the same time, and the master keeps at least that many
+ * tasks outstanding at the worker.  The tasks are computed by a pool of
+ * threads, one for each processor, and the results are sent back as soon
+ * as they are ready, which is not necessarily in the order in which the
+ * tasks arrived.  (The number of threads can be given as a second
+ * command-line argument, after the port number.)  With the text form, tasks
+ * are computed one at a time in the order in which they arrive, since an
+ * older master expects the results in that order.
  */
 public class CLMandelbrotWorker {
 
@@ -60,14 +77,32 @@ public class CLMandelbrotWorker {
 	 */
 	private static final String RESULT_COMMAND = "result";
 
+	/**
+	 * The first word on the line that the master sends to ask for the binary
+	 * form of the protocol.  It is followed by the protocol version number.
+	 * (See CLMandelbrotTask.)
+	 */
+	private static final String BINARY_COMMAND = "binary";
+
 	private static boolean shutdownCommandReceived;
 
+	/**
+	 * The number of threads in the pool that computes tasks.
+	 */
+	private static int threadCount = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The pool of threads that computes tasks for the binary protocol.
+	 * It is created in main().
+	 */
+	private static ExecutorService pool;
+
 
 	/**
 	 * The main program listens for connections from the master program
-	 * and does all the communication over the connection.  Note that this
-	 * worker program does not use threads (except for the thread in which
-	 * the main program runs).
+	 * and does all the communication over the connection.  The main program
+	 * reads the tasks from the master; when the binary protocol is used, they
+	 * are computed by the threads in the pool, which also send back the results.
 	 */
 	public static void main(String[] args) {
 
@@ -86,7 +121,21 @@ public class CLMandelbrotWorker {
 			}
 		}
 
-		System.out.println("Starting with listening port number " + port);
+		if (args.length > 1) {
+			try {
+				threadCount = Integer.parseInt(args[1]);
+				if (threadCount < 1)
+					throw new NumberFormatException();
+			}
+			catch (NumberFormatException e) {
+				threadCount = Runtime.getRuntime().availableProcessors();
+			}
+		}
+
+		pool = Executors.newFixedThreadPool(threadCount);
+
+		System.out.println("Starting with listening port number " + port +
+				", using " + threadCount + " threads");
 
 		while (shutdownCommandReceived == false) {
 
@@ -119,6 +168,7 @@ public class CLMandelbrotWorker {
 			}
 		}
 
+		pool.shutdown();
 		System.out.println("Shutting down normally.");
 
 	} // end main()
@@ -174,54 +224,173 @@ public class CLMandelbrotWorker {
 	/**
 	 * Handle communication over a connection to the master program.  Accept and
 	 * process CLMandelbrotTasks until a close or shutdown message is received
-	 * (or an error occurs).
+	 * (or an error occurs).  The first line from the master tells which form
+	 * of the protocol to use:  A new master asks for the binary protocol, while
+	 * an older master simply starts sending tasks as text.
 	 * @param connection an already-connected socket for the connection.
 	 */
 	private static void handleConnection(Socket connection) {
 		try {
-			BufferedReader in = new BufferedReader( new InputStreamReader(
-					connection.getInputStream()) );
-			PrintWriter out = new PrintWriter(connection.getOutputStream());
+			InputStream in = new BufferedInputStream(connection.getInputStream());
+			OutputStream out = new BufferedOutputStream(connection.getOutputStream());
+			String line = CLMandelbrotTask.readLine(in);  // First message from the master.
+			if (line != null && line.startsWith(BINARY_COMMAND))
+				handleBinaryConnection(line, in, out);
+			else
+				handleTextConnection(line, in, out);
+		}
+		catch (Exception e) {
+			System.out.println("Client connection closed with error " + e);
+		}
+		finally {
+			try {
+				connection.close();  // Make sure the socket is closed.
+			}
+			catch (Exception e) {
+			}
+		}
+	}
+
+
+	/**
+	 * Carry out the original text form of the protocol, where each message
+	 * is one line of text.
+	 * @param line the first line that was received from the master.
+	 */
+	private static void handleTextConnection(String line, InputStream inStream, OutputStream outStream)
+			throws Exception {
+		BufferedReader in = new BufferedReader( new InputStreamReader(inStream) );
+		PrintWriter out = new PrintWriter(outStream);
+		while (true) {
+			if (line == null) {
+					// End-of-stream encountered -- should not happen.
+				throw new Exception("Connection closed unexpectedly.");
+			}
+			if (line.startsWith(CLOSE_CONNECTION_COMMAND)) {
+					// Represents the normal termination of the connection.
+				System.out.println("Received close command.");
+				break;
+			}
+			else if (line.startsWith(SHUT_DOWN_COMMAND)) {
+					// Represents the normal termination of the connection
+					// and also tells this worker to shut down.
+				System.out.println("Received shutdown command.");
+				shutdownCommandReceived = true;
+				break;
+			}
+			else if (line.startsWith(TASK_COMMAND)) {
+					// Represents a CLMandelbrotTask that this worker is
+					// supposed to perform.
+				CLMandelbrotTask task = readTask(line);  // Decode the message.
+				task.compute();  // Perform the task.
+				out.println(writeResults(task));  //  Send back the results.
+				out.flush();
+			}
+			else {
+					// No other messages are part of the protocol.
+				throw new Exception("Illegal copmmand received.");
+			}
+			line = in.readLine();  // Next message from the master.
+		}
+	}
+
+
+	/**
+	 * Carry out the binary form of the protocol.  The master's request
+	 * is answered with the same line, if this worker knows the version
+	 * that it asks for, or otherwise with the highest version that this
+	 * worker knows.  Then all messages are binary frames, as
+	 * implemented in class CLMandelbrotTask.  From version 2 on, the number
+	 * of threads in the pool is added to the answer.  Each task is given
+	 * to the pool, and the thread that computes it also sends the results.
+	 * (For version 1, the tasks are computed here, one at a time, since
+	 * the results must be sent in order.)  When this method ends, for any
+	 * reason, the tasks from this connection that are still waiting in the
+	 * pool are skipped, so that they don't delay the next master.
+	 * @param request the line in which the master asked for the binary protocol.
+	 */
+	private static void handleBinaryConnection(String request, InputStream inStream, OutputStream outStream)
+			throws Exception {
+		int version;
+		try {
+			version = Integer.parseInt(request.substring(BINARY_COMMAND.length()).trim());
+		}
+		catch (NumberFormatException e) {
+			throw new IOException("Illegal request for binary protocol.");
+		}
+		if (version < 1)
+			throw new IOException("Unsupported protocol version " + version);
+		version = Math.min(version, CLMandelbrotTask.PROTOCOL_VERSION);
+		String reply = BINARY_COMMAND + " " + version;
+		if (version >= 2)
+			reply += " " + threadCount;
+		outStream.write((reply + "\n").getBytes("US-ASCII"));
+		outStream.flush();
+		DataInputStream in = new DataInputStream(inStream);
+		DataOutputStream out = new DataOutputStream(outStream);
+		AtomicBoolean closed = new AtomicBoolean();  // Set when this connection is done.
+		try {
 			while (true) {
-				String line = in.readLine();  // Message from the master.
-				if (line == null) {
-						// End-of-stream encountered -- should not happen.
+				int frameType = in.read();
+				if (frameType == -1)
 					throw new Exception("Connection closed unexpectedly.");
-				}
-				if (line.startsWith(CLOSE_CONNECTION_COMMAND)) {
-						// Represents the normal termination of the connection.
+				if (frameType == CLMandelbrotTask.CLOSE_FRAME) {
 					System.out.println("Received close command.");
 					break;
 				}
-				else if (line.startsWith(SHUT_DOWN_COMMAND)) {
-						// Represents the normal termination of the connection
-						// and also tells this worker to shut down.
+				else if (frameType == CLMandelbrotTask.SHUT_DOWN_FRAME) {
 					System.out.println("Received shutdown command.");
 					shutdownCommandReceived = true;
 					break;
 				}
-				else if (line.startsWith(TASK_COMMAND)) {
-						// Represents a CLMandelbrotTask that this worker is
-						// supposed to perform.
-					CLMandelbrotTask task = readTask(line);  // Decode the message.
-					task.compute();  // Perform the task.
-					out.println(writeResults(task));  //  Send back the results.
-					out.flush();
+				else if (frameType == CLMandelbrotTask.TASK_FRAME) {
+					CLMandelbrotTask task = CLMandelbrotTask.readTask(in, version);
+					if (version == 1) {
+						task.compute();
+						task.writeResults(out);
+						out.flush();
+					}
+					else {
+						pool.execute( () -> computeAndSend(task, out, inStream, closed) );
+					}
 				}
 				else {
-						// No other messages are part of the protocol.
-					throw new Exception("Illegal copmmand received.");
+					throw new Exception("Illegal frame type received.");
 				}
 			}
 		}
-		catch (Exception e) {
-			System.out.println("Client connection closed with error " + e);
-		}
 		finally {
+			closed.set(true);  // Pool threads skip tasks from this connection.
+		}
+	}
+
+
+	/**
+	 * Called in one of the pool threads to compute a task and send its results
+	 * to the master.  The output stream is shared by all the pool threads, so
+	 * it is used while synchronized on the stream.  If the results can't
+	 * be sent, the input stream is closed, so that the error is also noticed
+	 * by handleBinaryConnection(), which is waiting for data from the master.
+	 * If the connection has already ended, the task is not computed at all.
+	 */
+	private static void computeAndSend(CLMandelbrotTask task, DataOutputStream out,
+			InputStream in, AtomicBoolean closed) {
+		if (closed.get())
+			return;
+		task.compute();
+		try {
+			synchronized(out) {
+				if (closed.get())
+					return;
+				task.writeResults(out);
+				out.flush();
+			}
+		}
+		catch (IOException e) {
 			try {
-				connection.close();  // Make sure the socket is closed.
+				in.close();
 			}
-			catch (Exception e) {
+			catch (IOException e1) {
 			}
 		}
 	}
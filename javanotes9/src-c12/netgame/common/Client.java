@@ -1,10 +1,17 @@
 package netgame.common;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.Serializable;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.concurrent.LinkedBlockingQueue;
 
 
@@ -22,17 +29,36 @@ import java.util.concurrent.LinkedBlockingQueue;
  * serverShutdown(), playerConnected(), and playerDisconnected() methods.
  * <p>A client provides methods send(Object) and disconnect() for
  * sending a message to the Hub and for closing down the connection.
- * Any non-null object that implements the Serializable interface can be sent
- * as a message.  Note that an ObjectOutputStream is used for sending
- * messages.  If the same object is to be sent more than once, with
- * changes between transmissions, then the resetOutput() method should be
- * called between transmissions (or the autoreset property should be
- * set to true).
+ * Any non-null object that implements the Serializable interface, or that
+ * has a MessageCodec registered with the MessageCodecs class, can be sent
+ * as a message.  Each message is encoded separately and transmitted
+ * as a "frame" (see the package private class MessageFrames), so an object
+ * that is changed and sent again is always transmitted with its current
+ * contents.  This works with a Hub that uses any of its transports.
+ * <p>When the hub sends a SyncedState with its sendState() or sendStateToAll()
+ * method, the client might receive only the changes from an earlier state.  The
+ * client rebuilds the complete state, and tells the hub that it has received it.
+ * The messageReceived() method always receives the complete state object.
  * <p>A client has a unique ID number that is assigned to the client
  * when it connects to the hub.  The ID can retrieved by calling
  * the getID() method.  The protected variable connectedPlayerIDs
  * contains the ID numbers of all clients currently connected to the
  * hub, including this one.
+ * <p>A client keeps statistics about the messages that it sends and receives,
+ * which can be obtained by calling getMetrics().
+ * <p>If the hub allows sessions to be resumed (see Hub.setResumableSessions()),
+ * then a client whose connection is lost because of a network error will try
+ * to reconnect, for as long as the hub keeps its session.  If it succeeds, it
+ * keeps the same ID, and every message that was sent in either direction is
+ * delivered, in order, as if the connection had never been lost.  Messages can
+ * still be sent while the client is trying to reconnect; they are delivered when
+ * the session is resumed.  The connectionClosedByError() method is only called
+ * if the session can't be resumed.
+ * <p>A client uses two threads, one for sending and one for receiving
+ * messages.  These can be virtual threads instead of ordinary threads;
+ * see the three-parameter constructor.  When several messages are waiting
+ * to be sent, the send thread writes them to the network together, so
+ * TCP's own batching (Nagle's algorithm) is turned off for the connection.
  */
 abstract public class Client {
 	
@@ -43,13 +69,6 @@ abstract public class Client {
 	 */
 	protected int[] connectedPlayerIDs = new int[0];
 	
-	/**
-	 * If the autoreset property is set to true, then the ObjectOutputStream
-	 * that is used for transmitting messages is reset before each object is
-	 * sent.
-	 */
-	private volatile boolean autoreset;
-	
 	/**
 	 * Constructor opens a connection to a Hub.  This constructor will 
 	 * block while waiting for the connection to be established.
@@ -58,7 +77,28 @@ abstract public class Client {
 	 * @throws IOException if any I/O exception occurs while trying to connect.
 	 */
 	public Client(String hubHostName, int hubPort) throws IOException {
-		connection = new ConnectionToHub(hubHostName, hubPort);
+		this(hubHostName, hubPort, "virtual_threads".equalsIgnoreCase(System.getProperty("netgame.transport")));
+	}
+
+	/**
+	 * Constructor opens a connection to a Hub, using either ordinary threads or
+	 * virtual threads for sending and receiving messages.  Virtual threads are
+	 * much cheaper than ordinary threads, which matters for a program that creates
+	 * a large number of clients.  They require Java 21; if they are not available,
+	 * ordinary threads are used.  (The two-parameter constructor uses virtual 
+	 * threads if the system property netgame.transport is "virtual_threads".)
+	 * This constructor will block while waiting for the connection to be established.
+	 * @param hubHostName  The host name (or IP address) of the computer where the Hub is running.
+	 * @param hubPort      The port number on which the Hub is listening for connection requests.
+	 * @param useVirtualThreads  If true, virtual threads are used, if possible.
+	 * @throws IOException if any I/O exception occurs while trying to connect.
+	 */
+	public Client(String hubHostName, int hubPort, boolean useVirtualThreads) throws IOException {
+		connection = new ConnectionToHub(hubHostName, hubPort, useVirtualThreads);
+		metrics = new NetworkMetrics("Client " + connection.id_number, () -> connectedPlayerIDs.length,
+				() -> new int[] { connection.id_number },
+				id -> (id == connection.id_number)? connection.outgoingMessages.size() : -1);
+		connection.start();
 	}
 
 	// ---------------- Methods that subclasses can override --------------------------
@@ -95,7 +135,9 @@ abstract public class Client {
 	
 	/**
 	 * This method is called when the connection to the Hub is closed down
-	 * because of some error.  The method in this class does nothing.  Subclasses
+	 * because of some error.  (If the hub allows sessions to be resumed, it is
+	 * only called after an attempt to resume the session has failed, which might
+	 * be some time after the error.)  The method in this class does nothing.  Subclasses
 	 * can override this method to take some action when the error occurs.
 	 */
 	protected void connectionClosedByError(String message) { }
@@ -138,8 +180,11 @@ abstract public class Client {
 	 * If the connection is already closed, this method has no effect.
 	 */
 	public void disconnect() {
-		if (!connection.closed)
-			connection.send(new DisconnectMessage("Goodbye Hub"));
+		ConnectionToHub current = connection;
+		if (current.resuming)
+			current.resuming = false;  // Stop trying to resume the session.
+		else if (!current.closed)
+			current.send(new DisconnectMessage("Goodbye Hub"));
 	}
 	
 	/**
@@ -148,20 +193,22 @@ abstract public class Client {
 	 * never blocks.  This method throws an IllegalStateException if the
 	 * connection to the Hub has already been closed.
 	 * @param message A non-null object representing the message.  This object
-	 * must implement the Serializable interface. 
-	 * @throws IllegalArgumentException if message is null or is not Serializable.
+	 * must implement the Serializable interface or have a registered MessageCodec. 
+	 * @throws IllegalArgumentException if message is null or can't be encoded.
 	 * @throws IllegalStateException if the connection has already been closed,
 	 *    either by the disconnect() method, because the Hub has shut down, or
-	 *    because of a network error.
+	 *    because of a network error.  (While the client is trying to resume its
+	 *    session after an error, messages can still be sent.)
 	 */
 	public void send(Object message) {
 		if (message == null)
 			throw new IllegalArgumentException("Null cannot be sent as a message.");
-		if (! (message instanceof Serializable))
-			throw new IllegalArgumentException("Messages must implement the Serializable interface.");
-		if (connection.closed)
+		if (! MessageCodecs.canEncode(message))
+			throw new IllegalArgumentException("Messages must have a codec or implement the Serializable interface.");
+		ConnectionToHub current = connection;
+		if (current.closed && ! current.resuming)
 			throw new IllegalStateException("Message cannot be sent because the connection is closed.");
-		connection.send(message);
+		current.send(message);
 	}
 
 	/**
@@ -179,39 +226,54 @@ abstract public class Client {
 	}
 	
 	/**
-	 * Resets the output stream, after any messages currently in the output queue
-	 * have been sent.  The stream only needs to be reset in one case:  If the same
-	 * object is transmitted more than once, and changes have been made to it
-	 * between transmissions.  The reason for this is that ObjectOutputStreams are
-	 * optimized for sending objects that don't change -- if the same object is sent
-	 * twice it will not actually be transmitted the second time, unless the stream
-	 * has been reset in the meantime.
+	 * Returns the object that collects statistics about this client's network
+	 * traffic, such as the number of messages sent and received and the time
+	 * spent in messageReceived().  The same object is returned every time.
+	 * (The metrics of a client are not registered with JMX automatically, but 
+	 * they can be registered by calling their register() method.)
+	 */
+	public NetworkMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * This method does nothing.  When messages were written to a single ObjectOutputStream,
+	 * the stream needed to be reset if the same object was transmitted more than once, 
+	 * with changes made to it between transmissions.  Now that every message is
+	 * encoded separately, that is never necessary.
+	 * @deprecated The output stream no longer needs to be reset.
 	 */
+	@Deprecated
 	public void resetOutput() {
-		connection.send(new ResetSignal()); // A ResetSignal in the output stream is seen as a signal to reset.
 	}
 	
 	/**
-	 * If the autoreset property is set to true, then the output stream will be reset
-	 * before every object transmission.  Use this if the same object is going to be
-	 * continually changed and retransmitted.  See the resetOutput() method for more
-	 * information on resetting the output stream.
+	 * This method does nothing.  The autoreset property once caused the output
+	 * stream to be reset before every object transmission.  See resetOutput().
+	 * @deprecated The output stream no longer needs to be reset.
 	 */
+	@Deprecated
 	public void setAutoreset(boolean auto) {
-		autoreset = auto;
 	}
 	
 	/**
-	 * Returns the value of the autoreset property.
+	 * Returns false, since the output stream is never reset.  See resetOutput().
+	 * @deprecated The output stream no longer needs to be reset.
 	 */
+	@Deprecated
 	public boolean getAutoreset() {
-		return autoreset;
+		return false;
 	}
 	
 
 	//------------- Private implementation part of the class -----------------------------
 	
-	private final ConnectionToHub connection;  // Represents the network connection to the hub.
+	private volatile ConnectionToHub connection;  // Represents the network connection to the hub.  This is
+	                                             //   replaced by a new connection when a session is resumed.
+	
+	private final NetworkMetrics metrics;  // Statistics about network traffic and message handling.
+	
+	private final static int MAX_BATCH_BYTES = 64*1024;  // Maximum bytes written before a flush.
 	
 	/**
 	 *  This private class handles the actual communication with the server.
@@ -219,13 +281,24 @@ abstract public class Client {
 	private  class ConnectionToHub {
 
 		private final int id_number;               // The ID of this client, assigned by the hub.
+		private final String host;                 // The host and port of the Hub, for resuming the session.
+		private final int port;
+		private final boolean useVirtualThreads;   // Whether the send and receive threads are virtual threads.
 		private final Socket socket;               // The socket that is connected to the Hub.
-		private final ObjectInputStream in;        // A stream for sending messages to the Hub.
-		private final ObjectOutputStream out;      // A stream for receiving messages from the Hub.
-		private final SendThread sendThread;       // The thread that sends messages to the Hub.
-		private final ReceiveThread receiveThread; // The thread that receives messages from the Hub.
+		private final DataInputStream in;          // A stream for receiving message frames from the Hub.
+		private final DataOutputStream out;        // A stream for sending message frames to the Hub.
+		private final Thread sendThread;           // The thread that sends messages to the Hub.
+		private final Thread receiveThread;        // The thread that receives messages from the Hub.
 
 		private final LinkedBlockingQueue<Object> outgoingMessages;  // Queue of messages waiting to be transmitted.
+		
+		private final ArrayDeque<ReceivedState> receivedStates;  // Recent states from the hub, oldest first; used
+		                                                         //   only in the receive thread.
+		
+		private final SessionLog session;       // Record of frames for resuming the session; null if the hub
+		                                        //   does not allow sessions to be resumed.
+		private final int resumeGracePeriod;    // Number of seconds for which the hub keeps a lost session.
+		private volatile boolean resuming;      // True while trying to resume the session after an error.
 
 		private volatile boolean closed;     // This is set to true when the connection is closing.
 		                                     // For one thing, this will prevent errors from being
@@ -236,26 +309,132 @@ abstract public class Client {
 		 * Constructor opens the connection and sends the string "Hello Hub"
 		 * to the hub.  The hub responds with an object of type Integer representing
 		 * the ID number of the client.  The extraHandshake() method is then called
-		 * to do any other required startup communication.  Finally, threads
-		 * are created to handle sending and receiving messages.
+		 * to do any other required startup communication.  If the hub accepts the
+		 * client, it sends a session token, which is null if the session can't be
+		 * resumed.  (If it is not null, it is followed by the grace period and replay
+		 * limit.)  If the hub refuses the client, it closes the connection instead,
+		 * and this constructor throws an IOException.  The ObjectStreams
+		 * are used only for this handshake; after that, messages are sent as
+		 * frames.  Finally, threads are created to handle sending and receiving messages.
+		 * (The threads are started by the start() method.)
 		 */
-		ConnectionToHub(String host, int port) throws IOException {
+		ConnectionToHub(String host, int port, boolean useVirtualThreads) throws IOException {
+			this.host = host;
+			this.port = port;
+			this.useVirtualThreads = useVirtualThreads;
 			outgoingMessages = new LinkedBlockingQueue<Object>();
+			receivedStates = new ArrayDeque<ReceivedState>();
 			socket = new Socket(host,port);
-			out = new ObjectOutputStream(socket.getOutputStream());
-			out.writeObject("Hello Hub");
-			out.flush();
-			in = new ObjectInputStream(socket.getInputStream());
+			socket.setTcpNoDelay(true);  // Outgoing messages are batched by the send thread instead.
+			ObjectOutputStream handshakeOut =   // (Buffered, so header and "Hello Hub" are sent together.)
+					new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			handshakeOut.writeObject("Hello Hub");
+			handshakeOut.flush();
+			ObjectInputStream handshakeIn = new ObjectInputStream(socket.getInputStream());
 			try {
-				Object response = in.readObject();
+				Object response = handshakeIn.readObject();
 				id_number = ((Integer)response).intValue();
 			}
 			catch (Exception e){
 				throw new IOException("Illegal response from server.");
 			}
-			extraHandshake(in,out);  // Will throw an IOException if handshake doesn't succeed.
-			sendThread = new SendThread();
-			receiveThread = new ReceiveThread();
+			extraHandshake(handshakeIn,handshakeOut);  // Will throw an IOException if handshake doesn't succeed.
+			handshakeOut.flush();
+			try {
+				String token = (String)handshakeIn.readObject();
+				if (token == null) {
+					session = null;
+					resumeGracePeriod = 0;
+				}
+				else {
+					resumeGracePeriod = (Integer)handshakeIn.readObject();
+					session = new SessionLog(token, (Integer)handshakeIn.readObject());
+				}
+			}
+			catch (EOFException e) {
+				throw new IOException("The hub refused the connection.");
+			}
+			catch (Exception e){
+				throw new IOException("Illegal response from server.");
+			}
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			sendThread = ConnectionThreads.newThread("Client send", new SendLoop(), useVirtualThreads);
+			receiveThread = ConnectionThreads.newThread("Client receive", new ReceiveLoop(), useVirtualThreads);
+		}
+		
+		/**
+		 * Opens a new connection to resume the session of a connection that has been
+		 * lost.  The client sends "Resume Hub", the session token, and the number of frames
+		 * that it has received.  The hub responds with the client's ID and the number of
+		 * frames that it has received, and each side then retransmits the frames that the
+		 * other side missed.  (The hub does that before this constructor reads anything
+		 * more.)  The new connection uses the same queue of outgoing messages and the same
+		 * received states as the lost connection, so nothing is lost.  The extraHandshake()
+		 * method is not called.
+		 * @param lost the connection whose session is being resumed.  Its threads must
+		 *    have terminated.
+		 * @param timeout the maximum time, in milliseconds, to wait for the hub.
+		 * @throws SessionEndedException if the hub says that the session can't be resumed.
+		 * @throws IOException if some other error occurs.
+		 */
+		ConnectionToHub(ConnectionToHub lost, int timeout) throws IOException {
+			host = lost.host;
+			port = lost.port;
+			useVirtualThreads = lost.useVirtualThreads;
+			outgoingMessages = lost.outgoingMessages;
+			receivedStates = lost.receivedStates;
+			session = lost.session;
+			resumeGracePeriod = lost.resumeGracePeriod;
+			socket = new Socket();
+			try {
+				socket.setTcpNoDelay(true);
+				socket.connect(new InetSocketAddress(host,port), timeout);
+				socket.setSoTimeout(timeout);
+				ObjectOutputStream handshakeOut =
+						new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				handshakeOut.writeObject("Resume Hub");
+				handshakeOut.writeObject(session.token);
+				handshakeOut.writeObject(session.getReceivedCount());
+				handshakeOut.flush();
+				ObjectInputStream handshakeIn = new ObjectInputStream(socket.getInputStream());
+				long receivedByHub;
+				try {
+					Object response = handshakeIn.readObject();
+					if (response instanceof String)
+						throw new SessionEndedException((String)response);
+					id_number = ((Integer)response).intValue();
+					receivedByHub = (Long)handshakeIn.readObject();
+				}
+				catch (ClassNotFoundException | ClassCastException e) {
+					throw new IOException("Illegal response from server.");
+				}
+				byte[][] missed = session.sentAfter(receivedByHub);
+				if (missed == null)
+					throw new SessionEndedException("Too many messages were lost to resume the session.");
+				socket.setSoTimeout(0);
+				in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				for (byte[] frame : missed) {
+					out.write(frame);
+					metrics.messageOut(frame.length);
+				}
+				out.flush();
+			}
+			catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+			sendThread = ConnectionThreads.newThread("Client send", new SendLoop(), useVirtualThreads);
+			receiveThread = ConnectionThreads.newThread("Client receive", new ReceiveLoop(), useVirtualThreads);
+		}
+		
+		/**
+		 * Starts the threads that send and receive messages.  This is not done in the
+		 * constructor, since the threads use the client's metrics, which are created 
+		 * after the connection.
+		 */
+		void start() {
 			sendThread.start();
 			receiveThread.start();
 		}
@@ -277,7 +456,7 @@ abstract public class Client {
 		
 		/**
 		 * This method is called to transmit a message to the Hub.
-		 * @param message the message, which must be a Serializable object.
+		 * @param message the message, which must have a codec or be a Serializable object.
 		 */
 		void send(Object message) {
 			outgoingMessages.add(message);
@@ -289,32 +468,71 @@ abstract public class Client {
 		 */
 		synchronized void closedByError(String message) {
 			if (! closed ) {
-				connectionClosedByError(message);
+				if (session == null)
+					connectionClosedByError(message);
+				else {
+					resuming = true;
+					ConnectionThreads.newThread("Client resume", () -> resume(message), useVirtualThreads).start();
+				}
 				close();
 			}
 		}
 		
 		/**
-		 * This class defines a thread that sends messages to the Hub.
+		 * Tries to resume the session after the connection has been lost, by opening a
+		 * new connection to the hub.  This is tried repeatedly, with increasing delays,
+		 * until it succeeds, the hub says that the session has ended, the grace period
+		 * is over, or disconnect() is called.  If it succeeds, the new connection
+		 * replaces this one.  If not, connectionClosedByError() is called (unless
+		 * disconnect() was called).  This is run in its own thread.
+		 * @param message the message that describes the error that closed this connection.
+		 */
+		private void resume(String message) {
+			try {
+				sendThread.join();     // Make sure that the threads have finished with the session,
+				receiveThread.join();  //    so that it has a complete record of the frames.
+			}
+			catch (InterruptedException e) {
+			}
+			long deadline = System.currentTimeMillis() + resumeGracePeriod*1000L;
+			int delay = 100;  // Milliseconds before the next try.
+			while (resuming && System.currentTimeMillis() + delay < deadline) {
+				try {
+					Thread.sleep(delay);
+					int timeout = (int)Math.max(100, deadline - System.currentTimeMillis());
+					ConnectionToHub resumed = new ConnectionToHub(this, timeout);
+					connection = resumed;
+					resumed.start();
+					System.out.println("Client resumed its session with the hub.");
+					if ( ! resuming )  // disconnect() was called while the connection was being made.
+						resumed.send(new DisconnectMessage("Goodbye Hub"));
+					return;
+				}
+				catch (SessionEndedException e) {
+					message = message + "  (The session could not be resumed: " + e.getMessage() + ")";
+					break;
+				}
+				catch (IOException | InterruptedException e) {
+				}
+				delay = Math.min(2*delay, 2000);
+			}
+			if (resuming) {
+				resuming = false;
+				connectionClosedByError(message);
+			}
+		}
+		
+		/**
+		 * This class defines the task for the thread that sends messages to the Hub.
 		 */
-		private class SendThread extends Thread {
+		private class SendLoop implements Runnable {
 			public void run() {
 				System.out.println("Client send thread started.");
 				try {
 					while ( ! closed ) {
 						Object message = outgoingMessages.take();
-						if (message instanceof ResetSignal) {
-							out.reset();
-						}
-						else {
-							if (autoreset)
-								out.reset();
-							out.writeObject(message);
-							out.flush();
-							if (message instanceof DisconnectMessage) {
-								close();
-							}
-						}
+						if (writeBatch(message))  // A DisconnectMessage was sent.
+							close();
 					}
 				}
 				catch (IOException e) {
@@ -337,28 +555,70 @@ abstract public class Client {
 		}
 		
 		/**
-		 * This class defines a thread that reads messages from the Hub.
+		 * Writes a message, followed by any other messages that are waiting in the
+		 * outgoing queue, and then flushes the output stream just once.  The stream
+		 * is buffered, so a StateAck and a message that the client sends in response
+		 * to the same state, for example, go to the socket in one write.  A batch
+		 * ends early when MAX_BATCH_BYTES have been written, or after a DisconnectMessage.
+		 * @return true if the batch ended with a DisconnectMessage.
+		 */
+		private boolean writeBatch(Object message) throws IOException {
+			int bytes = 0;
+			while (true) {
+				long start = System.nanoTime();
+				byte[] frame = MessageFrames.encode(message);
+				metrics.serialized(System.nanoTime() - start);
+				if (session != null)
+					session.sending(frame);  // (Before writing, in case the write fails.)
+				out.write(frame);
+				bytes += frame.length;
+				metrics.messageOut(frame.length);
+				if (message instanceof DisconnectMessage) {
+					out.flush();
+					return true;
+				}
+				if (bytes >= MAX_BATCH_BYTES)
+					break;
+				message = outgoingMessages.poll();
+				if (message == null)
+					break;
+			}
+			out.flush();
+			return false;
+		}
+		
+		/**
+		 * This class defines the task for the thread that reads messages from the Hub.
 		 */
-		private class ReceiveThread extends Thread {
+		private class ReceiveLoop implements Runnable {
 			public void run() {
 				System.out.println("Client receive thread started.");
 				try {
 					while ( ! closed ) {
-						Object obj = in.readObject();
+						byte[] body = MessageFrames.readBody(in);
+						metrics.messageIn(4 + body.length);
+						if (session != null)
+							session.received();
+						Object obj = MessageFrames.decode(body, 0, body.length);
 						if (obj instanceof DisconnectMessage) {
 							close();
 							serverShutdown(((DisconnectMessage)obj).message);
 						}
 						else if (obj instanceof StatusMessage) {
 							StatusMessage msg = (StatusMessage)obj;
-							connectedPlayerIDs = msg.players;
+							if (msg.players != null)
+								connectedPlayerIDs = msg.players;
+							else
+								connectedPlayerIDs = updatedPlayerList(msg.playerID, msg.connecting);
 							if (msg.connecting)
 								playerConnected(msg.playerID);
 							else
 								playerDisconnected(msg.playerID);
 						}
+						else if (obj instanceof StateSnapshot || obj instanceof StateDelta)
+							handle(stateReceived(obj));
 						else
-							messageReceived(obj);
+							handle(obj);
 					}
 				}
 				catch (IOException e) {
@@ -380,6 +640,107 @@ abstract public class Client {
 			}
 		}
 		
+		/**
+		 * Passes a message to messageReceived(), and records the time that it takes.
+		 */
+		private void handle(Object message) {
+			long start = System.nanoTime();
+			messageReceived(message);
+			metrics.handled(System.nanoTime() - start);
+		}
+		
+		/**
+		 * Processes a StateSnapshot or StateDelta from the hub.  The state that it 
+		 * represents is added to receivedStates, a StateAck is sent to the hub, and
+		 * the complete state is returned.  A StateDelta is applied to the earlier
+		 * state that it names as its base.  Since the hub never again uses a state
+		 * older than the base, older states are discarded at that time.
+		 * @throws IOException if the base state for a delta is not available.  This
+		 *    should not happen.
+		 */
+		private SyncedState stateReceived(Object message) throws IOException {
+			ReceivedState received;
+			if (message instanceof StateSnapshot) {
+				StateSnapshot snapshot = (StateSnapshot)message;
+				receivedStates.clear();
+				received = new ReceivedState(snapshot.version, snapshot.state.getFields(), snapshot.state);
+			}
+			else {
+				StateDelta delta = (StateDelta)message;
+				while ( ! receivedStates.isEmpty() && receivedStates.peek().version != delta.baseVersion )
+					receivedStates.remove();
+				if (receivedStates.isEmpty())
+					throw new IOException("Received changes to an unknown state, version " + delta.baseVersion);
+				ReceivedState base = receivedStates.peek();
+				Object[] fields = base.fields.clone();
+				for (int i = 0; i < delta.changedFields.length; i++)
+					fields[delta.changedFields[i]] = delta.values[i];
+				received = new ReceivedState(delta.version, fields, base.state.withFields(fields));
+			}
+			receivedStates.add(received);
+			send(new StateAck(received.version));
+			return received.state;
+		}
+		
+		/**
+		 * Returns a new list of connected players, made from connectedPlayerIDs by
+		 * adding or removing one ID.  This is used for status messages that do not
+		 * include the full list.  The list is kept in increasing order.
+		 */
+		private int[] updatedPlayerList(int playerID, boolean connecting) {
+			int[] oldList = connectedPlayerIDs;
+			if (connecting) {
+				int[] newList = new int[oldList.length + 1];
+				int ct = 0;
+				boolean added = false;
+				for (int p : oldList) {
+					if (!added && p > playerID) {
+						newList[ct++] = playerID;
+						added = true;
+					}
+					newList[ct++] = p;
+				}
+				if (!added)
+					newList[ct] = playerID;
+				return newList;
+			}
+			else {
+				int[] newList = new int[oldList.length];
+				int ct = 0;
+				for (int p : oldList) {
+					if (p != playerID)
+						newList[ct++] = p;
+				}
+				return Arrays.copyOf(newList, ct);
+			}
+		}
+		
 	} // end nested class ConnectionToHub
+	
+	
+	/**
+	 * Thrown when the hub says that a session can't be resumed.
+	 */
+	private static class SessionEndedException extends IOException {
+		SessionEndedException(String message) {
+			super(message);
+		}
+	}
+	
+	
+	/**
+	 * A state that has been received from the hub, along with its version
+	 * number and the values of its fields.
+	 */
+	private static class ReceivedState {
+		final int version;
+		final Object[] fields;
+		final SyncedState state;
+		ReceivedState(int version, Object[] fields, SyncedState state) {
+			this.version = version;
+			this.fields = fields;
+			this.state = state;
+		}
+	}
 
 }
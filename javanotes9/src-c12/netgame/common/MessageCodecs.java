@@ -0,0 +1,438 @@
+package netgame.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * MessageCodecs defines the compact binary encoding that is used for messages
+ * sent between a Hub and its clients.  Each message starts with a one-byte type
+ * code that tells how the rest of the message is encoded.  Codes 0 through 31 are
+ * reserved for built-in types:  String, Integer, Long, Double, Boolean, int[],
+ * and the messages used internally by the netgame framework.  An application can
+ * register a MessageCodec for any of its own message types, with a type code in
+ * the range FIRST_APPLICATION_TYPE to LAST_TYPE.  The hub and the clients must
+ * register the same codecs with the same type codes before any messages are sent.
+ * A message that has no codec must be Serializable, and it is sent using Java
+ * serialization.
+ * <p>Since the encoding for a message is found by looking up the class of the
+ * message in a table, a codec is used only for objects that belong to exactly the
+ * class for which the codec was registered, not for objects belonging to subclasses.
+ * <p>This class also provides static methods for writing ints and strings in
+ * compact form.  Small non-negative ints take just one byte.  These methods can
+ * be useful for writing codecs.
+ */
+public final class MessageCodecs {
+
+	/**
+	 * The smallest type code that can be used for a codec registered by an application.
+	 */
+	public final static int FIRST_APPLICATION_TYPE = 32;
+
+	/**
+	 * The largest type code that can be used for a codec.
+	 */
+	public final static int LAST_TYPE = 127;
+
+	private final static int NULL = 0;        // Codes for the built-in types.
+	private final static int SERIALIZED = 1;  //   (SERIALIZED is for any message that has no codec.)
+	private final static int STRING = 2;
+	private final static int INTEGER = 3;
+	private final static int LONG = 4;
+	private final static int DOUBLE = 5;
+	private final static int BOOLEAN = 6;
+	private final static int INT_ARRAY = 7;
+	private final static int FORWARDED_MESSAGE = 8;
+	private final static int STATUS_MESSAGE = 9;
+	private final static int DISCONNECT_MESSAGE = 10;
+	private final static int STATE_SNAPSHOT = 11;
+	private final static int STATE_DELTA = 12;
+	private final static int STATE_ACK = 13;
+	private final static int JOIN_ROOM_MESSAGE = 14;
+
+	/**
+	 * Associates a type code and a class with a codec.
+	 */
+	private static class Entry<T> {
+		final int typeCode;
+		final Class<T> type;
+		final MessageCodec<T> codec;
+		Entry(int typeCode, Class<T> type, MessageCodec<T> codec) {
+			this.typeCode = typeCode;
+			this.type = type;
+			this.codec = codec;
+		}
+	}
+
+	/*  The registered codecs, indexed by type code and by class.  These tables are
+	 *  never modified after they are created.  When a codec is registered, new tables
+	 *  are made, so messages can be encoded and decoded without synchronization. */
+
+	private static volatile Entry<?>[] codecsByTypeCode = new Entry<?>[LAST_TYPE + 1];
+	private static volatile HashMap<Class<?>,Entry<?>> codecsByClass = new HashMap<>();
+
+	static {
+		addCodec(STRING, String.class, new MessageCodec<String>() {
+			public void write(String s, DataOutput out) throws IOException {
+				writeString(s, out);
+			}
+			public String read(DataInput in) throws IOException {
+				return readString(in);
+			}
+		});
+		addCodec(INTEGER, Integer.class, new MessageCodec<Integer>() {
+			public void write(Integer n, DataOutput out) throws IOException {
+				writeSignedVarInt(n, out);
+			}
+			public Integer read(DataInput in) throws IOException {
+				return readSignedVarInt(in);
+			}
+		});
+		addCodec(LONG, Long.class, new MessageCodec<Long>() {
+			public void write(Long n, DataOutput out) throws IOException {
+				out.writeLong(n);
+			}
+			public Long read(DataInput in) throws IOException {
+				return in.readLong();
+			}
+		});
+		addCodec(DOUBLE, Double.class, new MessageCodec<Double>() {
+			public void write(Double x, DataOutput out) throws IOException {
+				out.writeDouble(x);
+			}
+			public Double read(DataInput in) throws IOException {
+				return in.readDouble();
+			}
+		});
+		addCodec(BOOLEAN, Boolean.class, new MessageCodec<Boolean>() {
+			public void write(Boolean b, DataOutput out) throws IOException {
+				out.writeBoolean(b);
+			}
+			public Boolean read(DataInput in) throws IOException {
+				return in.readBoolean();
+			}
+		});
+		addCodec(INT_ARRAY, int[].class, new MessageCodec<int[]>() {
+			public void write(int[] array, DataOutput out) throws IOException {
+				writeIntArray(array, out);
+			}
+			public int[] read(DataInput in) throws IOException {
+				return readIntArray(in);
+			}
+		});
+		addCodec(FORWARDED_MESSAGE, ForwardedMessage.class, new MessageCodec<ForwardedMessage>() {
+			public void write(ForwardedMessage fm, DataOutput out) throws IOException {
+				writeVarInt(fm.senderID, out);
+				writeMessage(fm.message, out);
+			}
+			public ForwardedMessage read(DataInput in) throws IOException {
+				int senderID = readVarInt(in);
+				return new ForwardedMessage(senderID, readMessage(in));
+			}
+		});
+		addCodec(STATUS_MESSAGE, StatusMessage.class, new MessageCodec<StatusMessage>() {
+			public void write(StatusMessage sm, DataOutput out) throws IOException {
+				writeVarInt(sm.playerID, out);
+				out.writeBoolean(sm.connecting);
+				writeIntArray(sm.players, out);
+			}
+			public StatusMessage read(DataInput in) throws IOException {
+				int playerID = readVarInt(in);
+				boolean connecting = in.readBoolean();
+				return new StatusMessage(playerID, connecting, readIntArray(in));
+			}
+		});
+		addCodec(DISCONNECT_MESSAGE, DisconnectMessage.class, new MessageCodec<DisconnectMessage>() {
+			public void write(DisconnectMessage dm, DataOutput out) throws IOException {
+				writeString(dm.message, out);
+			}
+			public DisconnectMessage read(DataInput in) throws IOException {
+				return new DisconnectMessage(readString(in));
+			}
+		});
+		addCodec(STATE_SNAPSHOT, StateSnapshot.class, new MessageCodec<StateSnapshot>() {
+			public void write(StateSnapshot ss, DataOutput out) throws IOException {
+				writeVarInt(ss.version, out);
+				writeMessage(ss.state, out);
+			}
+			public StateSnapshot read(DataInput in) throws IOException {
+				int version = readVarInt(in);
+				Object state = readMessage(in);
+				if ( ! (state instanceof SyncedState) )
+					throw new IOException("State snapshot does not contain a SyncedState.");
+				return new StateSnapshot(version, (SyncedState)state);
+			}
+		});
+		addCodec(STATE_DELTA, StateDelta.class, new MessageCodec<StateDelta>() {
+			public void write(StateDelta sd, DataOutput out) throws IOException {
+				writeVarInt(sd.version, out);
+				writeVarInt(sd.baseVersion, out);
+				writeVarInt(sd.changedFields.length, out);
+				for (int i = 0; i < sd.changedFields.length; i++) {
+					writeVarInt(sd.changedFields[i], out);
+					writeMessage(sd.values[i], out);
+				}
+			}
+			public StateDelta read(DataInput in) throws IOException {
+				int version = readVarInt(in);
+				int baseVersion = readVarInt(in);
+				int count = readLength(in);
+				int[] changedFields = new int[count];
+				Object[] values = new Object[count];
+				for (int i = 0; i < count; i++) {
+					changedFields[i] = readVarInt(in);
+					values[i] = readMessage(in);
+				}
+				return new StateDelta(version, baseVersion, changedFields, values);
+			}
+		});
+		addCodec(STATE_ACK, StateAck.class, new MessageCodec<StateAck>() {
+			public void write(StateAck sa, DataOutput out) throws IOException {
+				writeVarInt(sa.version, out);
+			}
+			public StateAck read(DataInput in) throws IOException {
+				return new StateAck(readVarInt(in));
+			}
+		});
+		addCodec(JOIN_ROOM_MESSAGE, JoinRoomMessage.class, new MessageCodec<JoinRoomMessage>() {
+			public void write(JoinRoomMessage jm, DataOutput out) throws IOException {
+				writeString(jm.roomName, out);
+			}
+			public JoinRoomMessage read(DataInput in) throws IOException {
+				return new JoinRoomMessage(readString(in));
+			}
+		});
+	}
+
+	private MessageCodecs() { // Only static methods in this class.
+	}
+
+
+	/**
+	 * Registers a codec for messages of a given type.  A type can have only one codec,
+	 * and a type code can be used for only one type.  However, it is legal to register
+	 * the same type with the same type code more than once; the new codec replaces the
+	 * old one.  This makes it easy for a program that contains both a hub and a client
+	 * to register its codecs in both places.
+	 * @param typeCode the code that identifies messages of this type in the data stream.
+	 *    This must be in the range FIRST_APPLICATION_TYPE to LAST_TYPE.
+	 * @param type the class of the messages that are handled by the codec.
+	 * @param codec the codec that will be used to write and read messages of the given type.
+	 * @throws IllegalArgumentException if the type code is out of range, if any parameter
+	 *    is null, or if the type or type code has already been registered differently.
+	 */
+	public static synchronized <T> void register(int typeCode, Class<T> type, MessageCodec<T> codec) {
+		if (typeCode < FIRST_APPLICATION_TYPE || typeCode > LAST_TYPE)
+			throw new IllegalArgumentException("Type code must be in the range "
+					+ FIRST_APPLICATION_TYPE + " to " + LAST_TYPE + ".");
+		if (type == null || codec == null)
+			throw new IllegalArgumentException("Type and codec can't be null.");
+		Entry<?> old = codecsByTypeCode[typeCode];
+		if (old != null && old.type != type)
+			throw new IllegalArgumentException("Type code " + typeCode + " is already used for "
+					+ old.type.getName());
+		old = codecsByClass.get(type);
+		if (old != null && old.typeCode != typeCode)
+			throw new IllegalArgumentException("A codec for " + type.getName()
+					+ " is already registered with type code " + old.typeCode);
+		addCodec(typeCode, type, codec);
+	}
+
+	/**
+	 * Tells whether a message can be transmitted, that is, whether it is non-null and
+	 * either has a registered codec or implements the Serializable interface.
+	 */
+	public static boolean canEncode(Object message) {
+		return message != null &&
+				(message instanceof Serializable || codecsByClass.containsKey(message.getClass()));
+	}
+
+	/**
+	 * Writes a message, which can be null, including its type code.  If the message
+	 * has a registered codec, that codec is used.  Otherwise, Java serialization is used.
+	 * @throws NotSerializableException if the message has no codec and is not Serializable.
+	 */
+	public static void writeMessage(Object message, DataOutput out) throws IOException {
+		if (message == null) {
+			out.writeByte(NULL);
+			return;
+		}
+		Entry<?> entry = codecsByClass.get(message.getClass());
+		if (entry != null) {
+			out.writeByte(entry.typeCode);
+			writeWithCodec(entry, message, out);
+		}
+		else if (message instanceof Serializable) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+			objectOut.writeObject(message);
+			objectOut.close();
+			out.writeByte(SERIALIZED);
+			writeVarInt(bytes.size(), out);
+			out.write(bytes.toByteArray());
+		}
+		else
+			throw new NotSerializableException(message.getClass().getName());
+	}
+
+	/**
+	 * Reads a message that was written by writeMessage().
+	 * @throws IOException if the message has a type code for which no codec has been
+	 *    registered, or if an error occurs while reading the message.
+	 */
+	public static Object readMessage(DataInput in) throws IOException {
+		int typeCode = in.readUnsignedByte();
+		if (typeCode == NULL)
+			return null;
+		if (typeCode == SERIALIZED) {
+			byte[] bytes = new byte[readLength(in)];
+			in.readFully(bytes);
+			ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(bytes));
+			try {
+				return objectIn.readObject();
+			}
+			catch (ClassNotFoundException e) {
+				throw new IOException("Received message of unknown type: " + e.getMessage());
+			}
+		}
+		Entry<?> entry = (typeCode <= LAST_TYPE)? codecsByTypeCode[typeCode] : null;
+		if (entry == null)
+			throw new IOException("Received message with type code " + typeCode
+					+ ", which has no registered codec.");
+		return entry.codec.read(in);
+	}
+
+	/**
+	 * Writes a non-negative int in a variable number of bytes, using 7 bits per byte.
+	 * Values less than 128 take one byte.  (A negative value takes five bytes.)
+	 */
+	public static void writeVarInt(int n, DataOutput out) throws IOException {
+		while ((n & ~0x7F) != 0) {
+			out.writeByte((n & 0x7F) | 0x80);
+			n >>>= 7;
+		}
+		out.writeByte(n);
+	}
+
+	/**
+	 * Reads an int that was written by writeVarInt().
+	 */
+	public static int readVarInt(DataInput in) throws IOException {
+		int n = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			n |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return n;
+		}
+		throw new IOException("Illegal variable-length int in message data.");
+	}
+
+	/**
+	 * Writes an int that might be negative in a variable number of bytes.  Values
+	 * in the range -64 to 63 take one byte.
+	 */
+	public static void writeSignedVarInt(int n, DataOutput out) throws IOException {
+		writeVarInt((n << 1) ^ (n >> 31), out);  // Maps 0,-1,1,-2,2,... to 0,1,2,3,4,...
+	}
+
+	/**
+	 * Reads an int that was written by writeSignedVarInt().
+	 */
+	public static int readSignedVarInt(DataInput in) throws IOException {
+		int n = readVarInt(in);
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	/**
+	 * Writes a string, which can be null, as a length followed by the UTF-8 encoding
+	 * of the string.  (Unlike DataOutput.writeUTF(), this works for strings of any length.)
+	 */
+	public static void writeString(String s, DataOutput out) throws IOException {
+		if (s == null) {
+			writeVarInt(0, out);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(bytes.length + 1, out);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string that was written by writeString().
+	 */
+	public static String readString(DataInput in) throws IOException {
+		int length = readLength(in);
+		if (length == 0)
+			return null;
+		byte[] bytes = new byte[length - 1];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes an array of ints, which can be null, using writeSignedVarInt() for the elements.
+	 */
+	public static void writeIntArray(int[] array, DataOutput out) throws IOException {
+		if (array == null) {
+			writeVarInt(0, out);
+			return;
+		}
+		writeVarInt(array.length + 1, out);
+		for (int n : array)
+			writeSignedVarInt(n, out);
+	}
+
+	/**
+	 * Reads an array of ints that was written by writeIntArray().
+	 */
+	public static int[] readIntArray(DataInput in) throws IOException {
+		int length = readLength(in);
+		if (length == 0)
+			return null;
+		int[] array = new int[length - 1];
+		for (int i = 0; i < array.length; i++)
+			array[i] = readSignedVarInt(in);
+		return array;
+	}
+
+
+	//--------------------------------- private implementation ---------------------------------
+
+	/**
+	 * Reads a length that was written with writeVarInt(), and checks that it is
+	 * not larger than a message frame could possibly be.
+	 */
+	private static int readLength(DataInput in) throws IOException {
+		int length = readVarInt(in);
+		MessageFrames.checkLength(length);
+		return length;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> void writeWithCodec(Entry<T> entry, Object message, DataOutput out) throws IOException {
+		entry.codec.write((T)message, out);
+	}
+
+	/**
+	 * Adds a codec to the tables, by making new copies of the tables.
+	 */
+	private static synchronized <T> void addCodec(int typeCode, Class<T> type, MessageCodec<T> codec) {
+		Entry<T> entry = new Entry<T>(typeCode, type, codec);
+		Entry<?>[] byTypeCode = codecsByTypeCode.clone();
+		byTypeCode[typeCode] = entry;
+		HashMap<Class<?>,Entry<?>> byClass = new HashMap<>(codecsByClass);
+		byClass.put(type, entry);
+		codecsByTypeCode = byTypeCode;
+		codecsByClass = byClass;
+	}
+
+}
@@ -0,0 +1,95 @@
+package netgame.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * This package private class defines the format that is used to transmit
+ * messages between a Hub and its clients once the connection has been
+ * set up.  (The "handshake" that sets up the connection, including the
+ * extraHandshake() methods of Hub and Client, still uses ObjectStreams.)
+ * Each message is sent as a "frame" consisting of a four-byte int giving
+ * the number of bytes in the body of the frame, followed by the body.
+ * The body is the message, encoded by MessageCodecs.writeMessage().  That
+ * uses a compact binary form for types that have a MessageCodec, and falls
+ * back to Java serialization for other types.  Because every frame is
+ * self-contained, a frame can be decoded as soon as all of its bytes have
+ * arrived, which is what makes it possible for the selector-based Hub
+ * transport to read messages without blocking.  It also means that there
+ * is never any need to reset an output stream before retransmitting a
+ * modified object.
+ */
+final class MessageFrames {
+
+	/**
+	 * The largest frame body that will be accepted.  A length prefix larger
+	 * than this is taken to mean that the data stream is corrupted.
+	 */
+	static final int MAX_FRAME_SIZE = 16*1024*1024;
+
+	private MessageFrames() { // Only static methods in this class.
+	}
+
+	/**
+	 * Encodes a message as a complete frame, including the four-byte length prefix.
+	 * @param message the message, which must have a codec or be a Serializable object.
+	 * @return the bytes that make up the frame.
+	 * @throws IOException if the message can't be serialized.
+	 */
+	static byte[] encode(Object message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);  // Space for the length prefix, which is filled in below.
+		MessageCodecs.writeMessage(message, out);
+		out.close();
+		byte[] frame = bytes.toByteArray();
+		int length = frame.length - 4;
+		frame[0] = (byte)(length >>> 24);
+		frame[1] = (byte)(length >>> 16);
+		frame[2] = (byte)(length >>> 8);
+		frame[3] = (byte)length;
+		return frame;
+	}
+
+	/**
+	 * Decodes the body of a frame (not including the length prefix).
+	 * @throws IOException if the data does not represent a legal message.
+	 */
+	static Object decode(byte[] data, int offset, int length) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data,offset,length));
+		return MessageCodecs.readMessage(in);
+	}
+
+	/**
+	 * Reads one complete frame from a stream and returns its body, which can be
+	 * passed to decode().  (The size of the frame is the length of the body plus
+	 * four.)  This method blocks until the entire frame has been read.
+	 */
+	static byte[] readBody(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		checkLength(length);
+		byte[] body = new byte[length];
+		in.readFully(body);
+		return body;
+	}
+
+	/**
+	 * Writes a message to a stream as one frame.  The stream is not flushed.
+	 */
+	static void write(DataOutputStream out, Object message) throws IOException {
+		out.write(encode(message));
+	}
+
+	/**
+	 * Throws an IOException if a frame length read from the network is
+	 * negative or unreasonably large.
+	 */
+	static void checkLength(int length) throws IOException {
+		if (length < 0 || length > MAX_FRAME_SIZE)
+			throw new IOException("Illegal message frame length: " + length);
+	}
+
+}
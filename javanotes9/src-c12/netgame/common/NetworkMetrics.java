@@ -0,0 +1,482 @@
+package netgame.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A NetworkMetrics object collects statistics about the network traffic of a Hub
+ * or a Client, without using any external services.  Every Hub and Client has
+ * one, which can be obtained by calling its getMetrics() method.  The statistics
+ * include the number of connected players, the number of messages and bytes
+ * sent and received (both totals and rates per second), the number of messages
+ * that are waiting in outgoing queues, the time spent serializing messages, and
+ * the time spent in messageReceived().  For the times, a histogram is kept, so
+ * that percentiles can be reported as well as averages.
+ * <p>The statistics can be seen in three ways.  They can be read by calling
+ * the methods of this class.  They can be viewed in a JMX console, such as the
+ * jconsole program that comes with the JDK, after calling register().  (A Hub
+ * registers its metrics automatically, with the name "netgame:type=Hub,port=N",
+ * where N is the port number.)  And they can be printed to standard output at
+ * regular intervals, by calling setLogInterval().  For a Hub, logging can also
+ * be turned on with the system property netgame.metricsInterval, which gives
+ * the interval in seconds.  For example:
+ * <pre>java -Dnetgame.metricsInterval=10 netgame.chat.ChatRoomServer</pre>
+ * <p>Counters are updated by the threads that do network I/O, so they use
+ * LongAdders and atomic variables instead of synchronization.
+ */
+public class NetworkMetrics implements NetworkMetricsMBean {
+
+	private final String name;
+
+	private final IntSupplier playerCount;      // Gets the number of connected players.
+	private final Supplier<int[]> playerIDs;    // Gets the IDs of players whose queues are counted.
+	private final IntUnaryOperator queueDepth;  // Gets the outgoing queue depth for a player ID, or -1.
+
+	private final LongAdder messagesIn = new LongAdder();
+	private final LongAdder messagesOut = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+
+	private final Histogram serializationTimes = new Histogram();
+	private final Histogram handlerTimes = new Histogram();
+
+	private Sample lastSample = new Sample();  // For computing rates.  (Used only while synchronized.)
+	private double[] lastRates = new double[4];
+
+	private volatile int logInterval;  // Seconds between log lines; 0 for no logging.
+	private Thread logThread;          // The thread that prints log lines, if any.  (Used only while synchronized.)
+
+	/**
+	 * Creates an object for collecting the metrics of a Hub or Client.  This is
+	 * called only by Hub and Client, which supply the functions that are used
+	 * to find the players and queue sizes.
+	 * @param name a name that identifies the Hub or Client in log lines and in JMX.
+	 * @param playerCount returns the number of connected players.
+	 * @param playerIDs returns the players whose outgoing queues are counted.
+	 * @param queueDepth returns the outgoing queue depth for a player, or -1 if there
+	 *     is no such player.
+	 */
+	NetworkMetrics(String name, IntSupplier playerCount, Supplier<int[]> playerIDs, IntUnaryOperator queueDepth) {
+		this.name = name;
+		this.playerCount = playerCount;
+		this.playerIDs = playerIDs;
+		this.queueDepth = queueDepth;
+	}
+
+
+	//----------------------------- Recording metrics -----------------------------------
+
+	/**
+	 * Records one message that has been read from the network.
+	 * @param bytes the size of the message frame, including the length prefix.
+	 */
+	void messageIn(int bytes) {
+		messagesIn.increment();
+		bytesIn.add(bytes);
+	}
+
+	/**
+	 * Records one message that has been written to the network.
+	 * @param bytes the size of the message frame, including the length prefix.
+	 */
+	void messageOut(int bytes) {
+		messagesOut.increment();
+		bytesOut.add(bytes);
+	}
+
+	/**
+	 * Records the time taken to serialize one message.
+	 */
+	void serialized(long nanos) {
+		serializationTimes.record(nanos);
+	}
+
+	/**
+	 * Records the time taken by one call to messageReceived().
+	 */
+	void handled(long nanos) {
+		handlerTimes.record(nanos);
+	}
+
+
+	//------------------------ Reading metrics (the MBean interface) ---------------------
+
+	public String getName() {
+		return name;
+	}
+
+	public int getConnectedPlayers() {
+		return playerCount.getAsInt();
+	}
+
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	/**
+	 * Returns the number of messages received per second.  This and the other rates
+	 * are computed over the time since the previous time that a rate was computed,
+	 * which is always at least one second.  (The log lines compute their own rates,
+	 * over the log interval.)
+	 */
+	public double getMessagesInPerSecond() {
+		return rates()[0];
+	}
+
+	public double getMessagesOutPerSecond() {
+		return rates()[1];
+	}
+
+	public double getBytesInPerSecond() {
+		return rates()[2];
+	}
+
+	public double getBytesOutPerSecond() {
+		return rates()[3];
+	}
+
+	/**
+	 * Returns the total number of messages waiting in the outgoing queues of all players.
+	 */
+	public int getTotalQueueDepth() {
+		int total = 0;
+		for (int id : playerIDs.get())
+			total += Math.max(0, queueDepth.applyAsInt(id));
+		return total;
+	}
+
+	/**
+	 * Returns the largest number of messages waiting in the outgoing queue of any player.
+	 */
+	public int getMaxQueueDepth() {
+		int max = 0;
+		for (int id : playerIDs.get())
+			max = Math.max(max, queueDepth.applyAsInt(id));
+		return max;
+	}
+
+	/**
+	 * Returns the number of messages waiting in the outgoing queue of one player,
+	 * or -1 if there is no such player.
+	 */
+	public int queueDepth(int playerID) {
+		return queueDepth.applyAsInt(playerID);
+	}
+
+	public long getSerializationCount() {
+		return serializationTimes.count();
+	}
+
+	public double getSerializationMeanMicros() {
+		return serializationTimes.mean() / 1000;
+	}
+
+	public double getSerialization99thPercentileMicros() {
+		return serializationTimes.percentile(0.99) / 1000;
+	}
+
+	public long getHandlerCount() {
+		return handlerTimes.count();
+	}
+
+	public double getHandlerMeanMicros() {
+		return handlerTimes.mean() / 1000;
+	}
+
+	public double getHandler50thPercentileMicros() {
+		return handlerTimes.percentile(0.5) / 1000;
+	}
+
+	public double getHandler99thPercentileMicros() {
+		return handlerTimes.percentile(0.99) / 1000;
+	}
+
+	public double getHandlerMaxMicros() {
+		return handlerTimes.max() / 1000.0;
+	}
+
+	/**
+	 * Discards the recorded serialization and handler times, so that the
+	 * statistics for the times will cover only the times recorded from now on.
+	 */
+	public void resetTimes() {
+		serializationTimes.reset();
+		handlerTimes.reset();
+	}
+
+	/**
+	 * Returns a one-line summary of the current metrics, with rates computed as for
+	 * getMessagesInPerSecond().
+	 */
+	public String summary() {
+		return summary(rates());
+	}
+
+	public String toString() {
+		return summary();
+	}
+
+
+	/**
+	 * Returns a NetworkMetrics that adds up the statistics of several others, such
+	 * as the metrics of all of the hubs in a test program.  The message and byte
+	 * counts and the numbers of connected players are added, and the recorded times
+	 * are combined, so that the percentiles are computed over all of them.  The
+	 * result is a snapshot that does not change when the original objects change.
+	 * (It does not include the sizes of the outgoing queues.)
+	 * @param name a name for the combined metrics, to be used in log lines.
+	 * @param parts the metrics that are to be combined.
+	 */
+	public static NetworkMetrics combine(String name, NetworkMetrics... parts) {
+		int players = 0;
+		for (NetworkMetrics part : parts)
+			players += part.getConnectedPlayers();
+		final int playerCount = players;
+		NetworkMetrics combined = new NetworkMetrics(name, () -> playerCount, () -> new int[0], id -> -1);
+		for (NetworkMetrics part : parts) {
+			combined.messagesIn.add(part.messagesIn.sum());
+			combined.messagesOut.add(part.messagesOut.sum());
+			combined.bytesIn.add(part.bytesIn.sum());
+			combined.bytesOut.add(part.bytesOut.sum());
+			combined.serializationTimes.add(part.serializationTimes);
+			combined.handlerTimes.add(part.handlerTimes);
+		}
+		return combined;
+	}
+
+
+	//--------------------------------- JMX and logging ---------------------------------
+
+	/**
+	 * Registers this object with the platform MBean server, so that the metrics can
+	 * be viewed with a JMX console.  If another object is already registered with the
+	 * same name, it is replaced.  If registration fails, an error message is printed.
+	 * @param objectName the JMX name, such as "netgame:type=Client,id=17".
+	 */
+	public void register(String objectName) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName jmxName = new ObjectName(objectName);
+			if (server.isRegistered(jmxName))
+				server.unregisterMBean(jmxName);
+			server.registerMBean(this, jmxName);
+		}
+		catch (Exception e) {
+			System.out.println("Could not register metrics for JMX: " + e);
+		}
+	}
+
+	/**
+	 * Returns the number of seconds between log lines, or 0 if logging is off.
+	 */
+	public int getLogInterval() {
+		return logInterval;
+	}
+
+	/**
+	 * Turns on logging, so that a summary of the metrics is printed to standard output
+	 * at regular intervals, or turns it off.  The rates in each line are computed over
+	 * the interval since the previous line.  The lines are printed by a daemon thread.
+	 * @param seconds the number of seconds between log lines.  A value of zero (or less)
+	 *     turns logging off.
+	 */
+	public synchronized void setLogInterval(int seconds) {
+		logInterval = Math.max(0, seconds);
+		if (logThread != null) {
+			logThread.interrupt();  // It will exit, or start waiting for the new interval.
+			if (logInterval == 0)
+				logThread = null;
+		}
+		else if (logInterval > 0) {
+			logThread = new Thread(this::logLoop, "Metrics log for " + name);
+			logThread.setDaemon(true);
+			logThread.start();
+		}
+	}
+
+	/**
+	 * Prints a log line every logInterval seconds, until logging is turned off.
+	 */
+	private void logLoop() {
+		Sample previous = new Sample();
+		while (true) {
+			int seconds = logInterval;
+			if (seconds == 0)
+				return;
+			try {
+				Thread.sleep(seconds * 1000L);
+			}
+			catch (InterruptedException e) {
+				continue;  // The interval has changed.
+			}
+			Sample sample = new Sample();
+			System.out.println("[" + name + "] " + summary(sample.ratesSince(previous)));
+			previous = sample;
+		}
+	}
+
+
+	//----------------------------- private implementation ------------------------------
+
+	private String summary(double[] rates) {
+		return String.format("players=%d in=%.1f msg/s (%.1f KB/s) out=%.1f msg/s (%.1f KB/s) "
+				+ "queued=%d (max %d) serialize=%.1fus (p99 %.1fus) handler=%.1fus (p50 %.1fus, p99 %.1fus, max %.1fus)",
+				getConnectedPlayers(), rates[0], rates[2]/1024, rates[1], rates[3]/1024,
+				getTotalQueueDepth(), getMaxQueueDepth(),
+				getSerializationMeanMicros(), getSerialization99thPercentileMicros(),
+				getHandlerMeanMicros(), getHandler50thPercentileMicros(),
+				getHandler99thPercentileMicros(), getHandlerMaxMicros());
+	}
+
+	/**
+	 * Returns the rates in the order messages in, messages out, bytes in, bytes out.
+	 * They are recomputed if at least one second has passed since they were last computed.
+	 */
+	private synchronized double[] rates() {
+		Sample sample = new Sample();
+		if (sample.time - lastSample.time >= 1000000000L) {
+			lastRates = sample.ratesSince(lastSample);
+			lastSample = sample;
+		}
+		return lastRates;
+	}
+
+	/**
+	 * The values of the counters at one moment in time.
+	 */
+	private class Sample {
+		final long time = System.nanoTime();
+		final long[] counts = { messagesIn.sum(), messagesOut.sum(), bytesIn.sum(), bytesOut.sum() };
+		double[] ratesSince(Sample earlier) {
+			double seconds = Math.max(1e-9, (time - earlier.time) / 1e9);
+			double[] rates = new double[counts.length];
+			for (int i = 0; i < counts.length; i++)
+				rates[i] = (counts[i] - earlier.counts[i]) / seconds;
+			return rates;
+		}
+	}
+
+	/**
+	 * A histogram of times, in nanoseconds.  Each power of two is divided into
+	 * eight buckets, so a percentile is accurate to within about 6%.  Times can
+	 * be recorded by several threads at once.
+	 */
+	private static class Histogram {
+
+		private final static int SUB_BUCKETS = 8;  // Buckets per power of 2; must be a power of 2.
+		private final static int SUB_BITS = 3;     // log2(SUB_BUCKETS)
+
+		private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder total = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		void record(long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+			buckets.incrementAndGet(bucket(nanos));
+			count.increment();
+			total.add(nanos);
+			max.accumulateAndGet(nanos, Math::max);
+		}
+
+		long count() {
+			return count.sum();
+		}
+
+		double mean() {
+			long n = count.sum();
+			return n == 0 ? 0 : (double)total.sum() / n;
+		}
+
+		long max() {
+			return max.get();
+		}
+
+		/**
+		 * Returns an estimate of the value below which the given fraction of the
+		 * recorded values lie, or 0 if no values have been recorded.
+		 */
+		double percentile(double fraction) {
+			long n = 0;
+			for (int i = 0; i < buckets.length(); i++)
+				n += buckets.get(i);
+			if (n == 0)
+				return 0;
+			long rank = (long)Math.ceil(fraction * n);
+			long seen = 0;
+			for (int i = 0; i < buckets.length(); i++) {
+				seen += buckets.get(i);
+				if (seen >= Math.max(1,rank))
+					return Math.min(middle(i), max.get());
+			}
+			return max.get();
+		}
+
+		/**
+		 * Adds all of the values that have been recorded in another histogram.
+		 */
+		void add(Histogram other) {
+			for (int i = 0; i < buckets.length(); i++)
+				buckets.addAndGet(i, other.buckets.get(i));
+			count.add(other.count.sum());
+			total.add(other.total.sum());
+			max.accumulateAndGet(other.max.get(), Math::max);
+		}
+
+		void reset() {
+			for (int i = 0; i < buckets.length(); i++)
+				buckets.set(i, 0);
+			count.reset();
+			total.reset();
+			max.set(0);
+		}
+
+		/**
+		 * Finds the bucket for a value.  Values less than SUB_BUCKETS have a bucket of
+		 * their own.  For larger values, the bucket is determined by the position of the
+		 * highest one bit and the SUB_BITS bits that follow it.
+		 */
+		private static int bucket(long value) {
+			if (value < SUB_BUCKETS)
+				return (int)value;
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+			return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+		}
+
+		/**
+		 * Returns the value in the middle of the range of values for a bucket.
+		 */
+		private static double middle(int bucket) {
+			if (bucket < SUB_BUCKETS)
+				return bucket;
+			int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+			long width = 1L << (exponent - SUB_BITS);
+			long low = (SUB_BUCKETS + bucket % SUB_BUCKETS) * width;
+			return low + width / 2.0;
+		}
+
+	}
+
+}
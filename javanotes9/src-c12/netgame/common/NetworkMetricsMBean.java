@@ -0,0 +1,49 @@
+package netgame.common;
+
+/**
+ * The management interface for NetworkMetrics.  The JMX "standard MBean" rules
+ * require an interface with this name; the "get" methods in this interface become
+ * read-only attributes that can be viewed in a JMX console such as jconsole, and
+ * the other methods become operations that can be invoked from the console.
+ * Times are given in microseconds, and rates are per second.  See NetworkMetrics
+ * for more information.
+ */
+public interface NetworkMetricsMBean {
+
+	String getName();
+
+	int getConnectedPlayers();
+
+	long getMessagesIn();
+	long getMessagesOut();
+	long getBytesIn();
+	long getBytesOut();
+
+	double getMessagesInPerSecond();
+	double getMessagesOutPerSecond();
+	double getBytesInPerSecond();
+	double getBytesOutPerSecond();
+
+	int getTotalQueueDepth();
+	int getMaxQueueDepth();
+
+	long getSerializationCount();
+	double getSerializationMeanMicros();
+	double getSerialization99thPercentileMicros();
+
+	long getHandlerCount();
+	double getHandlerMeanMicros();
+	double getHandler50thPercentileMicros();
+	double getHandler99thPercentileMicros();
+	double getHandlerMaxMicros();
+
+	int getLogInterval();
+	void setLogInterval(int seconds);
+
+	int queueDepth(int playerID);
+
+	void resetTimes();
+
+	String summary();
+
+}
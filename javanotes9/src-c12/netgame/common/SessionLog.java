@@ -0,0 +1,106 @@
+package netgame.common;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Iterator;
+
+/**
+ * This package private class keeps the information that a Hub or a Client
+ * needs in order to resume a "session" after its connection has been lost
+ * because of a network error.  (See Hub.setResumableSessions().)  A session
+ * is identified by a random token that the hub gives to the client during
+ * the handshake.  Each side counts the message frames that it has received,
+ * and keeps the most recent frames that it has sent, up to some limit.  When
+ * the client reconnects, the two sides exchange their counts, and each side
+ * retransmits the frames that the other side did not receive, before sending
+ * anything else.  Since frames are retransmitted exactly as they were sent,
+ * the other side sees the same sequence of messages that it would have seen
+ * if the connection had never been lost.  A frame is recorded here when it
+ * is taken from the queue of outgoing messages, before it is actually written,
+ * so that a frame that was lost in a failed write can be retransmitted.
+ */
+final class SessionLog {
+
+	private static final SecureRandom random = new SecureRandom();
+
+	final String token;    // The token that identifies the session.
+	private final int limit;  // The maximum number of sent frames that are kept.
+	private final ArrayDeque<byte[]> sentFrames;  // The most recent frames that have been sent, oldest first.
+	private long sentCount;      // Total number of frames that have been sent.
+	private volatile long receivedCount;  // Total number of frames received.  (Changed only in the
+	                                      //    thread that reads from the connection.)
+
+	/**
+	 * Creates a log for a new session, with a new random token.  This is used by the hub.
+	 * @param limit the number of sent frames that are kept for retransmission.
+	 */
+	SessionLog(int limit) {
+		this(newToken(), limit);
+	}
+
+	/**
+	 * Creates a log for a session with a given token.  This is used by the client,
+	 * with the token and limit that it receives from the hub.
+	 */
+	SessionLog(String token, int limit) {
+		this.token = token;
+		this.limit = limit;
+		sentFrames = new ArrayDeque<byte[]>();
+	}
+
+	/**
+	 * Records a frame that is about to be sent.  If more than the limit number of
+	 * frames have been recorded, the oldest one is forgotten.
+	 */
+	synchronized void sending(byte[] frame) {
+		sentFrames.add(frame);
+		sentCount++;
+		if (sentFrames.size() > limit)
+			sentFrames.remove();
+	}
+
+	/**
+	 * Records that a frame has been received.
+	 */
+	void received() {
+		receivedCount++;
+	}
+
+	/**
+	 * Returns the number of frames that have been received.
+	 */
+	long getReceivedCount() {
+		return receivedCount;
+	}
+
+	/**
+	 * Returns the frames that have been sent after the first count frames, for
+	 * retransmission to the other side of the connection, which has received
+	 * count frames.  The frames remain in the log.  The return value is null if
+	 * some of the frames are no longer available (or if count is larger than the
+	 * number of frames that have been sent, which should not happen).
+	 */
+	synchronized byte[][] sentAfter(long count) {
+		long firstKept = sentCount - sentFrames.size();  // Number of frames that are no longer kept.
+		if (count < firstKept || count > sentCount)
+			return null;
+		byte[][] frames = new byte[(int)(sentCount - count)][];
+		Iterator<byte[]> iter = sentFrames.iterator();
+		for (long i = firstKept; i < count; i++)
+			iter.next();
+		for (int i = 0; i < frames.length; i++)
+			frames[i] = iter.next();
+		return frames;
+	}
+
+	/**
+	 * Makes a random string that is practically impossible to guess.
+	 */
+	private static String newToken() {
+		byte[] bytes = new byte[18];
+		random.nextBytes(bytes);
+		return Base64.getUrlEncoder().encodeToString(bytes);
+	}
+
+}
@@ -0,0 +1,41 @@
+package netgame.common;
+
+import java.io.Serializable;
+
+/**
+ * A StateDelta gives the changes that will convert one version of a SyncedState
+ * into a newer version.  The older version, the "base", is always a version that
+ * the client has acknowledged, or the last snapshot that was sent to the client.
+ * This package private class is only used internally in the netgame.common package.
+ */
+final class StateDelta implements Serializable {
+	
+	/**
+	 * The version number of the new state.
+	 */
+	public final int version;
+	
+	/**
+	 * The version number of the state to which the changes are to be applied.
+	 */
+	public final int baseVersion;
+	
+	/**
+	 * The positions, in the array returned by SyncedState.getFields(), of the
+	 * fields that have changed.
+	 */
+	public final int[] changedFields;
+	
+	/**
+	 * The new values for the fields that have changed, in the same order.
+	 */
+	public final Object[] values;
+	
+	public StateDelta(int version, int baseVersion, int[] changedFields, Object[] values) {
+		this.version = version;
+		this.baseVersion = baseVersion;
+		this.changedFields = changedFields;
+		this.values = values;
+	}
+
+}
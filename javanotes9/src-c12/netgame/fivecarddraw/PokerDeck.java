@@ -1,22 +1,66 @@
 package netgame.fivecarddraw;
+
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+
 /**
  *  An object of type PokerDeck represents a deck of playing cards.  The deck
  *  is a regular poker deck that contains 52 regular cards and that can
  *  also optionally include two Jokers.
+ *  <p>Internally, the cards are represented by int card codes, as defined
+ *  in class PokerEvaluator, with the codes 52 and 53 for the two Jokers.
+ *  The PokerCard objects that are returned by dealCard() come from a table
+ *  that is shared by all decks (see cardForCode()), so dealing does not create
+ *  any objects.  Programs that do a lot of dealing, such as simulations,
+ *  can use dealHand() to get the codes themselves, without using PokerCards
+ *  at all.
+ *  <p>Shuffling is done one card at a time, as cards are dealt:  Each call
+ *  to dealCard() picks a random card from the cards that have not yet been
+ *  dealt.  This gives exactly the same random order as shuffling the whole
+ *  deck first (it is the Fisher-Yates shuffle, done step by step), but when
+ *  only a few cards are dealt, only those few cards are shuffled.  The
+ *  random number generator can be specified in the constructor.
  */
 public class PokerDeck {
 	
 	/**
-	 * An array of 52 or 54 cards.  A 54-card deck contains two Jokers,
-	 * in addition to the 52 cards of a regular poker deck.
+	 * The cards for the card codes 0 to 53, shared by all decks.  (PokerCard
+	 * objects can't be changed, so they can safely be shared.)
 	 */
-	private PokerCard[] deck;
+	private final static PokerCard[] CARDS = new PokerCard[54];
+
+	static {
+		for ( int suit = 0; suit <= 3; suit++ ) {
+			for ( int value = 2; value <= 14; value++ )
+				CARDS[PokerEvaluator.cardCode(value,suit)] = new PokerCard(value,suit);
+		}
+		CARDS[52] = new PokerCard(1,PokerCard.JOKER);
+		CARDS[53] = new PokerCard(2,PokerCard.JOKER);
+	}
+
+	/**
+	 * The codes for the 52 or 54 cards in the deck.  A 54-card deck contains
+	 * two Jokers, in addition to the 52 cards of a regular poker deck.
+	 */
+	private int[] deck;
 	
 	/**
 	 * Keeps track of the number of cards that have been dealt from
 	 * the deck so far.
 	 */
 	private int cardsUsed;
+
+	/**
+	 * Tells whether the cards are to be dealt in random order.  This is false
+	 * for a new deck, which deals its cards in sorted order, and becomes true
+	 * when shuffle() is called.
+	 */
+	private boolean shuffled;
+
+	/**
+	 * The random number generator that is used for shuffling.
+	 */
+	private final RandomGenerator random;
 	
 	/**
 	 * Constructs a regular 52-card poker deck.  Initially, the cards
@@ -38,36 +82,50 @@ public class PokerDeck {
 	 * there are no Jokers in the deck.
 	 */
 	public PokerDeck(boolean includeJokers) {
+		this(includeJokers, new SplittableRandom());
+	}
+
+	/**
+	 * Constructs a deck that uses a specified random number generator for
+	 * shuffling.  For example, a simulation that runs in several threads
+	 * can give each thread its own deck, with a generator obtained by
+	 * calling split() on a SplittableRandom.  A generator that is created
+	 * with a known seed will give the same sequence of deals every time.
+	 * (The generator is used only by this deck, so it does not have to be
+	 * thread-safe.)
+	 * @param includeJokers if true, two Jokers are included in the deck.
+	 * @param random the random number generator.  This cannot be null.
+	 */
+	public PokerDeck(boolean includeJokers, RandomGenerator random) {
+		if (random == null)
+			throw new IllegalArgumentException("The random number generator can't be null.");
+		this.random = random;
 		if (includeJokers)
-			deck = new PokerCard[54];
+			deck = new int[54];
 		else
-			deck = new PokerCard[52];
-		int cardCt = 0; // How many cards have been created so far.
+			deck = new int[52];
+		int cardCt = 0; // How many cards have been added so far.
 		for ( int suit = 0; suit <= 3; suit++ ) {
 			for ( int value = 2; value <= 14; value++ ) {
-				deck[cardCt] = new PokerCard(value,suit);
+				deck[cardCt] = PokerEvaluator.cardCode(value,suit);
 				cardCt++;
 			}
 		}
 		if (includeJokers) {
-			deck[52] = new PokerCard(1,PokerCard.JOKER);
-			deck[53] = new PokerCard(2,PokerCard.JOKER);
+			deck[52] = 52;
+			deck[53] = 53;
 		}
 		cardsUsed = 0;
 	}
 	
 	/**
 	 * Put all the used cards back into the deck (if any), and
-	 * shuffle the deck into a random order.
+	 * shuffle the deck into a random order.  (The shuffling is
+	 * actually done as the cards are dealt.)
 	 */
 	public void shuffle() {
-		for ( int i = deck.length-1; i > 0; i-- ) {
-			int rand = (int)(Math.random()*(i+1));
-			PokerCard temp = deck[i];
-			deck[i] = deck[rand];
-			deck[rand] = temp;
-		}
 		cardsUsed = 0;
+		shuffled = true;
 	}
 	
 	/**
@@ -93,12 +151,40 @@ public class PokerDeck {
 	public PokerCard dealCard() {
 		if (cardsUsed == deck.length)
 			throw new IllegalStateException("No cards are left in the deck.");
-		cardsUsed++;
-		return deck[cardsUsed - 1];
+		return CARDS[nextCode()];
 		// Programming note:  Cards are not literally removed from the array
 		// that represents the deck.  We just keep track of how many cards
 		// have been used.
 	}
+
+	/**
+	 * Deals enough cards to fill an array with their card codes.  This is
+	 * the same as calling dealCard() out.length times, except that it gives
+	 * the codes instead of PokerCards.  Use cardForCode() to get the card
+	 * for a code.
+	 * @param out the array where the codes of the cards are stored.
+	 * @throws IllegalStateException if there are not enough cards left in
+	 *    the deck.  In that case, no cards are dealt.
+	 */
+	public void dealHand(int[] out) {
+		dealHand(out, 0, out.length);
+	}
+
+	/**
+	 * Deals a given number of cards and stores their card codes in
+	 * consecutive positions in an array.
+	 * @param out the array where the codes of the cards are stored.
+	 * @param start the position in the array where the first code is stored.
+	 * @param count the number of cards to deal.
+	 * @throws IllegalStateException if there are not enough cards left in
+	 *    the deck.  In that case, no cards are dealt.
+	 */
+	public void dealHand(int[] out, int start, int count) {
+		if (count > deck.length - cardsUsed)
+			throw new IllegalStateException("Not enough cards are left in the deck.");
+		for (int i = 0; i < count; i++)
+			out[start + i] = nextCode();
+	}
 	
 	/**
 	 * Test whether the deck contains Jokers.
@@ -109,4 +195,34 @@ public class PokerDeck {
 		return (deck.length == 54);
 	}
 	
+	/**
+	 * Returns the card that has a given card code.  The same PokerCard object
+	 * is returned every time for the same code.
+	 * @param code a card code, in the range 0 to 53.  (The codes 52 and 53 are
+	 *    the Jokers, which are not used by PokerEvaluator.)
+	 * @throws IllegalArgumentException if the code is not in the legal range.
+	 */
+	public static PokerCard cardForCode(int code) {
+		if (code < 0 || code >= CARDS.length)
+			throw new IllegalArgumentException("Illegal card code " + code);
+		return CARDS[code];
+	}
+
+	/**
+	 * Returns the code of the next card, which must exist.  If the deck has been
+	 * shuffled, this is one step of a Fisher-Yates shuffle:  A random card is
+	 * chosen from the cards that have not been dealt and is swapped into the
+	 * position of the next card.
+	 */
+	private int nextCode() {
+		if (shuffled) {
+			int rand = cardsUsed + random.nextInt(deck.length - cardsUsed);
+			int temp = deck[cardsUsed];
+			deck[cardsUsed] = deck[rand];
+			deck[rand] = temp;
+		}
+		cardsUsed++;
+		return deck[cardsUsed - 1];
+	}
+
 } // end class PokerDeck
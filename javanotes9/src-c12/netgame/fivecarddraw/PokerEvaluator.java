@@ -0,0 +1,316 @@
+package netgame.fivecarddraw;
+
+/**
+ * PokerEvaluator is a fast way to compute the rank of a poker hand.  It
+ * assigns exactly the same numerical ranks as the getRank() method in class
+ * PokerRank, but it works by looking up the rank in tables that are computed
+ * once, when the class is loaded, and it does not create any objects.  It is
+ * meant for programs that have to rank a great many hands, such as simulations.
+ * It can rank five-card hands, and it can also find the best five-card hand
+ * that can be made from seven cards (as in games like Texas Hold'em).
+ * <p>The methods in this class work with cards that are represented as
+ * integer "card codes" instead of PokerCard objects.  The code for a card is
+ * 4*(value-2) + suit, where value is in the range 2 to 14 and suit is one of
+ * the constants PokerCard.SPADES, PokerCard.HEARTS, PokerCard.DIAMONDS, or
+ * PokerCard.CLUBS.  So, the codes are the numbers 0 to 51, and code/4+2 and
+ * code%4 give the value and the suit of the card.  Jokers are not supported.
+ * The methods do not check their parameters.  The cards in a hand must be
+ * legal card codes, and no card can occur twice in the same hand.
+ * <p>How it works:  A flush consists of five cards of the same suit, with five
+ * different values.  Its rank depends only on which values it contains, so
+ * the rank of every possible flush is stored in a table with 2^13 entries,
+ * indexed by an int that has one bit for each of the 13 values.  Any other
+ * hand is ranked by the number of cards that it contains with each value,
+ * without regard to suit.  The 13 counts are packed into a long, three bits
+ * per value.  There are 6175 possible sets of counts for a five-card hand, and
+ * 49205 for a seven-card hand.  A "perfect hash function" (see handIndex())
+ * numbers them consecutively, and that number is used as an index into a table
+ * of ranks.  The table for seven cards gives the rank of the best five-card hand
+ * that can be made from the seven cards, ignoring flushes.  If the seven cards
+ * include a flush, its rank is also looked up, and the higher rank is used.
+ */
+public class PokerEvaluator {
+
+	private PokerEvaluator() { // Only static methods in this class.
+	}
+
+	/**
+	 * Returns the code for a card, as described in the comment at the top
+	 * of this class.
+	 * @throws IllegalArgumentException if the card is a Joker.
+	 */
+	public static int cardCode(PokerCard card) {
+		if (card.getSuit() == PokerCard.JOKER)
+			throw new IllegalArgumentException("Class PokerEvaluator does not support jokers.");
+		return cardCode(card.getValue(), card.getSuit());
+	}
+
+	/**
+	 * Returns the code for the card with a given value and suit.  The value must
+	 * be in the range 2 to 14 and the suit in the range 0 to 3; this is not checked.
+	 */
+	public static int cardCode(int value, int suit) {
+		return 4*(value - 2) + suit;
+	}
+
+	/**
+	 * Returns the rank of a five-card hand.  The result is the same as the rank
+	 * that PokerRank.getRank() would assign to the same five cards.  (The
+	 * hand type, such as PokerRank.FLUSH, is rank &gt;&gt; 20.)
+	 * @param c0, c1, c2, c3, c4 the codes for the five cards.
+	 */
+	public static int rank5(int c0, int c1, int c2, int c3, int c4) {
+		if ( (((c0 ^ c1) | (c0 ^ c2) | (c0 ^ c3) | (c0 ^ c4)) & 3) == 0 ) {
+			int valueBits = (1 << (c0 >> 2)) | (1 << (c1 >> 2)) | (1 << (c2 >> 2))
+			                     | (1 << (c3 >> 2)) | (1 << (c4 >> 2));
+			return FLUSH_RANK[valueBits];
+		}
+		long counts = (1L << 3*(c0 >> 2)) + (1L << 3*(c1 >> 2)) + (1L << 3*(c2 >> 2))
+		                     + (1L << 3*(c3 >> 2)) + (1L << 3*(c4 >> 2));
+		return RANK_5[handIndex(counts, 5)];
+	}
+
+	/**
+	 * Returns the rank of a five-card hand that is stored in five consecutive
+	 * elements of an array.
+	 * @param cards an array that contains card codes.
+	 * @param start the index in the array of the first card of the hand.
+	 */
+	public static int rank5(int[] cards, int start) {
+		return rank5(cards[start], cards[start+1], cards[start+2], cards[start+3], cards[start+4]);
+	}
+
+	/**
+	 * Returns the rank of the best five-card hand that can be made from seven
+	 * cards.  The rank is the one that PokerRank.getRank() would assign to that
+	 * best hand.  The seven cards are stored in consecutive elements of an array.
+	 * @param cards an array that contains card codes.
+	 * @param start the index in the array of the first of the seven cards.
+	 */
+	public static int rank7(int[] cards, int start) {
+		long counts = 0;
+		int suitCounts = 0;  // The number of cards of each suit, in four 4-bit fields.
+		for (int i = start; i < start + 7; i++) {
+			int c = cards[i];
+			counts += 1L << 3*(c >> 2);
+			suitCounts += 1 << 4*(c & 3);
+		}
+		int rank = RANK_7[handIndex(counts, 7)];
+		for (int suit = 0; suit < 4; suit++) {
+			if ( ((suitCounts >> 4*suit) & 15) >= 5 ) {
+				   // There is a flush, in this suit.  (There can't be two.)
+				int valueBits = 0;
+				for (int i = start; i < start + 7; i++) {
+					if ( (cards[i] & 3) == suit )
+						valueBits |= 1 << (cards[i] >> 2);
+				}
+				rank = Math.max(rank, FLUSH_RANK[valueBits]);
+				break;
+			}
+		}
+		return rank;
+	}
+
+
+	// --------------------- the private implementation section -------------------
+
+	/**
+	 * FLUSH_RANK[bits] is the rank of the best flush or straight flush that can be
+	 * made from the values whose bits are set in bits, where bit number v-2
+	 * represents the value v.  The entry is zero if fewer than five bits are set.
+	 */
+	private static final int[] FLUSH_RANK = new int[1 << 13];
+
+	/**
+	 * HASH_OFFSET[(i*8 + remaining)*5 + count] is the amount that is added to the
+	 * index of a hand, in handIndex(), for a hand that contains count cards of
+	 * the i-th value, when there are remaining cards with value i or greater.
+	 */
+	private static final int[] HASH_OFFSET = new int[13*8*5];
+
+	private static final int[] RANK_5;  // Ranks of five-card hands without a flush, by handIndex().
+	private static final int[] RANK_7;  // Best ranks from seven cards, ignoring flushes, by handIndex().
+
+	/**
+	 * Numbers the possible sets of value counts for hands that contain a given
+	 * number of cards.  The counts are listed in "lexicographic" order, and
+	 * the return value is the position of the given counts in the list.  So the
+	 * return value for a five-card hand is a number from 0 to 6174, and every
+	 * set of counts gets a different number.  The counts of the values 2 to 14
+	 * are packed into the parameter counts, three bits per value, starting with
+	 * the low-order bits.
+	 */
+	private static int handIndex(long counts, int cardCount) {
+		int index = 0;
+		int remaining = cardCount;
+		for (int i = 0; remaining > 0; i++) {
+			int count = (int)(counts >>> 3*i) & 7;
+			index += HASH_OFFSET[(i*8 + remaining)*5 + count];
+			remaining -= count;
+		}
+		return index;
+	}
+
+	static {
+
+		/* ways[i][n] is the number of ways to divide n cards among the values
+		 * numbered i through 12, with no more than four cards of any value.
+		 * The hash offsets follow from those numbers. */
+
+		int[][] ways = new int[14][8];
+		ways[13][0] = 1;
+		for (int i = 12; i >= 0; i--) {
+			for (int n = 0; n < 8; n++) {
+				for (int count = 0; count <= 4 && count <= n; count++)
+					ways[i][n] += ways[i+1][n-count];
+			}
+		}
+		for (int i = 0; i < 13; i++) {
+			for (int remaining = 0; remaining < 8; remaining++) {
+				int offset = 0;
+				for (int count = 0; count <= 4 && count <= remaining; count++) {
+					HASH_OFFSET[(i*8 + remaining)*5 + count] = offset;
+					offset += ways[i+1][remaining-count];
+				}
+			}
+		}
+		RANK_5 = new int[ways[0][5]];
+		RANK_7 = new int[ways[0][7]];
+
+		/* Fill the tables for hands without a flush. */
+
+		fillRanks(new int[13], 0, 5);
+		fillRanks(new int[13], 0, 7);
+
+		/* Fill in the flushes, and find the best flush in six or seven cards.
+		 * (Removing a bit from a number gives a smaller number, so the entries
+		 * for the five-card subsets of a mask are filled in before the mask.) */
+
+		for (int bits = 0; bits < FLUSH_RANK.length; bits++) {
+			int size = Integer.bitCount(bits);
+			if (size == 5) {
+				int[] counts = new int[13];
+				for (int i = 0; i < 13; i++)
+					counts[i] = (bits >> i) & 1;
+				FLUSH_RANK[bits] = computeRank(counts, true);
+			}
+			else if (size > 5) {
+				for (int i = 0; i < 13; i++) {
+					if ( (bits & (1 << i)) != 0 )
+						FLUSH_RANK[bits] = Math.max(FLUSH_RANK[bits], FLUSH_RANK[bits ^ (1 << i)]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fills in RANK_5 or RANK_7 (depending on cardCount) for all the sets of counts
+	 * that agree with the given counts for values before value number i.
+	 */
+	private static void fillRanks(int[] counts, int i, int cardCount) {
+		int used = 0;
+		for (int j = 0; j < i; j++)
+			used += counts[j];
+		if (i == 13) {
+			if (used == cardCount) {
+				if (cardCount == 5)
+					RANK_5[handIndex(pack(counts), 5)] = computeRank(counts, false);
+				else
+					RANK_7[handIndex(pack(counts), 7)] = bestRank(counts, new int[13], 0, 5);
+			}
+			return;
+		}
+		for (int count = 0; count <= 4 && used + count <= cardCount; count++) {
+			counts[i] = count;
+			fillRanks(counts, i+1, cardCount);
+		}
+		counts[i] = 0;
+	}
+
+	/**
+	 * Finds the best rank, ignoring flushes, of the five-card hands that can be
+	 * made from the cards given by counts, where the counts for values before
+	 * value number i have already been chosen in the array chosen.  The
+	 * parameter needs is the number of cards that still have to be chosen.  The RANK_5 table must
+	 * already be filled in.
+	 */
+	private static int bestRank(int[] counts, int[] chosen, int i, int needs) {
+		if (needs == 0)
+			return RANK_5[handIndex(pack(chosen), 5)];
+		if (i == 13)
+			return -1;
+		int best = -1;
+		for (int count = 0; count <= counts[i] && count <= needs; count++) {
+			chosen[i] = count;
+			best = Math.max(best, bestRank(counts, chosen, i+1, needs - count));
+		}
+		chosen[i] = 0;
+		return best;
+	}
+
+	private static long pack(int[] counts) {
+		long packed = 0;
+		for (int i = 0; i < 13; i++)
+			packed |= (long)counts[i] << 3*i;
+		return packed;
+	}
+
+	/**
+	 * Computes the rank of a five-card hand in the same way as PokerRank.  Only
+	 * the number of cards of each value, and whether the hand is a flush, are
+	 * needed.  The card values are put in the order in which they have to be
+	 * compared:  the cards that occur most often come first, and cards that occur
+	 * equally often are in decreasing order of value.  For example, 9-9-9-5-5,
+	 * or K-K-7-7-2, or Q-Q-J-8-3.  In a 5-4-3-2-A straight, the ace goes last.
+	 * There is one exception, which is needed to give the same ranks as PokerRank:
+	 * When a triple has one card of higher value and one of lower value with it,
+	 * the lower one comes first, as in 8-8-8-2-K.  (This makes no difference
+	 * to the outcome of a game, since two players can't both have a triple
+	 * of the same value.)
+	 */
+	private static int computeRank(int[] counts, boolean flush) {
+		int[] values = new int[5];
+		int n = 0;
+		for (int count = 4; count >= 1; count--) {
+			for (int i = 12; i >= 0; i--) {
+				if (counts[i] == count) {
+					for (int j = 0; j < count; j++)
+						values[n++] = i + 2;
+				}
+			}
+		}
+		int type;
+		boolean straight = false;
+		if (counts[12] == 1 && counts[3] == 1 && counts[2] == 1 && counts[1] == 1 && counts[0] == 1) {
+			straight = true;  // A 5-4-3-2-A straight; the ace has to be moved to the end.
+			values = new int[] { 5, 4, 3, 2, PokerCard.ACE };
+		}
+		else if (counts[values[0]-2] == 1 && values[0] - values[4] == 4)
+			straight = true;  // Five different values, in a row.
+		if (straight && flush)
+			type = (values[0] == PokerCard.ACE) ? PokerRank.ROYAL_FLUSH : PokerRank.STRAIGHT_FLUSH;
+		else if (flush)
+			type = PokerRank.FLUSH;
+		else if (straight)
+			type = PokerRank.STRAIGHT;
+		else if (counts[values[0]-2] == 4)
+			type = PokerRank.FOUR_OF_A_KIND;
+		else if (counts[values[0]-2] == 3) {
+			type = (counts[values[3]-2] == 2) ? PokerRank.FULL_HOUSE : PokerRank.TRIPLE;
+			if (type == PokerRank.TRIPLE && values[3] > values[0] && values[4] < values[0]) {
+				int higher = values[3];
+				values[3] = values[4];
+				values[4] = higher;
+			}
+		}
+		else if (counts[values[0]-2] == 2)
+			type = (counts[values[2]-2] == 2) ? PokerRank.TWO_PAIR : PokerRank.PAIR;
+		else
+			type = PokerRank.NOTHING;
+		int rank = type << 20;
+		for (int i = 0; i < 5; i++)
+			rank |= values[i] << 4*(4-i);
+		return rank;
+	}
+
+}
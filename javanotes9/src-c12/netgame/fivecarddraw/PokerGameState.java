@@ -2,6 +2,8 @@ package netgame.fivecarddraw;
 
 import java.io.Serializable;
 
+import netgame.common.SyncedState;
+
 /**
  * Represents the state of a game of five-card-draw poker 
  * from one player's point of view.  The full state of a game
@@ -9,9 +11,13 @@ import java.io.Serializable;
  * PokerGameState to each player whenever the state of 
  * the game changes.  Note that the two players receive
  * different messages, to reflect each player's view of the
- * status of the game.
+ * status of the game.  Since the hub sends these messages with
+ * its sendState() method, they are usually transmitted as changes
+ * from the previous state.  The fields of the state, as returned
+ * by getFields(), are the six public variables, in the order in
+ * which they are listed in the constructor.
  */
-public class PokerGameState implements Serializable {
+public class PokerGameState implements Serializable, SyncedState {
 	
 	//-------------------------------------------------------------
 	// The eight following constants are the possible values of
@@ -63,5 +69,24 @@ public class PokerGameState implements Serializable {
 		this.pot = pot;
 		this.amountToSee = amountToSee;
 	}
+	
+	/**
+	 * Returns the fields of this state, for use by the netgame framework.
+	 * (The hand is not copied, since PokerHub never changes a hand after it has
+	 * been sent.)
+	 */
+	public Object[] getFields() {
+		return new Object[] { hand, status, money, opponentMoney, pot, amountToSee };
+	}
+	
+	/**
+	 * Creates a PokerGameState from field values in the same form as the array
+	 * returned by getFields().
+	 */
+	public SyncedState withFields(Object[] fields) {
+		PokerCard[] hand = (PokerCard[])fields[0];
+		return new PokerGameState( hand == null ? null : hand.clone(), (Integer)fields[1],
+				(Integer)fields[2], (Integer)fields[3], (Integer)fields[4], (Integer)fields[5] );
+	}
 
 }
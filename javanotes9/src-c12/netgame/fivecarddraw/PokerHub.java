@@ -1,6 +1,8 @@
 package netgame.fivecarddraw;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 
 import netgame.common.*;
 
@@ -29,14 +31,33 @@ import netgame.common.*;
  * player wants to discard).
  * <p>Programming note:  When a player's hand is sent as part of
  * a message, it is a cloned copy of the array that is sent.  This
- * is to make sure that no object is sent more than once, after having
- * been changed in the meantime.  Because of this, it is unnecessary
- * to reset the ObjectOutputStreams that are used to send messages.
- * (See the reset() and setAutoreset() methods in the Hub class for
- * information about this issue.)
+ * is to make sure that the hub's own copy of the hand can't be
+ * changed after it has been sent.  (The hub's sendState() method,
+ * which is used to send PokerGameStates, keeps the last state that
+ * each player has acknowledged, so that it can send only the parts
+ * of the next state that have changed.)  All of the
+ * messages are sent in the compact form defined by the class
+ * PokerCodecs, which is registered in a static initializer.
+ * <p>If a player's network connection fails, the game is not over right away.
+ * The hub keeps the player's place for up to a minute, so that the player's
+ * client can reconnect and continue the game (see Hub.setResumableSessions()).
+ * For that reason, the hub keeps listening for connections after the game
+ * starts, but it refuses any new player after the first two.
+ * <p>If the system property netgame.journalDir is set, the state of the
+ * table is saved in a GameJournal after every message that changes it.  If
+ * the hub program is restarted before the game ends, the saved state is
+ * restored, and play continues from that point when both players have
+ * connected again, with the first player to connect taking the place of
+ * Player #1.  (The order of the undealt cards is not saved.  If a
+ * game is restored in the middle of a hand, any cards that are drawn come
+ * from a newly shuffled deck, without the cards that are in the two hands.)
  */
 public class PokerHub extends Hub {
 	
+	static {
+		PokerCodecs.register();
+	}
+	
 	private PokerDeck deck = new PokerDeck();  // The deck of 52 playing cards.
 	
 	// The next five variables are possible values of the status variable.
@@ -81,12 +102,63 @@ public class PokerHub extends Hub {
 	private int pot;  // The total amount of money that has been bet in the current game (or in the
 	                  // game that has just finished).
 	
+	private GameJournal journal;  // If non-null, the state of the table is saved here.
+	
+	private boolean restored;  // Set to true if a saved game was restored when the hub started.
+	
 
 	/**
-	 * Creates a PokerHub listening on a specified port.
+	 * The number of seconds for which the place of a player whose connection
+	 * has failed is kept, waiting for the player to reconnect.
+	 */
+	private final static int RECONNECT_TIME = 60;
+	
+
+	/**
+	 * Creates a PokerHub listening on a specified port.  The transport for
+	 * connections is selected as for Hub's one-parameter constructor.
 	 */
 	public PokerHub(int port) throws IOException {
 		super(port);
+		setUp(port);
+	}
+	
+	/**
+	 * Creates a PokerHub that uses a specified transport, listening on a specified port.
+	 */
+	public PokerHub(int port, Transport transport) throws IOException {
+		super(port, transport);
+		setUp(port);
+	}
+	
+	/**
+	 * Finishes creating the hub:  turns on resumable sessions, and restores the
+	 * saved game, if there is a game journal.
+	 */
+	private void setUp(int port) {
+		setResumableSessions(RECONNECT_TIME, 200);
+		journal = GameJournal.open("poker-" + port);
+		if (journal != null) {
+			try {
+				TableState saved = (TableState)journal.recover(new TableState(tableFields()));
+				if (saved != null && saved.fields[9] != null)
+					restore(saved.fields);
+			}
+			catch (IOException e) {
+				System.out.println("Can't restore the saved game: " + e);
+			}
+		}
+	}
+	
+
+	/**
+	 * Refuses a connection from anyone but the first two players.  (A player
+	 * who is reconnecting after a network error does not go through this check.)
+	 */
+	protected void extraHandshake(int playerID, ObjectInputStream in, 
+	                                   ObjectOutputStream out) throws IOException {
+		if (playerID > 2)
+			throw new IOException("This game already has two players.");
 	}
 	
 
@@ -94,19 +166,25 @@ public class PokerHub extends Hub {
 	 * When the second player connects, this method starts the game by
 	 * sending the initial game state to the two players.  At this time,
 	 * the players' hands are null.  The hands will be set when the
-	 * first hand is dealt.  This method also shuts down the Hub's 
-	 * ServerSocket so that no further players can connect.
+	 * first hand is dealt.  (The Hub's ServerSocket is not shut down,
+	 * so that a player can reconnect after a network error; other 
+	 * players are refused by extraHandshake().)  If a saved game was
+	 * restored, the restored state is sent instead.
 	 */
 	protected void playerConnected(int playerID) {
-		if (playerID == 2) {
-			shutdownServerSocket();
+		if (playerID == 2 && restored) {
+			resendState();
+			sendToAll("The game has been restored after a restart of the server.");
+		}
+		else if (playerID == 2) {
 			dealer = 1;
 			currentPlayer = 1;
 			money[0] = 1000;
 			money[1] = 1000;
-			sendToOne(1, new PokerGameState(null,PokerGameState.DEAL,1000,1000,0));
-			sendToOne(2, new PokerGameState(null,PokerGameState.WAIT_FOR_DEAL,1000,1000,0));
+			sendState(1, new PokerGameState(null,PokerGameState.DEAL,1000,1000,0));
+			sendState(2, new PokerGameState(null,PokerGameState.WAIT_FOR_DEAL,1000,1000,0));
 			sendToAll("Ready to start the first game!");
+			recordState();
 		}
 	}
 
@@ -116,8 +194,14 @@ public class PokerHub extends Hub {
 	 * the Hub, which will send a signal to the remaining connected player,
 	 * if any, to let them know that their opponent has left the game.
 	 * The client will respond by terminating that player's program.
+	 * Since the game is over, the saved game (if any) is discarded.
 	 */
 	protected void playerDisconnected(int playerID) {
+		if (journal != null) {
+			journal.discard();
+			journal.closeLater();  // (Don't wait for the disk while holding the hub's lock.)
+			journal = null;
+		}
 		shutDownHub();
 	}
 
@@ -129,9 +213,19 @@ public class PokerHub extends Hub {
 	 * the game that are triggered by the message.  It will then send
 	 * information about the new state to each player, and it will
 	 * generally send a string to each client as a message to be
-	 * displayed to that player.
+	 * displayed to that player.  The new state is saved in the journal
+	 * (if there is one) by recordState().
 	 */
 	protected void messageReceived(int playerID, Object message) {
+		handleMessage(playerID, message);
+		recordState();
+	}
+	
+	
+	/**
+	 * Does the work of messageReceived().
+	 */
+	private void handleMessage(int playerID, Object message) {
 		if (playerID != currentPlayer) {
 			   // This should not happen, assuming there are no bugs and the
 			   // connected clients are in fact PokerClients.  This test and
@@ -146,6 +240,7 @@ public class PokerHub extends Hub {
 			}
 			// Suffle the deck, deal the cards, add a $5 ante from each player to the pot, and start the game.
 			deck.shuffle();
+			restored = false;  // The restored deck is no longer in use.
 			for (int i = 0; i < 5; i++) {
 				hand[0][i] = deck.dealCard();
 				hand[1][i] = deck.dealCard();
@@ -242,7 +337,7 @@ public class PokerHub extends Hub {
 			int[] cardNums = (int[])message;
 			PokerCard[] currentPlayerHand = (currentPlayer == 1)? hand[0] : hand[1];
 			for (int i = 0; i < cardNums.length; i++) {
-				currentPlayerHand[cardNums[i]] = deck.dealCard();
+				currentPlayerHand[cardNums[i]] = dealCard();
 			}
 			sendToOne(currentPlayer,"You draw " + cardNums.length + " cards");
 			sendToOne(3-currentPlayer,"Your opponent draws " + cardNums.length + " cards");
@@ -266,6 +361,28 @@ public class PokerHub extends Hub {
 	// --- The remaining methods are called by messageReceived() to do some of its processing ---
 	
 	
+	/**
+	 * Deals a card from the deck.  If the game was restored in the middle of a
+	 * hand, the deck is a full deck that was shuffled when the game was restored,
+	 * so cards that are already in one of the hands have to be skipped.
+	 */
+	private PokerCard dealCard() {
+		while (true) {
+			PokerCard card = deck.dealCard();
+			if ( ! restored || ! inHand(card) )
+				return card;
+		}
+	}
+	
+	private boolean inHand(PokerCard card) {
+		for (PokerCard[] h : hand)
+			for (PokerCard c : h)
+				if (card.equals(c))
+					return true;
+		return false;
+	}
+	
+	
 	/**
 	 * When the game ends because one player has "called" the other, this method
 	 * will be called to compare the players' hands and determine the winner.
@@ -321,6 +438,25 @@ public class PokerHub extends Hub {
 	}
 	
 	
+	/**
+	 * Sends the current state to both players, after a saved game has been
+	 * restored.  The PokerGameState status values depend on what the hub
+	 * is waiting for, in the same way as in handleMessage().
+	 */
+	private void resendState() {
+		if (status == WAITING_FOR_DEAL)
+			sendState(PokerGameState.DEAL,PokerGameState.WAIT_FOR_DEAL);
+		else if (status == WAITING_FOR_FIRST_BET)
+			sendState(PokerGameState.BET_OR_FOLD, PokerGameState.WAIT_FOR_BET);
+		else if (status == WAITING_FOR_BET_OR_SEE && firstBettingRound)
+			sendState(PokerGameState.RAISE_SEE_OR_FOLD_ROUND_1,PokerGameState.WAIT_FOR_BET);
+		else if (status == WAITING_FOR_BET_OR_SEE)
+			sendState(PokerGameState.RAISE_CALL_OR_FOLD_ROUND_2,PokerGameState.WAIT_FOR_BET);
+		else
+			sendState(PokerGameState.DRAW,PokerGameState.WAIT_FOR_DRAW);
+	}
+	
+	
 	/**
 	 * This method is used by messageReceived() to send state messages to both
 	 * players.  
@@ -340,14 +476,77 @@ public class PokerHub extends Hub {
 			player1State = opponentState;
 		}
 		if (status == WAITING_FOR_BET_OR_SEE) {  // Send a state message including an amount needed to see.
-			sendToOne(1, new PokerGameState(hand[0].clone(),player1State,money[0],money[1],pot,amountNeededToSee));
-			sendToOne(2, new PokerGameState(hand[1].clone(),player2State,money[1],money[0],pot,amountNeededToSee));
+			sendState(1, new PokerGameState(hand[0].clone(),player1State,money[0],money[1],pot,amountNeededToSee));
+			sendState(2, new PokerGameState(hand[1].clone(),player2State,money[1],money[0],pot,amountNeededToSee));
 		}
 		else { // Send a state message without an amount needed to see.
-			sendToOne(1, new PokerGameState(hand[0].clone(),player1State,money[0],money[1],pot));
-			sendToOne(2, new PokerGameState(hand[1].clone(),player2State,money[1],money[0],pot));
+			sendState(1, new PokerGameState(hand[0].clone(),player1State,money[0],money[1],pot));
+			sendState(2, new PokerGameState(hand[1].clone(),player2State,money[1],money[0],pot));
+		}
+	}
+	
+	
+	// --- Saving and restoring the state of the table, using a GameJournal ---
+	
+	
+	/**
+	 * The state of the table, as it is saved in the journal.  The fields are
+	 * the values of the hub's instance variables, in the order used by tableFields().
+	 */
+	private static class TableState implements SyncedState {
+		final Object[] fields;
+		TableState(Object[] fields) {
+			this.fields = fields;
+		}
+		public Object[] getFields() {
+			return fields;
+		}
+		public SyncedState withFields(Object[] fields) {
+			return new TableState(fields.clone());
 		}
 	}
 	
 	
+	/**
+	 * Returns the values of the variables that make up the state of the table.
+	 * The hands are copies, or null if no cards have been dealt.
+	 */
+	private Object[] tableFields() {
+		boolean dealt = hand[0][0] != null;
+		return new Object[] { status, currentPlayer, dealer, firstBettingRound, amountNeededToSee,
+				previousGameTied, pot, money[0], money[1],
+				dealt ? hand[0].clone() : null, dealt ? hand[1].clone() : null };
+	}
+	
+	
+	/**
+	 * Sets the state of the table from values saved by recordState().
+	 */
+	private void restore(Object[] fields) {
+		status = (Integer)fields[0];
+		currentPlayer = (Integer)fields[1];
+		dealer = (Integer)fields[2];
+		firstBettingRound = (Boolean)fields[3];
+		amountNeededToSee = (Integer)fields[4];
+		previousGameTied = (Boolean)fields[5];
+		pot = (Integer)fields[6];
+		money[0] = (Integer)fields[7];
+		money[1] = (Integer)fields[8];
+		hand[0] = ((PokerCard[])fields[9]).clone();
+		hand[1] = ((PokerCard[])fields[10]).clone();
+		deck.shuffle();
+		restored = true;
+		System.out.println("Restored the saved game.");
+	}
+	
+	
+	/**
+	 * Saves the state of the table in the journal, if there is one.
+	 */
+	private void recordState() {
+		if (journal != null)
+			journal.record(new TableState(tableFields()));
+	}
+	
+	
 }
@@ -55,6 +55,11 @@ import java.util.Optional;
  */
 public class PokerWindow extends Stage {
 	
+	static {
+		PokerCodecs.register();  // Messages from the hub use the compact encoding defined in PokerCodecs.
+	}
+
+	
 	
 	private PokerClient connection;   // Handles communication with the PokerHub; used to send messages to the hub.
 
@@ -0,0 +1,164 @@
+package netgame.loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import netgame.common.Client;
+import netgame.common.Hub;
+import netgame.fivecarddraw.PokerCard;
+import netgame.fivecarddraw.PokerGameState;
+
+/**
+ * Measures the CPU time that a Hub spends on each broadcast, for increasing numbers
+ * of connected players.  Two ways of broadcasting are compared:  Hub.sendToAll(),
+ * which serializes the message once and shares the resulting bytes among all the
+ * connections, and a loop that calls Hub.sendToOne() for each player, which
+ * serializes the message once per player (as every broadcast used to do).
+ * Two messages are used:  a short chat string and a PokerGameState.
+ * <p>For each test, the program reports the CPU time used by the thread that
+ * calls sendToAll() or sendToOne(), which is where the serialization is done,
+ * and the total CPU time used by the process, which includes the time needed to
+ * write the data to the network and the time that the clients spend receiving
+ * it (since the clients also run in this program).  Both are given per broadcast.
+ * <p>Usage:  java netgame.loadtest.BroadcastBenchmark [transport [broadcasts]]
+ * <p>The transport is "threads", "virtual_threads", or "selector"; the default
+ * is "selector".  The default number of broadcasts for each test is 200.
+ */
+public class BroadcastBenchmark {
+
+	private final static int PORT = 37840;
+
+	private final static int[] PLAYER_COUNTS = { 10, 50, 100, 250, 500, 1000 };
+
+	/**
+	 * A Hub that can also broadcast by sending a separate copy to each player.
+	 */
+	private static class BenchmarkHub extends Hub {
+		BenchmarkHub(int port, Hub.Transport transport) throws IOException {
+			super(port, transport);
+		}
+		void sendToEachPlayer(Object message) {
+			for (int id : getPlayerList())
+				sendToOne(id, message);
+		}
+	}
+
+	/**
+	 * The clients simply count the messages that they receive.
+	 */
+	private static final AtomicLong messagesReceived = new AtomicLong();
+
+	private static class CountingClient extends Client {
+		CountingClient(int port) throws IOException {
+			super("localhost", port, true);
+		}
+		protected void messageReceived(Object message) {
+			messagesReceived.incrementAndGet();
+		}
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		Hub.Transport transport = Hub.Transport.SELECTOR;
+		int broadcasts = 200;
+		try {
+			if (args.length > 0)
+				transport = Hub.Transport.valueOf(args[0].toUpperCase());
+			if (args.length > 1)
+				broadcasts = Integer.parseInt(args[1]);
+		}
+		catch (IllegalArgumentException e) {
+			System.out.println("Usage:  java netgame.loadtest.BroadcastBenchmark [transport [broadcasts]]");
+			return;
+		}
+		PokerCard[] hand = new PokerCard[5];
+		for (int i = 0; i < 5; i++)
+			hand[i] = new PokerCard(10 + i, PokerCard.HEARTS);
+		Object[] messages = {
+				"Has anyone seen the new chapter on threads?",
+				new PokerGameState(hand, PokerGameState.RAISE_SEE_OR_FOLD_ROUND_1, 940, 905, 155, 25)
+		};
+		String[] messageNames = { "chat string", "PokerGameState" };
+
+		PrintStream console = System.out;
+		console.println("Transport: " + transport + ", " + broadcasts + " broadcasts per test.");
+		console.println("CPU times are microseconds per broadcast.");
+		console.println();
+		console.printf("%-15s %8s   %12s %12s   %12s %12s%n", "", "",
+				"sendToAll", "", "sendToOne", "");
+		console.printf("%-15s %8s   %12s %12s   %12s %12s%n", "message", "players",
+				"sender CPU", "total CPU", "sender CPU", "total CPU");
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));  // Hide output from Hub and Client.
+		try {
+			int port = PORT;
+			for (int playerCount : PLAYER_COUNTS) {
+				BenchmarkHub hub = new BenchmarkHub(port, transport);
+				CountingClient[] clients = new CountingClient[playerCount];
+				for (int i = 0; i < playerCount; i++)
+					clients[i] = new CountingClient(port);
+				while (hub.getPlayerList().length < playerCount)
+					Thread.sleep(10);
+				for (int m = 0; m < messages.length; m++) {
+					runBroadcasts(hub, messages[m], playerCount, broadcasts/10, true);  // Warm up.
+					runBroadcasts(hub, messages[m], playerCount, broadcasts/10, false);
+					double[] all = runBroadcasts(hub, messages[m], playerCount, broadcasts, true);
+					double[] each = runBroadcasts(hub, messages[m], playerCount, broadcasts, false);
+					console.printf("%-15s %8d   %12.1f %12.1f   %12.1f %12.1f%n", messageNames[m], playerCount,
+							all[0], all[1], each[0], each[1]);
+				}
+				hub.shutDownHub();
+				port++;  // Use a new port, in case the old one is not released immediately.
+			}
+		}
+		finally {
+			System.setOut(console);
+		}
+		System.exit(0);
+	}
+
+
+	/**
+	 * Does a number of broadcasts and waits for all of the messages to be received.
+	 * @param useSendToAll  if true, sendToAll() is used; if false, sendToOne() is
+	 *     called for each player.
+	 * @return an array containing the CPU time of the sending thread and the CPU time
+	 *     of the entire process, in microseconds per broadcast.
+	 */
+	private static double[] runBroadcasts(BenchmarkHub hub, Object message, int playerCount,
+	                                         int broadcasts, boolean useSendToAll) throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		messagesReceived.set(0);
+		long processStart = processCpuTime();
+		long senderStart = threads.getCurrentThreadCpuTime();
+		for (int i = 0; i < broadcasts; i++) {
+			if (useSendToAll)
+				hub.sendToAll(message);
+			else
+				hub.sendToEachPlayer(message);
+		}
+		long senderTime = threads.getCurrentThreadCpuTime() - senderStart;
+		long expected = (long)broadcasts * playerCount;
+		long waitUntil = System.currentTimeMillis() + 120000;
+		while (messagesReceived.get() < expected && System.currentTimeMillis() < waitUntil)
+			Thread.sleep(1);
+		long processTime = processCpuTime() - processStart;
+		return new double[] { senderTime / 1000.0 / broadcasts, processTime / 1000.0 / broadcasts };
+	}
+
+	/**
+	 * Returns the total CPU time used by this process, in nanoseconds, or -1
+	 * if that is not available.
+	 */
+	private static long processCpuTime() {
+		java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+		else
+			return -1;
+	}
+
+}
@@ -0,0 +1,130 @@
+package netgame.loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import netgame.common.Client;
+import netgame.common.ForwardedMessage;
+import netgame.common.Hub;
+
+/**
+ * Measures how many chat messages per second the chat room server can fan out
+ * to its clients.  The program starts the same kind of basic Hub that is used by
+ * netgame.chat.ChatRoomServer, which forwards every message that it receives to
+ * every connected client, and connects a number of clients to it over the local
+ * loopback connection.
+ * The clients then send a stream of short chat messages as fast as they can, and the
+ * program measures how long it takes for every message to reach every client.  The
+ * test is repeated with several values for the hub's "write linger" time (see
+ * Hub.setWriteLinger()).  With a linger time of zero, the hub still writes all of
+ * the messages that are waiting for a client in one batch, but it does not wait for
+ * more messages to arrive before writing.
+ * <p>For each test, the program reports the number of messages that the hub received
+ * per second, and the number of copies of those messages that it delivered per second.
+ * <p>Usage:  java netgame.loadtest.ChatFanOutBenchmark [transport [clients [messages]]]
+ * <p>The transport is "threads", "virtual_threads", or "selector"; the default
+ * is "selector".  The default is 100 clients and 5000 messages for each test.
+ * Note that the hub and all of the clients run in this program, so the
+ * clients compete with the hub for processor time.
+ */
+public class ChatFanOutBenchmark {
+
+	private final static int PORT = 37850;
+
+	private final static int[] LINGER_TIMES = { 0, 1, 5 };  // Milliseconds.
+
+	private final static int SENDERS = 10;  // The number of clients that send messages.
+
+	/**
+	 * The number of chat messages that have been received by all of the clients.
+	 */
+	private static final AtomicLong deliveries = new AtomicLong();
+
+	private static class ChatClient extends Client {
+		ChatClient(int port) throws IOException {
+			super("localhost", port, true);
+		}
+		protected void messageReceived(Object message) {
+			if (message instanceof ForwardedMessage)
+				deliveries.incrementAndGet();
+		}
+		int playerCount() {
+			return connectedPlayerIDs.length;
+		}
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		Hub.Transport transport = Hub.Transport.SELECTOR;
+		int clientCount = 100;
+		int messageCount = 5000;
+		try {
+			if (args.length > 0)
+				transport = Hub.Transport.valueOf(args[0].toUpperCase());
+			if (args.length > 1)
+				clientCount = Integer.parseInt(args[1]);
+			if (args.length > 2)
+				messageCount = Integer.parseInt(args[2]);
+		}
+		catch (IllegalArgumentException e) {
+			System.out.println("Usage:  java netgame.loadtest.ChatFanOutBenchmark [transport [clients [messages]]]");
+			return;
+		}
+		PrintStream console = System.out;
+		console.println("Transport: " + transport + ", " + clientCount + " clients, "
+				+ messageCount + " messages per test.");
+		console.println();
+		console.printf("%10s %14s %16s %12s%n", "linger", "messages/sec", "deliveries/sec", "seconds");
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));  // Hide output from Hub and Client.
+		Hub hub = null;
+		try {
+			hub = new Hub(PORT, transport);
+			ChatClient[] clients = new ChatClient[clientCount];
+			for (int i = 0; i < clientCount; i++)
+				clients[i] = new ChatClient(PORT);
+			long waitUntil = System.currentTimeMillis() + 60000;
+			while (clients[clientCount-1].playerCount() < clientCount && System.currentTimeMillis() < waitUntil)
+				Thread.sleep(10);  // Wait for all status messages to be delivered.
+			runTest(hub, clients, messageCount/10, 0);  // Warm up.
+			for (int linger : LINGER_TIMES) {
+				double seconds = runTest(hub, clients, messageCount, linger);
+				console.printf("%8d ms %14.0f %16.0f %12.2f%n", linger, messageCount / seconds,
+						(double)messageCount * clientCount / seconds, seconds);
+			}
+		}
+		finally {
+			if (hub != null)
+				hub.shutDownHub();
+			System.setOut(console);
+		}
+		System.exit(0);  // Some clients or hub threads might still be running.
+	}
+
+
+	/**
+	 * Sends a number of chat messages, taking turns among the first SENDERS clients,
+	 * and waits for every message to reach every client.
+	 * @return the time that it took, in seconds.
+	 */
+	private static double runTest(Hub hub, ChatClient[] clients, int messageCount, int linger)
+	                                                                      throws Exception {
+		hub.setWriteLinger(linger);
+		deliveries.set(0);
+		int senders = Math.min(SENDERS, clients.length);
+		long expected = (long)messageCount * clients.length;
+		long start = System.nanoTime();
+		for (int i = 0; i < messageCount; i++)
+			clients[i % senders].send("Message " + i + " from the chat room fan-out benchmark.");
+		long waitUntil = System.currentTimeMillis() + 120000;
+		while (deliveries.get() < expected) {
+			if (System.currentTimeMillis() > waitUntil)
+				throw new Exception("Only " + deliveries.get() + " of " + expected
+						+ " messages were delivered within 120 seconds.");
+			Thread.sleep(1);
+		}
+		return (System.nanoTime() - start) / 1e9;
+	}
+
+}
@@ -0,0 +1,218 @@
+package netgame.loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import netgame.common.Client;
+import netgame.common.ForwardedMessage;
+import netgame.common.Hub;
+
+/**
+ * A load test for the chat room server.  It starts the same kind of basic Hub
+ * that is used by netgame.chat.ChatRoomServer, opens a large number of clients
+ * on the local loopback connection, and measures (1) the memory used per
+ * connection and (2) the time it takes for a chat message to be broadcast to
+ * every client.
+ * The test is run twice, once with Hub.Transport.THREADS, where each connection
+ * uses two ordinary threads on each end, and once with Hub.Transport.VIRTUAL_THREADS,
+ * where all of those threads are virtual threads.  (Virtual threads require Java 21.
+ * With an older version of Java, the second test also uses ordinary threads.)
+ * <p>Usage:  java netgame.loadtest.ChatLoadHarness [clients [broadcasts]]
+ * <p>The default is 10000 clients and 20 broadcasts.  Note that the hub and all of the
+ * clients run in this program, so the memory figures include both ends of each
+ * connection.  "Heap" is the increase in used heap memory after garbage collection,
+ * which includes the stacks of virtual threads.  "Resident" is the increase in the
+ * resident set size of the process, which also includes the stacks of ordinary
+ * threads; it is only available on Linux.  With ordinary threads, 10000 clients
+ * need 40000 threads and 20000 sockets, which can exceed the limits set by the
+ * operating system (see "ulimit -u" and "ulimit -n" on Linux).
+ */
+public class ChatLoadHarness {
+
+	private final static int BASE_PORT = 37830;  // Ports for the two tests are BASE_PORT and BASE_PORT+1.
+
+	/**
+	 * Records the arrival of one broadcast message at each of the clients.
+	 */
+	private static class Broadcast {
+		final CountDownLatch done;
+		final long[] latencies;  // Arrival time minus send time, in nanoseconds, for each client.
+		final AtomicInteger arrivals = new AtomicInteger();
+		Broadcast(int clientCount) {
+			done = new CountDownLatch(clientCount);
+			latencies = new long[clientCount];
+		}
+		void arrived(long latency) {
+			int i = arrivals.getAndIncrement();
+			if (i < latencies.length) {
+				latencies[i] = latency;
+				done.countDown();
+			}
+		}
+	}
+
+	private static volatile Broadcast currentBroadcast;
+
+	/**
+	 * The clients for the test.  The message for a broadcast is a Long containing
+	 * the value of System.nanoTime() when the message was sent.  The hub wraps it
+	 * in a ForwardedMessage and sends it to every client.
+	 */
+	private static class LoadClient extends Client {
+		LoadClient(int port, boolean useVirtualThreads) throws IOException {
+			super("localhost", port, useVirtualThreads);
+		}
+		protected void messageReceived(Object message) {
+			if (message instanceof ForwardedMessage) {
+				Object sent = ((ForwardedMessage)message).message;
+				Broadcast b = currentBroadcast;
+				if (sent instanceof Long && b != null)
+					b.arrived(System.nanoTime() - (Long)sent);
+			}
+		}
+		int playerCount() {
+			return connectedPlayerIDs.length;
+		}
+	}
+
+
+	public static void main(String[] args) {
+		int clientCount = 10000;
+		int broadcastCount = 20;
+		try {
+			if (args.length > 0)
+				clientCount = Integer.parseInt(args[0]);
+			if (args.length > 1)
+				broadcastCount = Integer.parseInt(args[1]);
+		}
+		catch (NumberFormatException e) {
+			System.out.println("Usage:  java netgame.loadtest.ChatLoadHarness [clients [broadcasts]]");
+			return;
+		}
+		try {
+			Thread.class.getMethod("ofVirtual");
+		}
+		catch (NoSuchMethodException e) {
+			System.out.println("Note: Virtual threads require Java 21.  Both tests will use ordinary threads.");
+		}
+		Hub.Transport[] modes = { Hub.Transport.THREADS, Hub.Transport.VIRTUAL_THREADS };
+		for (int i = 0; i < modes.length; i++) {
+			try {
+				runTest(modes[i], BASE_PORT + i, clientCount, broadcastCount);
+			}
+			catch (Exception e) {
+				System.out.println("Test with " + modes[i] + " failed: " + e);
+			}
+		}
+		System.exit(0);  // Some clients or hub threads might still be running.
+	}
+
+
+	/**
+	 * Runs the test with one transport.  Hub and Client print a message for every
+	 * connection and every thread, so standard output is turned off while the
+	 * test runs.
+	 */
+	private static void runTest(Hub.Transport mode, int port, int clientCount, int broadcastCount)
+	                                                               throws Exception {
+		PrintStream console = System.out;
+		console.println();
+		console.println("Testing " + mode + " with " + clientCount + " clients...");
+		long heapBefore = usedHeap();
+		long residentBefore = residentSize();
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		Hub hub = null;
+		LoadClient[] clients = new LoadClient[clientCount];
+		try {
+			hub = new Hub(port, mode);
+			long connectStart = System.nanoTime();
+			for (int i = 0; i < clientCount; i++)
+				clients[i] = new LoadClient(port, mode == Hub.Transport.VIRTUAL_THREADS);
+			long waitUntil = System.currentTimeMillis() + 60000;
+			while (clients[0].playerCount() < clientCount && System.currentTimeMillis() < waitUntil)
+				Thread.sleep(10);  // Wait for all status messages to be delivered.
+			double connectSeconds = (System.nanoTime() - connectStart) / 1e9;
+			long heapAfter = usedHeap();
+			long residentAfter = residentSize();
+			int threadCount = ManagementFactory.getThreadMXBean().getThreadCount();
+
+			long[] allLatencies = new long[clientCount * broadcastCount];
+			long[] fanOutTimes = new long[broadcastCount];
+			int ct = 0;
+			for (int b = 0; b < broadcastCount; b++) {
+				Broadcast broadcast = new Broadcast(clientCount);
+				currentBroadcast = broadcast;
+				long start = System.nanoTime();
+				clients[b % clientCount].send(Long.valueOf(start));
+				if ( ! broadcast.done.await(60, TimeUnit.SECONDS) )
+					throw new Exception("Broadcast was not received by all clients within 60 seconds.");
+				fanOutTimes[b] = System.nanoTime() - start;
+				System.arraycopy(broadcast.latencies, 0, allLatencies, ct, clientCount);
+				ct += clientCount;
+			}
+			currentBroadcast = null;
+			Arrays.sort(allLatencies);
+			Arrays.sort(fanOutTimes);
+
+			console.printf("   Connected %d clients in %.1f seconds%n", clientCount, connectSeconds);
+			console.printf("   Platform threads in process: %d%n", threadCount);
+			console.printf("   Heap per connection:     %8.1f KB%n", (heapAfter - heapBefore) / 1024.0 / clientCount);
+			if (residentBefore >= 0 && residentAfter >= 0)
+				console.printf("   Resident per connection: %8.1f KB%n", (residentAfter - residentBefore) / 1024.0 / clientCount);
+			console.printf("   Broadcast latency, per client:  median %.2f ms, 99th percentile %.2f ms%n",
+					percentile(allLatencies, 0.5) / 1e6, percentile(allLatencies, 0.99) / 1e6);
+			console.printf("   Time to reach all clients:      median %.2f ms, max %.2f ms%n",
+					percentile(fanOutTimes, 0.5) / 1e6, fanOutTimes[fanOutTimes.length-1] / 1e6);
+		}
+		finally {
+			if (hub != null)
+				hub.shutDownHub();  // Also closes the connections to the clients.
+			System.setOut(console);
+		}
+	}
+
+	private static long percentile(long[] sorted, double fraction) {
+		int index = (int)Math.round(fraction * (sorted.length - 1));
+		return sorted[index];
+	}
+
+	/**
+	 * Returns the amount of heap memory in use after running the garbage collector.
+	 */
+	private static long usedHeap() throws InterruptedException {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/**
+	 * Returns the resident set size of this process, in bytes, by reading
+	 * the file /proc/self/status.  Returns -1 if that file is not available
+	 * (that is, if this is not Linux).
+	 */
+	private static long residentSize() {
+		try {
+			for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+				if (line.startsWith("VmRSS:")) {
+					String kb = line.substring(6).trim().split("\\s+")[0];
+					return Long.parseLong(kb) * 1024;
+				}
+			}
+		}
+		catch (Exception e) {
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,547 @@
+package netgame.loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import netgame.common.Client;
+import netgame.common.ForwardedMessage;
+import netgame.common.Hub;
+import netgame.common.JoinRoomMessage;
+import netgame.common.NetworkMetrics;
+import netgame.common.RoomHub;
+import netgame.fivecarddraw.PokerCodecs;
+import netgame.fivecarddraw.PokerGameState;
+import netgame.fivecarddraw.PokerHub;
+
+/**
+ * A headless load generator for netgame hubs.  It connects a large number of
+ * scripted "bots" to a hub, has them send messages at a configurable rate for a
+ * fixed amount of time, and measures how long it takes to connect, the round-trip
+ * latency of messages, and the throughput.  The results are printed and are also
+ * written to a report file in JSON format, so that the results of different runs
+ * can be compared by other programs; for example, to find out whether a change to
+ * Hub has made it slower.  The bots are subclasses of netgame.common.Client, so
+ * they use the same code as real clients.
+ * <p>There are three scenarios:
+ * <ul>
+ * <li><b>chat</b> &mdash; The bots are connected to a basic Hub, like the one that
+ * is used by ChatRoomServer, which forwards every message to every client.  Each bot
+ * sends messages at the given rate.  The round-trip time is the time from when a bot
+ * sends a message until the hub's forwarded copy of the message comes back to the same bot.
+ * Note that every message is delivered to every bot, so the amount of traffic grows
+ * as the square of the number of bots.</li>
+ * <li><b>rooms</b> &mdash; The bots are connected to a RoomHub and divided into chat
+ * rooms of a given size.  The messages are forwarded only to the bots in the same room.</li>
+ * <li><b>poker</b> &mdash; The bots play five card draw, in pairs.  Since a PokerHub
+ * accepts just two players, there is one hub for each pair of bots, on consecutive ports.
+ * Each bot takes its turn after a "think time" of 1/rate seconds, using a simple
+ * strategy that always sees or calls and never discards.  The round-trip time is the
+ * time from when a bot makes a move until it receives the new game state.</li>
+ * </ul>
+ * <p>By default, the hub (or hubs) are created in this program.  To test a hub that
+ * is running in another program, possibly on another computer, give its host name.
+ * <p>Usage:  java netgame.loadtest.LoadTest [name=value ...]
+ * <p>where the possible names and their default values are:
+ * <pre>
+ *    scenario=chat       chat, rooms, or poker
+ *    bots=100            number of bots
+ *    rate=1              messages (or poker moves) per second, for each bot
+ *    duration=30         length of the measurement, in seconds
+ *    roomSize=10         number of bots in each room, for the rooms scenario
+ *    host=local          "local" to create the hub in this program, or a host name
+ *    port=37870          port of the hub (the first port, for poker)
+ *    transport=selector  transport for a local hub: threads, virtual_threads, or selector
+ *    connectThreads=16   number of bots that can be connecting at the same time
+ *    report=loadtest-report.json
+ * </pre>
+ * <p>The bots and the local hub run in the same program, so for a serious test
+ * of a hub's capacity, the hub should be run in a separate program.  With thousands of
+ * bots, the operating system's limit on open files might have to be raised.
+ */
+public class LoadTest {
+
+	/**
+	 * The settings for a test, with their default values.
+	 */
+	private static class Settings {
+		String scenario = "chat";
+		int bots = 100;
+		double rate = 1;
+		int duration = 30;
+		int roomSize = 10;
+		String host = "local";
+		int port = 37870;
+		Hub.Transport transport = Hub.Transport.SELECTOR;
+		int connectThreads = 16;
+		String report = "loadtest-report.json";
+	}
+
+	private static Settings settings;
+
+	private static volatile boolean measuring;  // True during the measurement period.
+
+	private static final AtomicLong messagesSent = new AtomicLong();      // Counted only while measuring.
+	private static final AtomicLong messagesReceived = new AtomicLong();  // Counted only while measuring.
+	private static final AtomicLong botErrors = new AtomicLong();         // Bots whose connections failed.
+
+	private static ScheduledExecutorService timer;  // Runs the bots' scheduled actions.
+
+
+	//------------------------------------- The bots -------------------------------------------
+
+	/**
+	 * A Bot is a client that records the round-trip times of its messages.  The times
+	 * are recorded in the bot's receive thread; they are read after the test ends.
+	 */
+	private static abstract class Bot extends Client {
+
+		private long[] roundTrips = new long[64];  // Round-trip times, in nanoseconds.
+		private int roundTripCount;
+
+		Bot(String host, int port) throws IOException {
+			super(host, port, true);
+		}
+
+		/**
+		 * Starts the bot's activity, after all of the bots have connected.
+		 */
+		abstract void begin();
+
+		synchronized void recordRoundTrip(long nanos) {
+			if (roundTripCount == roundTrips.length)
+				roundTrips = Arrays.copyOf(roundTrips, 2*roundTrips.length);
+			roundTrips[roundTripCount++] = nanos;
+		}
+
+		synchronized long[] getRoundTrips() {
+			return Arrays.copyOf(roundTrips, roundTripCount);
+		}
+
+		/**
+		 * Sends a message, and counts it if the test is measuring.
+		 */
+		void sendCounted(Object message) {
+			if (measuring)
+				messagesSent.incrementAndGet();
+			send(message);
+		}
+
+		protected void connectionClosedByError(String message) {
+			botErrors.incrementAndGet();
+		}
+
+	}
+
+	/**
+	 * A bot for the chat and rooms scenarios.  It sends the current value of
+	 * System.nanoTime() as its message, at regular intervals.  When its own
+	 * message comes back, it records the round-trip time.
+	 */
+	private static class ChatBot extends Bot {
+
+		private final String room;  // The room to join, or null.
+
+		ChatBot(String host, int port, String room) throws IOException {
+			super(host, port);
+			this.room = room;
+			if (room != null)
+				send(new JoinRoomMessage(room));
+		}
+
+		void begin() {
+			long period = (long)(1e9 / settings.rate);
+			long delay = ThreadLocalRandom.current().nextLong(period);  // Spread out the bots' messages.
+			timer.scheduleAtFixedRate( () -> sendCounted(System.nanoTime()),
+					delay, period, TimeUnit.NANOSECONDS);
+		}
+
+		protected void messageReceived(Object message) {
+			if ( ! (message instanceof ForwardedMessage) )
+				return;
+			ForwardedMessage fm = (ForwardedMessage)message;
+			if (measuring) {
+				messagesReceived.incrementAndGet();
+				if (fm.senderID == getID() && fm.message instanceof Long)
+					recordRoundTrip(System.nanoTime() - (Long)fm.message);
+			}
+		}
+
+	}
+
+	/**
+	 * A bot for the poker scenario.  When it receives a game state that says it is
+	 * its turn, it waits for its think time and then makes its move.  Since the
+	 * moves of the two bots in a game alternate, no bot ever has more than one
+	 * move that is waiting for an answer.
+	 */
+	private static class PokerBot extends Bot {
+
+		private volatile long moveTime;  // When the last move was sent; 0 if no move is waiting for an answer.
+		private PokerGameState pending;  // A state that arrived before begin() was called.
+		private boolean started;         // Set to true by begin().
+
+		PokerBot(String host, int port) throws IOException {
+			super(host, port);
+		}
+
+		synchronized void begin() {
+			started = true;
+			if (pending != null)
+				respondTo(pending);
+		}
+
+		protected void messageReceived(Object message) {
+			if ( ! (message instanceof PokerGameState) )
+				return;  // Ignore strings and the opponent's cards.
+			PokerGameState state = (PokerGameState)message;
+			if (measuring) {
+				messagesReceived.incrementAndGet();
+				long sent = moveTime;
+				if (sent != 0)
+					recordRoundTrip(System.nanoTime() - sent);
+			}
+			moveTime = 0;
+			synchronized(this) {
+				if (started)
+					respondTo(state);
+				else
+					pending = state;
+			}
+		}
+
+		private void respondTo(PokerGameState state) {
+			Object move;
+			switch (state.status) {
+			case PokerGameState.DEAL:
+				move = "deal";
+				break;
+			case PokerGameState.BET_OR_FOLD:
+				move = 10;
+				break;
+			case PokerGameState.RAISE_SEE_OR_FOLD_ROUND_1:
+			case PokerGameState.RAISE_CALL_OR_FOLD_ROUND_2:
+				move = state.amountToSee;
+				break;
+			case PokerGameState.DRAW:
+				move = new int[0];
+				break;
+			default:
+				return;  // It's the opponent's turn.
+			}
+			try {
+				timer.schedule( () -> {
+					moveTime = System.nanoTime();
+					sendCounted(move);
+				}, (long)(1e9 / settings.rate), TimeUnit.NANOSECONDS);
+			}
+			catch (RejectedExecutionException e) {
+				// The test has ended, and the timer has been shut down.
+			}
+		}
+
+	}
+
+
+	//--------------------------------- Running the test -----------------------------------------
+
+	public static void main(String[] args) {
+		try {
+			settings = parseArgs(args);
+		}
+		catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.out.println("Usage:  java netgame.loadtest.LoadTest [name=value ...]");
+			System.out.println("See the documentation of the LoadTest class for the possible names.");
+			return;
+		}
+		PrintStream console = System.out;
+		try {
+			runTest(console);
+		}
+		catch (Exception e) {
+			System.setOut(console);
+			System.out.println("Load test failed: " + e);
+			e.printStackTrace();
+		}
+		System.exit(0);  // Some bots or hub threads might still be running.
+	}
+
+	/**
+	 * Runs the test and reports the results.  Hub and Client print a message for
+	 * every connection and every thread, so standard output is turned off while
+	 * the test runs.
+	 */
+	private static void runTest(PrintStream console) throws Exception {
+		console.printf("Scenario %s: %d bots, %s messages per second per bot, %d seconds%n",
+				settings.scenario, settings.bots, settings.rate, settings.duration);
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		if (settings.scenario.equals("poker"))
+			PokerCodecs.register();
+		timer = Executors.newScheduledThreadPool(4, runnable -> {
+			Thread t = new Thread(runnable, "Load test timer");
+			t.setDaemon(true);
+			return t;
+		});
+		Hub[] hubs = settings.host.equals("local") ? startLocalHubs() : new Hub[0];
+
+		/* Connect all of the bots, recording the time that each connection takes.  For poker,
+		 * the second bot at a table waits until the first one has connected, since PokerHub
+		 * expects its players to be accepted in the order of their ID numbers. */
+
+		console.println("Connecting...");
+		long connectStart = System.nanoTime();
+		ExecutorService connector = Executors.newFixedThreadPool(settings.connectThreads);
+		List<Future<Bot>> futures = new CopyOnWriteArrayList<>();
+		long[] connectTimes = new long[settings.bots];
+		for (int i = 0; i < settings.bots; i++) {
+			final int botNumber = i;
+			futures.add(connector.submit( () -> {
+				if (settings.scenario.equals("poker") && botNumber % 2 == 1)
+					waitFor(futures.get(botNumber - 1));
+				long start = System.nanoTime();
+				Bot bot = newBot(botNumber);
+				connectTimes[botNumber] = System.nanoTime() - start;
+				return bot;
+			}));
+		}
+		List<Bot> bots = new ArrayList<>();
+		int connectFailures = 0;
+		for (Future<Bot> f : futures) {
+			try {
+				bots.add(f.get());
+			}
+			catch (Exception e) {
+				connectFailures++;
+			}
+		}
+		connector.shutdown();
+		double connectSeconds = (System.nanoTime() - connectStart) / 1e9;
+		long[] goodConnectTimes = new long[bots.size()];
+		int ct = 0;
+		for (int i = 0; i < connectTimes.length; i++) {
+			if (connectTimes[i] > 0)
+				goodConnectTimes[ct++] = connectTimes[i];
+		}
+		goodConnectTimes = Arrays.copyOf(goodConnectTimes, ct);
+		console.printf("Connected %d bots in %.1f seconds (%d failed)%n", bots.size(), connectSeconds, connectFailures);
+		Thread.sleep(1000);  // Let the status messages and room changes settle down.
+
+		/* Run the bots, and measure for the specified duration, after a short warm-up. */
+
+		for (Bot bot : bots)
+			bot.begin();
+		Thread.sleep(2000);
+		console.println("Measuring...");
+		measuring = true;
+		long measureStart = System.nanoTime();
+		Thread.sleep(settings.duration * 1000L);
+		measuring = false;
+		double measureSeconds = (System.nanoTime() - measureStart) / 1e9;
+		timer.shutdownNow();
+		Thread.sleep(1000);  // Give messages that are in transit a chance to arrive.
+
+		/* Collect and report the results. */
+
+		long[] roundTrips = new long[0];
+		for (Bot bot : bots) {
+			long[] rt = bot.getRoundTrips();
+			int oldLength = roundTrips.length;
+			roundTrips = Arrays.copyOf(roundTrips, oldLength + rt.length);
+			System.arraycopy(rt, 0, roundTrips, oldLength, rt.length);
+		}
+		Arrays.sort(roundTrips);
+		Arrays.sort(goodConnectTimes);
+		String report = makeReport(bots.size(), connectFailures, connectSeconds, goodConnectTimes,
+				measureSeconds, roundTrips, hubs);
+		try (PrintWriter out = new PrintWriter(settings.report, "UTF-8")) {
+			out.println(report);
+		}
+		for (Hub hub : hubs)
+			hub.shutdownServerSocket();
+		System.setOut(console);
+		console.printf("Connect time:   median %.2f ms, 99th percentile %.2f ms, max %.2f ms%n",
+				percentile(goodConnectTimes, 0.5) / 1e6, percentile(goodConnectTimes, 0.99) / 1e6,
+				percentile(goodConnectTimes, 1) / 1e6);
+		console.printf("Round trip:     median %.2f ms, 90th %.2f ms, 99th %.2f ms, max %.2f ms (%d samples)%n",
+				percentile(roundTrips, 0.5) / 1e6, percentile(roundTrips, 0.9) / 1e6,
+				percentile(roundTrips, 0.99) / 1e6, percentile(roundTrips, 1) / 1e6, roundTrips.length);
+		console.printf("Throughput:     %.1f messages sent per second, %.1f received per second%n",
+				messagesSent.get() / measureSeconds, messagesReceived.get() / measureSeconds);
+		console.printf("Bot errors:     %d%n", botErrors.get());
+		console.println("Report written to " + settings.report);
+	}
+
+	/**
+	 * Creates the hub, or hubs, for a test in which the bots connect to hubs in this program.
+	 */
+	private static Hub[] startLocalHubs() throws IOException {
+		switch (settings.scenario) {
+		case "chat":
+			return new Hub[] { new Hub(settings.port, settings.transport) };
+		case "rooms":
+			return new Hub[] { new RoomHub(settings.port, settings.transport) };
+		default:
+			Hub[] hubs = new Hub[(settings.bots + 1) / 2];
+			for (int i = 0; i < hubs.length; i++)
+				hubs[i] = new PokerHub(settings.port + i, settings.transport);
+			return hubs;
+		}
+	}
+
+	/**
+	 * Creates and connects one bot.
+	 */
+	private static Bot newBot(int botNumber) throws IOException {
+		String host = settings.host.equals("local") ? "localhost" : settings.host;
+		switch (settings.scenario) {
+		case "chat":
+			return new ChatBot(host, settings.port, null);
+		case "rooms":
+			return new ChatBot(host, settings.port, "room" + (botNumber / settings.roomSize));
+		default:
+			return new PokerBot(host, settings.port + botNumber / 2);
+		}
+	}
+
+
+	//----------------------------------- Utility methods ----------------------------------------
+
+	/**
+	 * Waits for a bot to finish connecting, ignoring any error.
+	 */
+	private static void waitFor(Future<Bot> future) {
+		try {
+			future.get();
+		}
+		catch (Exception e) {
+		}
+	}
+
+	private static Settings parseArgs(String[] args) {
+		Settings s = new Settings();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq <= 0)
+				throw new IllegalArgumentException("Illegal argument: " + arg);
+			String name = arg.substring(0,eq);
+			String value = arg.substring(eq+1);
+			try {
+				switch (name) {
+				case "scenario":
+					if ( ! Arrays.asList("chat","rooms","poker").contains(value) )
+						throw new IllegalArgumentException("Unknown scenario: " + value);
+					s.scenario = value;
+					break;
+				case "bots": s.bots = Integer.parseInt(value); break;
+				case "rate": s.rate = Double.parseDouble(value); break;
+				case "duration": s.duration = Integer.parseInt(value); break;
+				case "roomSize": s.roomSize = Integer.parseInt(value); break;
+				case "host": s.host = value; break;
+				case "port": s.port = Integer.parseInt(value); break;
+				case "transport": s.transport = Hub.Transport.valueOf(value.toUpperCase()); break;
+				case "connectThreads": s.connectThreads = Integer.parseInt(value); break;
+				case "report": s.report = value; break;
+				default:
+					throw new IllegalArgumentException("Unknown setting: " + name);
+				}
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Illegal value for " + name + ": " + value);
+			}
+		}
+		if (s.bots < 1 || s.rate <= 0 || s.duration < 1 || s.roomSize < 1 || s.connectThreads < 1)
+			throw new IllegalArgumentException("bots, rate, duration, roomSize, and connectThreads must be positive.");
+		return s;
+	}
+
+	/**
+	 * Returns a value from a sorted array, such that the given fraction of
+	 * the values are less than or equal to it.  Returns 0 for an empty array.
+	 */
+	private static long percentile(long[] sorted, double fraction) {
+		if (sorted.length == 0)
+			return 0;
+		int index = (int)Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	/**
+	 * Makes the report, in JSON format.  Times are in milliseconds.
+	 */
+	private static String makeReport(int botCount, int connectFailures, double connectSeconds,
+	                                 long[] connectTimes, double measureSeconds, long[] roundTrips, Hub[] hubs) {
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"timestamp\": \"").append(java.time.Instant.now()).append("\",\n");
+		json.append("  \"settings\": {");
+		json.append(String.format(Locale.ROOT, " \"scenario\": \"%s\", \"bots\": %d, \"rate\": %s, \"duration\": %d, "
+				+ "\"roomSize\": %d, \"host\": \"%s\", \"port\": %d, \"transport\": \"%s\" },\n",
+				jsonEscape(settings.scenario), settings.bots, settings.rate, settings.duration, settings.roomSize,
+				jsonEscape(settings.host), settings.port, hubs.length > 0 ? hubs[0].getTransport() : ""));
+		json.append(String.format(Locale.ROOT, "  \"connect\": { \"connected\": %d, \"failed\": %d, \"seconds\": %.3f, %s },\n",
+				botCount, connectFailures, connectSeconds, percentilesJSON(connectTimes)));
+		json.append(String.format(Locale.ROOT, "  \"roundTrip\": { \"samples\": %d, %s },\n",
+				roundTrips.length, percentilesJSON(roundTrips)));
+		json.append(String.format(Locale.ROOT, "  \"throughput\": { \"seconds\": %.3f, \"sentPerSecond\": %.1f, "
+				+ "\"receivedPerSecond\": %.1f },\n",
+				measureSeconds, messagesSent.get() / measureSeconds, messagesReceived.get() / measureSeconds));
+		json.append("  \"botErrors\": ").append(botErrors.get());
+		if (hubs.length > 0) {
+			NetworkMetrics[] parts = new NetworkMetrics[hubs.length];
+			long dropped = 0;
+			for (int i = 0; i < hubs.length; i++) {
+				parts[i] = hubs[i].getMetrics();
+				dropped += hubs[i].getDroppedMessageCount();
+			}
+			NetworkMetrics m = NetworkMetrics.combine("All hubs", parts);
+			json.append(String.format(Locale.ROOT, ",\n  \"hub\": { \"hubs\": %d, \"messagesIn\": %d, \"messagesOut\": %d, "
+					+ "\"bytesIn\": %d, \"bytesOut\": %d, \"droppedMessages\": %d, \"handlerMeanMicros\": %.2f, "
+					+ "\"handlerP99Micros\": %.2f, \"serializationMeanMicros\": %.2f }",
+					hubs.length, m.getMessagesIn(), m.getMessagesOut(), m.getBytesIn(), m.getBytesOut(),
+					dropped, m.getHandlerMeanMicros(),
+					m.getHandler99thPercentileMicros(), m.getSerializationMeanMicros()));
+		}
+		json.append("\n}");
+		return json.toString();
+	}
+
+	/**
+	 * Returns a string with the characters that can't appear in a JSON string
+	 * escaped, so that it can be put between quotes in the report.
+	 */
+	private static String jsonEscape(String str) {
+		StringBuilder escaped = new StringBuilder();
+		for (int i = 0; i < str.length(); i++) {
+			char ch = str.charAt(i);
+			if (ch == '"' || ch == '\\')
+				escaped.append('\\').append(ch);
+			else if (ch < 32)
+				escaped.append(String.format("\\u%04x", (int)ch));
+			else
+				escaped.append(ch);
+		}
+		return escaped.toString();
+	}
+
+	private static String percentilesJSON(long[] sorted) {
+		return String.format(Locale.ROOT, "\"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, \"p999\": %.3f, \"max\": %.3f",
+				percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.9) / 1e6, percentile(sorted, 0.99) / 1e6,
+				percentile(sorted, 0.999) / 1e6, percentile(sorted, 1) / 1e6);
+	}
+
+}
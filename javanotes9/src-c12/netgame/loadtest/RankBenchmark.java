@@ -0,0 +1,178 @@
+package netgame.loadtest;
+
+import java.util.Random;
+
+import netgame.fivecarddraw.PokerCard;
+import netgame.fivecarddraw.PokerEvaluator;
+import netgame.fivecarddraw.PokerRank;
+
+/**
+ * A command-line program that checks PokerEvaluator against PokerRank and
+ * compares their speed.  First, it ranks every one of the 2,598,960 possible
+ * five-card hands with both classes and makes sure that the ranks agree.
+ * (That check can be skipped by giving "noverify" as a command-line argument.)
+ * Then it times several ways of ranking the same set of random hands:
+ * PokerRank with its descriptions, which is what PokerRank always did before
+ * PokerEvaluator was written; PokerRank.getRank() alone; PokerEvaluator's
+ * rank5() and rank7() methods, which work on card codes; and the batch methods
+ * PokerRank.rankHands() and rankHandsParallel().
+ * <p>Each method is run several times before it is timed, so that the Java
+ * virtual machine has a chance to compile it, and then the best of several
+ * timed runs is reported.  The ranks are added up and the sum is printed,
+ * so that the compiler can't decide that the work is useless and skip it.
+ * This is the same idea as the JMH benchmarking tool, without the tool.
+ * <p>Like LoadTest, this program is a test tool rather than part of the poker
+ * game, so it is kept in this package instead of netgame.fivecarddraw.
+ * It can be run with the command
+ * <pre>java netgame.loadtest.RankBenchmark</pre>
+ */
+public class RankBenchmark {
+
+	private static final int HANDS = 200000;  // The number of random hands in each timed run.
+	private static final int WARMUP_RUNS = 5;
+	private static final int TIMED_RUNS = 5;
+
+	private static long sink;  // Sum of all the ranks, printed at the end.
+
+	public static void main(String[] args) {
+		if ( ! (args.length > 0 && args[0].equalsIgnoreCase("noverify")) ) {
+			if ( ! verify() )
+				System.exit(1);
+		}
+		Random random = new Random(42);
+		int[] codes5 = randomHands(random, 5);
+		int[] codes7 = randomHands(random, 7);
+		PokerCard[][] cards5 = new PokerCard[HANDS][5];
+		for (int i = 0; i < HANDS; i++)
+			for (int j = 0; j < 5; j++)
+				cards5[i][j] = card(codes5[5*i + j]);
+		System.out.println("Nanoseconds per hand (best of " + TIMED_RUNS + " runs of " + HANDS + " hands):");
+		report("PokerRank, with descriptions", () -> {
+			for (PokerCard[] hand : cards5) {
+				PokerRank rank = new PokerRank(hand);
+				sink += rank.getRank() + rank.getLongDescription().length();
+			}
+		});
+		report("PokerRank.getRank()", () -> {
+			for (PokerCard[] hand : cards5)
+				sink += new PokerRank(hand).getRank();
+		});
+		report("PokerEvaluator.rank5()", () -> {
+			for (int i = 0; i < codes5.length; i += 5)
+				sink += PokerEvaluator.rank5(codes5, i);
+		});
+		report("PokerEvaluator.rank7()", () -> {
+			for (int i = 0; i < codes7.length; i += 7)
+				sink += PokerEvaluator.rank7(codes7, i);
+		});
+		int[] ranks = new int[HANDS];
+		report("PokerRank.rankHands(), 5 cards", () -> {
+			PokerRank.rankHands(codes5, 5, ranks);
+			sink += ranks[HANDS-1];
+		});
+		report("PokerRank.rankHands(), 7 cards", () -> {
+			PokerRank.rankHands(codes7, 7, ranks);
+			sink += ranks[HANDS-1];
+		});
+		report("rankHandsParallel(), 5 cards", () -> {
+			PokerRank.rankHandsParallel(codes5, 5, ranks);
+			sink += ranks[HANDS-1];
+		});
+		report("rankHandsParallel(), 7 cards", () -> {
+			PokerRank.rankHandsParallel(codes7, 7, ranks);
+			sink += ranks[HANDS-1];
+		});
+		System.out.println("(Checksum: " + sink + ")");
+	}
+
+	/**
+	 * Runs a benchmark, and prints the best time per hand.
+	 */
+	private static void report(String name, Runnable benchmark) {
+		for (int i = 0; i < WARMUP_RUNS; i++)
+			benchmark.run();
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < TIMED_RUNS; i++) {
+			long start = System.nanoTime();
+			benchmark.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.printf("   %-32s %8.1f%n", name, (double)best / HANDS);
+	}
+
+	/**
+	 * Ranks all five-card hands with both PokerRank and PokerEvaluator, and checks
+	 * that the ranks are the same.  For PokerRank, the long description is requested
+	 * first, so that the rank is computed by PokerRank's own algorithm, rather than
+	 * being looked up in PokerEvaluator's tables.  Also checks rank7() for
+	 * random seven-card hands against the best of the 21 five-card hands
+	 * that can be made from the same cards.
+	 */
+	private static boolean verify() {
+		System.out.println("Checking all five-card hands...");
+		int count = 0;
+		for (int a = 0; a < 52; a++)
+		 for (int b = a+1; b < 52; b++)
+		  for (int c = b+1; c < 52; c++)
+		   for (int d = c+1; d < 52; d++)
+		    for (int e = d+1; e < 52; e++) {
+				PokerRank pokerRank = new PokerRank(card(a), card(b), card(c), card(d), card(e));
+				pokerRank.getLongDescription();
+				int expected = pokerRank.getRank();
+				if (PokerEvaluator.rank5(a, b, c, d, e) != expected) {
+					System.out.println("Ranks differ for " + pokerRank.getCards());
+					return false;
+				}
+				count++;
+		    }
+		System.out.println("The ranks agree for all " + count + " hands.");
+		System.out.println("Checking random seven-card hands...");
+		Random random = new Random(17);
+		int[] hands = randomHands(random, 7);
+		int[] five = new int[5];
+		for (int h = 0; h < hands.length; h += 7) {
+			int best = 0;
+			for (int skip1 = 0; skip1 < 7; skip1++) {
+				for (int skip2 = skip1 + 1; skip2 < 7; skip2++) {
+					int n = 0;
+					for (int i = 0; i < 7; i++)
+						if (i != skip1 && i != skip2)
+							five[n++] = hands[h+i];
+					best = Math.max(best, PokerEvaluator.rank5(five, 0));
+				}
+			}
+			if (PokerEvaluator.rank7(hands, h) != best) {
+				System.out.println("rank7() is wrong for hand number " + h/7);
+				return false;
+			}
+		}
+		System.out.println("rank7() agrees for " + HANDS + " hands.");
+		return true;
+	}
+
+	/**
+	 * Makes HANDS random hands of a given size, each containing different cards,
+	 * stored one after the other in an array of card codes.
+	 */
+	private static int[] randomHands(Random random, int size) {
+		int[] deck = new int[52];
+		for (int i = 0; i < 52; i++)
+			deck[i] = i;
+		int[] hands = new int[HANDS*size];
+		for (int h = 0; h < HANDS; h++) {
+			for (int i = 0; i < size; i++) {
+				int j = i + random.nextInt(52 - i);
+				int temp = deck[i];
+				deck[i] = deck[j];
+				deck[j] = temp;
+				hands[h*size + i] = deck[i];
+			}
+		}
+		return hands;
+	}
+
+	private static PokerCard card(int code) {
+		return new PokerCard(code/4 + 2, code % 4);
+	}
+
+}
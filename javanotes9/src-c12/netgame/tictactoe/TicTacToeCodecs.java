@@ -0,0 +1,80 @@
+package netgame.tictactoe;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import netgame.common.MessageCodec;
+import netgame.common.MessageCodecs;
+
+/**
+ * Defines a MessageCodec for TicTacToeGameState, which is the message that
+ * TicTacToeGameHub sends to the players after every change in the state of
+ * the game.  The state is encoded in 14 bytes, with one byte for each square
+ * of the board.  The register() method must be called in both the hub and
+ * the client, before any messages are sent.  (It is called by static
+ * initializers in TicTacToeGameHub and TicTacToeWindow.)
+ */
+class TicTacToeCodecs {
+	
+	private final static int GAME_STATE = MessageCodecs.FIRST_APPLICATION_TYPE + 8;
+	
+	private final static int DISCONNECTED = 1;  // Bits in the "flags" byte.
+	private final static int HAS_BOARD = 2;
+	private final static int IN_PROGRESS = 4;
+	private final static int TIE = 8;
+	
+	private static boolean registered;
+	
+	/**
+	 * Registers the codec with the MessageCodecs class.  It is harmless to call
+	 * this more than once.
+	 */
+	static synchronized void register() {
+		if (registered)
+			return;
+		MessageCodecs.register(GAME_STATE, TicTacToeGameState.class, new MessageCodec<TicTacToeGameState>() {
+			public void write(TicTacToeGameState state, DataOutput out) throws IOException {
+				int flags = 0;
+				if (state.playerDisconnected)
+					flags |= DISCONNECTED;
+				if (state.board != null)
+					flags |= HAS_BOARD;
+				if (state.gameInProgress)
+					flags |= IN_PROGRESS;
+				if (state.gameEndedInTie)
+					flags |= TIE;
+				out.writeByte(flags);
+				if (state.board != null) {
+					for (int row = 0; row < 3; row++)
+						for (int col = 0; col < 3; col++)
+							out.writeByte(state.board[row][col]);
+				}
+				MessageCodecs.writeSignedVarInt(state.playerPlayingX,out);
+				MessageCodecs.writeSignedVarInt(state.playerPlayingO,out);
+				MessageCodecs.writeSignedVarInt(state.currentPlayer,out);
+				MessageCodecs.writeSignedVarInt(state.winner,out);
+			}
+			public TicTacToeGameState read(DataInput in) throws IOException {
+				TicTacToeGameState state = new TicTacToeGameState();
+				int flags = in.readByte();
+				state.playerDisconnected = (flags & DISCONNECTED) != 0;
+				state.gameInProgress = (flags & IN_PROGRESS) != 0;
+				state.gameEndedInTie = (flags & TIE) != 0;
+				if ((flags & HAS_BOARD) != 0) {
+					state.board = new char[3][3];
+					for (int row = 0; row < 3; row++)
+						for (int col = 0; col < 3; col++)
+							state.board[row][col] = (char)in.readUnsignedByte();
+				}
+				state.playerPlayingX = MessageCodecs.readSignedVarInt(in);
+				state.playerPlayingO = MessageCodecs.readSignedVarInt(in);
+				state.currentPlayer = MessageCodecs.readSignedVarInt(in);
+				state.winner = MessageCodecs.readSignedVarInt(in);
+				return state;
+			}
+		});
+		registered = true;
+	}
+	
+}
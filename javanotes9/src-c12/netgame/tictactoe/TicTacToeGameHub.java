@@ -2,6 +2,7 @@ package netgame.tictactoe;
 
 import java.io.IOException;
 
+import netgame.common.GameJournal;
 import netgame.common.Hub;
 
 /**
@@ -11,34 +12,61 @@ import netgame.common.Hub;
  * on the Hub.  When the state changes, the Hub sends the new 
  * state to both players, ensuring that both players see the
  * same state.
+ * <p>If the system property netgame.journalDir is set, the state is also
+ * saved in a GameJournal in that directory after every change.  If the hub
+ * is restarted while a game is in progress, the saved state is restored,
+ * and the game continues when two players have connected.
  */
 public class TicTacToeGameHub extends Hub {
 	
 	private TicTacToeGameState state;  // Records the state of the game.
+	
+	private GameJournal journal;  // If non-null, the state is saved here after each change.
+
+	static {
+		TicTacToeCodecs.register();  // The state is sent in the compact form defined in TicTacToeCodecs.
+	}
 
 	/**
-	 * Create a hub, listening on the specified port.  Note that this
-	 * method calls setAutoreset(true), which will cause the output stream
-	 * to each client to be reset before sending each message.  This is
-	 * essential since the same state object will be transmitted over and
-	 * over, with changes between each transmission.
+	 * Create a hub, listening on the specified port.  Note that the same
+	 * state object will be transmitted over and over, with changes between
+	 * each transmission.  This works because the Hub encodes each message
+	 * at the time when sendStateToAll() is called.  Usually, only the parts
+	 * of the state that have changed are actually transmitted.  If a game
+	 * journal is in use, a state that was saved by a previous run of the
+	 * hub on the same port is restored.
 	 * @param port the port number on which the hub will listen.
 	 * @throws IOException if a listener cannot be opened on the specified port.
 	 */
 	public TicTacToeGameHub(int port) throws IOException {
 		super(port);
 		state = new TicTacToeGameState();
-		setAutoreset(true);
+		journal = GameJournal.open("tictactoe-" + port);
+		if (journal != null) {
+			try {
+				TicTacToeGameState saved = (TicTacToeGameState)journal.recover(state);
+				if (saved != null) {
+					state = saved;
+					System.out.println("Restored the saved game state.");
+				}
+			}
+			catch (IOException e) {
+				System.out.println("Can't restore the saved game state: " + e);
+			}
+		}
 	}
 
 	/**
 	 * Responds when a message is received from a client.  In this case,
 	 * the message is applied to the game state, by calling state.applyMessage().
-	 * Then the possibly changed state is transmitted to all connected players.
+	 * Then the possibly changed state is transmitted to all connected players,
+	 * and it is saved in the journal, if there is one.
 	 */
 	protected void messageReceived(int playerID, Object message) {
 		state.applyMessage(playerID, message);
-		sendToAll(state);
+		sendStateToAll(state);
+		if (journal != null)
+			journal.record(state);
 	}
 
 	/**
@@ -46,13 +74,18 @@ public class TicTacToeGameHub extends Hub {
 	 * is the second player, then the server's listening socket is
 	 * shut down (because only two players are allowed), the 
 	 * first game is started, and the new state -- with the game
-	 * now in progress -- is transmitted to both players.
+	 * now in progress -- is transmitted to both players.  (If the
+	 * state was restored from the journal, the restored game is
+	 * sent instead of starting a new one.)
 	 */
 	protected void playerConnected(int playerID) {
 		if (getPlayerList().length == 2) {
 			shutdownServerSocket();
-			state.startFirstGame();
-			sendToAll(state);
+			if (state.board == null)
+				state.startFirstGame();
+			sendStateToAll(state);
+			if (journal != null)
+				journal.record(state);
 		}
 	}
 
@@ -62,9 +95,15 @@ public class TicTacToeGameHub extends Hub {
 	 * well.  This is accomplished by setting state.playerDisconnected
 	 * to true and sending the new state to the remaining player, if 
 	 * there is one, to notify that player that the game is over.
+	 * Since the game is over, the saved state is discarded.
 	 */
 	protected void playerDisconnected(int playerID) {
 		state.playerDisconnected = true;
-		sendToAll(state);
+		sendStateToAll(state);
+		if (journal != null) {
+			journal.discard();
+			journal.closeLater();  // (Don't wait for the disk while holding the hub's lock.)
+			journal = null;
+		}
 	}
 }
@@ -9,7 +9,10 @@ import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 
 import java.nio.IntBuffer;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * A canvas that can display a Mandelbrot set.  A call to startJob() will tell it
@@ -17,6 +20,13 @@ import java.util.concurrent.LinkedBlockingQueue;
  * to use and a palette for coloring the pixels.  Computations are done by background
  * threads.  The current computation, if any, can be aborted by calling stopJob().
  * All methods in this class should be called on the JavaFX application thread.
+ * <p>The computation is done by a ForkJoinPool, with one thread for each processor.
+ * A job starts as a single task for the whole image.  A task for a rectangle that
+ * is too large splits it in half and becomes two tasks, which are split again,
+ * until the pieces are small enough to compute directly.  An idle thread "steals"
+ * tasks from busy threads, so the threads stay busy even when some parts of the
+ * image take much longer to compute than others.  A task checks regularly whether
+ * its job has been stopped, and if so it simply quits.
  */
 public class MandelbrotCanvas extends Canvas {
 	
@@ -30,19 +40,25 @@ public class MandelbrotCanvas extends Canvas {
 	                         // This is set in startJob, which is only called from MandebrotPane.
 	                         // The palette holds colors represented as ints in AGBR format.
 	                         
-	private int[][] iterationCounts;     // The iteration counts for any rows that have been computed;
+	/* A task for a rectangle with no more than this many pixels is not split. */
+	private final static int MIN_TILE_SIZE = 1024;
+
+	/* Value in iterationCounts for a pixel that has not been computed. */
+	private final static int NOT_COMPUTED = -2;
+
+	private int[][] iterationCounts;     // The iteration counts for any pixels that have been computed;
 	                                     // iterationCounts[i] contains the counts for row number i.
-	                                     // All rows are empty at the start of a computation.
+	                                     // All pixels are NOT_COMPUTED at the start of a computation.
 	                                     // These are saved so that new palettes can be applied
 	                                     // without recomputing the iteration counts.
 	                         
 	private volatile int currentJobNum;  // This is incremented when a job is stopped.  Results from tasks in
 	                                     // a job that are completed after the job is stopped are discarded.
 	
-	private int tasksRemainingInJob;     // This is decremented by a MandelbrotTask when it completes.
+	private int pixelsRemainingInJob;    // This is decreased when a MandelbrotTask finishes a tile.
 	                                     // When it reaches 0, stopJob() is called.
 	
-	private LinkedBlockingQueue<MandelbrotTask> taskQueue; // For sending tasks to worker threads.
+	private ForkJoinPool pool;       // The threads that do the computations.
 	
 	private GraphicsContext g;       // Graphics context for this canvas.
 	private PixelWriter pixelWriter; // PixelWriter for setting pixel colors in this canvas.
@@ -51,16 +67,25 @@ public class MandelbrotCanvas extends Canvas {
 	/**
 	 * Create the canvas with a given width and height.  The constructor
 	 * creates the thread pool of worker threads that do the computations.
-	 * The canvas is initially fully transparent.
+	 * The threads run at a priority that is one less than the priority of
+	 * the thread that calls the constructor, so that the user interface
+	 * stays responsive.  The canvas is initially fully transparent.
 	 */
 	public MandelbrotCanvas(int width, int height) {
 		super(width,height);
 		g = getGraphicsContext2D();
-		taskQueue = new LinkedBlockingQueue<>();
+		int priority = Thread.currentThread().getPriority() - 1;
 		int processors = Runtime.getRuntime().availableProcessors();
-		for (int i = 0; i < processors; i++) {
-			new WorkerThread().start();
-		}
+		pool = new ForkJoinPool( processors, p -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+			try {
+				thread.setPriority(priority);
+			}
+			catch (Exception e) {
+			}
+			thread.setDaemon(true);
+			return thread;
+		}, null, false );
 	}
 	
 	
@@ -81,17 +106,15 @@ public class MandelbrotCanvas extends Canvas {
 	 */
 	public void setPalette( int[] palette ) {
 		this.palette = palette;
-		if (iterationCounts != null) {
-			int width = (int)getWidth();
+		if (iterationCounts != null && iterationCounts.length > 0) {
+			int width = iterationCounts[0].length;
 			int[] colors = new int[width];
 			for (int row = 0; row < iterationCounts.length; row++) {
-				if (iterationCounts[row] != null) {
-					int[] counts = iterationCounts[row];
-					for (int i = 0; i < width; i++) {
-						colors[i] = counts[i] == -1? 0xFF000000 : palette[counts[i] % palette.length];
-					}
-					pixelWriter.setPixels(0, row, width, 1, PIXEL_FORMAT, colors, 0, width);
+				int[] counts = iterationCounts[row];
+				for (int i = 0; i < width; i++) {
+					colors[i] = color(counts[i]);
 				}
+				pixelWriter.setPixels(0, row, width, 1, PIXEL_FORMAT, colors, 0, width);
 			}
 		}
 	}
@@ -110,27 +133,17 @@ public class MandelbrotCanvas extends Canvas {
 		this.palette = palette;
 		g.clearRect(0,0,getWidth(),getHeight());
 		pixelWriter = g.getPixelWriter();
-		tasksRemainingInJob = (int)getHeight();
-		iterationCounts = new int[tasksRemainingInJob][];
-		int count = (int)getWidth();
-		double dx = (xmax - xmin) / (count-1);
-		double dy = (ymax - ymin) / (tasksRemainingInJob - 1);
-		double x = xmin + dx/2;
-		double y = ymax - dy/2;
-		for (int i = 0; i < tasksRemainingInJob; i++) {
-			    // Create one task for each row of the image,
-			    // and add the tasks to the task queue.
-			MandelbrotTask task = new MandelbrotTask();
-			task.count = count;
-			task.jobNumber = currentJobNum;
-			task.rowNumber = i;
-			task.maxIterations = maxIterations;
-			task.xmin = x;
-			task.dx = dx;
-			task.y = y;
-			y -= dy;
-			taskQueue.add(task);
-		}
+		int width = (int)getWidth();
+		int height = (int)getHeight();
+		pixelsRemainingInJob = width*height;
+		iterationCounts = new int[height][width];
+		for (int[] row : iterationCounts)
+			Arrays.fill(row, NOT_COMPUTED);
+		double dx = (xmax - xmin) / (width-1);
+		double dy = (ymax - ymin) / (height-1);
+		    // One task for the whole image; it will split itself into smaller tasks.
+		pool.execute( new MandelbrotTask(currentJobNum, maxIterations,
+				xmin + dx/2, dx, ymax - dy/2, dy, 0, 0, width, height) );
 	}
 	
 	
@@ -138,46 +151,102 @@ public class MandelbrotCanvas extends Canvas {
 	 * Terminates the current computation, if there is one.
 	 */
 	public void stopJob() {
-		taskQueue.clear();
 		currentJobNum++; // stop tasks from previous jobs from being processed
 		working.set(false);
 	}
 		
 	
 	/**
-	 * A MandelbrotTask will compute the iteration counts for one
-	 * row of pixels in the mandelbrot image, and it will apply the
-	 * corresponding colors to pixels in that row.  (But if the
-	 * jobNumber recorded in this task is not equal to the
-	 * currentJobNumber in the canvas, results are just discarded.)
+	 * Returns the color for a pixel with a given iteration count, using the
+	 * current palette.  A count of -1 means the pixel is in the Mandelbrot set,
+	 * and it is colored black.  A pixel that has not been computed is
+	 * transparent.
 	 */
-	private class MandelbrotTask implements Runnable {
-		double xmin; // x-value at left edge of canvas
-		double dx;   // x-increment going from one pixel to the next
-		double y;    // y-value for this row of pixels
-		int count;   // number of pixels in this row
-		int maxIterations;  // maximum number of iterations to compute
-		int rowNumber;  // which row of pixels does this task work on
+	private int color(int count) {
+		if (count == -1)
+			return 0xFF000000;
+		else if (count == NOT_COMPUTED)
+			return 0;
+		else
+			return palette[count % palette.length];
+	}
+	
+	
+	/**
+	 * A MandelbrotTask will compute the iteration counts for a rectangle of
+	 * pixels in the mandelbrot image, and it will apply the corresponding
+	 * colors to those pixels.  If the rectangle contains more than MIN_TILE_SIZE
+	 * pixels, the task splits it in half, across its longer side, and the
+	 * two halves are done as separate tasks; either of them can be taken
+	 * by another thread in the pool.  (But if the jobNumber recorded in this
+	 * task is not equal to the currentJobNumber in the canvas, the task
+	 * stops, and any results are just discarded.)
+	 */
+	private class MandelbrotTask extends RecursiveAction {
 		int jobNumber;  // which job is this task a part of
-		public void run() {
-			int[] counts = new int[count];
-			for (int i = 0; i < count; i++) {
-				double x0 = xmin + i * dx;
-				double y0 = y;
-				double a = x0;
-				double b = y0;
-				int ct = 0;
-				while (a*a + b*b < 4.1) {  // The mandelbrot iteration
-					ct++;
-					if (ct > maxIterations) {
-						ct = -1;
-						break;
+		int maxIterations;  // maximum number of iterations to compute
+		double xmin; // x-value at the center of the left column of the canvas
+		double dx;   // x-increment going from one pixel to the next
+		double ymax; // y-value at the center of the top row of the canvas
+		double dy;   // y-decrement going from one row to the next
+		int left, top, width, height;  // the rectangle of pixels for this task
+		MandelbrotTask(int jobNumber, int maxIterations, double xmin, double dx, double ymax, double dy,
+				int left, int top, int width, int height) {
+			this.jobNumber = jobNumber;
+			this.maxIterations = maxIterations;
+			this.xmin = xmin;
+			this.dx = dx;
+			this.ymax = ymax;
+			this.dy = dy;
+			this.left = left;
+			this.top = top;
+			this.width = width;
+			this.height = height;
+		}
+		protected void compute() {
+			if (jobNumber != currentJobNum) {
+				   // The canvas has moved on to another job.
+				return;
+			}
+			if (width*height > MIN_TILE_SIZE) {
+				MandelbrotTask first, second;
+				if (width > height) {
+					int half = width/2;
+					first = new MandelbrotTask(jobNumber, maxIterations, xmin, dx, ymax, dy,
+							left, top, half, height);
+					second = new MandelbrotTask(jobNumber, maxIterations, xmin, dx, ymax, dy,
+							left + half, top, width - half, height);
+				}
+				else {
+					int half = height/2;
+					first = new MandelbrotTask(jobNumber, maxIterations, xmin, dx, ymax, dy,
+							left, top, width, half);
+					second = new MandelbrotTask(jobNumber, maxIterations, xmin, dx, ymax, dy,
+							left, top + half, width, height - half);
+				}
+				invokeAll(first, second);
+				return;
+			}
+			int[] counts = new int[width*height];
+			for (int r = 0; r < height; r++) {
+				double y0 = ymax - (top + r) * dy;
+				for (int i = 0; i < width; i++) {
+					double x0 = xmin + (left + i) * dx;
+					double a = x0;
+					double b = y0;
+					int ct = 0;
+					while (a*a + b*b < 4.1) {  // The mandelbrot iteration
+						ct++;
+						if (ct > maxIterations) {
+							ct = -1;
+							break;
+						}
+						double newa = a*a - b*b + x0;
+						b = 2*a*b + y0;
+						a = newa;
 					}
-					double newa = a*a - b*b + x0;
-					b = 2*a*b + y0;
-					a = newa;
+					counts[r*width + i] = ct;
 				}
-				counts[i] = ct;
 				if (jobNumber != currentJobNum) {
 					   // The canvas has moved on to another job.
 					return;
@@ -187,52 +256,19 @@ public class MandelbrotCanvas extends Canvas {
 				    // Apply data to pixels in the canvas.  This must be done
 				    // on the JavaFX application thread.
 				if (jobNumber == currentJobNum) {
-					int[] colors = new int[count];
-					for (int i = 0; i < count; i++) {
-						colors[i] = counts[i] == -1? 0xFF000000 : palette[counts[i] % palette.length];
+					int[] colors = new int[counts.length];
+					for (int i = 0; i < counts.length; i++) {
+						colors[i] = color(counts[i]);
 					}
-					pixelWriter.setPixels(0, rowNumber, count, 1, PIXEL_FORMAT, colors, 0, count);
-					iterationCounts[rowNumber] = counts;
-					tasksRemainingInJob--;
-					if (tasksRemainingInJob <= 0)
+					pixelWriter.setPixels(left, top, width, height, PIXEL_FORMAT, colors, 0, width);
+					for (int r = 0; r < height; r++)
+						System.arraycopy(counts, r*width, iterationCounts[top + r], left, width);
+					pixelsRemainingInJob -= counts.length;
+					if (pixelsRemainingInJob <= 0)
 						stopJob();
 				}
 			} );
 		}
 	}
-	
-	
-	/**
-	 * This class defines the worker threads that make up the thread pool.
-	 * A WorkerThread runs in a loop in which it retrieves a task from the 
-	 * taskQueue and calls the run() method in that task.  Note that if
-	 * the queue is empty, the thread blocks until a task becomes available
-	 * in the queue.  The thread will run at a priority the is one less
-	 * than the priority of the thread that calls the constructor.
-	 */
-	private class WorkerThread extends Thread {
-		WorkerThread() {
-			try {
-				setPriority( Thread.currentThread().getPriority() - 1);
-			}
-			catch (Exception e) {
-			}
-			try {
-				setDaemon(true);
-			}
-			catch (Exception e) {
-			}
-		}
-		public void run() {
-			while (true) {
-				try {
-					Runnable task = taskQueue.take();
-					task.run();
-				}
-				catch (InterruptedException e) {
-				}
-			}
-		}
-	}
 
 }
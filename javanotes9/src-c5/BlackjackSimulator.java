@@ -0,0 +1,382 @@
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A BlackjackSimulator plays a large number of hands of Blackjack, using a
+ * given strategy for the player, and reports how much the player can expect
+ * to win or lose per hand.  The cards come from a "shoe" of several decks
+ * (see the FastDeck class), which is reshuffled when a given fraction of it has
+ * been used.  The player's and dealer's hands are represented only by their
+ * totals (see the nested class Total), which are updated as cards are dealt.
+ * <p>The rules:  The dealer stands on all 17s.  A Blackjack pays 3 to 2.  If
+ * the dealer has Blackjack, the player loses the bet (unless the player also
+ * has Blackjack), and the player does not get to play.  The player can double
+ * the bet on the first two cards, and then gets exactly one more card.  To keep
+ * things simple, the player can't split pairs, surrender, or buy insurance.
+ * <p>A strategy is a table that tells the player what to do for each player
+ * total and each card that the dealer is showing (see the Strategy class).
+ * The simulation is split into tasks that are run by a ForkJoinPool, so it
+ * uses all of the available processors.  Each task has its own shoe and its
+ * own random number generator, split from the generator of the task that
+ * created it.  The main() routine compares several strategies.
+ */
+public class BlackjackSimulator {
+
+	/**
+	 * The number of hands that is played as one task, without splitting.
+	 */
+	private static final long TASK_SIZE = 500000;
+
+	/**
+	 * The shoe is always reshuffled before a hand if fewer than this many
+	 * cards are left, no matter what the penetration is.  A round uses this
+	 * many cards only very rarely; if it ever needs more, the shoe is
+	 * reshuffled in the middle of the round (see deal()).
+	 */
+	private static final int MAX_CARDS_PER_HAND = 20;
+
+	/**
+	 * A Strategy tells the player what to do in each situation.  There
+	 * are two tables, one for "hard" hands and one for "soft" hands (hands
+	 * containing an ace that is counted as 11).  Each row of a table is a
+	 * string of ten characters, giving the action for the dealer's up-card
+	 * 2, 3, 4, 5, 6, 7, 8, 9, 10, and ace.  The characters are:  'H' for hit,
+	 * 'S' for stand, 'D' for double if possible and otherwise hit, and 'd'
+	 * for double if possible and otherwise stand.
+	 */
+	public static class Strategy {
+
+		private final String name;
+		private final char[][] hard = new char[22][];  // Actions for hard totals, by total.
+		private final char[][] soft = new char[22][];  // Actions for soft totals, by total.
+
+		/**
+		 * Creates a strategy.
+		 * @param name a name for the strategy, which is used in reports.
+		 * @param hardRows the rows for hard totals 4 through 21, in that order.
+		 * @param softRows the rows for soft totals 12 through 21, in that order.
+		 * @throws IllegalArgumentException if there are not the right number of
+		 *    rows, or if a row is not ten legal action characters.
+		 */
+		public Strategy(String name, String[] hardRows, String[] softRows) {
+			if (hardRows.length != 18 || softRows.length != 10)
+				throw new IllegalArgumentException("A strategy needs 18 hard rows and 10 soft rows.");
+			this.name = name;
+			for (int i = 0; i < 18; i++)
+				hard[i+4] = row(hardRows[i]);
+			for (int i = 0; i < 10; i++)
+				soft[i+12] = row(softRows[i]);
+		}
+
+		private static char[] row(String row) {
+			if ( ! row.matches("[HSDd]{10}") )
+				throw new IllegalArgumentException("Illegal row in strategy table: " + row);
+			return row.toCharArray();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the action for a player's hand, one of the characters 'H',
+		 * 'S', or 'D' (for double the bet and take one card).  An action of 'D'
+		 * or 'd' in the table is changed to 'H' or 'S' when the hand has more
+		 * than two cards.
+		 * @param hand the player's hand, whose value must be 21 or less.
+		 * @param upCard the dealer's up-card, 2 to 11, where 11 is an ace.
+		 */
+		char action(Total hand, int upCard) {
+			char[] actions = hand.isSoft() ? soft[hand.getValue()] : hard[hand.getValue()];
+			char action = actions[upCard - 2];
+			if (action == 'd')
+				return hand.cards == 2 ? 'D' : 'S';
+			if (action == 'D' && hand.cards > 2)
+				return 'H';
+			return action;
+		}
+
+		/**
+		 * The "basic strategy" for this set of rules, for a shoe of several decks,
+		 * except that pairs are played as ordinary totals since splitting is
+		 * not allowed.
+		 */
+		public static final Strategy BASIC = new Strategy("Basic strategy",
+				new String[] {
+					"HHHHHHHHHH", "HHHHHHHHHH", "HHHHHHHHHH", "HHHHHHHHHH", "HHHHHHHHHH", // 4-8
+					"HDDDDHHHHH",  // 9
+					"DDDDDDDDHH",  // 10
+					"DDDDDDDDDH",  // 11
+					"HHSSSHHHHH",  // 12
+					"SSSSSHHHHH", "SSSSSHHHHH", "SSSSSHHHHH", "SSSSSHHHHH",  // 13-16
+					"SSSSSSSSSS", "SSSSSSSSSS", "SSSSSSSSSS", "SSSSSSSSSS", "SSSSSSSSSS"  // 17-21
+				},
+				new String[] {
+					"HHHHHHHHHH",  // 12 (two aces)
+					"HHHDDHHHHH", "HHHDDHHHHH",  // 13-14
+					"HHDDDHHHHH", "HHDDDHHHHH",  // 15-16
+					"HDDDDHHHHH",  // 17
+					"SddddSSHHH",  // 18
+					"SSSSSSSSSS", "SSSSSSSSSS", "SSSSSSSSSS"  // 19-21
+				});
+
+		/**
+		 * Plays like the dealer:  hits any total less than 17, and never doubles.
+		 */
+		public static final Strategy MIMIC_DEALER = simple("Mimic the dealer", 17);
+
+		/**
+		 * Never risks going over 21:  hits only when the total is less than 12.
+		 */
+		public static final Strategy NEVER_BUST = simple("Never bust", 12);
+
+		/**
+		 * Makes a strategy that hits when the total is less than a given value,
+		 * and otherwise stands.
+		 */
+		private static Strategy simple(String name, int standAt) {
+			String[] hardRows = new String[18];
+			for (int i = 0; i < 18; i++)
+				hardRows[i] = (i + 4 < standAt) ? "HHHHHHHHHH" : "SSSSSSSSSS";
+			String[] softRows = new String[10];
+			for (int i = 0; i < 10; i++)
+				softRows[i] = (i + 12 < standAt) ? "HHHHHHHHHH" : "SSSSSSSSSS";
+			return new Strategy(name, hardRows, softRows);
+		}
+
+	} // end nested class Strategy
+
+	/**
+	 * The total of a Blackjack hand, which is all that the simulation needs
+	 * to know about the hand.  It is updated as each card is added, so
+	 * the value of the hand never has to be recomputed from the cards.
+	 * (This is the same computation as getBlackjackValue() in class
+	 * BlackjackHand, done one card at a time.)
+	 */
+	private static class Total {
+		int hardValue;  // The total of the cards, counting every ace as 1.
+		boolean ace;    // Set to true if the hand contains an ace.
+		int cards;      // The number of cards in the hand.
+		int firstCard;  // The value, 1 to 10, of the first card in the hand.
+		void clear() {
+			hardValue = 0;
+			ace = false;
+			cards = 0;
+		}
+		void addCard(Card card) {
+			int cardVal = card.getValue();  // The normal value, 1 to 13.
+			if (cardVal > 10)
+				cardVal = 10;   // For a Jack, Queen, or King.
+			if (cardVal == 1)
+				ace = true;
+			if (cards == 0)
+				firstCard = cardVal;
+			hardValue += cardVal;
+			cards++;
+		}
+		/**
+		 * Tells whether the hand is "soft", that is, whether it contains an
+		 * ace that is being counted as 11.
+		 */
+		boolean isSoft() {
+			return ace && hardValue + 10 <= 21;
+		}
+		int getValue() {
+			return isSoft() ? hardValue + 10 : hardValue;
+		}
+	}
+
+	/**
+	 * The result of a simulation.
+	 */
+	public static class Result {
+		public final long hands;         // The number of hands played.
+		public final double net;         // The total amount won, in units of the basic bet.
+		public final double sumSquares;  // The sum of the squares of the amounts won.
+		Result(long hands, double net, double sumSquares) {
+			this.hands = hands;
+			this.net = net;
+			this.sumSquares = sumSquares;
+		}
+		/**
+		 * Returns the expected amount won per hand, as a fraction of the basic bet.
+		 * (A negative value means that the player loses money.)
+		 */
+		public double getExpectedValue() {
+			return net / hands;
+		}
+		/**
+		 * Returns the standard error of the expected value, which gives
+		 * an idea of how accurate it is.
+		 */
+		public double getStandardError() {
+			double mean = net / hands;
+			double variance = sumSquares / hands - mean*mean;
+			return Math.sqrt(variance / hands);
+		}
+	}
+
+	private final int decks;
+	private final double penetration;
+	private final ForkJoinPool pool;
+	private final SplittableRandom random;
+
+	/**
+	 * Creates a simulator that uses a six-deck shoe, reshuffled when 75% of the
+	 * cards have been used, and runs in the common ForkJoinPool.
+	 */
+	public BlackjackSimulator() {
+		this(6, 0.75, ForkJoinPool.commonPool(), new SplittableRandom());
+	}
+
+	/**
+	 * Creates a simulator.
+	 * @param decks the number of decks in the shoe, from 1 to 16.
+	 * @param penetration the fraction of the shoe that is used before it is
+	 *    reshuffled, from 0.25 to 0.9.
+	 * @param pool the pool of threads that runs the simulations.
+	 * @param random the generator that is split to make the generators for the
+	 *    tasks.  If it is created with a seed, the results are repeatable.
+	 */
+	public BlackjackSimulator(int decks, double penetration, ForkJoinPool pool, SplittableRandom random) {
+		if (decks < 1 || decks > 16)
+			throw new IllegalArgumentException("The number of decks must be between 1 and 16.");
+		if ( ! (penetration >= 0.25 && penetration <= 0.9) )
+			throw new IllegalArgumentException("The penetration must be between 0.25 and 0.9.");
+		this.decks = decks;
+		this.penetration = penetration;
+		this.pool = pool;
+		this.random = random;
+	}
+
+	/**
+	 * Plays a given number of hands with a given strategy.
+	 */
+	public Result simulate(Strategy strategy, long hands) {
+		if (hands < 1)
+			throw new IllegalArgumentException("The number of hands must be positive.");
+		SplittableRandom generator;
+		synchronized(this) {
+			generator = random.split();
+		}
+		return pool.invoke(new Hands(strategy, hands, generator));
+	}
+
+
+	// --------------------- the private implementation section -------------------
+
+	/**
+	 * Plays a number of hands, splitting them into two tasks if there are
+	 * too many for one task.
+	 */
+	private class Hands extends RecursiveTask<Result> {
+		final Strategy strategy;
+		final long hands;
+		final SplittableRandom random;
+		Hands(Strategy strategy, long hands, SplittableRandom random) {
+			this.strategy = strategy;
+			this.hands = hands;
+			this.random = random;
+		}
+		protected Result compute() {
+			if (hands > TASK_SIZE) {
+				long half = hands / 2;
+				Hands first = new Hands(strategy, half, random.split());
+				Hands second = new Hands(strategy, hands - half, random);
+				first.fork();
+				Result r2 = second.compute();
+				Result r1 = first.join();
+				return new Result(r1.hands + r2.hands, r1.net + r2.net, r1.sumSquares + r2.sumSquares);
+			}
+			FastDeck shoe = new FastDeck(decks, random);
+			shoe.shuffle();
+			int reshuffleAt = (int)(52*decks*(1 - penetration));  // Cards left when the shoe is reshuffled.
+			reshuffleAt = Math.max(reshuffleAt, MAX_CARDS_PER_HAND);
+			Total player = new Total();
+			Total dealer = new Total();
+			double net = 0, sumSquares = 0;
+			for (long i = 0; i < hands; i++) {
+				if (shoe.cardsLeft() < reshuffleAt)
+					shoe.shuffle();
+				double won = playHand(strategy, shoe, player, dealer);
+				net += won;
+				sumSquares += won*won;
+			}
+			return new Result(hands, net, sumSquares);
+		}
+	}
+
+	/**
+	 * Plays one hand, and returns the amount won by the player (negative for a loss).
+	 */
+	private static double playHand(Strategy strategy, FastDeck shoe, Total player, Total dealer) {
+		player.clear();
+		dealer.clear();
+		player.addCard(deal(shoe));
+		dealer.addCard(deal(shoe));
+		player.addCard(deal(shoe));
+		dealer.addCard(deal(shoe));
+		int upCard = (dealer.firstCard == 1) ? 11 : dealer.firstCard;
+		boolean playerBlackjack = player.getValue() == 21;
+		if (dealer.getValue() == 21)
+			return playerBlackjack ? 0 : -1;
+		if (playerBlackjack)
+			return 1.5;
+		int bet = 1;
+		while (player.getValue() < 21) {
+			char action = strategy.action(player, upCard);
+			if (action == 'S')
+				break;
+			player.addCard(deal(shoe));
+			if (action == 'D') {
+				bet = 2;
+				break;
+			}
+		}
+		int playerValue = player.getValue();
+		if (playerValue > 21)
+			return -bet;
+		while (dealer.getValue() < 17)
+			dealer.addCard(deal(shoe));
+		int dealerValue = dealer.getValue();
+		if (dealerValue > 21 || playerValue > dealerValue)
+			return bet;
+		else if (playerValue < dealerValue)
+			return -bet;
+		else
+			return 0;
+	}
+
+	/**
+	 * Deals a card from the shoe.  If the shoe is empty, which can only happen
+	 * with a small shoe and an unusually long round, it is reshuffled first.
+	 */
+	private static Card deal(FastDeck shoe) {
+		if (shoe.cardsLeft() == 0)
+			shoe.shuffle();
+		return shoe.dealCard();
+	}
+
+	/**
+	 * Compares the built-in strategies.  The number of hands for each strategy
+	 * can be given as a command-line argument; the default is 100 million.
+	 */
+	public static void main(String[] args) {
+		long hands = 100000000;
+		if (args.length > 0)
+			hands = Long.parseLong(args[0]);
+		BlackjackSimulator simulator = new BlackjackSimulator();
+		System.out.println("Playing " + hands + " hands with each strategy, using "
+				+ ForkJoinPool.commonPool().getParallelism() + " threads.");
+		for (Strategy strategy : new Strategy[] { Strategy.BASIC, Strategy.MIMIC_DEALER, Strategy.NEVER_BUST }) {
+			long start = System.nanoTime();
+			Result result = simulator.simulate(strategy, hands);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.printf("%-20s expected value %+.3f%% (+/- %.3f%%)   %.1f million hands per second%n",
+					strategy.getName(), 100*result.getExpectedValue(), 100*result.getStandardError(),
+					hands / seconds / 1e6);
+		}
+	}
+
+} // end class BlackjackSimulator
@@ -0,0 +1,263 @@
+/**
+ * A CountedHand is a hand of cards that can be used in place of a Hand
+ * when a program needs to ask many questions about the cards in a hand.
+ * It has the same methods as class Hand, and some additional ones.
+ * <p>Besides the list of cards, a CountedHand keeps counts of how many
+ * cards it holds of each suit, of each value, and of each individual
+ * card.  The counts are updated when a card is added or removed, so
+ * questions such as "how many hearts are in the hand?" can be answered
+ * in constant time, without looking at the cards.  The counts also make
+ * sorting fast, and a hand remembers how it was last sorted, so sorting
+ * it again costs nothing unless a card has been added out of order
+ * since then.
+ * <p>Note that removeCard(Card) still has to search the list for the
+ * card, so its run time is proportional to the number of cards in the
+ * hand, just as for a Hand.  Adding a card, removing the card at a
+ * given position from the end of the hand, and the count methods take
+ * constant time.
+ */
+
+import java.util.ArrayList;
+
+public class CountedHand {
+
+	private final static int UNSORTED = 0;  // Values for the order variable.
+	private final static int BY_SUIT = 1;
+	private final static int BY_VALUE = 2;
+
+	private ArrayList<Card> hand;   // The cards in the hand.
+
+	private int[] suitCounts = new int[5];   // Number of cards of each suit, including JOKER.
+	private int[] valueCounts = new int[14]; // Number of non-Joker cards of each value, 1 to 13.
+	private int[] cardCounts = new int[65];  // Number of cards with each suit and value, indexed
+	                                         //    by 13*suit + value - 1.
+	private int oddJokers;  // Number of Jokers whose value is not in the range 1 to 13.
+
+	private int order;  // UNSORTED, or BY_SUIT or BY_VALUE if the hand is known to be in that order.
+
+	/**
+	 * Create a hand that is initially empty.
+	 */
+	public CountedHand() {
+		hand = new ArrayList<Card>();
+	}
+
+	/**
+	 * Remove all cards from the hand, leaving it empty.
+	 */
+	public void clear() {
+		for (Card c : hand)
+			count(c, -1);  // Faster than zeroing the count arrays, for a small hand.
+		hand.clear();
+		order = UNSORTED;
+	}
+
+	/**
+	 * Add a card to the hand.  It is added at the end of the current hand.
+	 * @param c the non-null card to be added.
+	 * @throws NullPointerException if the parameter c is null.
+	 */
+	public void addCard(Card c) {
+		if (c == null)
+			throw new NullPointerException("Can't add a null card to a hand.");
+		if (order != UNSORTED && hand.size() > 0) {
+			int last = sortKey(hand.get(hand.size() - 1), order);
+			int key = sortKey(c, order);
+			if (key == -1 || last == -1 || key < last)
+				order = UNSORTED;  // The new card is out of order.
+		}
+		hand.add(c);
+		count(c, 1);
+	}
+
+	/**
+	 * Remove a card from the hand, if present.
+	 * @param c the card to be removed.  If c is null or if the card is not in 
+	 * the hand, then nothing is done.
+	 */
+	public void removeCard(Card c) {
+		if (c != null && hand.remove(c))
+			count(c, -1);
+	}
+
+	/**
+	 * Remove the card in a specified position from the hand.
+	 * @param position the position of the card that is to be removed, where
+	 * positions are numbered starting from zero.
+	 * @throws IllegalArgumentException if the position does not exist in
+	 * the hand, that is if the position is less than 0 or greater than
+	 * or equal to the number of cards in the hand.
+	 */
+	public void removeCard(int position) {
+		if (position < 0 || position >= hand.size())
+			throw new IllegalArgumentException("Position does not exist in hand: "
+					+ position);
+		count(hand.remove(position), -1);
+	}
+
+	/**
+	 * Returns the number of cards in the hand.
+	 */
+	public int getCardCount() {
+		return hand.size();
+	}
+
+	/**
+	 * Gets the card in a specified position in the hand.  (Note that this card
+	 * is not removed from the hand!)
+	 * @param position the position of the card that is to be returned
+	 * @throws IllegalArgumentException if position does not exist in the hand
+	 */
+	public Card getCard(int position) {
+		if (position < 0 || position >= hand.size())
+			throw new IllegalArgumentException("Position does not exist in hand: "
+					+ position);
+		return hand.get(position);
+	}
+
+	/**
+	 * Returns the number of cards in the hand that belong to a given suit.
+	 * @param suit one of Card.SPADES, Card.HEARTS, Card.DIAMONDS, Card.CLUBS,
+	 *    or Card.JOKER.
+	 * @throws IllegalArgumentException if the suit is not one of those values.
+	 */
+	public int getSuitCount(int suit) {
+		if (suit < Card.SPADES || suit > Card.JOKER)
+			throw new IllegalArgumentException("Illegal suit: " + suit);
+		return suitCounts[suit];
+	}
+
+	/**
+	 * Returns the number of cards in the hand that have a given value.
+	 * Jokers are not counted.
+	 * @param value a card value, from 1 (for an ace) to 13 (for a king).
+	 * @throws IllegalArgumentException if the value is not in that range.
+	 */
+	public int getValueCount(int value) {
+		if (value < 1 || value > 13)
+			throw new IllegalArgumentException("Illegal card value: " + value);
+		return valueCounts[value];
+	}
+
+	/**
+	 * Returns the number of cards in the hand that have a given value and
+	 * suit.  This is 0 or 1 for cards from a single deck, but a hand can
+	 * contain more than one copy of a card, for example when the cards
+	 * come from a shoe made of several decks.
+	 * @param value the value of the card, from 1 to 13.
+	 * @param suit the suit of the card.  This can be Card.JOKER, in which
+	 *    case the value is the value of the Joker.
+	 * @throws IllegalArgumentException if the value or suit is not legal.
+	 */
+	public int getCount(int value, int suit) {
+		if (suit < Card.SPADES || suit > Card.JOKER)
+			throw new IllegalArgumentException("Illegal suit: " + suit);
+		if (value < 1 || value > 13)
+			throw new IllegalArgumentException("Illegal card value: " + value);
+		return cardCounts[13*suit + value - 1];
+	}
+
+	/**
+	 * Sorts the cards in the hand so that cards of the same suit are
+	 * grouped together, and within a suit the cards are sorted by value.
+	 * Note that aces are considered to have the lowest value, 1.
+	 * (Jokers come last.)  If the hand is already in this order,
+	 * nothing needs to be done.
+	 */
+	public void sortBySuit() {
+		if (order != BY_SUIT) {
+			sort(BY_SUIT);
+			order = BY_SUIT;
+		}
+	}
+
+	/**
+	 * Sorts the cards in the hand so that cards of the same value are
+	 * grouped together.  Cards with the same value are sorted by suit.
+	 * Note that aces are considered to have the lowest value, 1.
+	 * If the hand is already in this order, nothing needs to be done.
+	 */
+	public void sortByValue() {
+		if (order != BY_VALUE) {
+			sort(BY_VALUE);
+			order = BY_VALUE;
+		}
+	}
+
+
+	// --------------------- the private implementation section -------------------
+
+	/**
+	 * Returns the position of a card in the sorted order, as a number from
+	 * 0 to 64, or -1 for a Joker whose value is not in the range 1 to 13.
+	 * For BY_SUIT, the cards are numbered first by suit and then by value;
+	 * for BY_VALUE, they are numbered first by value and then by suit.
+	 */
+	private static int sortKey(Card c, int sortOrder) {
+		int value = c.getValue();
+		if (value < 1 || value > 13)
+			return -1;
+		if (sortOrder == BY_SUIT)
+			return 13*c.getSuit() + value - 1;
+		else
+			return 5*(value - 1) + c.getSuit();
+	}
+
+	/**
+	 * Puts the cards in order by sortKey(), using a counting sort.  The number
+	 * of cards of each kind is already known from cardCounts, so the place where
+	 * each card belongs can be found without comparing it to other cards.  The
+	 * sort is stable, so equal cards stay in the same order, just as with the
+	 * selection sort in class Hand.  (For the rare hand that contains a Joker
+	 * whose value is not 1 to 13, an ordinary sort is used instead.)
+	 */
+	private void sort(int sortOrder) {
+		if (oddJokers > 0) {
+			hand.sort( (c1,c2) -> {
+				int s1 = sortOrder == BY_SUIT ? c1.getSuit() : c1.getValue();
+				int s2 = sortOrder == BY_SUIT ? c2.getSuit() : c2.getValue();
+				if (s1 != s2)
+					return Integer.compare(s1, s2);
+				int v1 = sortOrder == BY_SUIT ? c1.getValue() : c1.getSuit();
+				int v2 = sortOrder == BY_SUIT ? c2.getValue() : c2.getSuit();
+				return Integer.compare(v1, v2);
+			} );
+			return;
+		}
+		int[] start = new int[65];  // Where the first card with each key goes.
+		int position = 0;
+		for (int key = 0; key < 65; key++) {
+			start[key] = position;
+			if (sortOrder == BY_SUIT)
+				position += cardCounts[key];
+			else
+				position += cardCounts[13*(key % 5) + key / 5];
+		}
+		Card[] sorted = new Card[hand.size()];
+		for (Card c : hand) {
+			int key = sortKey(c, sortOrder);
+			sorted[start[key]] = c;
+			start[key]++;
+		}
+		for (int i = 0; i < sorted.length; i++)
+			hand.set(i, sorted[i]);
+	}
+
+	/**
+	 * Adds a card to the counts (if direction is 1) or removes it from the
+	 * counts (if direction is -1).
+	 */
+	private void count(Card c, int direction) {
+		int suit = c.getSuit();
+		int value = c.getValue();
+		suitCounts[suit] += direction;
+		if (value < 1 || value > 13)
+			oddJokers += direction;  // Only possible for a Joker.
+		else {
+			cardCounts[13*suit + value - 1] += direction;
+			if (suit != Card.JOKER)
+				valueCounts[value] += direction;
+		}
+	}
+
+}
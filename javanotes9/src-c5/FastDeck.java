@@ -0,0 +1,215 @@
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+
+/**
+ *  A FastDeck is a deck of playing cards that can be used in place of a
+ *  Deck in programs that deal a great many cards, such as simulations.
+ *  It has the same methods as class Deck, plus a few more.  Like a Deck,
+ *  it contains the 52 regular cards and can optionally include two Jokers;
+ *  it can also be a "shoe" made of several decks.
+ *  <p>Each card has a "card code" in the range 0 to 53, which is its
+ *  position in a new, unshuffled deck:  13*suit + value - 1 for a
+ *  regular card, and 52 and 53 for the two Jokers.  The deck stores codes
+ *  rather than Card objects.  The cards that are returned by dealCard()
+ *  come from a table that is shared by all decks, so no new objects are
+ *  created.  The dealHand() method gives the codes themselves, for
+ *  programs such as simulations that deal a great many cards.
+ *  <p>The deck is not shuffled all at once.  Instead, each time a card
+ *  is dealt from a shuffled deck, it is chosen at random from the cards
+ *  that have not yet been dealt.  The result is just as random, but no
+ *  time is spent shuffling cards that are never dealt.
+ */
+public class FastDeck {
+
+	/**
+	 * The cards for the card codes 0 to 53, shared by all decks.  (Card
+	 * objects can't be changed, so they can safely be shared.)
+	 */
+	private final static Card[] CARDS = new Card[54];
+
+	static {
+		for ( int suit = 0; suit <= 3; suit++ ) {
+			for ( int value = 1; value <= 13; value++ )
+				CARDS[13*suit + value - 1] = new Card(value,suit);
+		}
+		CARDS[52] = new Card(1,Card.JOKER);
+		CARDS[53] = new Card(2,Card.JOKER);
+	}
+
+	/**
+	 * The codes of the 52 or 54 cards in the deck.  A 54-card deck contains
+	 * two Jokers, in addition to the 52 cards of a regular poker deck.
+	 */
+	private int[] deck;
+
+	/**
+	 * Keeps track of the number of cards that have been dealt from
+	 * the deck so far.
+	 */
+	private int cardsUsed;
+
+	/**
+	 * This is false for a new deck, which deals its cards in sorted order.
+	 * It becomes true when the deck is shuffled.
+	 */
+	private boolean shuffled;
+
+	/**
+	 * The random number generator that is used for shuffling.
+	 */
+	private final RandomGenerator random;
+
+	/**
+	 * Constructs a regular 52-card poker deck.  Initially, the cards
+	 * are in a sorted order.  The shuffle() method can be called to
+	 * randomize the order.  (Note that "new FastDeck()" is equivalent
+	 * to "new FastDeck(false)".)
+	 */
+	public FastDeck() {
+		this(false);  // Just call the other constructor in this class.
+	}
+
+	/**
+	 * Constructs a poker deck of playing cards, The deck contains
+	 * the usual 52 cards and can optionally contain two Jokers
+	 * in addition, for a total of 54 cards.   Initially the cards
+	 * are in a sorted order.  The shuffle() method can be called to
+	 * randomize the order.
+	 * @param includeJokers if true, two Jokers are included in the deck; if false,
+	 * there are no Jokers in the deck.
+	 */
+	public FastDeck(boolean includeJokers) {
+		this(includeJokers, new SplittableRandom());
+	}
+
+	/**
+	 * Constructs a deck that uses a specified random number generator
+	 * for shuffling.  A generator that is created with a known seed will
+	 * give the same sequence of deals every time.
+	 * @param includeJokers if true, two Jokers are included in the deck.
+	 * @param random the random number generator.  This cannot be null.
+	 */
+	public FastDeck(boolean includeJokers, RandomGenerator random) {
+		if (random == null)
+			throw new IllegalArgumentException("The random number generator can't be null.");
+		this.random = random;
+		if (includeJokers)
+			deck = new int[54];
+		else
+			deck = new int[52];
+		for ( int i = 0; i < deck.length; i++ )
+			deck[i] = i;  // The codes are in order in a new deck.
+		cardsUsed = 0;
+	}
+
+	/**
+	 * Constructs a "shoe" that contains several regular 52-card decks
+	 * mixed together, like the ones that are used for Blackjack in
+	 * casinos.  There are no Jokers.  Initially, the cards are in
+	 * sorted order, one deck after another.
+	 * @param decks the number of decks in the shoe, which must be positive.
+	 * @param random the random number generator that is used for shuffling.
+	 */
+	public FastDeck(int decks, RandomGenerator random) {
+		if (decks < 1)
+			throw new IllegalArgumentException("A shoe must contain at least one deck.");
+		if (random == null)
+			throw new IllegalArgumentException("The random number generator can't be null.");
+		this.random = random;
+		deck = new int[52*decks];
+		for ( int i = 0; i < deck.length; i++ )
+			deck[i] = i % 52;
+		cardsUsed = 0;
+	}
+
+	/**
+	 * Put all the used cards back into the deck (if any), and
+	 * shuffle the deck into a random order.  (The shuffling is
+	 * actually done as the cards are dealt.)
+	 */
+	public void shuffle() {
+		cardsUsed = 0;
+		shuffled = true;
+	}
+
+	/**
+	 * As cards are dealt from the deck, the number of cards left
+	 * decreases.  This function returns the number of cards that
+	 * are still left in the deck.  The return value would be
+	 * 52 or 54 (depending on whether the deck includes Jokers)
+	 * when the deck is first created or after the deck has been
+	 * shuffled.  It decreases by 1 each time the dealCard() method
+	 * is called.
+	 */
+	public int cardsLeft() {
+		return deck.length - cardsUsed;
+	}
+
+	/**
+	 * Removes the next card from the deck and return it.  It is illegal
+	 * to call this method if there are no more cards in the deck.  You can
+	 * check the number of cards remaining by calling the cardsLeft() function.
+	 * @return the card which is removed from the deck.
+	 * @throws IllegalStateException if there are no cards left in the deck
+	 */
+	public Card dealCard() {
+		if (cardsUsed == deck.length)
+			throw new IllegalStateException("No cards are left in the deck.");
+		return CARDS[nextCode()];
+		// Programming note:  Cards are not literally removed from the array
+		// that represents the deck.  We just keep track of how many cards
+		// have been used.
+	}
+
+	/**
+	 * Deals enough cards to fill an array with their card codes.  This is
+	 * the same as calling dealCard() out.length times, except that it gives
+	 * the codes instead of Cards.  Use cardForCode() to get the card for a code.
+	 * @throws IllegalStateException if there are not enough cards left in the
+	 *    deck.  In that case, no cards are dealt.
+	 */
+	public void dealHand(int[] out) {
+		if (out.length > deck.length - cardsUsed)
+			throw new IllegalStateException("Not enough cards are left in the deck.");
+		for (int i = 0; i < out.length; i++)
+			out[i] = nextCode();
+	}
+
+	/**
+	 * Test whether the deck contains Jokers.
+	 * @return true, if this is a 54-card deck containing two jokers, or false if
+	 * this is a 52 card deck (or a shoe) that contains no jokers.
+	 */
+	public boolean hasJokers() {
+		return (deck.length == 54);
+	}
+
+	/**
+	 * Returns the card that has a given card code.  The same Card object
+	 * is returned every time for the same code.
+	 * @throws IllegalArgumentException if the code is not in the range 0 to 53.
+	 */
+	public static Card cardForCode(int code) {
+		if (code < 0 || code >= CARDS.length)
+			throw new IllegalArgumentException("Illegal card code " + code);
+		return CARDS[code];
+	}
+
+	/**
+	 * Returns the code of the next card, which must exist.  For a shuffled
+	 * deck, the card is chosen at random from the cards that are left, and
+	 * it is swapped into the position of the next card.  (This is one step
+	 * of the Fisher-Yates shuffle.)
+	 */
+	private int nextCode() {
+		if (shuffled) {
+			int rand = cardsUsed + random.nextInt(deck.length - cardsUsed);
+			int temp = deck[cardsUsed];
+			deck[cardsUsed] = deck[rand];
+			deck[rand] = temp;
+		}
+		cardsUsed++;
+		return deck[cardsUsed - 1];
+	}
+
+} // end class FastDeck